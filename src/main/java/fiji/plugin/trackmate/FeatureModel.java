@@ -21,11 +21,15 @@
  */
 package fiji.plugin.trackmate;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import org.jgrapht.graph.DefaultWeightedEdge;
 
@@ -88,6 +92,17 @@ public class FeatureModel
 
 	private final Map< String, Boolean > spotFeatureIsInt = new HashMap<>();
 
+	/**
+	 * Spot features that are declared, but whose values are not computed yet.
+	 */
+	private final Set< String > lazySpotFeatures = new LinkedHashSet<>();
+
+	/**
+	 * In charge of computing the lazy spot features on demand. Receives the
+	 * keys of the features to compute.
+	 */
+	private Consumer< Collection< String > > spotFeatureMaterializer;
+
 	private final Model model;
 
 	/*
@@ -579,6 +594,101 @@ public class FeatureModel
 		return spotFeatureIsInt;
 	}
 
+	/**
+	 * Marks the specified spot features as lazy. They are declared, but their
+	 * values are computed only when first requested, by the specified
+	 * materializer. Previous lazy features are forgotten.
+	 *
+	 * @param features
+	 *            the keys of the spot features that are not computed yet.
+	 * @param materializer
+	 *            the function to call to compute a collection of spot
+	 *            features. It is expected to call
+	 *            {@link #markSpotFeaturesMaterialized(Collection)} on the
+	 *            features it computed. Can be <code>null</code> if the
+	 *            collection of features is empty.
+	 * @see #materializeSpotFeatures(Collection)
+	 */
+	public synchronized void setLazySpotFeatures( final Collection< String > features, final Consumer< Collection< String > > materializer )
+	{
+		lazySpotFeatures.clear();
+		lazySpotFeatures.addAll( features );
+		this.spotFeatureMaterializer = materializer;
+	}
+
+	/**
+	 * Marks the specified spot features as computed.
+	 *
+	 * @param features
+	 *            the keys of the spot features.
+	 */
+	public synchronized void markSpotFeaturesMaterialized( final Collection< String > features )
+	{
+		lazySpotFeatures.removeAll( features );
+	}
+
+	/**
+	 * Returns the spot features that are declared but not computed yet.
+	 *
+	 * @return a new list of spot feature keys.
+	 */
+	public synchronized List< String > getLazySpotFeatures()
+	{
+		return new ArrayList<>( lazySpotFeatures );
+	}
+
+	/**
+	 * Returns whether the values of the specified spot feature are available.
+	 * This is <code>false</code> only for spot features declared as lazy and
+	 * not requested yet.
+	 *
+	 * @param feature
+	 *            the spot feature key.
+	 * @return <code>true</code> if the feature values have been computed.
+	 */
+	public synchronized boolean isSpotFeatureMaterialized( final String feature )
+	{
+		return !lazySpotFeatures.contains( feature );
+	}
+
+	/**
+	 * Ensures that the values of the specified spot features are computed for
+	 * all the spots of the model. Lazy features among them are computed now;
+	 * the others are left untouched. Code that reads spot feature values,
+	 * such as filters, color generators, tables and exporters, should call
+	 * this method first.
+	 *
+	 * @param features
+	 *            the keys of the spot features to compute.
+	 */
+	public void materializeSpotFeatures( final Collection< String > features )
+	{
+		final List< String > toCompute = new ArrayList<>();
+		final Consumer< Collection< String > > materializer;
+		synchronized ( this )
+		{
+			if ( lazySpotFeatures.isEmpty() )
+				return;
+			for ( final String feature : features )
+				if ( lazySpotFeatures.contains( feature ) )
+					toCompute.add( feature );
+			materializer = spotFeatureMaterializer;
+		}
+		if ( toCompute.isEmpty() || null == materializer )
+			return;
+		materializer.accept( toCompute );
+	}
+
+	/**
+	 * Ensures that the values of all the declared spot features are computed.
+	 *
+	 * @see #materializeSpotFeatures(Collection)
+	 */
+	public void materializeAllSpotFeatures()
+	{
+		materializeSpotFeatures( getLazySpotFeatures() );
+	}
+
 	@Override
 	public String toString()
 	{
@@ -588,6 +698,7 @@ public class FeatureModel
 		str.append( "Spot features declared:\n" );
 		appendFeatureDeclarations( str, spotFeatures, spotFeatureNames, spotFeatureShortNames, spotFeatureDimensions, spotFeatureIsInt );
 		str.append( '\n' );
+		appendLazyFeatures( str, getLazySpotFeatures() );
 
 		// Edges
 		str.append( "Edge features declared:\n" );
@@ -616,6 +727,7 @@ public class FeatureModel
 		str.append( " - Declared:\n" );
 		appendFeatureDeclarations( str, spotFeatures, spotFeatureNames, spotFeatureShortNames, spotFeatureDimensions, spotFeatureIsInt );
 		str.append( '\n' );
+		appendLazyFeatures( str, getLazySpotFeatures() );
 
 		// Edges
 		str.append( "Edge features:\n" );
@@ -652,6 +764,13 @@ public class FeatureModel
 		}
 	}
 
+	private static final void appendLazyFeatures( final StringBuilder str, final Collection< String > lazyFeatures )
+	{
+		if ( lazyFeatures.isEmpty() )
+			return;
+		str.append( " - Not computed yet: " + String.join( ", ", lazyFeatures ) + '\n' );
+	}
+
 	private static final void appendFeatureDeclarations( final StringBuilder str, final Collection< String > features, final Map< String, String > featureNames, final Map< String, String > featureShortNames, final Map< String, Dimension > featureDimensions, final Map< String, Boolean > isIntFeature )
 	{
 		for ( final String feature : features )
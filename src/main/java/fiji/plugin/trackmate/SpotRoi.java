@@ -23,15 +23,10 @@ package fiji.plugin.trackmate;
 
 import java.util.Arrays;
 
+import fiji.plugin.trackmate.util.PolygonIterable;
 import net.imagej.ImgPlus;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.roi.IterableRegion;
-import net.imglib2.roi.Masks;
-import net.imglib2.roi.Regions;
-import net.imglib2.roi.geom.GeomMasks;
-import net.imglib2.roi.geom.real.WritablePolygon2D;
-import net.imglib2.type.logic.BoolType;
 import net.imglib2.view.Views;
 
 public class SpotRoi
@@ -115,9 +110,8 @@ public class SpotRoi
 	{
 		final double[] xp = toPolygonX( xScale, 0, spotXCenter, 1. );
 		final double[] yp = toPolygonY( yScale, 0, spotYCenter, 1. );
-		final WritablePolygon2D polygon = GeomMasks.closedPolygon2D( xp, yp );
-		final IterableRegion< BoolType > region = Masks.toIterableRegion( polygon );
-		return Regions.sample( region, Views.extendMirrorDouble( Views.dropSingletonDimensions( img ) ) );
+		final RandomAccessibleInterval< T > source = Views.dropSingletonDimensions( img );
+		return new PolygonIterable<>( xp, yp, source, Views.extendMirrorDouble( source ) );
 	}
 
 	public double radius()
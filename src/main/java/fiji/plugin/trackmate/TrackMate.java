@@ -21,40 +21,60 @@
  */
 package fiji.plugin.trackmate;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 import org.scijava.Cancelable;
 import org.scijava.Named;
 import org.scijava.util.VersionUtils;
 
+import fiji.plugin.trackmate.detection.DetectionUtils;
+import fiji.plugin.trackmate.detection.DetectorKeys;
+import fiji.plugin.trackmate.detection.LabelImageDetectorFactory;
 import fiji.plugin.trackmate.detection.ManualDetectorFactory;
 import fiji.plugin.trackmate.detection.SpotDetector;
 import fiji.plugin.trackmate.detection.SpotDetectorFactory;
 import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
 import fiji.plugin.trackmate.detection.SpotGlobalDetector;
 import fiji.plugin.trackmate.detection.SpotGlobalDetectorFactory;
+import fiji.plugin.trackmate.detection.util.BufferPoolClient;
+import fiji.plugin.trackmate.detection.util.DetectionBufferPool;
+import fiji.plugin.trackmate.detection.util.FramePrefetcher;
+import fiji.plugin.trackmate.detection.util.FramePrefetcher.PrefetchedFrame;
+import fiji.plugin.trackmate.detection.util.MaskClient;
+import fiji.plugin.trackmate.detection.util.MaxSpotsClient;
 import fiji.plugin.trackmate.features.EdgeFeatureCalculator;
 import fiji.plugin.trackmate.features.FeatureFilter;
+import fiji.plugin.trackmate.features.LazySpotFeatureCalculator;
 import fiji.plugin.trackmate.features.SpotFeatureCalculator;
 import fiji.plugin.trackmate.features.TrackFeatureCalculator;
+import fiji.plugin.trackmate.io.DetectionCache;
 import fiji.plugin.trackmate.tracking.SpotTracker;
 import fiji.plugin.trackmate.util.Threads;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.gui.Roi;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.Localizable;
 import net.imglib2.algorithm.Algorithm;
 import net.imglib2.algorithm.Benchmark;
 import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.util.Intervals;
 
 /**
  * <p>
@@ -99,6 +119,42 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 
 	private final List< Cancelable > cancelables = Collections.synchronizedList( new ArrayList<>() );
 
+	/**
+	 * The fraction of the available heap that can be used to hold frames read
+	 * ahead of detection, when the source image is a virtual stack.
+	 */
+	private double prefetchHeapFraction = 0.25;
+
+	/**
+	 * If <code>true</code>, spot features are declared but computed only when
+	 * first requested.
+	 */
+	private boolean lazySpotFeatures = false;
+
+	/**
+	 * The number of threads used to read frames ahead of detection, when the
+	 * source image is a virtual stack.
+	 */
+	private static final int N_PREFETCH_THREADS = 2;
+
+	/**
+	 * The minimal height, in pixels, of the blocks in which the last frames
+	 * are split during detection.
+	 */
+	private static final long MIN_BLOCK_HEIGHT = 32;
+
+	/**
+	 * The number of candidate maxima discarded by detectors that limit the
+	 * number of spots per frame, in the last detection run.
+	 */
+	private final AtomicLong nDiscardedMaxima = new AtomicLong( 0l );
+
+	/**
+	 * Whether the spots found by frame-by-frame detectors are read from and
+	 * stored in a cache file next to the source image.
+	 */
+	private boolean useDetectionCache = false;
+
 	/*
 	 * CONSTRUCTORS
 	 */
@@ -161,6 +217,32 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 		cancelables.clear();
 
 		final Logger logger = model.getLogger();
+		if ( lazySpotFeatures )
+		{
+			final long start = System.currentTimeMillis();
+			final LazySpotFeatureCalculator calculator = new LazySpotFeatureCalculator( model, settings );
+			calculator.setNumThreads( numThreads );
+			// Features required by the spot filters are computed now.
+			final List< String > required = new ArrayList<>();
+			for ( final FeatureFilter filter : settings.getSpotFilters() )
+				required.add( filter.feature );
+			calculator.declare( required );
+			if ( calculator.getErrorMessage() != null )
+			{
+				errorMessage = "Spot features calculation failed:\n" + calculator.getErrorMessage();
+				return false;
+			}
+			if ( doLogIt )
+				logger.log( "Spot features will be computed on demand. "
+						+ "Features required by spot filters computed in "
+						+ ( System.currentTimeMillis() - start ) + " ms.\n" );
+
+			model.notifyFeaturesComputed();
+			return true;
+		}
+
+		// All features are computed now.
+		model.getFeatureModel().setLazySpotFeatures( Collections.emptyList(), null );
 		final SpotFeatureCalculator calculator = new SpotFeatureCalculator( model, settings, doLogIt );
 		cancelables.add( calculator );
 		calculator.setNumThreads( numThreads );
@@ -295,6 +377,7 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 
 		if ( tracker instanceof Cancelable )
 			cancelables.add( ( Cancelable ) tracker );
+		materializeTrackerFeatures();
 		tracker.setNumThreads( numThreads );
 		tracker.setLogger( logger );
 		if ( tracker.checkInput() && tracker.process() )
@@ -460,7 +543,21 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 	@SuppressWarnings( "rawtypes" )
 	private boolean processFrameByFrame( final SpotDetectorFactory factory, final ImgPlus img, final Logger logger )
 	{
-		final Interval interval = TMUtils.getInterval( img, settings );
+		/*
+		 * If we have a ROI, the detection interval is its bounding box,
+		 * enlarged by a halo so that filtering near the ROI border gives the
+		 * same results as on the full image. Maxima found in the halo or
+		 * outside the ROI shape are discarded before spots are created for
+		 * them.
+		 */
+		final Roi detectionRoi = settings.getRoi();
+		final Interval interval = ( detectionRoi == null )
+				? TMUtils.getInterval( img, settings )
+				: expandByKernelHalo( TMUtils.getInterval( img, settings ), img );
+		final Predicate< Localizable > mask = ( detectionRoi == null || img.dimension( 0 ) < 2 || img.dimension( 1 ) < 2 )
+				? null
+				: DetectionUtils.roiMask( detectionRoi, 1 );
+
 		final int zindex = img.dimensionIndex( Axes.Z );
 		final int numFrames = settings.tend - settings.tstart + 1;
 		// Final results holder, for all frames
@@ -473,27 +570,90 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 		final double[] calibration = TMUtils.getSpatialCalibration( settings.imp );
 
 		/*
-		 * Fine tune multi-threading: If we have 10 threads and 15 frames to
-		 * process, we process 10 frames at once, and allocate 1 thread per
-		 * frame. But if we have 10 threads and 2 frames, we process the 2
-		 * frames at once, and allocate 5 threads per frame if we can.
+		 * Work-stealing scheduling. Each frame is a task, and we run as many
+		 * workers as we have threads, even if there are fewer frames. Frames
+		 * that start while there are still many frames waiting get a single
+		 * thread. When fewer frames remain to be started than we have workers,
+		 * the workers are shared between the frames still in flight: each
+		 * frame that starts is split in as many blocks as its share of
+		 * workers, that idle workers can steal, if the detector supports it.
+		 * If not, it gets its share of threads.
 		 */
-		final int nSimultaneousFrames = ( factory.forbidMultithreading() )
+		final int nWorkers = ( factory.forbidMultithreading() )
 				? 1
-				: Math.min( numThreads, numFrames );
-		final int threadsPerFrame = Math.max( 1, numThreads / nSimultaneousFrames );
+				: numThreads;
+		final double blockHalo = factory.getBlockHalo();
+		/*
+		 * The limit on the number of spots per frame is applied by each
+		 * detector to the candidates it finds. On blocks, it would keep up to
+		 * this number of spots per block, so frames are not split when there
+		 * is such a limit.
+		 */
+		final Object maxSpots = settings.detectorSettings.get( DetectorKeys.KEY_MAX_SPOTS_PER_FRAME );
+		final boolean limitsSpots = ( maxSpots instanceof Integer ) && ( ( Integer ) maxSpots ).intValue() > 0;
+		final boolean canSplit = nWorkers > 1
+				&& !limitsSpots
+				&& !Double.isNaN( blockHalo )
+				&& img.dimension( 0 ) > 1
+				&& img.dimension( 1 ) > 1;
+		final long blockHaloPixels = canSplit
+				? ( long ) Math.ceil( blockHalo / calibration[ 1 ] ) + 2
+				: 0l;
+		nDiscardedMaxima.set( 0l );
+		final AtomicInteger framesNotStarted = new AtomicInteger( numFrames );
+		final AtomicInteger framesRunning = new AtomicInteger( 0 );
+
+		logger.log( "Detection uses "
+				+ ( ( nWorkers > 1 ) ? ( nWorkers + " workers" ) : "1 worker" )
+				+ " with work-stealing across frames"
+				+ ( canSplit ? " and blocks of the last frames" : "" )
+				+ ".\n" );
 
-		logger.log( "Detection processes "
-				+ ( ( nSimultaneousFrames > 1 ) ? ( nSimultaneousFrames + " frames" ) : "1 frame" )
-				+ " simultaneously and allocates "
-				+ ( ( threadsPerFrame > 1 ) ? ( threadsPerFrame + " threads" ) : "1 thread" )
-				+ " per frame.\n" );
+		/*
+		 * Shared pool of intermediate images, so that detectors working on
+		 * successive frames reuse the buffers of the previous ones.
+		 */
+		final DetectionBufferPool bufferPool = new DetectionBufferPool();
 
-		final ExecutorService executorService = Threads.newFixedThreadPool( nSimultaneousFrames );
+		/*
+		 * Optional on-disk cache of the spots found in previous runs.
+		 */
+		final DetectionCache cache = useDetectionCache
+				? openDetectionCache( factory, interval, calibration, logger )
+				: null;
+
+		/*
+		 * If the source is a virtual stack, read frames in memory ahead of the
+		 * detection workers, on dedicated I/O threads. Each prefetched frame
+		 * is detected by a copy of the factory targeted on it. When the
+		 * detector works on a single target channel, only this channel is
+		 * read. With the detection cache, frames are hashed in memory too, so
+		 * that virtual stacks are read only once.
+		 */
+		final Object targetChannel = settings.detectorSettings.get( DetectorKeys.KEY_TARGET_CHANNEL );
+		final int channel = ( targetChannel instanceof Integer ) ? ( ( Integer ) targetChannel ).intValue() - 1 : -1;
+		final FramePrefetcher prefetcher;
+		if ( FramePrefetcher.shouldPrefetch( settings.imp )
+				|| ( cache != null && settings.imp.getStack().isVirtual() ) )
+		{
+			final int queueDepth = FramePrefetcher.queueDepthFromHeap( img, prefetchHeapFraction, 2 * nWorkers );
+			prefetcher = new FramePrefetcher( img, settings.tstart, settings.tend, channel, queueDepth, N_PREFETCH_THREADS );
+			cancelables.add( prefetcher );
+			logger.log( "Source image is a virtual stack. Prefetching up to "
+					+ ( ( queueDepth > 1 ) ? ( queueDepth + " frames" ) : "1 frame" )
+					+ " in memory.\n" );
+			prefetcher.start();
+		}
+		else
+		{
+			prefetcher = null;
+		}
+
+		final ExecutorService executorService = Threads.newWorkStealingPool( nWorkers );
 		final List< Future< Boolean > > tasks = new ArrayList<>( numFrames );
 		for ( int i = settings.tstart; i <= settings.tend; i++ )
 		{
-			final int frame = i;
+			final int taskFrame = i;
 			final Callable< Boolean > callable = new Callable< Boolean >()
 			{
 
@@ -503,28 +663,85 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 					if ( isCanceled() )
 						return Boolean.TRUE; // ok to be canceled.
 
-					// Yield detector for target frame
-					final SpotDetector< ? > detector = factory.getDetector( interval, frame );
-					if ( detector instanceof MultiThreaded )
+					// Yield detector factory and frame index for target frame.
+					final int frame;
+					final SpotDetectorFactory frameFactory;
+					final int frameInImg;
+					final ImgPlus frameImg;
+					if ( prefetcher == null )
 					{
-						final MultiThreaded md = ( MultiThreaded ) detector;
-						md.setNumThreads( threadsPerFrame );
+						frame = taskFrame;
+						frameFactory = factory;
+						frameInImg = frame;
+						frameImg = img;
+					}
+					else
+					{
+						// Take whichever frame is already in memory.
+						final PrefetchedFrame prefetched = prefetcher.take();
+						if ( prefetched == null )
+							return Boolean.TRUE; // ok to be canceled.
+						if ( prefetched.errorMessage != null )
+						{
+							errorMessage = prefetched.errorMessage;
+							return Boolean.FALSE;
+						}
+						frame = prefetched.frame;
+						frameFactory = ( SpotDetectorFactory ) factory.copy();
+						if ( !frameFactory.setTarget( prefetched.img, settings.detectorSettings ) )
+						{
+							errorMessage = frameFactory.getErrorMessage();
+							return Boolean.FALSE;
+						}
+						frameInImg = 0;
+						frameImg = prefetched.img;
 					}
 
-					if ( detector instanceof Cancelable )
-						cancelables.add( ( Cancelable ) detector );
+					final int notStarted = framesNotStarted.decrementAndGet();
+					final int running = framesRunning.incrementAndGet();
 
-					// Execute detection
-					if ( detector.checkInput() && detector.process() )
+					/*
+					 * Read the spots from the detection cache if they were
+					 * found in the same pixels with the same settings.
+					 */
+					final long frameHash = ( cache == null ) ? 0l : DetectionCache.frameHash( frameImg, frameInImg, channel );
+					List< Spot > prunedSpots = ( cache == null ) ? null : cache.get( frame, frameHash );
+					if ( prunedSpots != null )
 					{
-						// On success, get results.
-						final List< Spot > spotsThisFrame = detector.getResult();
+						framesRunning.decrementAndGet();
+					}
+					else
+					{
+						final List< Spot > spotsThisFrame;
+						try
+						{
+							if ( canSplit && notStarted < nWorkers )
+							{
+								final int inFlight = Math.max( 1, running + notStarted );
+								final int workersThisFrame = ( nWorkers + inFlight - 1 ) / inFlight;
+								spotsThisFrame = detectInBlocks( frameFactory, interval, frameInImg, workersThisFrame, blockHaloPixels, calibration, bufferPool, mask );
+							}
+							else
+							{
+								final int threadsThisFrame = ( factory.forbidMultithreading() )
+										? numThreads
+										: Math.max( 1, numThreads / Math.min( numThreads, running + notStarted ) );
+								spotsThisFrame = detect( frameFactory, interval, frameInImg, threadsThisFrame, bufferPool, mask );
+							}
+						}
+						finally
+						{
+							framesRunning.decrementAndGet();
+						}
+
+						if ( spotsThisFrame == null )
+							return Boolean.FALSE; // Fail: exit and report error.
 
 						/*
-						 * Special case: if we have a single column image, then
-						 * the detectors internally dealt with a single line
-						 * image. We need to permute back the X & Y coordinates
-						 * if it's the case.
+						 * Special case: if we have a single column image, then the
+						 * detectors internally dealt with a single line image. We
+						 * need to permute back the X & Y coordinates if it's the
+						 * case.
 						 */
 						if ( img.dimension( 0 ) < 2 && zindex < 0 )
 						{
@@ -535,7 +752,6 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 							}
 						}
 
-						List< Spot > prunedSpots;
 						final Roi roi = settings.getRoi();
 						if ( roi != null )
 						{
@@ -552,26 +768,21 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 						{
 							prunedSpots = spotsThisFrame;
 						}
-						// Add detection feature other than position
-						for ( final Spot spot : prunedSpots )
-						{
-							// FRAME will be set upon adding to
-							// SpotCollection.
-							spot.putFeature( Spot.POSITION_T, frame * settings.dt );
-						}
-						// Store final results for this frame
-						spots.put( frame, prunedSpots );
-						// Report
-						spotFound.addAndGet( prunedSpots.size() );
-						logger.setProgress( progress.incrementAndGet() / ( double ) numFrames );
-
+						if ( cache != null )
+							cache.put( frame, frameHash, prunedSpots );
 					}
-					else
+
+					// Add detection feature other than position
+					for ( final Spot spot : prunedSpots )
 					{
-						// Fail: exit and report error.
-						errorMessage = detector.getErrorMessage();
-						return Boolean.FALSE;
+						// FRAME will be set upon adding to SpotCollection.
+						spot.putFeature( Spot.POSITION_T, frame * settings.dt );
 					}
+					// Store final results for this frame
+					spots.put( frame, prunedSpots );
+					// Report
+					spotFound.addAndGet( prunedSpots.size() );
+					logger.setProgress( progress.incrementAndGet() / ( double ) numFrames );
 					return Boolean.TRUE;
 				}
 			};
@@ -601,14 +812,51 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 			reportOk.set( false );
 			e.printStackTrace();
 		}
+		finally
+		{
+			if ( prefetcher != null )
+				prefetcher.cancel( "Detection finished." );
+		}
 
 		model.setSpots( spots, true );
 
+		// Label image detection stores the label of each spot.
+		if ( factory instanceof LabelImageDetectorFactory )
+			model.getFeatureModel().declareSpotFeatures(
+					LabelImageDetectorFactory.FEATURES,
+					LabelImageDetectorFactory.FEATURE_NAMES,
+					LabelImageDetectorFactory.FEATURE_SHORT_NAMES,
+					LabelImageDetectorFactory.FEATURE_DIMENSIONS,
+					LabelImageDetectorFactory.IS_INT );
+
+		if ( bufferPool.getNAllocations() > 0 )
+			logger.log( String.format( "Detection buffers: %d allocated, %d reused, peak pooled memory %.1f MB.\n",
+					bufferPool.getNAllocations(), bufferPool.getNReuses(), bufferPool.getPeakBorrowedBytes() / 1024. / 1024. ) );
+		bufferPool.clear();
+
+		if ( cache != null )
+		{
+			logger.log( "Detection cache: " + cache.getNHits() + " frames read, " + cache.getNMisses() + " frames detected.\n" );
+			if ( reportOk.get() && !isCanceled() && cache.getNMisses() > 0 )
+			{
+				try
+				{
+					cache.save();
+				}
+				catch ( final IOException e )
+				{
+					logger.error( "Could not write the detection cache to " + cache.getFile() + ":\n" + e.getMessage() + '\n' );
+				}
+			}
+		}
+
 		if ( reportOk.get() )
 		{
 			if ( isCanceled() )
 				logger.log( "Detection canceled after " + ( progress.get() + 1 ) + " frames. Reason:\n" + getCancelReason() + "\n" );
 			logger.log( "Found " + spotFound.get() + " spots.\n" );
+			if ( nDiscardedMaxima.get() > 0 )
+				logger.log( "Discarded " + nDiscardedMaxima.get() + " candidate maxima over the maximal number of spots per frame.\n" );
 		}
 		else
 		{
@@ -620,6 +868,276 @@ public class TrackMate implements Benchmark, MultiThreaded, Algorithm, Named, Ca
 		return reportOk.get();
 	}
 
+	/**
+	 * Runs a detector created by the specified factory on the specified
+	 * interval of a frame.
+	 *
+	 * @return the spots found, or <code>null</code> if the detection failed.
+	 *         In that case the error message is set.
+	 */
+	@SuppressWarnings( "rawtypes" )
+	private List< Spot > detect(
+			final SpotDetectorFactory factory,
+			final Interval interval,
+			final int frame,
+			final int nThreads,
+			final DetectionBufferPool bufferPool,
+			final Predicate< Localizable > mask )
+	{
+		final SpotDetector< ? > detector = factory.getDetector( interval, frame );
+		if ( detector instanceof MultiThreaded )
+		{
+			final MultiThreaded md = ( MultiThreaded ) detector;
+			md.setNumThreads( nThreads );
+		}
+
+		if ( detector instanceof BufferPoolClient )
+			( ( BufferPoolClient ) detector ).setBufferPool( bufferPool );
+
+		if ( detector instanceof MaskClient )
+			( ( MaskClient ) detector ).setMask( mask );
+
+		if ( detector instanceof Cancelable )
+			cancelables.add( ( Cancelable ) detector );
+
+		if ( detector.checkInput() && detector.process() )
+		{
+			if ( detector instanceof MaxSpotsClient )
+				nDiscardedMaxima.addAndGet( ( ( MaxSpotsClient ) detector ).getNDiscarded() );
+			return detector.getResult();
+		}
+
+		errorMessage = detector.getErrorMessage();
+		return null;
+	}
+
+	/**
+	 * Splits the specified interval of a frame in blocks along Y, detects
+	 * spots in each block as a separate fork-join task, and merges the
+	 * results. Each block is enlarged by the specified halo so that the
+	 * detector sees the same neighborhood as on the whole interval, and only
+	 * the spots whose position falls in the core of the block are kept. The
+	 * interval is split in at most as many blocks as the specified number of
+	 * workers, and these workers are shared between the blocks. Must be
+	 * called from a worker of a work-stealing pool so that idle workers can
+	 * steal the blocks.
+	 *
+	 * @return the spots found, or <code>null</code> if the detection failed
+	 *         in one of the blocks.
+	 */
+	@SuppressWarnings( "rawtypes" )
+	private List< Spot > detectInBlocks(
+			final SpotDetectorFactory factory,
+			final Interval interval,
+			final int frame,
+			final int nWorkers,
+			final long halo,
+			final double[] calibration,
+			final DetectionBufferPool bufferPool,
+			final Predicate< Localizable > mask )
+	{
+		final long height = interval.dimension( 1 );
+		final int nBlocks = ( int ) Math.min( nWorkers, height / Math.max( MIN_BLOCK_HEIGHT, halo ) );
+		if ( nBlocks < 2 )
+			return detect( factory, interval, frame, nWorkers, bufferPool, mask );
+
+		// If the frame is too small for one block per worker, blocks are
+		// multithreaded.
+		final int threadsPerBlock = Math.max( 1, nWorkers / nBlocks );
+
+		final List< ForkJoinTask< List< Spot > > > blockTasks = new ArrayList<>( nBlocks );
+		for ( int b = 0; b < nBlocks; b++ )
+		{
+			// Core of this block, in pixel rows.
+			final long coreMin = interval.min( 1 ) + b * height / nBlocks;
+			final long coreMax = interval.min( 1 ) + ( b + 1 ) * height / nBlocks - 1;
+			// Rows owned by this block. The first and last blocks also own
+			// spots that were localized out of the interval.
+			final long ownMin = ( b == 0 ) ? Long.MIN_VALUE : coreMin;
+			final long ownMax = ( b == nBlocks - 1 ) ? Long.MAX_VALUE : coreMax;
+
+			final long[] min = Intervals.minAsLongArray( interval );
+			final long[] max = Intervals.maxAsLongArray( interval );
+			min[ 1 ] = Math.max( interval.min( 1 ), coreMin - halo );
+			max[ 1 ] = Math.min( interval.max( 1 ), coreMax + halo );
+			final Interval block = new FinalInterval( min, max );
+
+			final Callable< List< Spot > > blockCallable = () -> {
+				if ( isCanceled() )
+					return Collections.emptyList();
+
+				final List< Spot > found = detect( factory, block, frame, threadsPerBlock, bufferPool, mask );
+				if ( found == null )
+					return null;
+
+				final List< Spot > owned = new ArrayList<>( found.size() );
+				for ( final Spot spot : found )
+				{
+					final long row = Math.round( spot.getFeature( Spot.POSITION_Y ) / calibration[ 1 ] );
+					if ( row >= ownMin && row <= ownMax )
+						owned.add( spot );
+				}
+				return owned;
+			};
+			blockTasks.add( ForkJoinTask.adapt( blockCallable ).fork() );
+		}
+
+		final List< Spot > spots = new ArrayList<>();
+		boolean ok = true;
+		for ( final ForkJoinTask< List< Spot > > blockTask : blockTasks )
+		{
+			final List< Spot > found = blockTask.join();
+			if ( found == null )
+				ok = false;
+			else
+				spots.addAll( found );
+		}
+		return ok ? spots : null;
+	}
+
+	/**
+	 * Enlarges the X and Y bounds of the specified detection interval by the
+	 * half-size of the filter kernel used by the detector, so that the
+	 * filtered values inside the interval do not depend on the interval
+	 * borders. The kernel size is estimated from the
+	 * {@link DetectorKeys#KEY_RADIUS} detector parameter. Detectors that do
+	 * not have this parameter are left with the specified interval.
+	 */
+	private Interval expandByKernelHalo( final Interval interval, final ImgPlus< ? > img )
+	{
+		final Object obj = settings.detectorSettings.get( DetectorKeys.KEY_RADIUS );
+		if ( !( obj instanceof Double ) )
+			return interval;
+
+		final double radius = ( ( Double ) obj ).doubleValue();
+		final double[] calibration = TMUtils.getSpatialCalibration( settings.imp );
+		final long[] min = Intervals.minAsLongArray( interval );
+		final long[] max = Intervals.maxAsLongArray( interval );
+		for ( int d = 0; d < 2; d++ )
+		{
+			// LoG, DoG and Hessian kernels extend to ~3 sigma < 3 radius.
+			final long halo = ( long ) Math.ceil( 3. * radius / calibration[ d ] ) + 1;
+			min[ d ] = Math.max( img.min( d ), min[ d ] - halo );
+			max[ d ] = Math.min( img.max( d ), max[ d ] + halo );
+		}
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * Opens the detection cache of the image, or returns <code>null</code> if
+	 * the image is not stored in a file.
+	 */
+	@SuppressWarnings( "rawtypes" )
+	private DetectionCache openDetectionCache( final SpotDetectorFactory factory, final Interval interval, final double[] calibration, final Logger logger )
+	{
+		final File file = DetectionCache.cacheFileFor( settings );
+		if ( file == null )
+		{
+			logger.log( "Source image is not stored in a file. Detection cache not used.\n" );
+			return null;
+		}
+		final DetectionCache cache = DetectionCache.open( file, factory.getKey(), DetectionCache.detectorVersion( factory ), settings.detectorSettings, interval, settings.getRoi(), calibration );
+		logger.log( "Using detection cache " + file + ".\n" );
+		return cache;
+	}
+
+	/**
+	 * Sets whether the spots found by frame-by-frame detectors are stored in
+	 * a cache file next to the source image. If <code>true</code>, frames
+	 * whose pixels and detection settings did not change since the cache was
+	 * written are read from it instead of being detected again.
+	 *
+	 * @param useDetectionCache
+	 *            whether to use the detection cache.
+	 */
+	public void setUseDetectionCache( final boolean useDetectionCache )
+	{
+		this.useDetectionCache = useDetectionCache;
+	}
+
+	/**
+	 * Returns whether the spots found by frame-by-frame detectors are stored
+	 * in a cache file next to the source image.
+	 *
+	 * @return whether the detection cache is used.
+	 */
+	public boolean isUseDetectionCache()
+	{
+		return useDetectionCache;
+	}
+
+	/**
+	 * Sets whether spot features are computed lazily. In lazy mode,
+	 * {@link #computeSpotFeatures(boolean)} declares the features of all the
+	 * spot analyzers configured in the settings, but only computes the ones
+	 * required by the spot filters. The other ones are computed for all spots
+	 * the first time they are requested, by a filter, a color generator, a
+	 * table, the tracker or an exporter. See
+	 * {@link FeatureModel#materializeSpotFeatures(java.util.Collection)}.
+	 *
+	 * @param lazySpotFeatures
+	 *            whether to compute spot features on demand.
+	 */
+	public void setLazySpotFeatures( final boolean lazySpotFeatures )
+	{
+		this.lazySpotFeatures = lazySpotFeatures;
+	}
+
+	/**
+	 * Returns whether spot features are computed on demand.
+	 *
+	 * @return <code>true</code> if spot features are computed lazily.
+	 */
+	public boolean isLazySpotFeatures()
+	{
+		return lazySpotFeatures;
+	}
+
+	/**
+	 * Computes the lazy spot features used by the tracker, as feature
+	 * penalties for instance. We look for them in the keys of the maps of the
+	 * tracker settings.
+	 */
+	private void materializeTrackerFeatures()
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		final List< String > lazy = fm.getLazySpotFeatures();
+		if ( lazy.isEmpty() || null == settings.trackerSettings )
+			return;
+
+		final List< String > used = new ArrayList<>();
+		for ( final Object value : settings.trackerSettings.values() )
+			if ( value instanceof Map )
+				for ( final Object key : ( ( Map< ?, ? > ) value ).keySet() )
+					if ( lazy.contains( key ) )
+						used.add( ( String ) key );
+		fm.materializeSpotFeatures( used );
+	}
+
+	/**
+	 * Sets the fraction of the heap available at the beginning of detection
+	 * that can be used to read frames in memory ahead of the detection
+	 * workers. This is only used when the source image is a virtual stack.
+	 *
+	 * @param prefetchHeapFraction
+	 *            the heap fraction, between 0 and 1.
+	 */
+	public void setPrefetchHeapFraction( final double prefetchHeapFraction )
+	{
+		this.prefetchHeapFraction = prefetchHeapFraction;
+	}
+
+	/**
+	 * Returns the fraction of the available heap used to read frames ahead
+	 * of the detection workers.
+	 *
+	 * @return the heap fraction.
+	 */
+	public double getPrefetchHeapFraction()
+	{
+		return prefetchHeapFraction;
+	}
+
 	/**
 	 * Execute the initial spot filtering part.
 	 * <p>
@@ -170,6 +170,13 @@ public class TrackMateRunner extends TrackMatePlugIn
 	 */
 	private static final String ARG_FILTER_TRACKS_NSPOTS_ABOVE = "filter_tracks_nspots_above";
 
+	/**
+	 * The macro parameter to set whether the spots found in each frame are
+	 * stored in a cache file next to the input image, and read from it in
+	 * later runs with the same detection settings. Accept boolean values.
+	 */
+	private static final String ARG_DETECTION_CACHE = "detection_cache";
+
 	/**
 	 * The collection of supported macro parameters.
 	 */
@@ -193,6 +200,7 @@ public class TrackMateRunner extends TrackMatePlugIn
 		SUPPORTED_ARGS.add( ARG_USE_GUI );
 		SUPPORTED_ARGS.add( ARG_RADIUS );
 		SUPPORTED_ARGS.add( ARG_FILTER_TRACKS_NSPOTS_ABOVE );
+		SUPPORTED_ARGS.add( ARG_DETECTION_CACHE );
 	}
 
 	/*
@@ -412,6 +420,9 @@ public class TrackMateRunner extends TrackMatePlugIn
 					return;
 				}
 
+				if ( macroOptions.containsKey( ARG_DETECTION_CACHE ) && macroOptions.get( ARG_DETECTION_CACHE ).equalsIgnoreCase( "true" ) )
+					trackmate.setUseDetectionCache( true );
+
 				final String welcomeMessage = TrackMate.PLUGIN_NAME_STR + " v" + TrackMate.PLUGIN_NAME_VERSION + " started on:\n" + TMUtils.getCurrentTimeString() + '\n';
 				logger.log( welcomeMessage );
 				if ( !trackmate.checkInput() || !trackmate.process() )
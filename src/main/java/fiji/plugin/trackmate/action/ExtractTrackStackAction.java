@@ -44,6 +44,7 @@ import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import fiji.plugin.trackmate.util.HyperSliceCache;
 import fiji.plugin.trackmate.util.TMUtils;
 import fiji.plugin.trackmate.visualization.trackscheme.SpotIconGrabber;
 import ij.CompositeImage;
@@ -288,9 +289,6 @@ public class ExtractTrackStackAction extends AbstractTMAction
 		else
 			depth = 1;
 
-		// Extract target channel
-		final ImgPlus img = TMUtils.rawWraps( settings.imp );
-
 		// Prepare new image holder:
 		final ImageStack stack = new ImageStack( width, height );
 
@@ -306,7 +304,7 @@ public class ExtractTrackStackAction extends AbstractTMAction
 
 			for ( int c = 0; c < nChannels; c++ )
 			{
-				final ImgPlus imgCT = TMUtils.hyperSlice( img, c, frame );
+				final ImgPlus imgCT = HyperSliceCache.getInstance().get( settings.imp, c, frame );
 
 				// Compute target coordinates for current spot
 				final int x = ( int ) ( Math.round( ( spot.getFeature( Spot.POSITION_X ) ) / calibration[ 0 ] ) - width / 2 );
@@ -25,6 +25,7 @@ import static fiji.plugin.trackmate.gui.Icons.LABEL_IMG_ICON;
 import static fiji.plugin.trackmate.gui.Icons.TRACKMATE_ICON;
 
 import java.awt.Frame;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -38,6 +39,7 @@ import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.SelectionModel;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.detection.MaskUtils;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
 import fiji.plugin.trackmate.util.SpotUtil;
 import fiji.plugin.trackmate.util.TMUtils;
@@ -50,6 +52,9 @@ import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
@@ -60,7 +65,8 @@ public class LabelImgExporter extends AbstractTMAction
 	public static final String INFO_TEXT = "<html>"
 			+ "This action creates a label image from the tracking results. "
 			+ "<p> "
-			+ "A new 16-bit image is generated, of same dimension and size that "
+			+ "A new 16-bit image is generated, or 32-bit if the labels do not fit "
+			+ "in 16 bits, of same dimension and size that "
 			+ "of the input image. The label image has one channel, with black baground (0 value) "
 			+ "everywhere, except where there are spots. Each spot is painted with "
 			+ "a uniform integer value equal to the trackID it belongs to. "
@@ -74,6 +80,9 @@ public class LabelImgExporter extends AbstractTMAction
 
 	public static final String NAME = "Export label image";
 
+	/** The largest label value that can be written in a 16-bit label image. */
+	private static final int MAX_LABEL = 65535;
+
 	@Override
 	public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame gui )
 	{
@@ -138,7 +147,8 @@ public class LabelImgExporter extends AbstractTMAction
 	 *            different from the track IDs and different for each spot.
 	 * @param useSpotIDsAsLabels
 	 * 	          if <code>true</code>, the label mask images will contain 
-	 * 	          the spot ID. If <code>false</code>, the label mask images 
+	 * 	          the spot ID, or the original label for spots created from 
+	 * 	          a label image. If <code>false</code>, the label mask images 
 	 * 	          will contain the track ID.
 	 *
 	 * @return a new {@link ImagePlus}.
@@ -175,7 +185,8 @@ public class LabelImgExporter extends AbstractTMAction
 	 *            different from the track IDs and different for each spot.
 	 * @param useSpotIDsAsLabels
 	 * 	          if <code>true</code>, the label mask images will contain 
-	 * 	          the spot ID. If <code>false</code>, the label mask images 
+	 * 	          the spot ID, or the original label for spots created from 
+	 * 	          a label image. If <code>false</code>, the label mask images 
 	 * 	          will contain the track ID.
 	 * @param logger
 	 *            a {@link Logger} instance, to report progress of the export
@@ -215,7 +226,8 @@ public class LabelImgExporter extends AbstractTMAction
 	 *            different from the track IDs and different for each spot.
 	 * @param useSpotIDsAsLabels
 	 * 	          if <code>true</code>, the label mask images will contain 
-	 * 	          the spot ID. If <code>false</code>, the label mask images 
+	 * 	          the spot ID, or the original label for spots created from 
+	 * 	          a label image. If <code>false</code>, the label mask images 
 	 * 	          will contain the track ID.
 	 * 
 	 * @return a new {@link ImagePlus}.
@@ -252,7 +264,8 @@ public class LabelImgExporter extends AbstractTMAction
 	 *            different from the track IDs and different for each spot.
 	 * @param useSpotIDsAsLabels
 	 * 	          if <code>true</code>, the label mask images will contain 
-	 * 	          the spot ID. If <code>false</code>, the label mask images 
+	 * 	          the spot ID, or the original label for spots created from 
+	 * 	          a label image. If <code>false</code>, the label mask images 
 	 * 	          will contain the track ID.
 	 * @param logger
 	 *            a {@link Logger} instance, to report progress of the export
@@ -304,7 +317,8 @@ public class LabelImgExporter extends AbstractTMAction
 	 *            different from the track IDs and different for each spot.
 	 * @param useSpotIDsAsLabels
 	 * 	          if <code>true</code>, the label mask images will contain 
-	 * 	          the spot ID. If <code>false</code>, the label mask images 
+	 * 	          the spot ID, or the original label for spots created from 
+	 * 	          a label image. If <code>false</code>, the label mask images 
 	 * 	          will contain the track ID.
 	 * 	          
 	 * @return a new {@link ImagePlus}.
@@ -341,7 +355,8 @@ public class LabelImgExporter extends AbstractTMAction
 	 *            different from the track IDs and different for each spot.
 	 * @param useSpotIDsAsLabels
 	 * 	          if <code>true</code>, the label mask images will contain 
-	 * 	          the spot ID. If <code>false</code>, the label mask images 
+	 * 	          the spot ID, or the original label for spots created from 
+	 * 	          a label image. If <code>false</code>, the label mask images 
 	 * 	          will contain the track ID.
 	 * @param logger
 	 *            a {@link Logger} instance, to report progress of the export
@@ -362,7 +377,7 @@ public class LabelImgExporter extends AbstractTMAction
 		for ( int d = 0; d < dims.length; d++ )
 			dims[ d ] = dimensions[ d ];
 
-		final ImagePlus lblImp = ImageJFunctions.wrap( createLabelImg( model, dims, calibration, exportSpotsAsDots, exportTracksOnly, useSpotIDsAsLabels, logger ), "LblImage" );
+		final ImagePlus lblImp = wrap( createLabelImg( model, dims, calibration, exportSpotsAsDots, exportTracksOnly, useSpotIDsAsLabels, logger ) );
 		lblImp.setDimensions( 1, dimensions[ 2 ], dimensions[ 3 ] );
 		lblImp.setOpenAsHyperStack( true );
 		lblImp.resetDisplayRange();
@@ -372,7 +387,8 @@ public class LabelImgExporter extends AbstractTMAction
 	/**
 	 * Creates a new label {@link Img} of {@link UnsignedShortType} where the
 	 * spots of the specified model are painted as ellipsoids taken from their
-	 * shape, with their track ID as pixel value.
+	 * shape, with their track ID as pixel value. If the labels do not fit in
+	 * 16 bits, the label image is of {@link UnsignedIntType}.
 	 *
 	 * @param model
 	 *            the model from which we takes the spots to paint.
@@ -390,12 +406,13 @@ public class LabelImgExporter extends AbstractTMAction
 	 *            different from the track IDs and different for each spot.
 	 * @param useSpotIDsAsLabels
 	 * 	          if <code>true</code>, the label mask images will contain 
-	 * 	          the spot ID. If <code>false</code>, the label mask images 
+	 * 	          the spot ID, or the original label for spots created from 
+	 * 	          a label image. If <code>false</code>, the label mask images 
 	 * 	          will contain the track ID.
 	 * 	          
 	 * @return a new {@link Img}.
 	 */
-	public static final Img< UnsignedShortType > createLabelImg(
+	public static final Img< ? extends IntegerType< ? > > createLabelImg(
 			final Model model,
 			final long[] dimensions,
 			final double[] calibration,
@@ -409,7 +426,8 @@ public class LabelImgExporter extends AbstractTMAction
 	/**
 	 * Creates a new label {@link Img} of {@link UnsignedShortType} where the
 	 * spots of the specified model are painted as ellipsoids taken from their
-	 * shape, with their track ID as pixel value.
+	 * shape, with their track ID as pixel value. If the labels do not fit in
+	 * 16 bits, the label image is of {@link UnsignedIntType}.
 	 *
 	 * @param model
 	 *            the model from which we takes the spots to paint.
@@ -427,7 +445,8 @@ public class LabelImgExporter extends AbstractTMAction
 	 *            different from the track IDs and different for each spot.
 	 * @param useSpotIDsAsLabels
 	 * 	          if <code>true</code>, the label mask images will contain 
-	 * 	          the spot ID. If <code>false</code>, the label mask images 
+	 * 	          the spot ID, or the original label for spots created from 
+	 * 	          a label image. If <code>false</code>, the label mask images 
 	 * 	          will contain the track ID.
 	 * @param logger
 	 *            a {@link Logger} instance, to report progress of the export
@@ -435,7 +454,7 @@ public class LabelImgExporter extends AbstractTMAction
 	 *
 	 * @return a new {@link Img}.
 	 */
-	public static final Img< UnsignedShortType > createLabelImg(
+	public static final Img< ? extends IntegerType< ? > > createLabelImg(
 			final Model model,
 			final long[] dimensions,
 			final double[] calibration,
@@ -444,18 +463,6 @@ public class LabelImgExporter extends AbstractTMAction
 			final boolean useSpotIDsAsLabels,
 			final Logger logger )
 	{
-		/*
-		 * Create target image.
-		 */
-		final Dimensions targetSize = FinalDimensions.wrap( dimensions );
-		final Img< UnsignedShortType > lblImg = Util.getArrayOrCellImgFactory( targetSize, new UnsignedShortType() ).create( targetSize );
-		final AxisType[] axes = new AxisType[] {
-				Axes.X,
-				Axes.Y,
-				Axes.Z,
-				Axes.TIME };
-		final ImgPlus< UnsignedShortType > imgPlus = new ImgPlus<>( lblImg, "LblImg", axes, calibration );
-
 		/*
 		 * Determine the starting id for spots not in tracks.
 		 */
@@ -466,6 +473,52 @@ public class LabelImgExporter extends AbstractTMAction
 			for ( final Integer trackID : trackIDs )
 				if ( trackID > maxTrackID )
 					maxTrackID = trackID.intValue();
+
+		/*
+		 * Original labels of spots created from a label image are only kept
+		 * if they do not collide with the labels of other spots.
+		 */
+
+		final boolean keepLabels = useSpotIDsAsLabels && canKeepLabels( model, dimensions[ 3 ], exportTracksOnly );
+		if ( useSpotIDsAsLabels && !keepLabels )
+			logger.log( "Some original labels are shared by several spots of the same frame. Using spot IDs instead.\n" );
+
+		/*
+		 * Use a 32-bit image if the labels do not fit in 16 bits.
+		 */
+
+		if ( maxLabel( model, dimensions[ 3 ], useSpotIDsAsLabels, keepLabels, maxTrackID ) > MAX_LABEL )
+		{
+			logger.log( "Labels do not fit in 16 bits. Writing a 32-bit label image.\n" );
+			return createLabelImg( model, dimensions, calibration, exportSpotsAsDots, exportTracksOnly, useSpotIDsAsLabels, keepLabels, maxTrackID, new UnsignedIntType(), logger );
+		}
+		return createLabelImg( model, dimensions, calibration, exportSpotsAsDots, exportTracksOnly, useSpotIDsAsLabels, keepLabels, maxTrackID, new UnsignedShortType(), logger );
+	}
+
+	private static final < T extends IntegerType< T > & NativeType< T > > Img< T > createLabelImg(
+			final Model model,
+			final long[] dimensions,
+			final double[] calibration,
+			final boolean exportSpotsAsDots,
+			final boolean exportTracksOnly,
+			final boolean useSpotIDsAsLabels,
+			final boolean keepLabels,
+			final int maxTrackID,
+			final T type,
+			final Logger logger )
+	{
+		/*
+		 * Create target image.
+		 */
+		final Dimensions targetSize = FinalDimensions.wrap( dimensions );
+		final Img< T > lblImg = Util.getArrayOrCellImgFactory( targetSize, type ).create( targetSize );
+		final AxisType[] axes = new AxisType[] {
+				Axes.X,
+				Axes.Y,
+				Axes.Z,
+				Axes.TIME };
+		final ImgPlus< T > imgPlus = new ImgPlus<>( lblImg, "LblImg", axes, calibration );
+
 		final AtomicInteger lonelySpotID = new AtomicInteger( maxTrackID + 2 );
 
 		/*
@@ -475,10 +528,10 @@ public class LabelImgExporter extends AbstractTMAction
 		logger.log( "Writing label image.\n" );
 		for ( int frame = 0; frame < dimensions[ 3 ]; frame++ )
 		{
-			final ImgPlus< UnsignedShortType > imgCT = TMUtils.hyperSlice( imgPlus, 0, frame );
+			final ImgPlus< T > imgCT = TMUtils.hyperSlice( imgPlus, 0, frame );
 			final SpotWriter spotWriter = exportSpotsAsDots
-					? new SpotAsDotWriter( imgCT )
-					: new SpotRoiWriter( imgCT );
+					? new SpotAsDotWriter<>( imgCT )
+					: new SpotRoiWriter<>( imgCT );
 
 			for ( final Spot spot : model.getSpots().iterable( frame, true ) )
 			{
@@ -490,14 +543,14 @@ public class LabelImgExporter extends AbstractTMAction
 						continue;
 
 					if ( useSpotIDsAsLabels )
-						id = spot.ID() + 1;
+						id = spotLabel( spot, keepLabels );
 					else
 						id = lonelySpotID.getAndIncrement();
 				}
 				else
 				{
 					if ( useSpotIDsAsLabels )
-						id = spot.ID() + 1;
+						id = spotLabel( spot, keepLabels );
 					else
 						id = 1 + trackID.intValue();
 				}
@@ -511,6 +564,83 @@ public class LabelImgExporter extends AbstractTMAction
 		return lblImg;
 	}
 
+	/**
+	 * Returns the label to use for a spot when spot IDs are used as labels.
+	 * Spots created from a label image keep the label they were created from
+	 * if <code>keepLabels</code> is <code>true</code>, so that the original
+	 * label image can be round-tripped. Other spots use their ID + 1.
+	 */
+	private static final int spotLabel( final Spot spot, final boolean keepLabels )
+	{
+		final Double label = keepLabels ? spot.getFeature( MaskUtils.LABEL_ID ) : null;
+		if ( label != null )
+			return label.intValue();
+		return spot.ID() + 1;
+	}
+
+	/**
+	 * Returns an upper bound of the labels written in the label image.
+	 */
+	private static final long maxLabel( final Model model, final long nFrames, final boolean useSpotIDsAsLabels, final boolean keepLabels, final int maxTrackID )
+	{
+		long max = 0l;
+		long nSpots = 0l;
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			for ( final Spot spot : model.getSpots().iterable( frame, true ) )
+			{
+				nSpots++;
+				if ( useSpotIDsAsLabels )
+					max = Math.max( max, spotLabel( spot, keepLabels ) );
+			}
+		}
+		if ( useSpotIDsAsLabels )
+			return max;
+		// Track labels, then one label per spot not in a track.
+		return maxTrackID + 1l + nSpots;
+	}
+
+	/**
+	 * Returns <code>true</code> if the original labels can be used without
+	 * two painted spots of the same frame getting the same label. Spots
+	 * added manually or by another detector do not have an original label,
+	 * and their ID + 1 may be equal to the original label of another spot.
+	 * Original labels that are not positive integers cannot be kept either.
+	 */
+	private static final boolean canKeepLabels( final Model model, final long nFrames, final boolean exportTracksOnly )
+	{
+		final Set< Integer > labels = new HashSet<>();
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			labels.clear();
+			for ( final Spot spot : model.getSpots().iterable( frame, true ) )
+			{
+				final Integer trackID = model.getTrackModel().trackIDOf( spot );
+				if ( exportTracksOnly && ( null == trackID || !model.getTrackModel().isVisible( trackID ) ) )
+					continue;
+
+				final Double original = spot.getFeature( MaskUtils.LABEL_ID );
+				if ( original != null && ( original <= 0 || original > Integer.MAX_VALUE ) )
+					return false;
+
+				if ( !labels.add( spotLabel( spot, true ) ) )
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wraps a label image in an {@link ImagePlus}. ImageJ has no 32-bit
+	 * integer type, so 32-bit label images are wrapped as 32-bit float
+	 * images, in which labels are exact up to 2^24.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static final ImagePlus wrap( final Img< ? extends IntegerType< ? > > img )
+	{
+		return ImageJFunctions.wrap( ( Img ) img, "LblImage" );
+	}
+
 	@Plugin( type = TrackMateActionFactory.class )
 	public static class Factory implements TrackMateActionFactory
 	{
@@ -554,12 +684,12 @@ public class LabelImgExporter extends AbstractTMAction
 		public void write( Spot spot, int id );
 	}
 
-	public static final class SpotRoiWriter implements SpotWriter
+	public static final class SpotRoiWriter< T extends IntegerType< T > > implements SpotWriter
 	{
 
-		private final ImgPlus< UnsignedShortType > img;
+		private final ImgPlus< T > img;
 
-		public SpotRoiWriter( final ImgPlus< UnsignedShortType > img )
+		public SpotRoiWriter( final ImgPlus< T > img )
 		{
 			this.img = img;
 		}
@@ -567,21 +697,21 @@ public class LabelImgExporter extends AbstractTMAction
 		@Override
 		public void write( final Spot spot, final int id )
 		{
-			for ( final UnsignedShortType pixel : SpotUtil.iterable( spot, img ) )
-				pixel.set( id );
+			for ( final T pixel : SpotUtil.iterable( spot, img ) )
+				pixel.setInteger( id );
 		}
 	}
 
-	public static final class SpotAsDotWriter implements SpotWriter
+	public static final class SpotAsDotWriter< T extends IntegerType< T > > implements SpotWriter
 	{
 
 		private final double[] calibration;
 
 		private final long[] center;
 
-		private final RandomAccess< UnsignedShortType > ra;
+		private final RandomAccess< T > ra;
 
-		public SpotAsDotWriter( final ImgPlus< UnsignedShortType > img )
+		public SpotAsDotWriter( final ImgPlus< T > img )
 		{
 			this.calibration = TMUtils.getSpatialCalibration( img );
 			this.center = new long[ img.numDimensions() ];
@@ -595,7 +725,7 @@ public class LabelImgExporter extends AbstractTMAction
 				center[ d ] = Math.round( spot.getFeature( Spot.POSITION_FEATURES[ d ] ).doubleValue() / calibration[ d ] );
 
 			ra.setPosition( center );
-			ra.get().set( id );
+			ra.get().setInteger( id );
 		}
 	}
 }
@@ -24,7 +24,6 @@ package fiji.plugin.trackmate.action.fit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -33,6 +32,8 @@ import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer
 
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.util.HyperSliceCache;
+import fiji.plugin.trackmate.util.SpotSpatialOrder;
 import fiji.plugin.trackmate.util.Threads;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.ImagePlus;
@@ -62,8 +63,7 @@ public abstract class AbstractSpotFitter implements SpotFitter
 
 	protected final LevenbergMarquardtOptimizer optimizer;
 
-	@SuppressWarnings( "rawtypes" )
-	private final ConcurrentHashMap< Integer, RandomAccessibleInterval< RealType > > hyperslices = new ConcurrentHashMap<>();
+	private final ImagePlus imp;
 
 	private int numThreads;
 
@@ -72,6 +72,7 @@ public abstract class AbstractSpotFitter implements SpotFitter
 	@SuppressWarnings( "unchecked" )
 	public AbstractSpotFitter( final ImagePlus imp, final int channel )
 	{
+		this.imp = imp;
 		this.channel = channel;
 		this.img = TMUtils.rawWraps( imp );
 		this.calibration = TMUtils.getSpatialCalibration( imp );
@@ -88,9 +89,14 @@ public abstract class AbstractSpotFitter implements SpotFitter
 		logger.log( String.format( "Starting fitting with %d threads.\n", numThreads ) );
 		logger.setStatus( "Spot fitting" );
 		final long start = System.currentTimeMillis();
+		// Frame by frame, and spots close in the image one after the other.
+		final List< Spot > sorted = new ArrayList<>();
+		spots.forEach( sorted::add );
+		SpotSpatialOrder.sort( sorted, calibration );
+
 		final ExecutorService executorService = Threads.newFixedThreadPool( numThreads );
 		final List< Future< ? > > futures = new ArrayList<>();
-		for ( final Spot spot : spots )
+		for ( final Spot spot : sorted )
 			futures.add( executorService.submit( () -> fit( spot ) ) );
 
 		final int nspots = futures.size();
@@ -119,10 +125,7 @@ public abstract class AbstractSpotFitter implements SpotFitter
 	@SuppressWarnings( { "rawtypes", "unchecked" } )
 	protected RandomAccessibleInterval< RealType > getSlice( final int frame )
 	{
-		return hyperslices
-				.computeIfAbsent(
-				Integer.valueOf( frame ),
-				t -> TMUtils.hyperSlice( img, channel, t ) );
+		return HyperSliceCache.getInstance().get( imp, channel, frame );
 	}
 
 	@Override
@@ -22,13 +22,18 @@
 package fiji.plugin.trackmate.detection;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import org.scijava.thread.ThreadService;
 
@@ -39,14 +44,17 @@ import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.detection.util.MedianFilter2D;
+import fiji.plugin.trackmate.detection.util.MedianFilter3x3;
 import fiji.plugin.trackmate.util.Threads;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.ImagePlus;
+import ij.gui.Roi;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
@@ -55,6 +63,7 @@ import net.imglib2.algorithm.localextrema.LocalExtrema;
 import net.imglib2.algorithm.localextrema.LocalExtrema.LocalNeighborhoodCheck;
 import net.imglib2.algorithm.localextrema.RefinedPeak;
 import net.imglib2.algorithm.localextrema.SubpixelLocalization;
+import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
 import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.img.Img;
@@ -273,7 +282,26 @@ public class DetectionUtils
 	 */
 	public static final < T extends RealType< T > > Img< FloatType > copyToFloatImg( final RandomAccessible< T > img, final Interval interval, final ImgFactory< FloatType > factory )
 	{
-		final Img< FloatType > output = factory.create( interval );
+		return copyToFloatImg( img, interval, factory.create( interval ) );
+	}
+
+	/**
+	 * Copy an interval of the specified source image on a float image
+	 * allocated by the caller.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval in the source image to copy.
+	 * @param output
+	 *            the float image to write into. Must have the same dimensions
+	 *            as the interval. All its pixels are overwritten.
+	 * @return the output image. Careful: even if the specified interval does
+	 *         not start at (0, 0), the output image will have its first pixel
+	 *         at coordinates (0, 0).
+	 */
+	public static final < T extends RealType< T > > Img< FloatType > copyToFloatImg( final RandomAccessible< T > img, final Interval interval, final Img< FloatType > output )
+	{
 		final RandomAccess< T > in = Views.zeroMin( Views.interval( img, interval ) ).randomAccess();
 		final Cursor< FloatType > out = output.cursor();
 		final RealFloatConverter< T > c = new RealFloatConverter<>();
@@ -326,7 +354,50 @@ public class DetectionUtils
 	 */
 	public static final < R extends RealType< R > & NativeType< R > > Img< R > applyMedianFilter( final RandomAccessibleInterval< R > image )
 	{
-		final MedianFilter2D< R > medFilt = new MedianFilter2D<>( image, 1 );
+		return applyMedianFilter( image, null );
+	}
+
+	/**
+	 * Apply a simple 3x3 median filter to the target image, and write the
+	 * results in the specified output image.
+	 * 
+	 * @param image
+	 *            the image to filter.
+	 * @param output
+	 *            the image to write the results in. Must have the same
+	 *            dimensions as the source. If <code>null</code>, a new image is
+	 *            created.
+	 * @return the output image, or <code>null</code> if the filter failed.
+	 */
+	public static final < R extends RealType< R > & NativeType< R > > Img< R > applyMedianFilter( final RandomAccessibleInterval< R > image, final Img< R > output )
+	{
+		return applyMedianFilter( image, output, 1 );
+	}
+
+	/**
+	 * Apply a simple 3x3 median filter to the target image, and write the
+	 * results in the specified output image. Float, unsigned 8-bit and
+	 * unsigned 16-bit images are filtered in parallel by
+	 * {@link MedianFilter3x3}, other images by {@link MedianFilter2D}. Both
+	 * give the same results.
+	 * 
+	 * @param image
+	 *            the image to filter.
+	 * @param output
+	 *            the image to write the results in. Must have the same
+	 *            dimensions as the source. If <code>null</code>, a new image is
+	 *            created.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the output image, or <code>null</code> if the filter failed.
+	 */
+	public static final < R extends RealType< R > & NativeType< R > > Img< R > applyMedianFilter( final RandomAccessibleInterval< R > image, final Img< R > output, final int numThreads )
+	{
+		final Img< R > filtered = MedianFilter3x3.filter( image, output, numThreads );
+		if ( filtered != null )
+			return filtered;
+
+		final MedianFilter2D< R > medFilt = new MedianFilter2D<>( image, 1, output );
 		if ( !medFilt.checkInput() || !medFilt.process() )
 		{ return null; }
 		return medFilt.getResult();
@@ -339,6 +410,85 @@ public class DetectionUtils
 			final double radius,
 			final boolean doSubPixelLocalization,
 			final int nTasks )
+	{
+		return findLocalMaxima( source, threshold, calibration, radius, doSubPixelLocalization, nTasks, null );
+	}
+
+	/**
+	 * Finds the local maxima above the specified threshold in the source
+	 * image and returns them as spots. Maxima for which the specified mask
+	 * returns <code>false</code> are discarded before sub-pixel localization
+	 * and spot creation.
+	 * 
+	 * @param source
+	 *            the image to find maxima in.
+	 * @param threshold
+	 *            the minimal value of maxima.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param radius
+	 *            the radius of the spots to create.
+	 * @param doSubPixelLocalization
+	 *            whether to refine the position of maxima.
+	 * @param nTasks
+	 *            the number of tasks to use.
+	 * @param mask
+	 *            the mask on maxima pixel positions. Can be <code>null</code>.
+	 * @return a new list of spots.
+	 */
+	public static final < T extends RealType< T > > List< Spot > findLocalMaxima(
+			final RandomAccessibleInterval< T > source,
+			final double threshold,
+			final double[] calibration,
+			final double radius,
+			final boolean doSubPixelLocalization,
+			final int nTasks,
+			final Predicate< Localizable > mask )
+	{
+		return findLocalMaxima( source, threshold, calibration, radius, doSubPixelLocalization, nTasks, mask, 0, null );
+	}
+
+	/**
+	 * Finds the local maxima above the specified threshold in the source
+	 * image and returns them as spots. Maxima for which the specified mask
+	 * returns <code>false</code> are discarded. If there are more than
+	 * <code>maxNSpots</code> remaining maxima, only the ones with the highest
+	 * values are kept. They are selected while the image is scanned, before
+	 * sub-pixel localization and spot creation, so that spurious maxima found
+	 * in noisy images are never stored.
+	 * 
+	 * @param source
+	 *            the image to find maxima in.
+	 * @param threshold
+	 *            the minimal value of maxima.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param radius
+	 *            the radius of the spots to create.
+	 * @param doSubPixelLocalization
+	 *            whether to refine the position of maxima.
+	 * @param nTasks
+	 *            the number of tasks to use.
+	 * @param mask
+	 *            the mask on maxima pixel positions. Can be <code>null</code>.
+	 * @param maxNSpots
+	 *            the maximal number of spots to return. If 0 or less, all
+	 *            maxima are returned.
+	 * @param nDiscarded
+	 *            incremented by the number of maxima discarded because of the
+	 *            <code>maxNSpots</code> limit. Can be <code>null</code>.
+	 * @return a new list of spots.
+	 */
+	public static final < T extends RealType< T > > List< Spot > findLocalMaxima(
+			final RandomAccessibleInterval< T > source,
+			final double threshold,
+			final double[] calibration,
+			final double radius,
+			final boolean doSubPixelLocalization,
+			final int nTasks,
+			final Predicate< Localizable > mask,
+			final int maxNSpots,
+			final AtomicLong nDiscarded )
 	{
 		/*
 		 * Find maxima.
@@ -355,19 +505,29 @@ public class DetectionUtils
 		else
 			es = threadService.getExecutorService();
 		List< Point > peaks;
-		try
+		if ( maxNSpots > 0 )
 		{
-			peaks = LocalExtrema.findLocalExtrema(
-					dogWithBorder,
-					localNeighborhoodCheck,
-					new RectangleShape( 1, true ),
-					es,
-					nTasks );
+			peaks = findBestLocalMaxima( dogWithBorder, source, localNeighborhoodCheck, mask, maxNSpots, nDiscarded, es, nTasks );
 		}
-		catch ( InterruptedException | ExecutionException e )
+		else
 		{
-			e.printStackTrace();
-			peaks = Collections.emptyList();
+			try
+			{
+				peaks = LocalExtrema.findLocalExtrema(
+						dogWithBorder,
+						localNeighborhoodCheck,
+						new RectangleShape( 1, true ),
+						es,
+						nTasks );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				e.printStackTrace();
+				peaks = Collections.emptyList();
+			}
+
+			if ( mask != null )
+				peaks = peaks.stream().filter( mask ).collect( Collectors.toList() );
 		}
 
 		if ( peaks.isEmpty() )
@@ -489,6 +649,287 @@ public class DetectionUtils
 		return spots;
 	}
 
+	/**
+	 * Returns the <code>k</code> maxima with the highest pixel value in the
+	 * specified source. The selection uses a bounded min-heap on pixel values,
+	 * stored in primitive arrays.
+	 * 
+	 * @param peaks
+	 *            the maxima to select from.
+	 * @param source
+	 *            the image to read pixel values from.
+	 * @param k
+	 *            the number of maxima to keep.
+	 * @return a new list, sorted by decreasing pixel values.
+	 */
+	public static final < T extends RealType< T > > List< Point > selectBestMaxima( final List< Point > peaks, final RandomAccessible< T > source, final int k )
+	{
+		final int n = Math.min( k, peaks.size() );
+		// Min-heap on value. Root is the worst of the maxima kept so far.
+		final double[] heapValues = new double[ n ];
+		final int[] heapIndices = new int[ n ];
+		int size = 0;
+
+		final RandomAccess< T > ra = source.randomAccess();
+		for ( int i = 0; i < peaks.size(); i++ )
+		{
+			ra.setPosition( peaks.get( i ) );
+			final double val = ra.get().getRealDouble();
+			if ( size < n )
+			{
+				siftUp( heapValues, heapIndices, size++, val, i );
+			}
+			else if ( val > heapValues[ 0 ] )
+			{
+				siftDown( heapValues, heapIndices, size, val, i );
+			}
+		}
+
+		// Pop from worst to best.
+		final Point[] best = new Point[ size ];
+		for ( int last = size - 1; last >= 0; last-- )
+		{
+			best[ last ] = peaks.get( heapIndices[ 0 ] );
+			siftDown( heapValues, heapIndices, last, heapValues[ last ], heapIndices[ last ] );
+		}
+		return new ArrayList<>( Arrays.asList( best ) );
+	}
+
+	/**
+	 * Finds the local maxima above the threshold of the specified check, and
+	 * returns the <code>k</code> ones with the highest pixel value. The source
+	 * is split in chunks along its last dimension, and each chunk is scanned
+	 * by a task that keeps its <code>k</code> best maxima in a bounded heap, so
+	 * that the full list of maxima is never built.
+	 * 
+	 * @return a new list, sorted by decreasing pixel values.
+	 */
+	private static final < T extends RealType< T > > List< Point > findBestLocalMaxima(
+			final RandomAccessible< T > extended,
+			final Interval source,
+			final LocalNeighborhoodCheck< Point, T > check,
+			final Predicate< Localizable > mask,
+			final int k,
+			final AtomicLong nDiscarded,
+			final ExecutorService es,
+			final int nTasks )
+	{
+		final int nd = source.numDimensions();
+		final int splitDim = nd - 1;
+		final long splitSize = source.dimension( splitDim );
+		final int nChunks = ( int ) Math.max( 1l, Math.min( nTasks, splitSize ) );
+
+		final List< Future< BestMaxima > > futures = new ArrayList<>( nChunks );
+		for ( int c = 0; c < nChunks; c++ )
+		{
+			final long[] min = Intervals.minAsLongArray( source );
+			final long[] max = Intervals.maxAsLongArray( source );
+			min[ splitDim ] = source.min( splitDim ) + c * splitSize / nChunks;
+			max[ splitDim ] = source.min( splitDim ) + ( c + 1 ) * splitSize / nChunks - 1;
+			final Interval chunk = new FinalInterval( min, max );
+			futures.add( es.submit( () -> {
+				final BestMaxima best = new BestMaxima( k, nd );
+				final RectangleShape shape = new RectangleShape( 1, true );
+				final Cursor< T > center = Views.flatIterable( Views.interval( extended, chunk ) ).cursor();
+				for ( final Neighborhood< T > neighborhood : Views.flatIterable( Views.interval( shape.neighborhoodsRandomAccessible( extended ), chunk ) ) )
+				{
+					center.fwd();
+					final Point p = check.check( center, neighborhood );
+					if ( p == null || ( mask != null && !mask.test( p ) ) )
+						continue;
+					best.offer( p, center.get().getRealDouble() );
+				}
+				return best;
+			} ) );
+		}
+
+		final BestMaxima best = new BestMaxima( k, nd );
+		try
+		{
+			for ( final Future< BestMaxima > future : futures )
+				best.offerAll( future.get() );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			return Collections.emptyList();
+		}
+
+		if ( nDiscarded != null )
+			nDiscarded.addAndGet( best.nOffered - best.size );
+		return best.toList();
+	}
+
+	/**
+	 * Bounded min-heap of maxima on their pixel value, that keeps the
+	 * <code>k</code> best maxima offered to it. Positions are stored in a
+	 * primitive array, one slot per kept maximum. The arrays grow with the
+	 * number of maxima kept, up to <code>k</code>.
+	 */
+	private static final class BestMaxima
+	{
+
+		private final int k;
+
+		private final int nd;
+
+		private double[] values;
+
+		private int[] slots;
+
+		private long[] positions;
+
+		private int size = 0;
+
+		private long nOffered = 0l;
+
+		private BestMaxima( final int k, final int nd )
+		{
+			this.k = k;
+			this.nd = nd;
+			final int capacity = Math.min( k, 64 );
+			this.values = new double[ capacity ];
+			this.slots = new int[ capacity ];
+			this.positions = new long[ capacity * nd ];
+		}
+
+		private void offer( final Localizable position, final double val )
+		{
+			nOffered++;
+			if ( size < k )
+			{
+				if ( size == values.length )
+				{
+					final int capacity = ( int ) Math.min( k, 2l * size );
+					values = Arrays.copyOf( values, capacity );
+					slots = Arrays.copyOf( slots, capacity );
+					positions = Arrays.copyOf( positions, capacity * nd );
+				}
+				final int slot = size;
+				store( slot, position );
+				siftUp( values, slots, size++, val, slot );
+			}
+			else if ( val > values[ 0 ] )
+			{
+				final int slot = slots[ 0 ];
+				store( slot, position );
+				siftDown( values, slots, size, val, slot );
+			}
+		}
+
+		private void offerAll( final BestMaxima other )
+		{
+			final Point p = new Point( nd );
+			for ( int i = 0; i < other.size; i++ )
+			{
+				p.setPosition( other.position( other.slots[ i ] ) );
+				offer( p, other.values[ i ] );
+			}
+			// Maxima already discarded by the other heap.
+			nOffered += other.nOffered - other.size;
+		}
+
+		private void store( final int slot, final Localizable position )
+		{
+			for ( int d = 0; d < nd; d++ )
+				positions[ slot * nd + d ] = position.getLongPosition( d );
+		}
+
+		private long[] position( final int slot )
+		{
+			return Arrays.copyOfRange( positions, slot * nd, ( slot + 1 ) * nd );
+		}
+
+		/**
+		 * Empties the heap and returns its content, sorted by decreasing pixel
+		 * values.
+		 */
+		private List< Point > toList()
+		{
+			final Point[] best = new Point[ size ];
+			for ( int last = size - 1; last >= 0; last-- )
+			{
+				best[ last ] = Point.wrap( position( slots[ 0 ] ) );
+				siftDown( values, slots, last, values[ last ], slots[ last ] );
+			}
+			size = 0;
+			return new ArrayList<>( Arrays.asList( best ) );
+		}
+	}
+
+	/**
+	 * Inserts the specified value and index at the specified position of a
+	 * min-heap, and moves it up until the heap property is restored.
+	 */
+	private static final void siftUp( final double[] values, final int[] indices, final int position, final double val, final int index )
+	{
+		int child = position;
+		while ( child > 0 )
+		{
+			final int parent = ( child - 1 ) / 2;
+			if ( values[ parent ] <= val )
+				break;
+			values[ child ] = values[ parent ];
+			indices[ child ] = indices[ parent ];
+			child = parent;
+		}
+		values[ child ] = val;
+		indices[ child ] = index;
+	}
+
+	/**
+	 * Replaces the root of the min-heap of the specified size by the specified
+	 * value and index, and restores the heap property.
+	 */
+	private static final void siftDown( final double[] values, final int[] indices, final int size, final double val, final int index )
+	{
+		int parent = 0;
+		while ( true )
+		{
+			int child = 2 * parent + 1;
+			if ( child >= size )
+				break;
+			if ( child + 1 < size && values[ child + 1 ] < values[ child ] )
+				child++;
+			if ( values[ child ] >= val )
+				break;
+			values[ parent ] = values[ child ];
+			indices[ parent ] = indices[ child ];
+			parent = child;
+		}
+		if ( size > 0 )
+		{
+			values[ parent ] = val;
+			indices[ parent ] = index;
+		}
+	}
+
+	/**
+	 * Returns a mask that accepts pixel positions that are in the specified
+	 * ROI, or that are close to it by at most the specified tolerance in X and
+	 * Y. The tolerance accounts for the displacement of maxima by sub-pixel
+	 * localization, so that the mask does not discard maxima that end up in
+	 * the ROI once refined.
+	 * 
+	 * @param roi
+	 *            the ROI, in pixel coordinates.
+	 * @param tolerance
+	 *            the tolerance, in pixels.
+	 * @return a new mask.
+	 */
+	public static final Predicate< Localizable > roiMask( final Roi roi, final int tolerance )
+	{
+		return p -> {
+			final int x = p.getIntPosition( 0 );
+			final int y = p.getIntPosition( 1 );
+			for ( int dy = -tolerance; dy <= tolerance; dy++ )
+				for ( int dx = -tolerance; dx <= tolerance; dx++ )
+					if ( roi.contains( x + dx, y + dy ) )
+						return true;
+			return false;
+		};
+	}
+
 	/**
 	 * Return a view of the specified input image, at the specified channel
 	 * (0-based) and the specified frame (0-based too).
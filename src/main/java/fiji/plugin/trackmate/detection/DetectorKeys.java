@@ -98,13 +98,32 @@ public class DetectorKeys
 	 * applied to the source image prior to segmentation. Expected values are
 	 * {@link Integer}s greater than 1.
 	 * <p>
-	 * Currently note used.
+	 * Optional for the LoG detector. If set, candidate maxima are searched
+	 * for in an image downsampled in X and Y by this factor, then refined at
+	 * full resolution in a small window around each candidate.
 	 */
 	public static final String KEY_DOWNSAMPLE_FACTOR = "DOWNSAMPLE_FACTOR";
 
 	/** A default value for the {@link #KEY_DOWNSAMPLE_FACTOR} parameter. */
 	public static final int DEFAULT_DOWNSAMPLE_FACTOR = 4;
 
+	/**
+	 * The key identifying the optional parameter that sets the maximal number
+	 * of spots a detector can return for a single frame. If there are more
+	 * candidate maxima, only those with the highest quality are kept. Expected
+	 * values are {@link Integer}s. A value of 0 or less means no limit.
+	 * <p>
+	 * Currently used by:
+	 * <ul>
+	 * <li>{@link LogDetector}
+	 * <li>{@link DogDetector}
+	 * </ul>
+	 */
+	public static final String KEY_MAX_SPOTS_PER_FRAME = "MAX_SPOTS_PER_FRAME";
+
+	/** A default value for the {@link #KEY_MAX_SPOTS_PER_FRAME} parameter. */
+	public static final int DEFAULT_MAX_SPOTS_PER_FRAME = 0;
+
 	/**
 	 * The key identifying the parameter setting whether we pre-filter the
 	 * target image with a median filter or not. Expected values are
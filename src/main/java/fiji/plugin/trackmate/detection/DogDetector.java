@@ -29,11 +29,11 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.dog.DifferenceOfGaussian;
 import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
 import net.imglib2.parallel.Parallelization;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 public class DogDetector< T extends RealType< T > & NativeType< T > > extends LogDetector< T >
@@ -64,6 +64,7 @@ public class DogDetector< T extends RealType< T > & NativeType< T > > extends Lo
 	{
 
 		final long start = System.currentTimeMillis();
+		nDiscarded.set( 0l );
 
 		RandomAccessibleInterval< T > view = Views.interval( img, interval );
 
@@ -73,7 +74,7 @@ public class DogDetector< T extends RealType< T > & NativeType< T > > extends Lo
 
 		if ( doMedianFilter )
 		{
-			view = DetectionUtils.applyMedianFilter( view );
+			view = DetectionUtils.applyMedianFilter( view, null, numThreads );
 			if ( null == view )
 			{
 				errorMessage = BASE_ERROR_MESSAGE + "Failed to apply median filter.";
@@ -89,43 +90,52 @@ public class DogDetector< T extends RealType< T > & NativeType< T > > extends Lo
 		// We need to shift coordinates by -min[] to have the correct location.
 		final long[] min = new long[ interval.numDimensions() ];
 		interval.min( min );
-		final FloatType type = new FloatType();
-		final RandomAccessibleInterval< FloatType > dog = Views.translate( Util.getArrayOrCellImgFactory( interval, type ).create( interval ), min );
-		final RandomAccessibleInterval< FloatType > dog2 = Views.translate( Util.getArrayOrCellImgFactory( interval, type ).create( interval ), min );
-
-		final double sigma1 = radius / Math.sqrt( interval.numDimensions() ) * 0.9;
-		final double sigma2 = radius / Math.sqrt( interval.numDimensions() ) * 1.1;
-
-		/*
-		 * Gotcha: The calibration array used as input for
-		 * DifferenceOfGaussian#computeSigmas() must be of the same dimension
-		 * that the input image.
-		 */
-		final double[] cal = new double[ img.numDimensions() ];
-		for ( int d = 0; d < cal.length; d++ )
-			cal[ d ] = calibration[ d ];
-		final double[][] sigmas = DifferenceOfGaussian.computeSigmas( 0.5, 2, cal, sigma1, sigma2 );
+		final Img< FloatType > dogImg = borrowFloatImg( interval );
+		final Img< FloatType > dog2Img = borrowFloatImg( interval );
 		try
 		{
-			Parallelization.runWithNumThreads( numThreads, () -> {
-				Gauss3.gauss( sigmas[ 1 ], extended, dog2 );
-				Gauss3.gauss( sigmas[ 0 ], extended, dog );
-			} );
+			final RandomAccessibleInterval< FloatType > dog = Views.translate( dogImg, min );
+			final RandomAccessibleInterval< FloatType > dog2 = Views.translate( dog2Img, min );
+
+			final double sigma1 = radius / Math.sqrt( interval.numDimensions() ) * 0.9;
+			final double sigma2 = radius / Math.sqrt( interval.numDimensions() ) * 1.1;
+
+			/*
+			 * Gotcha: The calibration array used as input for
+			 * DifferenceOfGaussian#computeSigmas() must be of the same
+			 * dimension that the input image.
+			 */
+			final double[] cal = new double[ img.numDimensions() ];
+			for ( int d = 0; d < cal.length; d++ )
+				cal[ d ] = calibration[ d ];
+			final double[][] sigmas = DifferenceOfGaussian.computeSigmas( 0.5, 2, cal, sigma1, sigma2 );
+			try
+			{
+				Parallelization.runWithNumThreads( numThreads, () -> {
+					Gauss3.gauss( sigmas[ 1 ], extended, dog2 );
+					Gauss3.gauss( sigmas[ 0 ], extended, dog );
+				} );
+			}
+			catch ( final IncompatibleTypeException e )
+			{
+				e.printStackTrace();
+			}
+
+			final IterableInterval< FloatType > dogIterable = Views.iterable( dog );
+			final IterableInterval< FloatType > tmpIterable = Views.iterable( dog2 );
+			final Cursor< FloatType > dogCursor = dogIterable.cursor();
+			final Cursor< FloatType > tmpCursor = tmpIterable.cursor();
+			while ( dogCursor.hasNext() )
+				dogCursor.next().sub( tmpCursor.next() );
+
+			spots = DetectionUtils.findLocalMaxima( dog, threshold, calibration, radius, doSubPixelLocalization, numThreads, mask, maxNSpots, nDiscarded );
 		}
-		catch ( final IncompatibleTypeException e )
+		finally
 		{
-			e.printStackTrace();
+			releaseFloatImg( dogImg );
+			releaseFloatImg( dog2Img );
 		}
 
-		final IterableInterval< FloatType > dogIterable = Views.iterable( dog );
-		final IterableInterval< FloatType > tmpIterable = Views.iterable( dog2 );
-		final Cursor< FloatType > dogCursor = dogIterable.cursor();
-		final Cursor< FloatType > tmpCursor = tmpIterable.cursor();
-		while ( dogCursor.hasNext() )
-			dogCursor.next().sub( tmpCursor.next() );
-
-		spots = DetectionUtils.findLocalMaxima( dog, threshold, calibration, radius, doSubPixelLocalization, numThreads );
-
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
 
@@ -21,11 +21,14 @@
  */
 package fiji.plugin.trackmate.detection;
 
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_DOWNSAMPLE_FACTOR;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_DO_MEDIAN_FILTERING;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_DO_SUBPIXEL_LOCALIZATION;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_RADIUS;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_THRESHOLD;
 
+import java.util.Map;
+
 import org.scijava.plugin.Plugin;
 
 import fiji.plugin.trackmate.Model;
@@ -79,9 +82,26 @@ public class DogDetectorFactory< T extends RealType< T > & NativeType< T >> exte
 		final RandomAccessible< T > imFrame = prepareFrameImg( frame );
 		final DogDetector< T > detector = new DogDetector<>( imFrame, interval, calibration, radius, threshold, doSubpixel, doMedian );
 		detector.setNumThreads( 1 );
+		detector.setMaxNSpots( getMaxNSpots() );
 		return detector;
 	}
 
+	/**
+	 * Same as the LoG detector settings, except that the coarse-to-fine mode
+	 * is not supported: the {@link DetectorKeys#KEY_DOWNSAMPLE_FACTOR} key is
+	 * rejected.
+	 */
+	@Override
+	public boolean checkSettings( final Map< String, Object > lSettings )
+	{
+		if ( lSettings.containsKey( KEY_DOWNSAMPLE_FACTOR ) )
+		{
+			errorMessage = "The " + THIS_NAME + " does not support the " + KEY_DOWNSAMPLE_FACTOR + " parameter.\n";
+			return false;
+		}
+		return super.checkSettings( lSettings );
+	}
+
 	@Override
 	public String getKey()
 	{
@@ -26,27 +26,36 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.function.ToDoubleFunction;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 
 import org.scijava.thread.ThreadService;
 
 import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.util.BufferPoolClient;
+import fiji.plugin.trackmate.detection.util.DetectionBufferPool;
+import fiji.plugin.trackmate.detection.util.IntervalPlanner;
+import fiji.plugin.trackmate.detection.util.IntervalPlanner.Region;
+import fiji.plugin.trackmate.detection.util.MaskClient;
 import fiji.plugin.trackmate.util.Threads;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
 import net.imglib2.Dimensions;
-import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.MultiThreaded;
-import net.imglib2.algorithm.gradient.HessianMatrix;
-import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.loops.LoopBuilder;
-import net.imglib2.outofbounds.OutOfBoundsBorderFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.parallel.Parallelization;
 import net.imglib2.parallel.TaskExecutor;
 import net.imglib2.parallel.TaskExecutors;
 import net.imglib2.type.NativeType;
@@ -56,10 +65,8 @@ import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
-import net.imglib2.view.composite.CompositeIntervalView;
-import net.imglib2.view.composite.RealComposite;
 
-public class HessianDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >, MultiThreaded
+public class HessianDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >, MultiThreaded, BufferPoolClient, MaskClient
 {
 
 	/*
@@ -94,6 +101,16 @@ public class HessianDetector< T extends RealType< T > & NativeType< T > > implem
 
 	private final ExecutorService es;
 
+	private DetectionBufferPool bufferPool;
+
+	private Predicate< Localizable > mask;
+
+	/**
+	 * Min number of Z slices smoothed at once when computing the Hessian in
+	 * 3D.
+	 */
+	private static final int MIN_SLAB_DEPTH = 8;
+
 	/*
 	 * CONSTRUCTOR
 	 */
@@ -158,15 +175,16 @@ public class HessianDetector< T extends RealType< T > & NativeType< T > > implem
 		if ( roiManager == null || roiManager.getCount() == 0 )
 		{
 			// Roi manager not shown or empty -> process all.
-			spots = processInterval( interval );
+			spots = processInterval( interval, nTasks );
 			if ( spots == null )
 				ok = false;
 		}
 		else
 		{
-			// We have individual Rois -> process them one by one separately.
-			spots = new ArrayList<>();
-			for ( final Roi roi : roiManager.getRoisAsArray() )
+			// We have individual Rois -> merge their boxes and process them.
+			final Roi[] rois = roiManager.getRoisAsArray();
+			final List< Interval > boxes = new ArrayList<>( rois.length );
+			for ( final Roi roi : rois )
 			{
 				// Create interval from ROI.
 				final Rectangle bounds = roi.getBounds();
@@ -184,27 +202,54 @@ public class HessianDetector< T extends RealType< T > & NativeType< T > > implem
 				}
 				final FinalInterval intervalroi = FinalInterval.wrap( min, max );
 				final FinalInterval intersect = Intervals.intersect( interval, intervalroi );
-				if ( Intervals.isEmpty( intersect ) )
-					continue;
+				boxes.add( Intervals.isEmpty( intersect ) ? null : intersect );
+			}
 
-				// Process interval.
-				final List< Spot > spotsThisRoi = processInterval( intersect );
-				if ( spotsThisRoi == null )
+			// Grow by the filter halo so that each pixel is filtered once.
+			final double[] sigmas = sigmas( interval.numDimensions() );
+			final int[] halfKernels = Gauss3.halfkernelsizes( sigmas );
+			final long[] halo = new long[ sigmas.length ];
+			for ( int d = 0; d < halo.length; d++ )
+				halo[ d ] = halfKernels[ d ] + 2;
+			final List< Region > regions = IntervalPlanner.plan( boxes, halo, interval );
+
+			// Process the regions in parallel.
+			final int nParallel = Math.max( 1, Math.min( regions.size(), nTasks ) );
+			final int nTasksPerRegion = Math.max( 1, nTasks / nParallel );
+			final List< List< Spot > > spotsPerRegion = new ArrayList<>( regions.size() );
+			if ( nParallel == 1 )
+			{
+				for ( final Region region : regions )
+					spotsPerRegion.add( processRegion( region, boxes, rois, nTasksPerRegion ) );
+			}
+			else
+			{
+				final ExecutorService regionService = Threads.newFixedThreadPool( nParallel );
+				final List< Future< List< Spot > > > futures = new ArrayList<>( regions.size() );
+				for ( final Region region : regions )
+					futures.add( regionService.submit( () -> processRegion( region, boxes, rois, nTasksPerRegion ) ) );
+				regionService.shutdown();
+				try
 				{
-					ok = false;
-					continue;
+					for ( final Future< List< Spot > > future : futures )
+						spotsPerRegion.add( future.get() );
 				}
-
-				// Remove spots out of the Roi.
-				final ArrayList< Spot > prunedSpots = new ArrayList<>();
-				for ( final Spot spot : spotsThisRoi )
+				catch ( InterruptedException | ExecutionException e )
 				{
-					if ( roi.contains(
-							( int ) Math.round( spot.getFeature( Spot.POSITION_X ) / calibration[ 0 ] ),
-							( int ) Math.round( spot.getFeature( Spot.POSITION_Y ) / calibration[ 1 ] ) ) )
-						prunedSpots.add( spot );
+					errorMessage = BASE_ERROR_MESSAGE + e.getMessage();
+					e.printStackTrace();
+					return false;
 				}
-				spots.addAll( prunedSpots );
+			}
+
+			// Collect spots found in the Rois.
+			spots = new ArrayList<>();
+			for ( final List< Spot > spotsThisRegion : spotsPerRegion )
+			{
+				if ( spotsThisRegion == null )
+					ok = false;
+				else
+					spots.addAll( spotsThisRegion );
 			}
 		}
 
@@ -213,26 +258,126 @@ public class HessianDetector< T extends RealType< T > & NativeType< T > > implem
 		return ok;
 	}
 
-	private final List< Spot > processInterval( final Interval crop )
+	private final List< Spot > processInterval( final Interval crop, final int nThreads )
 	{
 		try
 		{
 			// Compute Hessian.
-			final Img< FloatType > det = computeHessianDeterminant( crop, new FloatType() );
+			final Img< FloatType > det = computeHessianDeterminant( crop, nThreads );
+			try
+			{
+				// Normalize from 0 to 1.
+				if ( normalize )
+					DetectionUtils.normalize( det );
 
-			// Normalize from 0 to 1.
-			if ( normalize )
-				DetectionUtils.normalize( det );
+				// Translate back with respect to ROI.
+				final long[] minopposite = new long[ crop.numDimensions() ];
+				crop.min( minopposite );
+				final IntervalView< FloatType > to = Views.translate( det, minopposite );
 
-			// Translate back with respect to ROI.
-			final long[] minopposite = new long[ crop.numDimensions() ];
-			crop.min( minopposite );
-			final IntervalView< FloatType > to = Views.translate( det, minopposite );
+				// Find spots.
+				return DetectionUtils.findLocalMaxima( to, threshold, calibration, radiusXY, doSubPixelLocalization, nThreads, mask );
+			}
+			finally
+			{
+				release( det );
+			}
+		}
+		catch ( final RuntimeException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + e.getMessage();
+			e.printStackTrace();
+			return null;
+		}
+	}
 
-			// Find spots.
-			return DetectionUtils.findLocalMaxima( to, threshold, calibration, radiusXY, doSubPixelLocalization, nTasks );
+	/**
+	 * Detects spots in a region made of one or several merged Roi boxes.
+	 * <p>
+	 * The determinant is computed once over the whole region, halo included,
+	 * but the threshold is applied Roi by Roi, as if each Roi was processed
+	 * on its own. When normalizing, the determinant values are rescaled with
+	 * their min and max over the Roi box, without the halo, so that the spots
+	 * found in a Roi do not depend on the contrast of the Rois it was merged
+	 * with. A spot is kept if it lies in at least one of the Rois and passes
+	 * the threshold there. Its quality is its highest normalized value over
+	 * these Rois.
+	 */
+	private final List< Spot > processRegion( final Region region, final List< Interval > boxes, final Roi[] rois, final int nThreads )
+	{
+		try
+		{
+			final Interval crop = region.getInterval();
+			final List< Integer > members = region.getMembers();
+			final double[] mins = new double[ members.size() ];
+			final double[] maxs = new double[ members.size() ];
+			final List< Spot > found;
+			final Img< FloatType > det = computeHessianDeterminant( crop, nThreads );
+			try
+			{
+				// Translate back with respect to ROI.
+				final long[] minopposite = new long[ crop.numDimensions() ];
+				crop.min( minopposite );
+				final IntervalView< FloatType > to = Views.translate( det, minopposite );
+
+				// Normalization bounds of each Roi box.
+				if ( normalize )
+				{
+					for ( int i = 0; i < members.size(); i++ )
+					{
+						mins[ i ] = Double.POSITIVE_INFINITY;
+						maxs[ i ] = Double.NEGATIVE_INFINITY;
+						for ( final FloatType p : Views.interval( to, boxes.get( members.get( i ) ) ) )
+						{
+							final double val = p.getRealDouble();
+							mins[ i ] = Math.min( mins[ i ], val );
+							maxs[ i ] = Math.max( maxs[ i ], val );
+						}
+					}
+				}
+
+				// Find spots. With normalization, the threshold depends on the Roi.
+				final double searchThreshold = normalize ? Double.NEGATIVE_INFINITY : threshold;
+				found = DetectionUtils.findLocalMaxima( to, searchThreshold, calibration, radiusXY, doSubPixelLocalization, nThreads, mask );
+			}
+			finally
+			{
+				release( det );
+			}
+
+			// Keep spots that pass the threshold in at least one Roi.
+			final List< Spot > kept = new ArrayList<>();
+			for ( final Spot spot : found )
+			{
+				final int x = ( int ) Math.round( spot.getFeature( Spot.POSITION_X ) / calibration[ 0 ] );
+				final int y = ( int ) Math.round( spot.getFeature( Spot.POSITION_Y ) / calibration[ 1 ] );
+				final double val = spot.getFeature( Spot.QUALITY );
+				double quality = Double.NEGATIVE_INFINITY;
+				for ( int i = 0; i < members.size(); i++ )
+				{
+					if ( !rois[ members.get( i ) ].contains( x, y ) )
+						continue;
+
+					// A flat Roi box cannot be normalized: nothing passes.
+					if ( normalize && !( maxs[ i ] > mins[ i ] ) )
+						continue;
+
+					// Same rounding as when normalizing the float image.
+					final double q = normalize
+							? ( float ) ( ( val - mins[ i ] ) / ( maxs[ i ] - mins[ i ] ) )
+							: val;
+					if ( q > threshold && q > quality )
+						quality = q;
+				}
+				if ( quality == Double.NEGATIVE_INFINITY )
+					continue;
+
+				spot.putFeature( Spot.QUALITY, Double.valueOf( quality ) );
+				kept.add( spot );
+			}
+			return kept;
 		}
-		catch ( final IncompatibleTypeException | InterruptedException | ExecutionException e )
+		catch ( final RuntimeException e )
 		{
 			errorMessage = BASE_ERROR_MESSAGE + e.getMessage();
 			e.printStackTrace();
@@ -240,86 +385,271 @@ public class HessianDetector< T extends RealType< T > & NativeType< T > > implem
 		}
 	}
 
-	private final < R extends RealType< R > & NativeType< R > > Img< R > computeHessianDeterminant( final Interval crop, final R type ) throws IncompatibleTypeException, InterruptedException, ExecutionException
+	/**
+	 * Computes the determinant of the Hessian matrix of the smoothed image.
+	 * <p>
+	 * This gives the same result as building the full gradient and Hessian
+	 * images with {@link net.imglib2.algorithm.gradient.HessianMatrix}
+	 * (central differences of central differences, border extension at each
+	 * step, scaling by the sigmas), but without allocating them. The smoothed
+	 * image is computed slab by slab along Z in a rolling window, and second
+	 * derivatives are evaluated with finite-difference stencils directly from
+	 * it. Peak memory is the output plus a few smoothed slices.
+	 * <p>
+	 * The output is borrowed from the buffer pool, if any. It is given back
+	 * if the computation fails, otherwise the caller must release it.
+	 */
+	final Img< FloatType > computeHessianDeterminant( final Interval crop, final int nThreads )
+	{
+		final Img< FloatType > det = borrow( crop );
+		boolean ok = false;
+		try
+		{
+			computeHessianDeterminant( crop, nThreads, det );
+			ok = true;
+			return det;
+		}
+		finally
+		{
+			if ( !ok )
+				release( det );
+		}
+	}
+
+	private void computeHessianDeterminant( final Interval crop, final int nThreads, final Img< FloatType > det )
 	{
 		// Squeeze singleton dimensions
 		final int n = crop.numDimensions();
+		final int numTasks = Math.max( 1, nThreads );
 
 		// Sigmas in pixel units.
-		final double[] radius = new double[] { radiusXY, radiusXY, radiusZ };
-		final double[] sigmas = new double[ n ];
-		for ( int d = 0; d < n; d++ )
+		final double[] sigmas = sigmas( n );
+
+		// Normalize for pixel size.
+		final double sxx = sigmas[ 0 ] * sigmas[ 0 ];
+		final double sxy = sigmas[ 0 ] * sigmas[ 1 ];
+		final double syy = sigmas[ 1 ] * sigmas[ 1 ];
+		final double sxz = ( n > 2 ) ? sigmas[ 0 ] * sigmas[ 2 ] : 0.;
+		final double syz = ( n > 2 ) ? sigmas[ 1 ] * sigmas[ 2 ] : 0.;
+		final double szz = ( n > 2 ) ? sigmas[ 2 ] * sigmas[ 2 ] : 0.;
+
+		final int nx = ( int ) crop.dimension( 0 );
+		final int ny = ( int ) crop.dimension( 1 );
+		final int nz = ( n > 2 ) ? ( int ) crop.dimension( 2 ) : 1;
+		final int plane = nx * ny;
+
+		/*
+		 * Slab depth. Smoothing a slab recomputes the XY passes of the
+		 * Gaussian over the Z kernel halo, so we want slabs thick enough to
+		 * amortize this, and to give all tasks a slice to work on.
+		 */
+		final int slabDepth;
+		if ( n > 2 )
 		{
-			final double cal = d < calibration.length ? calibration[ d ] : 1;
-			sigmas[ d ] = radius[ d ] / cal / Math.sqrt( n );
+			final int halfKernelZ = Gauss3.halfkernelsizes( sigmas )[ 2 ];
+			slabDepth = Math.min( nz, Math.max( MIN_SLAB_DEPTH, Math.max( 2 * halfKernelZ, numTasks ) ) );
 		}
-
-		// Get a suitable image factory.
-		final long[] gradientDims = new long[ n + 1 ];
-		final long[] hessianDims = new long[ n + 1 ];
-		for ( int d = 0; d < n; d++ )
+		else
 		{
-			hessianDims[ d ] = crop.dimension( d );
-			gradientDims[ d ] = crop.dimension( d );
+			slabDepth = 1;
 		}
-		hessianDims[ n ] = n * ( n + 1 ) / 2;
-		gradientDims[ n ] = n;
-		final Dimensions hessianDimensions = FinalDimensions.wrap( hessianDims );
-		final FinalDimensions gradientDimensions = FinalDimensions.wrap( gradientDims );
-		final ImgFactory< R > factory = Util.getArrayOrCellImgFactory( hessianDimensions, type );
-		final Img< R > hessian = factory.create( hessianDimensions );
-		final Img< R > gradient = factory.create( gradientDimensions );
-		final Img< R > gaussian = factory.create( crop );
-
-		// Hessian calculation.
-		final IntervalView< T > input = Views.zeroMin( Views.interval( img, crop ) );
-		HessianMatrix.calculateMatrix( input, gaussian,
-				gradient, hessian, new OutOfBoundsBorderFactory<>(), nTasks, es,
-				sigmas );
 
-		// Normalize for pixel size.
-		final IntervalView< R > H = HessianMatrix.scaleHessianMatrix( hessian, sigmas );
+		// Rolling window of smoothed slices: the slab plus 2 slices each side.
+		final int windowDepth = ( n > 2 ) ? Math.min( nz, slabDepth + 4 ) : 1;
+		final float[] s = new float[ plane * windowDepth ];
+		final ArrayImg< FloatType, FloatArray > window = ( n > 2 )
+				? ArrayImgs.floats( s, nx, ny, windowDepth )
+				: ArrayImgs.floats( s, nx, ny );
+
+		final IntervalView< T > input = Views.zeroMin( Views.interval( img, crop ) );
+		final TaskExecutor taskExecutor = TaskExecutors.forExecutorServiceAndNumTasks( es, numTasks );
 
-		// Compute determinant.
-		final ToDoubleFunction< RealComposite< R > > detcalc;
 		if ( n == 2 )
 		{
-			detcalc = ( c ) -> {
-				final double a00 = c.get( 0 ).getRealDouble();
-				final double a01 = c.get( 1 ).getRealDouble();
-				final double a11 = c.get( 2 ).getRealDouble();
-				final double det = a00 * a11 - a01 * a01;
-				return det;
-			};
+			Parallelization.runWithNumThreads( numTasks, () -> Gauss3.gauss( sigmas, input, window ) );
+			final List< Integer > rows = new ArrayList<>( ny );
+			for ( int y = 0; y < ny; y++ )
+				rows.add( Integer.valueOf( y ) );
+			taskExecutor.forEach( rows, y -> {
+				final RandomAccess< FloatType > ra = det.randomAccess();
+				ra.setPosition( 0, 0 );
+				ra.setPosition( y, 1 );
+				final int yMinus = Math.max( y - 1, 0 );
+				final int yPlus = Math.min( y + 1, ny - 1 );
+				final int ym = yMinus * nx;
+				final int yp = yPlus * nx;
+				final int y0 = y * nx;
+				for ( int x = 0; x < nx; x++ )
+				{
+					final int xm = Math.max( x - 1, 0 );
+					final int xp = Math.min( x + 1, nx - 1 );
+
+					final float hxx = ( gx( s, y0, xp, nx ) - gx( s, y0, xm, nx ) ) * 0.5f;
+					final float hxy = ( gx( s, yp, x, nx ) - gx( s, ym, x, nx ) ) * 0.5f;
+					final float hyy = ( gy( s, 0, yPlus, x, nx, ny ) - gy( s, 0, yMinus, x, nx, ny ) ) * 0.5f;
+
+					final double a00 = ( float ) ( hxx * sxx );
+					final double a01 = ( float ) ( hxy * sxy );
+					final double a11 = ( float ) ( hyy * syy );
+					ra.get().setReal( a00 * a11 - a01 * a01 );
+					ra.fwd( 0 );
+				}
+			} );
+			return;
+		}
+
+		// n == 3, process slab by slab.
+		int windowMin = 0;
+		int windowMax = -1;
+		for ( int z0 = 0; z0 < nz; z0 += slabDepth )
+		{
+			final int z1 = Math.min( nz - 1, z0 + slabDepth - 1 );
+			final int newMin = Math.max( 0, z0 - 2 );
+			final int newMax = Math.min( nz - 1, z1 + 2 );
+
+			// Keep the smoothed slices we already have.
+			int from = newMin;
+			if ( windowMax >= newMin )
+			{
+				System.arraycopy( s, ( newMin - windowMin ) * plane, s, 0, ( windowMax - newMin + 1 ) * plane );
+				from = windowMax + 1;
+			}
+			windowMin = newMin;
+			windowMax = newMax;
+
+			// Smooth the new slices.
+			if ( from <= newMax )
+			{
+				final RandomAccessibleInterval< FloatType > target = Views.interval(
+						Views.translate( window, 0, 0, windowMin ),
+						new FinalInterval( new long[] { 0, 0, from }, new long[] { nx - 1, ny - 1, newMax } ) );
+				Parallelization.runWithNumThreads( numTasks, () -> Gauss3.gauss( sigmas, input, target ) );
+			}
+
+			// Stencils over the slab.
+			final int wMin = windowMin;
+			final List< Integer > slices = new ArrayList<>( z1 - z0 + 1 );
+			for ( int z = z0; z <= z1; z++ )
+				slices.add( Integer.valueOf( z ) );
+			taskExecutor.forEach( slices, z -> {
+				final RandomAccess< FloatType > ra = det.randomAccess();
+				final int zc = ( z - wMin ) * plane;
+				final int zm = ( Math.max( z - 1, 0 ) - wMin ) * plane;
+				final int zp = ( Math.min( z + 1, nz - 1 ) - wMin ) * plane;
+				for ( int y = 0; y < ny; y++ )
+				{
+					ra.setPosition( 0, 0 );
+					ra.setPosition( y, 1 );
+					ra.setPosition( z, 2 );
+					final int yMinus = Math.max( y - 1, 0 );
+					final int yPlus = Math.min( y + 1, ny - 1 );
+					final int ym = yMinus * nx;
+					final int yp = yPlus * nx;
+					final int y0 = y * nx;
+					for ( int x = 0; x < nx; x++ )
+					{
+						final int xm = Math.max( x - 1, 0 );
+						final int xp = Math.min( x + 1, nx - 1 );
+
+						final float hxx = ( gx( s, zc + y0, xp, nx ) - gx( s, zc + y0, xm, nx ) ) * 0.5f;
+						final float hxy = ( gx( s, zc + yp, x, nx ) - gx( s, zc + ym, x, nx ) ) * 0.5f;
+						final float hxz = ( gx( s, zp + y0, x, nx ) - gx( s, zm + y0, x, nx ) ) * 0.5f;
+						final float hyy = ( gy( s, zc, yPlus, x, nx, ny ) - gy( s, zc, yMinus, x, nx, ny ) ) * 0.5f;
+						final float hyz = ( gy( s, zp, y, x, nx, ny ) - gy( s, zm, y, x, nx, ny ) ) * 0.5f;
+						final float hzz = ( gz( s, z + 1, y0 + x, nz, wMin, plane ) - gz( s, z - 1, y0 + x, nz, wMin, plane ) ) * 0.5f;
+
+						final double a00 = ( float ) ( hxx * sxx );
+						final double a01 = ( float ) ( hxy * sxy );
+						final double a02 = ( float ) ( hxz * sxz );
+						final double a11 = ( float ) ( hyy * syy );
+						final double a12 = ( float ) ( hyz * syz );
+						final double a22 = ( float ) ( hzz * szz );
+
+						final double dx = a11 * a22 - a12 * a12;
+						final double dy = a01 * a22 - a02 * a12;
+						final double dz = a01 * a12 - a02 * a11;
+
+						// Change sign so that bright detections have positive values.
+						ra.get().setReal( -( a00 * dx - a01 * dy + a02 * dz ) );
+						ra.fwd( 0 );
+					}
+				}
+			} );
 		}
-		else // n == 3
+	}
+
+	/**
+	 * Returns the Gaussian sigmas in pixel units.
+	 */
+	private double[] sigmas( final int n )
+	{
+		final double[] radius = new double[] { radiusXY, radiusXY, radiusZ };
+		final double[] sigmas = new double[ n ];
+		for ( int d = 0; d < n; d++ )
 		{
-			detcalc = ( c ) -> {
-				final double a00 = c.get( 0 ).getRealDouble();
-				final double a01 = c.get( 1 ).getRealDouble();
-				final double a02 = c.get( 2 ).getRealDouble();
-				final double a11 = c.get( 3 ).getRealDouble();
-				final double a12 = c.get( 4 ).getRealDouble();
-				final double a22 = c.get( 5 ).getRealDouble();
-
-				final double x = a11 * a22 - a12 * a12;
-				final double y = a01 * a22 - a02 * a12;
-				final double z = a01 * a12 - a02 * a11;
-
-				final double det = a00 * x - a01 * y + a02 * z;
-				return -det;
-				// Change sign so that bright detections have positive values.
-			};
+			final double cal = d < calibration.length ? calibration[ d ] : 1;
+			sigmas[ d ] = radius[ d ] / cal / Math.sqrt( n );
 		}
+		return sigmas;
+	}
+
+	/*
+	 * Central differences on the smoothed image, with border extension.
+	 */
+
+	/**
+	 * X derivative at position x of the row starting at index row.
+	 */
+	private static final float gx( final float[] s, final int row, final int x, final int nx )
+	{
+		return ( s[ row + Math.min( x + 1, nx - 1 ) ] - s[ row + Math.max( x - 1, 0 ) ] ) * 0.5f;
+	}
+
+	/**
+	 * Y derivative at position (x, y) of the plane starting at index plane.
+	 */
+	private static final float gy( final float[] s, final int plane, final int y, final int x, final int nx, final int ny )
+	{
+		return ( s[ plane + Math.min( y + 1, ny - 1 ) * nx + x ] - s[ plane + Math.max( y - 1, 0 ) * nx + x ] ) * 0.5f;
+	}
 
-		final CompositeIntervalView< R, RealComposite< R > > composite = Views.collapseReal( H );
-		final Img< R > det = factory.create( crop );
+	/**
+	 * Z derivative at slice z, clamped, and index xy in the plane. Slices are
+	 * stored in the window starting at slice wMin.
+	 */
+	private static final float gz( final float[] s, final int z, final int xy, final int nz, final int wMin, final int plane )
+	{
+		final int zc = Math.min( Math.max( z, 0 ), nz - 1 );
+		final int zp = Math.min( zc + 1, nz - 1 ) - wMin;
+		final int zm = Math.max( zc - 1, 0 ) - wMin;
+		return ( s[ zp * plane + xy ] - s[ zm * plane + xy ] ) * 0.5f;
+	}
+
+	private Img< FloatType > borrow( final Dimensions dimensions )
+	{
+		if ( bufferPool != null )
+			return bufferPool.borrow( dimensions, new FloatType() );
 
-		final TaskExecutor taskExecutor = TaskExecutors.forExecutorServiceAndNumTasks( es, nTasks );
-		LoopBuilder.setImages( composite, det ).multiThreaded( taskExecutor ).forEachPixel(
-				( c, d ) -> d.setReal( detcalc.applyAsDouble( c ) ) );
+		final ImgFactory< FloatType > factory = Util.getArrayOrCellImgFactory( dimensions, new FloatType() );
+		return factory.create( dimensions );
+	}
 
-		return det;
+	private void release( final Img< FloatType > buffer )
+	{
+		if ( bufferPool != null )
+			bufferPool.release( buffer );
+	}
+
+	@Override
+	public void setBufferPool( final DetectionBufferPool bufferPool )
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	@Override
+	public void setMask( final Predicate< Localizable > mask )
+	{
+		this.mask = mask;
 	}
 
 	@Override
@@ -23,16 +23,15 @@ package fiji.plugin.trackmate.detection;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import fiji.plugin.trackmate.Spot;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.loops.LoopBuilder;
-import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
@@ -40,7 +39,7 @@ import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
-public class LabelImageDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >
+public class LabelImageDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >, MultiThreaded
 {
 
 	private final static String BASE_ERROR_MESSAGE = "ThresholdDetector: ";
@@ -87,6 +86,7 @@ public class LabelImageDetector< T extends RealType< T > & NativeType< T > > imp
 		this.interval = DetectionUtils.squeeze( interval );
 		this.calibration = calibration;
 		this.simplify = simplify;
+		setNumThreads();
 	}
 
 	@Override
@@ -124,22 +124,11 @@ public class LabelImageDetector< T extends RealType< T > & NativeType< T > > imp
 
 	private < R extends IntegerType< R > > void processIntegerImg( final RandomAccessibleInterval< R > rai )
 	{
-		// Get all labels.
-		final AtomicInteger max = new AtomicInteger( 0 );
-		Views.iterable( rai ).forEach( p -> {
-			final int val = p.getInteger();
-			if ( val != 0 && val > max.get() )
-				max.set( val );
-		} );
-		final List< Integer > indices = new ArrayList<>( max.get() );
-		for ( int i = 0; i < max.get(); i++ )
-			indices.add( Integer.valueOf( i + 1 ) );
-
-		final ImgLabeling< Integer, R > labeling = ImgLabeling.fromImageAndLabels( rai, indices );
+		// Label values are kept in the LABEL_ID feature, and can be sparse.
 		if ( input.numDimensions() == 2 )
-			spots = MaskUtils.fromLabelingWithROI( labeling, interval, calibration, simplify, null );
+			spots = MaskUtils.fromLabelImageWithROI( rai, interval, calibration, simplify, numThreads, null );
 		else
-			spots = MaskUtils.fromLabeling( labeling, interval, calibration );
+			spots = MaskUtils.fromLabelImage( rai, interval, calibration, numThreads, null );
 	}
 
 	@Override
@@ -159,4 +148,22 @@ public class LabelImageDetector< T extends RealType< T > & NativeType< T > > imp
 	{
 		return processingTime;
 	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
 }
@@ -32,6 +32,7 @@ import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,6 +42,7 @@ import javax.swing.ImageIcon;
 import org.jdom2.Element;
 import org.scijava.plugin.Plugin;
 
+import fiji.plugin.trackmate.Dimension;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
@@ -78,9 +80,22 @@ public class LabelImageDetectorFactory< T extends RealType< T > & NativeType< T
 			+ "In 2D the contour of a label is imported. In 3D, spherical spots "
 			+ "of the same volume that the label are created."
 			+ "<p>"
-			+ "The spot quality stores the object area or volume in pixels."
+			+ "The spot quality stores the object area or volume in pixels. "
+			+ "The label value of each object is stored in the spot 'Label ID' feature, "
+			+ "and labels do not need to be contiguous."
 			+ "</html>";
 
+	/** The spot feature storing the label value a spot was created from. */
+	public static final List< String > FEATURES = Collections.singletonList( MaskUtils.LABEL_ID );
+
+	public static final Map< String, String > FEATURE_NAMES = Collections.singletonMap( MaskUtils.LABEL_ID, "Label ID" );
+
+	public static final Map< String, String > FEATURE_SHORT_NAMES = Collections.singletonMap( MaskUtils.LABEL_ID, "Label" );
+
+	public static final Map< String, Dimension > FEATURE_DIMENSIONS = Collections.singletonMap( MaskUtils.LABEL_ID, Dimension.NONE );
+
+	public static final Map< String, Boolean > IS_INT = Collections.singletonMap( MaskUtils.LABEL_ID, Boolean.TRUE );
+
 	/*
 	 * FIELDS
 	 */
@@ -23,15 +23,29 @@ package fiji.plugin.trackmate.detection;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.util.BufferPoolClient;
+import fiji.plugin.trackmate.detection.util.DetectionBufferPool;
+import fiji.plugin.trackmate.detection.util.IntervalPlanner;
+import fiji.plugin.trackmate.detection.util.IntervalPlanner.Region;
+import fiji.plugin.trackmate.detection.util.MaskClient;
+import fiji.plugin.trackmate.detection.util.MaxSpotsClient;
 import fiji.plugin.trackmate.util.Threads;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.Localizable;
 import net.imglib2.RandomAccessible;
 import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.algorithm.fft2.FFTConvolution;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
@@ -41,7 +55,7 @@ import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
-public class LogDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >, MultiThreaded
+public class LogDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >, MultiThreaded, BufferPoolClient, MaskClient, MaxSpotsClient
 {
 
 	/*
@@ -50,6 +64,21 @@ public class LogDetector< T extends RealType< T > & NativeType< T > > implements
 
 	private final static String BASE_ERROR_MESSAGE = "LogDetector: ";
 
+	/**
+	 * In coarse-to-fine mode, candidates are searched for in the downsampled
+	 * image with a threshold lowered by this fraction of its magnitude, so
+	 * that spots whose peak is attenuated by the downsampling are not missed.
+	 * The threshold is lowered for negative values as well. The actual
+	 * threshold is applied at full resolution.
+	 */
+	private static final double COARSE_THRESHOLD_RATIO = 0.5;
+
+	/**
+	 * The minimal LoG sigma, in pixels of the downsampled image, below which
+	 * the downsampling factor is reduced along a dimension.
+	 */
+	private static final double MIN_COARSE_SIGMA = 1.;
+
 	/** The image to segment. Will not modified. */
 	protected RandomAccessible< T > img;
 
@@ -77,6 +106,36 @@ public class LogDetector< T extends RealType< T > & NativeType< T > > implements
 
 	protected final double[] calibration;
 
+	/**
+	 * The pool to borrow intermediate images from. If <code>null</code>, they
+	 * are allocated for each call to {@link #process()}.
+	 */
+	protected DetectionBufferPool bufferPool;
+
+	/**
+	 * The mask used to discard maxima before creating spots. If
+	 * <code>null</code>, all maxima are kept.
+	 */
+	protected Predicate< Localizable > mask;
+
+	/**
+	 * The maximal number of spots to return. If 0 or less, all maxima above
+	 * the threshold are returned.
+	 */
+	protected int maxNSpots = 0;
+
+	/**
+	 * The number of maxima discarded because of the {@link #maxNSpots} limit.
+	 */
+	protected final AtomicLong nDiscarded = new AtomicLong( 0l );
+
+	/**
+	 * The factor by which the image is downsampled in X and Y to search for
+	 * candidate maxima, that are then refined at full resolution. If 1 or
+	 * less, maxima are searched for at full resolution.
+	 */
+	protected int downsamplingFactor = 1;
+
 	/*
 	 * CONSTRUCTORS
 	 */
@@ -118,13 +177,32 @@ public class LogDetector< T extends RealType< T > & NativeType< T > > implements
 	public boolean process()
 	{
 		final long start = System.currentTimeMillis();
+		nDiscarded.set( 0l );
+
+		final long[] factors = downsamplingFactors();
+		if ( factors != null )
+		{
+			final boolean ok = processCoarseToFine( factors );
+			this.processingTime = System.currentTimeMillis() - start;
+			return ok;
+		}
 
 		/*
 		 * Copy to float for convolution.
 		 */
 
-		final ImgFactory< FloatType > factory = Util.getArrayOrCellImgFactory( interval, new FloatType() );
-		Img< FloatType > floatImg = DetectionUtils.copyToFloatImg( img, interval, factory );
+		final Img< FloatType > copy = borrowFloatImg( interval );
+		Img< FloatType > floatImg = null;
+		try
+		{
+			floatImg = DetectionUtils.copyToFloatImg( img, interval, copy );
+		}
+		finally
+		{
+			// The borrowed copy is not handed back if reading the source failed.
+			if ( null == floatImg )
+				releaseFloatImg( copy );
+		}
 
 		/*
 		 * Do median filtering (or not).
@@ -132,7 +210,20 @@ public class LogDetector< T extends RealType< T > & NativeType< T > > implements
 
 		if ( doMedianFilter )
 		{
-			floatImg = DetectionUtils.applyMedianFilter( floatImg );
+			final Img< FloatType > unfiltered = floatImg;
+			final Img< FloatType > output = borrowFloatImg( interval );
+			floatImg = null;
+			try
+			{
+				floatImg = DetectionUtils.applyMedianFilter( unfiltered, output, numThreads );
+			}
+			finally
+			{
+				releaseFloatImg( unfiltered );
+				// The borrowed output is not handed back if the filter failed.
+				if ( null == floatImg )
+					releaseFloatImg( output );
+			}
 			if ( null == floatImg )
 			{
 				errorMessage = BASE_ERROR_MESSAGE + "Failed to apply median filter.";
@@ -140,39 +231,363 @@ public class LogDetector< T extends RealType< T > & NativeType< T > > implements
 			}
 		}
 
-		// Squeeze singleton dimensions
-		int ndims = interval.numDimensions();
-		for ( int d = 0; d < interval.numDimensions(); d++ )
-			if ( interval.dimension( d ) <= 1 )
-				ndims--;
+		try
+		{
+			// Squeeze singleton dimensions
+			int ndims = interval.numDimensions();
+			for ( int d = 0; d < interval.numDimensions(); d++ )
+				if ( interval.dimension( d ) <= 1 )
+					ndims--;
+
+			final Img< FloatType > kernel = DetectionUtils.createLoGKernel( radius, ndims, calibration );
+			convolve( floatImg, kernel, numThreads );
+
+			final long[] minopposite = new long[ interval.numDimensions() ];
+			interval.min( minopposite );
+			final IntervalView< FloatType > to = Views.translate( floatImg, minopposite );
+			spots = DetectionUtils.findLocalMaxima( to, threshold, calibration, radius, doSubPixelLocalization, numThreads, mask, maxNSpots, nDiscarded );
+		}
+		finally
+		{
+			releaseFloatImg( floatImg );
+		}
+
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+
+		return true;
+	}
+
+	/**
+	 * Returns the downsampling factors to use along each dimension of the
+	 * interval in coarse-to-fine mode, or <code>null</code> if maxima should
+	 * be searched for at full resolution. Only X and Y are downsampled, and
+	 * the factor is reduced so that the LoG kernel still spans at least
+	 * {@link #MIN_COARSE_SIGMA} pixel of the downsampled image.
+	 * 
+	 * @return the downsampling factors, or <code>null</code>.
+	 */
+	private long[] downsamplingFactors()
+	{
+		if ( downsamplingFactor <= 1 )
+			return null;
+
+		final int n = interval.numDimensions();
+		final double sigma = radius / Math.sqrt( n );
+		final long[] factors = new long[ n ];
+		boolean downsampled = false;
+		for ( int d = 0; d < n; d++ )
+		{
+			factors[ d ] = 1;
+			if ( d > 1 || interval.dimension( d ) <= 1 )
+				continue;
+
+			final long maxFactor = ( long ) Math.floor( sigma / calibration[ d ] / MIN_COARSE_SIGMA );
+			factors[ d ] = Math.max( 1, Math.min( downsamplingFactor, maxFactor ) );
+			downsampled = downsampled || factors[ d ] > 1;
+		}
+		return downsampled ? factors : null;
+	}
+
+	/**
+	 * Detects spots in two passes. Candidate maxima are first searched for
+	 * in a downsampled version of the image. Each candidate is then refined
+	 * at full resolution in a small window around it, which yields the exact
+	 * position, sub-pixel localization and quality. Overlapping windows are
+	 * merged, so that each pixel is filtered at most once.
+	 * <p>
+	 * For spots well separated and large compared to the downsampling
+	 * factor, this returns the same spots as the full resolution detection,
+	 * for a fraction of the filtering cost. Spots closer than about one
+	 * downsampled pixel to a brighter one might be missed.
+	 * 
+	 * @param factors
+	 *            the downsampling factors along each dimension.
+	 * @return <code>true</code> if the detection completed successfully.
+	 */
+	private boolean processCoarseToFine( final long[] factors )
+	{
+		final int n = interval.numDimensions();
+
+		/*
+		 * Find candidates in the downsampled image.
+		 */
+
+		final double[] coarseCalibration = calibration.clone();
+		for ( int d = 0; d < n; d++ )
+			coarseCalibration[ d ] *= factors[ d ];
+
+		final Img< FloatType > coarse = downsample( factors );
+		final Img< FloatType > coarseKernel = DetectionUtils.createLoGKernel( radius, n, coarseCalibration );
+		convolve( coarse, coarseKernel, numThreads );
+		final List< Spot > candidates = DetectionUtils.findLocalMaxima( coarse, threshold - COARSE_THRESHOLD_RATIO * Math.abs( threshold ), coarseCalibration, radius, false, numThreads );
+
+		/*
+		 * A refinement window around each candidate: the downsampled pixel
+		 * and its neighbors, at full resolution.
+		 */
+
+		final List< Interval > windows = new ArrayList<>( candidates.size() );
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( final Spot candidate : candidates )
+		{
+			for ( int d = 0; d < n; d++ )
+			{
+				final long c = Math.round( candidate.getDoublePosition( d ) / coarseCalibration[ d ] );
+				min[ d ] = interval.min( d ) + ( c - 1 ) * factors[ d ];
+				max[ d ] = interval.min( d ) + ( c + 2 ) * factors[ d ] - 1;
+			}
+			windows.add( Intervals.intersect( new FinalInterval( min, max ), interval ) );
+		}
+
+		/*
+		 * Refine at full resolution. The halo accounts for the LoG kernel,
+		 * the median filter and the local maxima search.
+		 */
+
+		final Img< FloatType > kernel = DetectionUtils.createLoGKernel( radius, n, calibration );
+		final long[] halo = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			halo[ d ] = kernel.dimension( d ) / 2 + 2;
+		final List< Region > regions = IntervalPlanner.plan( windows, halo, interval );
+
+		final int nParallel = Math.max( 1, Math.min( regions.size(), numThreads ) );
+		final int nTasksPerRegion = Math.max( 1, numThreads / nParallel );
+		final List< Spot > refined = new ArrayList<>();
+		if ( nParallel == 1 )
+		{
+			for ( final Region region : regions )
+			{
+				final List< Spot > regionSpots = refine( region, windows, kernel, nTasksPerRegion );
+				if ( null == regionSpots )
+				{
+					errorMessage = baseErrorMessage + "Failed to apply median filter.";
+					return false;
+				}
+				refined.addAll( regionSpots );
+			}
+		}
+		else
+		{
+			final ExecutorService regionService = Threads.newFixedThreadPool( nParallel );
+			final List< Future< List< Spot > > > futures = new ArrayList<>( regions.size() );
+			for ( final Region region : regions )
+				futures.add( regionService.submit( () -> refine( region, windows, kernel, nTasksPerRegion ) ) );
+			regionService.shutdown();
+			try
+			{
+				for ( final Future< List< Spot > > future : futures )
+				{
+					final List< Spot > regionSpots = future.get();
+					if ( null == regionSpots )
+					{
+						errorMessage = baseErrorMessage + "Failed to apply median filter.";
+						regionService.shutdownNow();
+						return false;
+					}
+					refined.addAll( regionSpots );
+				}
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				errorMessage = baseErrorMessage + e.getMessage();
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		if ( maxNSpots > 0 && refined.size() > maxNSpots )
+		{
+			refined.sort( Spot.featureComparator( Spot.QUALITY ).reversed() );
+			nDiscarded.addAndGet( refined.size() - maxNSpots );
+			spots = new ArrayList<>( refined.subList( 0, maxNSpots ) );
+		}
+		else
+		{
+			spots = refined;
+		}
+		return true;
+	}
+
+	/**
+	 * Filters a region of the image at full resolution and returns the
+	 * maxima found in the refinement windows it contains.
+	 * 
+	 * @param region
+	 *            the region to filter.
+	 * @param windows
+	 *            the refinement windows, indexed by the region members.
+	 * @param kernel
+	 *            the full resolution LoG kernel.
+	 * @param nTasks
+	 *            the number of tasks to use.
+	 * @return a new list of spots, or <code>null</code> if the median filter
+	 *         could not be applied.
+	 */
+	private List< Spot > refine( final Region region, final List< Interval > windows, final Img< FloatType > kernel, final int nTasks )
+	{
+		final Interval regionInterval = region.getInterval();
+		final ImgFactory< FloatType > factory = Util.getArrayOrCellImgFactory( regionInterval, new FloatType() );
+		Img< FloatType > floatImg = DetectionUtils.copyToFloatImg( img, regionInterval, factory );
+		if ( doMedianFilter )
+		{
+			floatImg = DetectionUtils.applyMedianFilter( floatImg, null, nTasks );
+			if ( null == floatImg )
+				return null;
+		}
+		convolve( floatImg, kernel, nTasks );
+
+		final List< Interval > members = new ArrayList<>( region.getMembers().size() );
+		for ( final Integer member : region.getMembers() )
+			members.add( windows.get( member ) );
+		final Predicate< Localizable > inWindows = p -> {
+			if ( mask != null && !mask.test( p ) )
+				return false;
+			for ( final Interval window : members )
+				if ( Intervals.contains( window, p ) )
+					return true;
+			return false;
+		};
 
-		final Img< FloatType > kernel = DetectionUtils.createLoGKernel( radius, ndims, calibration );
-		final FFTConvolution< FloatType > fftconv = new FFTConvolution<>( floatImg, kernel );
+		final long[] minopposite = new long[ regionInterval.numDimensions() ];
+		regionInterval.min( minopposite );
+		final IntervalView< FloatType > to = Views.translate( floatImg, minopposite );
+		return DetectionUtils.findLocalMaxima( to, threshold, calibration, radius, doSubPixelLocalization, nTasks, inWindows );
+	}
+
+	/**
+	 * Returns a new image, built by averaging the pixels of the image in
+	 * non-overlapping blocks of the specified size. Blocks that are cut by
+	 * the interval border are averaged over the pixels they contain.
+	 * 
+	 * @param factors
+	 *            the block size along each dimension.
+	 * @return a new float image, with its first pixel at coordinates (0, 0).
+	 */
+	private Img< FloatType > downsample( final long[] factors )
+	{
+		final int n = interval.numDimensions();
+		final long[] dims = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			dims[ d ] = ( interval.dimension( d ) + factors[ d ] - 1 ) / factors[ d ];
+
+		final int size = ( int ) Intervals.numElements( dims );
+		final float[] sums = new float[ size ];
+		final int[] counts = new int[ size ];
+		final Cursor< T > cursor = Views.interval( img, interval ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			int index = 0;
+			for ( int d = n - 1; d >= 0; d-- )
+				index = index * ( int ) dims[ d ] + ( int ) ( ( cursor.getLongPosition( d ) - interval.min( d ) ) / factors[ d ] );
+			sums[ index ] += cursor.get().getRealFloat();
+			counts[ index ]++;
+		}
+		for ( int i = 0; i < size; i++ )
+			sums[ i ] /= counts[ i ];
+
+		return ArrayImgs.floats( sums, dims );
+	}
+
+	/**
+	 * Convolves the specified image in place with the specified kernel, in
+	 * the Fourier space.
+	 * 
+	 * @param target
+	 *            the image to convolve.
+	 * @param kernel
+	 *            the kernel.
+	 * @param nThreads
+	 *            the number of threads to use.
+	 */
+	private static void convolve( final Img< FloatType > target, final Img< FloatType > kernel, final int nThreads )
+	{
+		final FFTConvolution< FloatType > fftconv = new FFTConvolution<>( target, kernel );
 
 		/*
 		 * Determine the right img factory for FFT calculation.
 		 */
-		Interval fftinterval = floatImg;
+		Interval fftinterval = target;
 		for ( int d = 0; d < kernel.numDimensions(); d++ )
 			fftinterval = Intervals.expand( fftinterval, kernel.dimension( d ), d );
 		final ImgFactory< ComplexFloatType > imgFactory = Util.getArrayOrCellImgFactory( fftinterval, new ComplexFloatType() );
 		fftconv.setFFTImgFactory( imgFactory );
 
-		final ExecutorService service = Threads.newFixedThreadPool( numThreads );
+		final ExecutorService service = Threads.newFixedThreadPool( nThreads );
 		fftconv.setExecutorService( service );
 
 		fftconv.convolve();
 		service.shutdown();
+	}
 
-		final long[] minopposite = new long[ interval.numDimensions() ];
-		interval.min( minopposite );
-		final IntervalView< FloatType > to = Views.translate( floatImg, minopposite );
-		spots = DetectionUtils.findLocalMaxima( to, threshold, calibration, radius, doSubPixelLocalization, numThreads );
+	/**
+	 * Returns a float image with the dimensions of the specified interval,
+	 * taken from the buffer pool if there is one. Its content is undefined.
+	 * 
+	 * @param dimensions
+	 *            the dimensions of the image.
+	 * @return a float image.
+	 */
+	protected Img< FloatType > borrowFloatImg( final Interval dimensions )
+	{
+		if ( bufferPool != null )
+			return bufferPool.borrow( dimensions, new FloatType() );
 
-		final long end = System.currentTimeMillis();
-		this.processingTime = end - start;
+		final ImgFactory< FloatType > factory = Util.getArrayOrCellImgFactory( dimensions, new FloatType() );
+		return factory.create( dimensions );
+	}
 
-		return true;
+	/**
+	 * Gives back an image obtained with {@link #borrowFloatImg(Interval)} to
+	 * the buffer pool, if there is one.
+	 * 
+	 * @param buffer
+	 *            the image to release.
+	 */
+	protected void releaseFloatImg( final Img< FloatType > buffer )
+	{
+		if ( bufferPool != null )
+			bufferPool.release( buffer );
+	}
+
+	@Override
+	public void setBufferPool( final DetectionBufferPool bufferPool )
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	@Override
+	public void setMask( final Predicate< Localizable > mask )
+	{
+		this.mask = mask;
+	}
+
+	/**
+	 * Sets the factor by which the image is downsampled in X and Y to search
+	 * for candidate maxima, that are then refined at full resolution. This
+	 * speeds up the detection of large, well separated objects. If 1 or less,
+	 * maxima are searched for at full resolution.
+	 * 
+	 * @param downsamplingFactor
+	 *            the downsampling factor.
+	 */
+	public void setDownsamplingFactor( final int downsamplingFactor )
+	{
+		this.downsamplingFactor = downsamplingFactor;
+	}
+
+	@Override
+	public void setMaxNSpots( final int maxNSpots )
+	{
+		this.maxNSpots = maxNSpots;
+	}
+
+	@Override
+	public long getNDiscarded()
+	{
+		return nDiscarded.get();
 	}
 
 	@Override
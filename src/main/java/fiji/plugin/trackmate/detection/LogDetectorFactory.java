@@ -27,15 +27,19 @@ import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_RADIUS;
 import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_THRESHOLD;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_DO_MEDIAN_FILTERING;
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_DOWNSAMPLE_FACTOR;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_DO_SUBPIXEL_LOCALIZATION;
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_MAX_SPOTS_PER_FRAME;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_RADIUS;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_THRESHOLD;
 import static fiji.plugin.trackmate.io.IOUtils.readBooleanAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readDoubleAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readIntegerAttribute;
+import static fiji.plugin.trackmate.io.IOUtils.writeAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.writeDoMedian;
 import static fiji.plugin.trackmate.io.IOUtils.writeDoSubPixel;
+import static fiji.plugin.trackmate.io.IOUtils.writeDownsamplingFactor;
 import static fiji.plugin.trackmate.io.IOUtils.writeRadius;
 import static fiji.plugin.trackmate.io.IOUtils.writeTargetChannel;
 import static fiji.plugin.trackmate.io.IOUtils.writeThreshold;
@@ -166,9 +170,44 @@ public class LogDetectorFactory< T extends RealType< T > & NativeType< T >> impl
 
 		final LogDetector< T > detector = new LogDetector<>( imFrame, interval, calibration, radius, threshold, doSubpixel, doMedian );
 		detector.setNumThreads( 1 );
+		detector.setMaxNSpots( getMaxNSpots() );
+		detector.setDownsamplingFactor( getDownsamplingFactor() );
 		return detector;
 	}
 
+	/**
+	 * Returns the value of the optional
+	 * {@link DetectorKeys#KEY_DOWNSAMPLE_FACTOR} parameter, or 1 (full
+	 * resolution detection) if it is not set.
+	 * 
+	 * @return the downsampling factor used to find candidate maxima.
+	 */
+	protected int getDownsamplingFactor()
+	{
+		final Object obj = settings.get( KEY_DOWNSAMPLE_FACTOR );
+		return ( obj == null ) ? 1 : ( ( Integer ) obj ).intValue();
+	}
+
+	/**
+	 * Returns the value of the optional {@link DetectorKeys#KEY_MAX_SPOTS_PER_FRAME}
+	 * parameter, or 0 (no limit) if it is not set.
+	 * 
+	 * @return the maximal number of spots per frame.
+	 */
+	protected int getMaxNSpots()
+	{
+		final Object obj = settings.get( KEY_MAX_SPOTS_PER_FRAME );
+		return ( obj == null ) ? 0 : ( ( Integer ) obj ).intValue();
+	}
+
+	@Override
+	public double getBlockHalo()
+	{
+		// The filter kernels extend to ~3 sigma < 3 radius.
+		final double radius = ( Double ) settings.get( KEY_RADIUS );
+		return 3. * radius;
+	}
+
 	@Override
 	public String getKey()
 	{
@@ -191,13 +230,20 @@ public class LogDetectorFactory< T extends RealType< T > & NativeType< T >> impl
 		ok = ok & checkParameter( lSettings, KEY_THRESHOLD, Double.class, errorHolder );
 		ok = ok & checkParameter( lSettings, KEY_DO_MEDIAN_FILTERING, Boolean.class, errorHolder );
 		ok = ok & checkParameter( lSettings, KEY_DO_SUBPIXEL_LOCALIZATION, Boolean.class, errorHolder );
+		if ( lSettings.containsKey( KEY_MAX_SPOTS_PER_FRAME ) )
+			ok = ok & checkParameter( lSettings, KEY_MAX_SPOTS_PER_FRAME, Integer.class, errorHolder );
+		if ( lSettings.containsKey( KEY_DOWNSAMPLE_FACTOR ) )
+			ok = ok & checkParameter( lSettings, KEY_DOWNSAMPLE_FACTOR, Integer.class, errorHolder );
 		final List< String > mandatoryKeys = new ArrayList<>();
 		mandatoryKeys.add( KEY_TARGET_CHANNEL );
 		mandatoryKeys.add( KEY_RADIUS );
 		mandatoryKeys.add( KEY_THRESHOLD );
 		mandatoryKeys.add( KEY_DO_MEDIAN_FILTERING );
 		mandatoryKeys.add( KEY_DO_SUBPIXEL_LOCALIZATION );
-		ok = ok & checkMapKeys( lSettings, mandatoryKeys, null, errorHolder );
+		final List< String > optionalKeys = new ArrayList<>();
+		optionalKeys.add( KEY_MAX_SPOTS_PER_FRAME );
+		optionalKeys.add( KEY_DOWNSAMPLE_FACTOR );
+		ok = ok & checkMapKeys( lSettings, mandatoryKeys, optionalKeys, errorHolder );
 		if ( !ok )
 		{
 			errorMessage = errorHolder.toString();
@@ -209,7 +255,11 @@ public class LogDetectorFactory< T extends RealType< T > & NativeType< T >> impl
 	public boolean marshall( final Map< String, Object > lSettings, final Element element )
 	{
 		final StringBuilder errorHolder = new StringBuilder();
-		final boolean ok = writeTargetChannel( lSettings, element, errorHolder ) && writeRadius( lSettings, element, errorHolder ) && writeThreshold( lSettings, element, errorHolder ) && writeDoMedian( lSettings, element, errorHolder ) && writeDoSubPixel( lSettings, element, errorHolder );
+		boolean ok = writeTargetChannel( lSettings, element, errorHolder ) && writeRadius( lSettings, element, errorHolder ) && writeThreshold( lSettings, element, errorHolder ) && writeDoMedian( lSettings, element, errorHolder ) && writeDoSubPixel( lSettings, element, errorHolder );
+		if ( lSettings.containsKey( KEY_MAX_SPOTS_PER_FRAME ) )
+			ok = ok && writeAttribute( lSettings, element, KEY_MAX_SPOTS_PER_FRAME, Integer.class, errorHolder );
+		if ( lSettings.containsKey( KEY_DOWNSAMPLE_FACTOR ) )
+			ok = ok && writeDownsamplingFactor( lSettings, element, errorHolder );
 		if ( !ok )
 		{
 			errorMessage = errorHolder.toString();
@@ -228,6 +278,10 @@ public class LogDetectorFactory< T extends RealType< T > & NativeType< T >> impl
 		ok = ok & readBooleanAttribute( element, lSettings, KEY_DO_SUBPIXEL_LOCALIZATION, errorHolder );
 		ok = ok & readBooleanAttribute( element, lSettings, KEY_DO_MEDIAN_FILTERING, errorHolder );
 		ok = ok & readIntegerAttribute( element, lSettings, KEY_TARGET_CHANNEL, errorHolder );
+		if ( element.getAttributeValue( KEY_MAX_SPOTS_PER_FRAME ) != null )
+			ok = ok & readIntegerAttribute( element, lSettings, KEY_MAX_SPOTS_PER_FRAME, errorHolder );
+		if ( element.getAttributeValue( KEY_DOWNSAMPLE_FACTOR ) != null )
+			ok = ok & readIntegerAttribute( element, lSettings, KEY_DOWNSAMPLE_FACTOR, errorHolder );
 		if ( !ok )
 		{
 			errorMessage = errorHolder.toString();
@@ -23,16 +23,27 @@ package fiji.plugin.trackmate.detection;
 
 import java.awt.Polygon;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotRoi;
+import fiji.plugin.trackmate.detection.util.LabelRegionStatistics;
+import fiji.plugin.trackmate.util.PolygonScanline;
 import fiji.plugin.trackmate.util.Threads;
 import ij.ImagePlus;
 import ij.gui.PolygonRoi;
 import ij.measure.Measurements;
 import ij.process.FloatPolygon;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
@@ -42,7 +53,6 @@ import net.imglib2.algorithm.labeling.ConnectedComponents.StructuringElement;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
 import net.imglib2.histogram.Histogram1d;
-import net.imglib2.histogram.Real1dBinMapper;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -50,12 +60,14 @@ import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelRegion;
 import net.imglib2.roi.labeling.LabelRegionCursor;
 import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingMapping;
 import net.imglib2.type.BooleanType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -73,38 +85,190 @@ public class MaskUtils
 	 */
 	private static final double DOUGLAS_PEUCKER_MAX_DISTANCE = 0.5;
 
+	/**
+	 * The key of the spot feature that stores the value of the label a spot
+	 * was created from, for spots created from label images.
+	 */
+	public static final String LABEL_ID = "LABEL_ID";
+
+	/**
+	 * The number of bins of the histograms used to compute Otsu thresholds.
+	 */
+	private static final int N_OTSU_BINS = 256;
+
+	/**
+	 * Integer images with at most this many possible values are read once to
+	 * compute Otsu thresholds.
+	 */
+	private static final int MAX_OTSU_VALUE_COUNTS = 1 << 16;
+
 	public static final < T extends RealType< T > > double otsuThreshold( final RandomAccessibleInterval< T > img )
 	{
-		// Min & max
-		final T t = Util.getTypeFromInterval( img );
-		final T max = t.createVariable();
-		max.setReal( Double.NEGATIVE_INFINITY );
-		final T min = t.createVariable();
-		min.setReal( Double.POSITIVE_INFINITY );
-
-		for ( final T pixel : Views.iterable( img ) )
-		{
-			if ( pixel.compareTo( min ) < 0 )
-				min.set( pixel );
+		return otsuThreshold( img, 1 );
+	}
 
-			if ( pixel.compareTo( max ) > 0 )
-				max.set( pixel );
+	/**
+	 * Computes the Otsu threshold of the specified image, using a 256-bin
+	 * histogram spanning its range.
+	 * <p>
+	 * The image is split in stripes along its last dimension, each scanned by
+	 * a separate thread with a private histogram. Histograms are merged at
+	 * the end. When the last dimension is time, this yields a single
+	 * threshold for all the frames of a movie.
+	 * <p>
+	 * For integer types of at most 16 bits, the image is read once: each
+	 * thread counts every possible pixel value, then the counts are binned
+	 * over the actual range. This matters for virtual stacks, where each
+	 * pass reads all the planes from disk. For other types, a first pass
+	 * finds the min and max, and a second fills the 256-bin histograms.
+	 *
+	 * @param <T>
+	 *            the pixel type of the image.
+	 * @param img
+	 *            the image.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the Otsu threshold value.
+	 */
+	public static final < T extends RealType< T > > double otsuThreshold( final RandomAccessibleInterval< T > img, final int numThreads )
+	{
+		final int n = img.numDimensions();
+		final int last = n - 1;
+		final int nStripes = ( int ) Math.max( 1, Math.min( numThreads, img.dimension( last ) ) );
+		final List< Interval > stripes = new ArrayList<>( nStripes );
+		final long size = img.dimension( last );
+		for ( int i = 0; i < nStripes; i++ )
+		{
+			final long[] min = Intervals.minAsLongArray( img );
+			final long[] max = Intervals.maxAsLongArray( img );
+			min[ last ] = img.min( last ) + i * size / nStripes;
+			max[ last ] = img.min( last ) + ( i + 1 ) * size / nStripes - 1;
+			stripes.add( new FinalInterval( min, max ) );
 		}
 
+		final T type = Util.getTypeFromInterval( img );
+		final double typeMin = type.getMinValue();
+		final double typeRange = type.getMaxValue() - typeMin + 1.;
+		if ( type instanceof IntegerType && typeRange <= MAX_OTSU_VALUE_COUNTS )
+			return otsuThresholdOnePass( img, stripes, numThreads, type, ( int ) typeRange );
+
+		// Min & max.
+		final double[] mins = new double[ nStripes ];
+		final double[] maxs = new double[ nStripes ];
+		processInParallel( nStripes, numThreads, i -> {
+			double lmin = Double.POSITIVE_INFINITY;
+			double lmax = Double.NEGATIVE_INFINITY;
+			for ( final T pixel : Views.interval( img, stripes.get( i ) ) )
+			{
+				final double val = pixel.getRealDouble();
+				if ( val < lmin )
+					lmin = val;
+				if ( val > lmax )
+					lmax = val;
+			}
+			mins[ i ] = lmin;
+			maxs[ i ] = lmax;
+		} );
+		final double min = Arrays.stream( mins ).min().getAsDouble();
+		final double max = Arrays.stream( maxs ).max().getAsDouble();
+		if ( !( max > min ) )
+			return min;
+
 		// Histogram.
-		final Real1dBinMapper< T > mapper = new Real1dBinMapper<>( min.getRealDouble(), max.getRealDouble(), 256, false );
-		final Histogram1d< T > histogram = new Histogram1d<>( Views.iterable( img ), mapper );
+		final long[][] histograms = new long[ nStripes ][];
+		processInParallel( nStripes, numThreads, i -> {
+			final long[] h = new long[ N_OTSU_BINS ];
+			for ( final T pixel : Views.interval( img, stripes.get( i ) ) )
+				h[ otsuBin( pixel.getRealDouble(), min, max ) ]++;
+			histograms[ i ] = h;
+		} );
+		final long[] histogram = histograms[ 0 ];
+		for ( int i = 1; i < nStripes; i++ )
+			for ( int k = 0; k < N_OTSU_BINS; k++ )
+				histogram[ k ] += histograms[ i ][ k ];
+
+		return otsuThreshold( histogram, min, max, type );
+	}
 
-		// Threshold.
+	/**
+	 * Otsu threshold of an integer image, read in one pass. The count of
+	 * each possible value is collected, then binned in a 256-bin histogram
+	 * spanning the values actually present, exactly as with two passes.
+	 */
+	private static final < T extends RealType< T > > double otsuThresholdOnePass(
+			final RandomAccessibleInterval< T > img,
+			final List< Interval > stripes,
+			final int numThreads,
+			final T type,
+			final int nValues )
+	{
+		final double typeMin = type.getMinValue();
+		final int nStripes = stripes.size();
+		final long[][] counts = new long[ nStripes ][];
+		processInParallel( nStripes, numThreads, i -> {
+			final long[] c = new long[ nValues ];
+			for ( final T pixel : Views.interval( img, stripes.get( i ) ) )
+				c[ ( int ) ( pixel.getRealDouble() - typeMin ) ]++;
+			counts[ i ] = c;
+		} );
+		final long[] count = counts[ 0 ];
+		for ( int i = 1; i < nStripes; i++ )
+			for ( int v = 0; v < nValues; v++ )
+				count[ v ] += counts[ i ][ v ];
+
+		int first = 0;
+		while ( first < nValues - 1 && count[ first ] == 0 )
+			first++;
+		int lastValue = nValues - 1;
+		while ( lastValue > first && count[ lastValue ] == 0 )
+			lastValue--;
+		final double min = typeMin + first;
+		final double max = typeMin + lastValue;
+		if ( !( max > min ) )
+			return min;
+
+		final long[] histogram = new long[ N_OTSU_BINS ];
+		for ( int v = first; v <= lastValue; v++ )
+			histogram[ otsuBin( typeMin + v, min, max ) ] += count[ v ];
+		return otsuThreshold( histogram, min, max, type );
+	}
+
+	/**
+	 * Returns the bin of the specified value in a 256-bin histogram spanning
+	 * from min to max, both included.
+	 */
+	private static final int otsuBin( final double val, final double min, final double max )
+	{
+		final int bin = ( int ) ( ( val - min ) / ( max - min ) * N_OTSU_BINS );
+		return Math.min( bin, N_OTSU_BINS - 1 );
+	}
+
+	/**
+	 * Returns the Otsu threshold of a 256-bin histogram spanning from min to
+	 * max: the center of its bin, as a value of the image pixel type.
+	 */
+	private static final < T extends RealType< T > > double otsuThreshold( final long[] histogram, final double min, final double max, final T type )
+	{
 		final long k = getThreshold( histogram );
-		final T val = t.createVariable();
-		mapper.getCenterValue( k, val );
+		final T val = type.createVariable();
+		val.setReal( min + ( k + 0.5 ) * ( max - min ) / N_OTSU_BINS );
 		return val.getRealDouble();
 	}
 
 	public static final long getThreshold( final Histogram1d< ? > hist )
 	{
-		final long[] histogram = hist.toLongArray();
+		return getThreshold( hist.toLongArray() );
+	}
+
+	/**
+	 * Returns the index of the Otsu threshold in the specified histogram.
+	 *
+	 * @param histogram
+	 *            the histogram counts.
+	 * @return the index of the bin of the threshold.
+	 */
+	public static final long getThreshold( final long[] histogram )
+	{
 		// Otsu's threshold algorithm
 		// C++ code by Jordan Bevik <Jordan.Bevic@qtiworld.com>
 		// ported to ImageJ plugin by G.Landini
@@ -256,6 +420,12 @@ public class MaskUtils
 
 	/**
 	 * Creates spots from a label image.
+	 * <p>
+	 * If each index of the labeling maps to at most one label, as for the
+	 * labelings created by {@link #toLabeling(RandomAccessible, Interval, double, int)},
+	 * the spots are measured in a single multithreaded pass over the index
+	 * image. Otherwise each label region is measured separately, so that a
+	 * pixel shared by several labels counts for each of them.
 	 * 
 	 * @param <R>
 	 *            the type that backs-up the labeling.
@@ -273,43 +443,161 @@ public class MaskUtils
 			final Interval interval,
 			final double[] calibration )
 	{
-		// Parse each component.
+		final int[] lut = indexToRegionLookup( labeling.getMapping() );
+		if ( lut == null )
+			return fromLabelRegions( labeling, interval, calibration );
+
+		final Converter< R, IntType > converter = ( a, b ) -> b.set( lut[ a.getInteger() ] );
+		final RandomAccessibleInterval< IntType > regionImg = Converters.convertRAI( labeling.getIndexImg(), converter, new IntType() );
+		return fromLabelImage(
+				regionImg,
+				interval,
+				calibration,
+				Runtime.getRuntime().availableProcessors(),
+				null,
+				false );
+	}
+
+	/**
+	 * Returns a lookup table that maps each index of the labeling to a
+	 * region value strictly larger than 0, one per distinct label, or to 0 for
+	 * indices without label. Returns <code>null</code> if an index maps to
+	 * more than one label, i.e. if labels overlap.
+	 */
+	private static final < L > int[] indexToRegionLookup( final LabelingMapping< L > mapping )
+	{
+		final int[] lut = new int[ mapping.numSets() ];
+		final Map< L, Integer > regionOf = new HashMap<>();
+		for ( int index = 0; index < lut.length; index++ )
+		{
+			final Set< L > labels = mapping.labelsAtIndex( index );
+			if ( labels.size() > 1 )
+				return null;
+			if ( labels.isEmpty() )
+				continue;
+
+			final L label = labels.iterator().next();
+			lut[ index ] = regionOf.computeIfAbsent( label, l -> regionOf.size() + 1 );
+		}
+		return lut;
+	}
+
+	/**
+	 * Creates spots from a labeling by iterating over each of its label
+	 * regions. Slower than a single pass over the index image, but correct
+	 * when labels overlap.
+	 */
+	private static < R extends IntegerType< R > > List< Spot > fromLabelRegions(
+			final ImgLabeling< Integer, R > labeling,
+			final Interval interval,
+			final double[] calibration )
+	{
 		final LabelRegions< Integer > regions = new LabelRegions<>( labeling );
 		final Iterator< LabelRegion< Integer > > iterator = regions.iterator();
 		final List< Spot > spots = new ArrayList<>( regions.getExistingLabels().size() );
+		final int n = labeling.numDimensions();
+		final long[] cursorPos = new long[ n ];
 		while ( iterator.hasNext() )
 		{
 			final LabelRegion< Integer > region = iterator.next();
 			final LabelRegionCursor cursor = region.localizingCursor();
-			final int[] cursorPos = new int[ labeling.numDimensions() ];
 			final long[] sum = new long[ 3 ];
 			while ( cursor.hasNext() )
 			{
 				cursor.fwd();
 				cursor.localize( cursorPos );
-				for ( int d = 0; d < sum.length; d++ )
+				for ( int d = 0; d < n; d++ )
 					sum[ d ] += cursorPos[ d ];
 			}
 
 			final double[] pos = new double[ 3 ];
-			for ( int d = 0; d < pos.length; d++ )
-				pos[ d ] = sum[ d ] / ( double ) region.size();
-
-			final double x = calibration[ 0 ] * ( interval.min( 0 ) + pos[ 0 ] );
-			final double y = calibration[ 1 ] * ( interval.min( 1 ) + pos[ 1 ] );
-			final double z = calibration[ 2 ] * ( interval.min( 2 ) + pos[ 2 ] );
+			for ( int d = 0; d < n; d++ )
+				pos[ d ] = calibration[ d ] * ( interval.min( d ) + sum[ d ] / ( double ) region.size() );
 
 			double volume = region.size();
 			for ( int d = 0; d < calibration.length; d++ )
 				if ( calibration[ d ] > 0 )
 					volume *= calibration[ d ];
-			final double radius = ( labeling.numDimensions() == 2 )
+			final double radius = ( n == 2 )
 					? Math.sqrt( volume / Math.PI )
 					: Math.pow( 3. * volume / ( 4. * Math.PI ), 1. / 3. );
 			final double quality = region.size();
-			spots.add( new Spot( x, y, z, radius, quality ) );
+			spots.add( new Spot( pos[ 0 ], pos[ 1 ], pos[ 2 ], radius, quality ) );
 		}
+		return spots;
+	}
 
+	/**
+	 * Creates spots from a label image, in a single multithreaded pass over
+	 * the pixels. A spot is created for each label value strictly larger than
+	 * 0, with a size that matches the label size.
+	 * <p>
+	 * The quality of the spots is read from the quality image, by taking the
+	 * max pixel value of this image within the label. If the quality image is
+	 * <code>null</code>, the quality is the label size in pixels. The label
+	 * value is stored in the {@link #LABEL_ID} feature of each spot.
+	 * 
+	 * @param <R>
+	 *            the type of the label image.
+	 * @param <S>
+	 *            the type of the quality image.
+	 * @param labels
+	 *            the label image, must be zero-min.
+	 * @param interval
+	 *            the interval, used to reposition the spots from the zero-min
+	 *            label image to the proper coordinates.
+	 * @param calibration
+	 *            the physical calibration.
+	 * @param numThreads
+	 *            how many threads to use for multithreaded computation.
+	 * @param qualityImage
+	 *            the image in which to read the quality value, zero-min and
+	 *            over the same interval as the label image. Can be
+	 *            <code>null</code>.
+	 * @return a list of spots, without ROI.
+	 */
+	public static < R extends IntegerType< R >, S extends RealType< S > > List< Spot > fromLabelImage(
+			final RandomAccessibleInterval< R > labels,
+			final Interval interval,
+			final double[] calibration,
+			final int numThreads,
+			final RandomAccessibleInterval< S > qualityImage )
+	{
+		return fromLabelImage( labels, interval, calibration, numThreads, qualityImage, true );
+	}
+
+	private static < R extends IntegerType< R >, S extends RealType< S > > List< Spot > fromLabelImage(
+			final RandomAccessibleInterval< R > labels,
+			final Interval interval,
+			final double[] calibration,
+			final int numThreads,
+			final RandomAccessibleInterval< S > qualityImage,
+			final boolean storeLabel )
+	{
+		final LabelRegionStatistics stats = LabelRegionStatistics.compute( labels, qualityImage, numThreads );
+		final int n = labels.numDimensions();
+		final List< Spot > spots = new ArrayList<>( stats.size() );
+		for ( int i = 0; i < stats.size(); i++ )
+		{
+			final double[] pos = new double[ 3 ];
+			for ( int d = 0; d < n; d++ )
+				pos[ d ] = calibration[ d ] * ( interval.min( d ) + stats.centroid( i, d ) );
+
+			double volume = stats.count( i );
+			for ( int d = 0; d < calibration.length; d++ )
+				if ( calibration[ d ] > 0 )
+					volume *= calibration[ d ];
+			final double radius = ( n == 2 )
+					? Math.sqrt( volume / Math.PI )
+					: Math.pow( 3. * volume / ( 4. * Math.PI ), 1. / 3. );
+			final double quality = ( qualityImage == null )
+					? stats.count( i )
+					: stats.maxQuality( i );
+			final Spot spot = new Spot( pos[ 0 ], pos[ 1 ], pos[ 2 ], radius, quality );
+			if ( storeLabel )
+				spot.putFeature( LABEL_ID, Double.valueOf( stats.label( i ) ) );
+			spots.add( spot );
+		}
 		return spots;
 	}
 
@@ -346,58 +634,22 @@ public class MaskUtils
 		// Get labeling from mask.
 		final ImgLabeling< Integer, IntType > labeling = toLabeling( input, interval, threshold, numThreads );
 
+		/*
+		 * Each label of the labelings we create maps to exactly one index in
+		 * the index image, so we can work on it directly.
+		 */
+
 		// Crop of the quality image.
 		final IntervalView< R > cropQuality = Views.interval( qualityImage, interval );
 		final IntervalView< R > inQuality = Views.zeroMin( cropQuality );
-		final RandomAccess< R > raQuality = inQuality.randomAccess( inQuality );
-
-		// Parse each component.
-		final LabelRegions< Integer > regions = new LabelRegions<>( labeling );
-		final Iterator< LabelRegion< Integer > > iterator = regions.iterator();
-		final List< Spot > spots = new ArrayList<>( regions.getExistingLabels().size() );
-		while ( iterator.hasNext() )
-		{
-			final LabelRegion< Integer > region = iterator.next();
-			final LabelRegionCursor cursor = region.localizingCursor();
-			final int[] cursorPos = new int[ labeling.numDimensions() ];
-			final long[] sum = new long[ 3 ];
-			double quality = Double.NEGATIVE_INFINITY;
-			while ( cursor.hasNext() )
-			{
-				cursor.fwd();
-
-				// Position.
-				cursor.localize( cursorPos );
-				for ( int d = 0; d < sum.length; d++ )
-					sum[ d ] += cursorPos[ d ];
-
-				// Quality
-				raQuality.setPosition( cursor );
-				final double q = raQuality.get().getRealDouble();
-				if ( q > quality )
-					quality = q;
-			}
-
-			final double[] pos = new double[ 3 ];
-			for ( int d = 0; d < pos.length; d++ )
-				pos[ d ] = sum[ d ] / ( double ) region.size();
-
-			final double x = calibration[ 0 ] * ( interval.min( 0 ) + pos[ 0 ] );
-			final double y = calibration[ 1 ] * ( interval.min( 1 ) + pos[ 1 ] );
-			final double z = calibration[ 2 ] * ( interval.min( 2 ) + pos[ 2 ] );
 
-			double volume = region.size();
-			for ( int d = 0; d < calibration.length; d++ )
-				if ( calibration[ d ] > 0 )
-					volume *= calibration[ d ];
-
-			final double radius = ( labeling.numDimensions() == 2 )
-					? Math.sqrt( volume / Math.PI )
-					: Math.pow( 3. * volume / ( 4. * Math.PI ), 1. / 3. );
-			spots.add( new Spot( x, y, z, radius, quality ) );
-		}
-
-		return spots;
+		return fromLabelImage(
+				labeling.getIndexImg(),
+				interval,
+				calibration,
+				numThreads,
+				inQuality,
+				false );
 	}
 
 	/**
@@ -442,7 +694,7 @@ public class MaskUtils
 		
 		// Get labeling.
 		final ImgLabeling< Integer, IntType > labeling = toLabeling( input, interval, threshold, numThreads );
-		return fromLabelingWithROI( labeling, interval, calibration, simplify, qualityImage );
+		return fromLabelingWithROI( labeling, interval, calibration, simplify, numThreads, qualityImage );
 	}
 
 	/**
@@ -474,36 +726,219 @@ public class MaskUtils
 			final double[] calibration,
 			final boolean simplify,
 			final RandomAccessibleInterval< S > qualityImage )
+	{
+		return fromLabelingWithROI( labeling, interval, calibration, simplify, Runtime.getRuntime().availableProcessors(), qualityImage );
+	}
+
+	/**
+	 * Creates spots <b>with ROIs</b> from a <b>2D</b> label image. The quality
+	 * value is read from a secondary image, byt taking the max value in each
+	 * ROI.
+	 * <p>
+	 * Regions are processed in parallel. Each region is traced, simplified
+	 * and measured independently, and the quality is measured by scanline
+	 * rasterization of the final polygon over the quality image.
+	 * 
+	 * @param <R>
+	 *            the type that backs-up the labeling.
+	 * @param <S>
+	 *            the type of the quality image. Must be real, scalar.
+	 * @param labeling
+	 *            the labeling, must be zero-min and 2D..
+	 * @param interval
+	 *            the interval, used to reposition the spots from the zero-min
+	 *            labeling to the proper coordinates.
+	 * @param calibration
+	 *            the physical calibration.
+	 * @param simplify
+	 *            if <code>true</code> the polygon will be post-processed to be
+	 *            smoother and contain less points.
+	 * @param numThreads
+	 *            how many threads to use for multithreaded computation.
+	 * @param qualityImage
+	 *            the image in which to read the quality value, zero-min and
+	 *            over the same interval as the labeling. If <code>null</code>,
+	 *            the quality is the ROI area in pixels.
+	 * @return a list of spots, with ROI.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < R extends IntegerType< R >, S extends NumericType< S > > List< Spot > fromLabelingWithROI(
+			final ImgLabeling< Integer, R > labeling,
+			final Interval interval,
+			final double[] calibration,
+			final boolean simplify,
+			final int numThreads,
+			final RandomAccessibleInterval< S > qualityImage )
 	{
 		if ( labeling.numDimensions() != 2 )
 			throw new IllegalArgumentException( "Can only process 2D images with this method, but got " + labeling.numDimensions() + "D." );
 
+		// Collect regions and compute their bounds.
 		final LabelRegions< Integer > regions = new LabelRegions< Integer >( labeling );
-
-		// Parse regions to create polygons on boundaries.
-		final List< Polygon > polygons = new ArrayList<>( regions.getExistingLabels().size() );
+		final List< LabelRegion< Integer > > regionList = new ArrayList<>( regions.getExistingLabels().size() );
 		final Iterator< LabelRegion< Integer > > iterator = regions.iterator();
 		while ( iterator.hasNext() )
 		{
 			final LabelRegion< Integer > region = iterator.next();
-			// Analyze in zero-min region.
-			final List< Polygon > pp = maskToPolygons( Views.zeroMin( region ) );
-			// Translate back to interval coords.
-			for ( final Polygon polygon : pp )
-				polygon.translate( ( int ) region.min( 0 ), ( int ) region.min( 1 ) );
+			computeBounds( region );
+			regionList.add( region );
+		}
+
+		// Trace, simplify and measure each region.
+		final QualityMeasure measure = qualityMeasure( qualityImage );
+		final List< Spot >[] spotsPerRegion = new List[ regionList.size() ];
+		processInParallel( regionList.size(), numThreads, i -> spotsPerRegion[ i ] = maskToSpots( regionList.get( i ), labeling, interval, calibration, simplify, measure ) );
+
+		final List< Spot > spots = new ArrayList<>( regionList.size() );
+		for ( final List< Spot > s : spotsPerRegion )
+			spots.addAll( s );
+		return spots;
+	}
+
+	/**
+	 * Creates spots <b>with ROIs</b> from a <b>2D</b> label image, without
+	 * building a labeling. The label values do not need to be contiguous, and
+	 * can be sparse and large: memory usage is proportional to the number of
+	 * labels, not to the largest label value. The label value is stored in
+	 * the {@link #LABEL_ID} feature of each spot.
+	 * <p>
+	 * The quality value is read from a secondary image, by taking the max
+	 * value in each ROI. If this image is <code>null</code>, the quality is
+	 * the ROI area in pixels.
+	 * 
+	 * @param <R>
+	 *            the type of the label image.
+	 * @param <S>
+	 *            the type of the quality image. Must be real, scalar.
+	 * @param labels
+	 *            the label image, must be zero-min and 2D. Pixels with a
+	 *            value of 0 or less are background.
+	 * @param interval
+	 *            the interval, used to reposition the spots from the zero-min
+	 *            label image to the proper coordinates.
+	 * @param calibration
+	 *            the physical calibration.
+	 * @param simplify
+	 *            if <code>true</code> the polygon will be post-processed to be
+	 *            smoother and contain less points.
+	 * @param numThreads
+	 *            how many threads to use for multithreaded computation.
+	 * @param qualityImage
+	 *            the image in which to read the quality value, zero-min and
+	 *            over the same interval as the label image. Can be
+	 *            <code>null</code>.
+	 * @return a list of spots, with ROI.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < R extends IntegerType< R >, S extends NumericType< S > > List< Spot > fromLabelImageWithROI(
+			final RandomAccessibleInterval< R > labels,
+			final Interval interval,
+			final double[] calibration,
+			final boolean simplify,
+			final int numThreads,
+			final RandomAccessibleInterval< S > qualityImage )
+	{
+		if ( labels.numDimensions() != 2 )
+			throw new IllegalArgumentException( "Can only process 2D images with this method, but got " + labels.numDimensions() + "D." );
+
+		// One pass to get the bounding box of each label.
+		final LabelRegionStatistics stats = LabelRegionStatistics.compute( labels, null, numThreads );
+
+		// Trace, simplify and measure each label in its bounding box.
+		final QualityMeasure measure = qualityMeasure( qualityImage );
+		final List< Spot >[] spotsPerLabel = new List[ stats.size() ];
+		processInParallel( stats.size(), numThreads, i -> {
+			final long label = stats.label( i );
+			final Interval bbox = new FinalInterval(
+					new long[] { stats.min( i, 0 ), stats.min( i, 1 ) },
+					new long[] { stats.max( i, 0 ), stats.max( i, 1 ) } );
+			final Converter< R, BitType > converter = ( a, b ) -> b.set( a.getIntegerLong() == label );
+			final RandomAccessibleInterval< BitType > mask = Converters.convertRAI( Views.interval( labels, bbox ), converter, new BitType() );
+			final List< Spot > s = maskToSpots( mask, labels, interval, calibration, simplify, measure );
+			for ( final Spot spot : s )
+				spot.putFeature( LABEL_ID, Double.valueOf( label ) );
+			spotsPerLabel[ i ] = s;
+		} );
+
+		final List< Spot > spots = new ArrayList<>( stats.size() );
+		for ( final List< Spot > s : spotsPerLabel )
+			spots.addAll( s );
+		return spots;
+	}
+
+	/**
+	 * Forces the computation of the bounds of a label region. Label regions
+	 * compute their bounds lazily, on the first call to a bounds method, from
+	 * state shared by all the regions of a labeling. This update is not
+	 * thread-safe, so it must be done for each region before the regions are
+	 * processed in parallel. After that, the regions are only read.
+	 */
+	private static final void computeBounds( final LabelRegion< ? > region )
+	{
+		region.min( 0 );
+	}
 
-			polygons.addAll( pp );
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static final < S extends NumericType< S > > QualityMeasure qualityMeasure( final RandomAccessibleInterval< S > qualityImage )
+	{
+		if ( null == qualityImage )
+			return null;
+		if ( Util.getTypeFromInterval( qualityImage ) instanceof RealType )
+			return new RealQualityMeasure( ( RandomAccessibleInterval ) qualityImage );
+		return new ImagePlusQualityMeasure( qualityImage );
+	}
+
+	/**
+	 * Runs a job for each item index, pulling indices from a shared counter
+	 * on several threads.
+	 */
+	private static final void processInParallel( final int nItems, final int numThreads, final IntConsumer job )
+	{
+		final AtomicInteger next = new AtomicInteger( 0 );
+		final Runnable task = () -> {
+			int i;
+			while ( ( i = next.getAndIncrement() ) < nItems )
+				job.accept( i );
+		};
+
+		final int nTasks = Math.max( 1, Math.min( numThreads, nItems ) );
+		if ( nTasks == 1 )
+		{
+			task.run();
+			return;
 		}
 
-		// Quality image.
-		final List< Spot > spots = new ArrayList<>( polygons.size() );
-		final ImagePlus qualityImp = ( null == qualityImage )
-				? null
-				: ImageJFunctions.wrap( qualityImage, "QualityImage" );
+		final ExecutorService executorService = Threads.newFixedThreadPool( nTasks );
+		final List< Future< ? > > futures = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+			futures.add( executorService.submit( task ) );
+		executorService.shutdown();
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( "Problem during parallel processing: " + e.getMessage(), e );
+		}
+	}
 
-		// Simplify them and compute a quality.
+	private static final < B extends BooleanType< B > > List< Spot > maskToSpots(
+			final RandomAccessibleInterval< B > region,
+			final Interval labeling,
+			final Interval interval,
+			final double[] calibration,
+			final boolean simplify,
+			final QualityMeasure measure )
+	{
+		// Analyze in zero-min region.
+		final List< Polygon > polygons = maskToPolygons( Views.zeroMin( region ) );
+		final List< Spot > spots = new ArrayList<>( polygons.size() );
 		for ( final Polygon polygon : polygons )
 		{
+			// Translate back to interval coords.
+			polygon.translate( ( int ) region.min( 0 ), ( int ) region.min( 1 ) );
 			final PolygonRoi roi = new PolygonRoi( polygon, PolygonRoi.POLYGON );
 
 			// Create Spot ROI.
@@ -513,22 +948,32 @@ public class MaskUtils
 			else
 				fRoi = roi;
 
-			// Don't include ROIs that have been shrunk to < 1 pixel.
-			if ( fRoi.getNCoordinates() < 3 || fRoi.getStatistics().area <= 0. )
+			if ( fRoi.getNCoordinates() < 3 )
 				continue;
 
-			// Measure quality.
-			final double quality;
-			if ( null == qualityImp )
+			// Pixel centers are at half-integer positions in polygon coords.
+			final FloatPolygon fp = fRoi.getFloatPolygon();
+			final double[] xc = new double[ fp.npoints ];
+			final double[] yc = new double[ fp.npoints ];
+			for ( int i = 0; i < fp.npoints; i++ )
 			{
-				quality = fRoi.getStatistics().area;
-			}
-			else
-			{
-				qualityImp.setRoi( fRoi );
-				quality = qualityImp.getStatistics( Measurements.MIN_MAX ).max;
+				xc[ i ] = fp.xpoints[ i ] - 0.5;
+				yc[ i ] = fp.ypoints[ i ] - 0.5;
 			}
 
+			// Don't include ROIs that have been shrunk to < 1 pixel.
+			final long[] area = new long[ 1 ];
+			PolygonScanline.forEachSpan( xc, yc,
+					labeling.min( 0 ), labeling.max( 0 ), labeling.min( 1 ), labeling.max( 1 ),
+					( y, xmin, xmax ) -> area[ 0 ] += xmax - xmin + 1 );
+			if ( area[ 0 ] <= 0 )
+				continue;
+
+			// Measure quality.
+			final double quality = ( null == measure )
+					? area[ 0 ]
+					: measure.max( fRoi, xc, yc );
+
 			final Polygon fPolygon = fRoi.getPolygon();
 			final double[] xpoly = new double[ fPolygon.npoints ];
 			final double[] ypoly = new double[ fPolygon.npoints ];
@@ -543,6 +988,89 @@ public class MaskUtils
 		return spots;
 	}
 
+	/**
+	 * Measures the max value of a quality image inside a polygon.
+	 */
+	private static interface QualityMeasure
+	{
+		/**
+		 * Returns the max quality inside the polygon.
+		 * 
+		 * @param roi
+		 *            the polygon as an ImageJ ROI.
+		 * @param xc
+		 *            the X coordinates of the polygon, with pixel centers on
+		 *            integer positions.
+		 * @param yc
+		 *            the Y coordinates of the polygon, with pixel centers on
+		 *            integer positions.
+		 * @return the max quality.
+		 */
+		public double max( PolygonRoi roi, double[] xc, double[] yc );
+	}
+
+	/**
+	 * Reads the quality of real images directly, by scanline rasterization.
+	 */
+	private static final class RealQualityMeasure< S extends RealType< S > > implements QualityMeasure
+	{
+
+		private final RandomAccessibleInterval< S > qualityImage;
+
+		private final ThreadLocal< RandomAccess< S > > ra;
+
+		private RealQualityMeasure( final RandomAccessibleInterval< S > qualityImage )
+		{
+			this.qualityImage = qualityImage;
+			this.ra = ThreadLocal.withInitial( () -> qualityImage.randomAccess( qualityImage ) );
+		}
+
+		@Override
+		public double max( final PolygonRoi roi, final double[] xc, final double[] yc )
+		{
+			final RandomAccess< S > access = ra.get();
+			final double[] max = new double[] { Double.NEGATIVE_INFINITY };
+			PolygonScanline.forEachSpan( xc, yc,
+					qualityImage.min( 0 ), qualityImage.max( 0 ), qualityImage.min( 1 ), qualityImage.max( 1 ),
+					( y, xmin, xmax ) -> {
+						access.setPosition( y, 1 );
+						access.setPosition( xmin, 0 );
+						for ( long x = xmin; x <= xmax; x++ )
+						{
+							final double v = access.get().getRealDouble();
+							if ( v > max[ 0 ] )
+								max[ 0 ] = v;
+							access.fwd( 0 );
+						}
+					} );
+			return max[ 0 ];
+		}
+	}
+
+	/**
+	 * Falls back on ImageJ for non-real quality images. The ROI is set on the
+	 * image to measure it, so each thread wraps the quality image in its own
+	 * ImagePlus.
+	 */
+	private static final class ImagePlusQualityMeasure implements QualityMeasure
+	{
+
+		private final ThreadLocal< ImagePlus > qualityImp;
+
+		private < S extends NumericType< S > > ImagePlusQualityMeasure( final RandomAccessibleInterval< S > qualityImage )
+		{
+			this.qualityImp = ThreadLocal.withInitial( () -> ImageJFunctions.wrap( qualityImage, "QualityImage" ) );
+		}
+
+		@Override
+		public double max( final PolygonRoi roi, final double[] xc, final double[] yc )
+		{
+			final ImagePlus imp = qualityImp.get();
+			imp.setRoi( roi );
+			return imp.getStatistics( Measurements.MIN_MAX ).max;
+		}
+	}
+
 	private static final double distanceSquaredBetweenPoints( final double vx, final double vy, final double wx, final double wy )
 	{
 		final double deltax = ( vx - wx );
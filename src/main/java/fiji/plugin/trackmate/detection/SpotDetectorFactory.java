@@ -32,6 +32,15 @@ import net.imglib2.type.numeric.RealType;
  * These classes are able to configure a {@link SpotDetector} to operate on a
  * single time-point of the target <code>ImgPlus</code>.
  * 
+ * <p>
+ * When the source image is a virtual stack, TrackMate reads the frames in
+ * memory ahead of detection. Each of these frames is then processed by a
+ * {@link #copy()} of the factory, targeted on an <code>ImgPlus</code> that
+ * has no time axis, and possibly no channel axis if only the target channel
+ * was read. The detector is then requested for frame 0. Factories must
+ * therefore not assume that the target image has the time and channel axes
+ * of the source image.
+ * 
  * @author Jean-Yves Tinevez
  *
  * @param <T>
@@ -55,4 +64,23 @@ public interface SpotDetectorFactory< T extends RealType< T > & NativeType< T >
 	 *            the frame index in the source image to operate on
 	 */
 	public SpotDetector< T > getDetector( final Interval interval, int frame );
+
+	/**
+	 * Returns the margin, in physical units, that must be added around a
+	 * block of the detection interval so that the detectors created by this
+	 * factory find the same spots in this block as when they operate on the
+	 * whole interval. This is used to split a frame into several blocks that
+	 * can be processed concurrently.
+	 * <p>
+	 * The default returns {@link Double#NaN}, meaning that the detectors of
+	 * this factory cannot operate on blocks (for instance because they
+	 * segment objects that can span several blocks, or because they normalize
+	 * the image).
+	 * 
+	 * @return the block margin in physical units, or {@link Double#NaN}.
+	 */
+	public default double getBlockHalo()
+	{
+		return Double.NaN;
+	}
 }
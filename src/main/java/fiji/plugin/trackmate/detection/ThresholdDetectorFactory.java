@@ -32,6 +32,7 @@ import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -47,10 +48,13 @@ import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
 import fiji.plugin.trackmate.gui.components.detector.ThresholdDetectorConfigurationPanel;
 import fiji.plugin.trackmate.util.TMUtils;
 import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 
 @Plugin( type = SpotDetectorFactory.class )
 public class ThresholdDetectorFactory< T extends RealType< T > & NativeType< T >> implements SpotDetectorFactory< T >
@@ -78,12 +82,25 @@ public class ThresholdDetectorFactory< T extends RealType< T > & NativeType< T >
 			+ "region volume."
 			+ "<p>"
 			+ "The spot quality stores the object area or volume in pixels."
+			+ "<p>"
+			+ "Optionally, a single threshold can be computed with Otsu's method "
+			+ "over all the frames, so that the segmentation does not vary from "
+			+ "frame to frame because of the threshold."
 			+ "</html>";
 
 	public static final String KEY_SIMPLIFY_CONTOURS = "SIMPLIFY_CONTOURS";
 
 	public static final String KEY_INTENSITY_THRESHOLD = "INTENSITY_THRESHOLD";
 
+	/**
+	 * The key of the optional parameter that sets whether the intensity
+	 * threshold is computed automatically with Otsu's method, over all the
+	 * frames of the target channel. If <code>true</code>, the
+	 * {@link #KEY_INTENSITY_THRESHOLD} value is ignored and the same
+	 * threshold is used for all frames. Expects {@link Boolean}.
+	 */
+	public static final String KEY_GLOBAL_OTSU_THRESHOLD = "GLOBAL_OTSU_THRESHOLD";
+
 	/*
 	 * FIELDS
 	 */
@@ -95,6 +112,25 @@ public class ThresholdDetectorFactory< T extends RealType< T > & NativeType< T >
 
 	protected String errorMessage;
 
+	/**
+	 * The threshold computed over all the frames, if the
+	 * {@link #KEY_GLOBAL_OTSU_THRESHOLD} parameter is set. NaN otherwise.
+	 */
+	protected double globalThreshold = Double.NaN;
+
+	/**
+	 * The dimensions of a single frame of the image the global threshold was
+	 * computed on.
+	 */
+	private long[] globalThresholdFrameDims;
+
+	/**
+	 * If <code>true</code>, this factory is a copy of a factory that computed
+	 * the global threshold, and can keep it when targeted on a single frame
+	 * of the same image.
+	 */
+	private boolean inheritedGlobalThreshold = false;
+
 	/*
 	 * METHODS
 	 */
@@ -104,13 +140,72 @@ public class ThresholdDetectorFactory< T extends RealType< T > & NativeType< T >
 	{
 		this.img = img;
 		this.settings = settings;
-		return checkSettings( settings );
+		final boolean inherited = inheritedGlobalThreshold;
+		inheritedGlobalThreshold = false;
+		if ( !checkSettings( settings ) )
+			return false;
+
+		if ( !Boolean.TRUE.equals( settings.get( KEY_GLOBAL_OTSU_THRESHOLD ) ) )
+		{
+			globalThreshold = Double.NaN;
+			return true;
+		}
+
+		/*
+		 * Copies targeted on a single frame read ahead of detection keep the
+		 * threshold computed on all frames.
+		 */
+		final long[] frameDims = frameDimensions( img );
+		if ( inherited
+				&& !Double.isNaN( globalThreshold )
+				&& img.dimensionIndex( Axes.TIME ) < 0
+				&& Arrays.equals( frameDims, globalThresholdFrameDims ) )
+			return true;
+
+		globalThreshold = MaskUtils.otsuThreshold( channelImg(), Runtime.getRuntime().availableProcessors() );
+		globalThresholdFrameDims = frameDims;
+		return true;
+	}
+
+	/**
+	 * Returns the threshold computed over all the frames if the
+	 * {@link #KEY_GLOBAL_OTSU_THRESHOLD} parameter is set, or NaN otherwise.
+	 *
+	 * @return the global threshold.
+	 */
+	public double getGlobalThreshold()
+	{
+		return globalThreshold;
+	}
+
+	/**
+	 * Returns the target channel of the image, with all its frames.
+	 */
+	private RandomAccessibleInterval< T > channelImg()
+	{
+		final int cDim = img.dimensionIndex( Axes.CHANNEL );
+		if ( cDim < 0 )
+			return img;
+		final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
+		return Views.hyperSlice( img, cDim, channel );
 	}
-	
+
+	private static long[] frameDimensions( final ImgPlus< ? > img )
+	{
+		final int timeDim = img.dimensionIndex( Axes.TIME );
+		final long[] dims = new long[ img.numDimensions() - ( ( timeDim < 0 ) ? 0 : 1 ) ];
+		for ( int d = 0, i = 0; d < img.numDimensions(); d++ )
+			if ( d != timeDim )
+				dims[ i++ ] = img.dimension( d );
+		return dims;
+	}
+
 	@Override
 	public SpotDetector< T > getDetector( final Interval interval, final int frame )
 	{
-		final double intensityThreshold = ( Double ) settings.get( KEY_INTENSITY_THRESHOLD );
+		final double intensityThreshold = Double.isNaN( globalThreshold )
+				? ( Double ) settings.get( KEY_INTENSITY_THRESHOLD )
+				: globalThreshold;
 		final boolean simplifyContours = ( Boolean ) settings.get( KEY_SIMPLIFY_CONTOURS );
 		final double[] calibration = TMUtils.getSpatialCalibration( img );
 		final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
@@ -152,11 +247,15 @@ public class ThresholdDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok & checkParameter( lSettings, KEY_TARGET_CHANNEL, Integer.class, errorHolder );
 		ok = ok & checkParameter( lSettings, KEY_INTENSITY_THRESHOLD, Double.class, errorHolder );
 		ok = ok & checkParameter( lSettings, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		if ( lSettings.containsKey( KEY_GLOBAL_OTSU_THRESHOLD ) )
+			ok = ok & checkParameter( lSettings, KEY_GLOBAL_OTSU_THRESHOLD, Boolean.class, errorHolder );
 		final List< String > mandatoryKeys = new ArrayList<>();
 		mandatoryKeys.add( KEY_TARGET_CHANNEL );
 		mandatoryKeys.add( KEY_INTENSITY_THRESHOLD );
 		mandatoryKeys.add( KEY_SIMPLIFY_CONTOURS );
-		ok = ok & checkMapKeys( lSettings, mandatoryKeys, null, errorHolder );
+		final List< String > optionalKeys = new ArrayList<>();
+		optionalKeys.add( KEY_GLOBAL_OTSU_THRESHOLD );
+		ok = ok & checkMapKeys( lSettings, mandatoryKeys, optionalKeys, errorHolder );
 		if ( !ok )
 		{
 			errorMessage = errorHolder.toString();
@@ -168,9 +267,11 @@ public class ThresholdDetectorFactory< T extends RealType< T > & NativeType< T >
 	public boolean marshall( final Map< String, Object > lSettings, final Element element )
 	{
 		final StringBuilder errorHolder = new StringBuilder();
-		final boolean ok = writeTargetChannel( lSettings, element, errorHolder )
+		boolean ok = writeTargetChannel( lSettings, element, errorHolder )
 				&& writeAttribute( lSettings, element, KEY_INTENSITY_THRESHOLD, Double.class, errorHolder )
 				&& writeAttribute( lSettings, element, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		if ( lSettings.containsKey( KEY_GLOBAL_OTSU_THRESHOLD ) )
+			ok = ok && writeAttribute( lSettings, element, KEY_GLOBAL_OTSU_THRESHOLD, Boolean.class, errorHolder );
 
 		if ( !ok )
 			errorMessage = errorHolder.toString();
@@ -187,6 +288,8 @@ public class ThresholdDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok & readIntegerAttribute( element, lSettings, KEY_TARGET_CHANNEL, errorHolder );
 		ok = ok & readDoubleAttribute( element, lSettings, KEY_INTENSITY_THRESHOLD, errorHolder );
 		ok = ok & readBooleanAttribute( element, lSettings, KEY_SIMPLIFY_CONTOURS, errorHolder );
+		if ( element.getAttributeValue( KEY_GLOBAL_OTSU_THRESHOLD ) != null )
+			ok = ok & readBooleanAttribute( element, lSettings, KEY_GLOBAL_OTSU_THRESHOLD, errorHolder );
 		if ( !ok )
 		{
 			errorMessage = errorHolder.toString();
@@ -232,6 +335,10 @@ public class ThresholdDetectorFactory< T extends RealType< T > & NativeType< T >
 	@Override
 	public ThresholdDetectorFactory< T > copy()
 	{
-		return new ThresholdDetectorFactory<>();
+		final ThresholdDetectorFactory< T > copy = new ThresholdDetectorFactory<>();
+		copy.globalThreshold = globalThreshold;
+		copy.globalThresholdFrameDims = globalThresholdFrameDims;
+		copy.inheritedGlobalThreshold = !Double.isNaN( globalThreshold );
+		return copy;
 	}
 }
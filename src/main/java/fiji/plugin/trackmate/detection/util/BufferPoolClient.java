@@ -0,0 +1,42 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+/**
+ * Interface for detectors that can borrow their intermediate images from a
+ * {@link DetectionBufferPool} instead of allocating them.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface BufferPoolClient
+{
+
+	/**
+	 * Sets the pool to borrow buffers from. If <code>null</code>, buffers are
+	 * allocated as usual.
+	 *
+	 * @param pool
+	 *            the buffer pool.
+	 */
+	public void setBufferPool( DetectionBufferPool pool );
+
+}
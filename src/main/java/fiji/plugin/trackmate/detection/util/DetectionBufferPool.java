@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.Dimensions;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * A pool of image buffers shared by the detectors working on the frames of a
+ * single detection run.
+ * <p>
+ * Detectors that process one frame at a time allocate several intermediate
+ * images of the same size for each frame (float copy of the source,
+ * median-filtered image, filtered images, Hessian components...). When many
+ * frames are processed concurrently this produces a lot of short-lived large
+ * arrays. This pool lets detectors borrow such buffers and return them when
+ * they are done, so that they can be reused for the next frame.
+ * <p>
+ * Buffers are keyed by their dimensions and pixel type. A borrowed buffer is
+ * <b>not</b> cleared: its content is whatever was left by the previous user.
+ * Callers must overwrite all the pixels of the buffers they borrow.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class DetectionBufferPool
+{
+
+	private final Map< BufferKey, Deque< Img< ? > > > available = new ConcurrentHashMap<>();
+
+	/** Buffers created by this pool, and their size in bytes. */
+	private final Map< Img< ? >, Long > owned = new ConcurrentHashMap<>();
+
+	/** Buffers currently lent to a detector. */
+	private final Set< Img< ? > > borrowed = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger nAllocations = new AtomicInteger( 0 );
+
+	private final AtomicInteger nReuses = new AtomicInteger( 0 );
+
+	private final AtomicLong allocatedBytes = new AtomicLong( 0l );
+
+	private final AtomicLong borrowedBytes = new AtomicLong( 0l );
+
+	private final AtomicLong peakBorrowedBytes = new AtomicLong( 0l );
+
+	/**
+	 * Returns a buffer with the specified dimensions and pixel type. If a
+	 * matching buffer was returned to the pool, it is reused. Otherwise a new
+	 * one is created. The content of the buffer is undefined.
+	 *
+	 * @param <R>
+	 *            the pixel type of the buffer.
+	 * @param dimensions
+	 *            the dimensions of the buffer.
+	 * @param type
+	 *            an instance of the pixel type of the buffer.
+	 * @return a buffer, that should be given back to the pool with
+	 *         {@link #release(Img)} when not needed anymore.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public < R extends RealType< R > & NativeType< R > > Img< R > borrow( final Dimensions dimensions, final R type )
+	{
+		final BufferKey key = new BufferKey( Intervals.dimensionsAsLongArray( dimensions ), type.getClass() );
+		final Deque< Img< ? > > queue = available.computeIfAbsent( key, k -> new ConcurrentLinkedDeque<>() );
+		Img< R > buffer = ( Img< R > ) queue.pollFirst();
+		final long bytes;
+		if ( buffer == null )
+		{
+			buffer = Util.getArrayOrCellImgFactory( dimensions, type ).create( dimensions );
+			bytes = ( Intervals.numElements( dimensions ) * type.getBitsPerPixel() ) / 8;
+			owned.put( buffer, Long.valueOf( bytes ) );
+			allocatedBytes.addAndGet( bytes );
+			nAllocations.incrementAndGet();
+		}
+		else
+		{
+			bytes = owned.get( buffer ).longValue();
+			nReuses.incrementAndGet();
+		}
+		borrowed.add( buffer );
+		final long inUse = borrowedBytes.addAndGet( bytes );
+		peakBorrowedBytes.accumulateAndGet( inUse, Math::max );
+		return buffer;
+	}
+
+	/**
+	 * Gives back a buffer to the pool, so that it can be reused by another
+	 * caller. Images that were not created by this pool, or that are not
+	 * currently borrowed, are ignored.
+	 *
+	 * @param buffer
+	 *            the buffer to release. Can be <code>null</code>.
+	 */
+	public void release( final Img< ? > buffer )
+	{
+		if ( buffer == null || !borrowed.remove( buffer ) )
+			return;
+
+		final long bytes = owned.get( buffer ).longValue();
+		borrowedBytes.addAndGet( -bytes );
+		final BufferKey key = new BufferKey( Intervals.dimensionsAsLongArray( buffer ), buffer.firstElement().getClass() );
+		available.computeIfAbsent( key, k -> new ConcurrentLinkedDeque<>() ).offerFirst( buffer );
+	}
+
+	/**
+	 * Drops all the buffers held by this pool, so that they can be garbage
+	 * collected. Buffers currently borrowed are forgotten too.
+	 */
+	public void clear()
+	{
+		available.clear();
+		borrowed.clear();
+		owned.clear();
+		borrowedBytes.set( 0l );
+	}
+
+	/**
+	 * Returns the total amount of memory, in bytes, allocated by this pool.
+	 *
+	 * @return the allocated memory in bytes.
+	 */
+	public long getAllocatedBytes()
+	{
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * Returns the amount of memory, in bytes, currently lent to callers.
+	 *
+	 * @return the borrowed memory in bytes.
+	 */
+	public long getBorrowedBytes()
+	{
+		return borrowedBytes.get();
+	}
+
+	/**
+	 * Returns the maximal amount of memory, in bytes, that was lent to callers
+	 * at the same time.
+	 *
+	 * @return the peak borrowed memory in bytes.
+	 */
+	public long getPeakBorrowedBytes()
+	{
+		return peakBorrowedBytes.get();
+	}
+
+	/**
+	 * Returns the number of buffers created by this pool.
+	 *
+	 * @return the number of allocations.
+	 */
+	public int getNAllocations()
+	{
+		return nAllocations.get();
+	}
+
+	/**
+	 * Returns the number of times a buffer was reused instead of allocated.
+	 *
+	 * @return the number of reuses.
+	 */
+	public int getNReuses()
+	{
+		return nReuses.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "Buffer pool: %d buffers allocated (%.1f MB), %d reuses, peak memory in use %.1f MB.",
+				getNAllocations(), getAllocatedBytes() / 1024. / 1024.,
+				getNReuses(), getPeakBorrowedBytes() / 1024. / 1024. );
+	}
+
+	private static final class BufferKey
+	{
+
+		private final long[] dims;
+
+		private final Class< ? > type;
+
+		private final int hash;
+
+		private BufferKey( final long[] dims, final Class< ? > type )
+		{
+			this.dims = dims;
+			this.type = type;
+			this.hash = 31 * Arrays.hashCode( dims ) + type.hashCode();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof BufferKey ) )
+				return false;
+			final BufferKey other = ( BufferKey ) obj;
+			return type.equals( other.type ) && Arrays.equals( dims, other.dims );
+		}
+	}
+}
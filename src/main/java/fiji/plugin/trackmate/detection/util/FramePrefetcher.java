@@ -0,0 +1,309 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.util.Threads;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImgPlusViews;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * Reads the frames of a source image in memory ahead of the detection.
+ * <p>
+ * When the source image is backed by a virtual stack, reading a frame
+ * requires disk I/O and decoding. Instead of having each detection worker
+ * block on this, a few dedicated I/O threads copy upcoming frames in memory
+ * and push them in a bounded queue, from which the detection workers take
+ * them. The number of frames held in memory at once is bounded by the queue
+ * depth.
+ * <p>
+ * The frames are returned as {@link ImgPlus} with all the axes of the source
+ * image but time, so that detector factories can be targeted on them and
+ * asked for a detector for frame 0. If a target channel is specified, only
+ * this channel is read and the channel axis is removed as well.
+ * <p>
+ * Detection on prefetched frames changes how detector factories are used:
+ * for each frame, TrackMate makes a {@code copy()} of the factory, calls
+ * {@code setTarget()} on the copy with the prefetched frame and the detector
+ * settings, then asks it for a detector on frame 0.
+ * Factories must therefore support being copied and targeted on an image
+ * without time axis, and without channel axis. Factories that slice the
+ * target channel only when the image has a channel axis, like the built-in
+ * ones, need no change.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <T>
+ *            the pixel type of the source image.
+ */
+public class FramePrefetcher< T extends RealType< T > & NativeType< T > > implements Cancelable
+{
+
+	/**
+	 * A frame read in memory.
+	 */
+	public static class PrefetchedFrame< T >
+	{
+
+		/** The index of the frame in the source image, 0-based. */
+		public final int frame;
+
+		/** The frame content, without time axis. */
+		public final ImgPlus< T > img;
+
+		/** Error message if the frame could not be read. */
+		public final String errorMessage;
+
+		/** The error thrown while reading the frame, if any. */
+		public final Throwable error;
+
+		private PrefetchedFrame( final int frame, final ImgPlus< T > img, final String errorMessage, final Throwable error )
+		{
+			this.frame = frame;
+			this.img = img;
+			this.errorMessage = errorMessage;
+			this.error = error;
+		}
+	}
+
+	private final ImgPlus< T > source;
+
+	private final int tend;
+
+	private final int channel;
+
+	private final int nIOThreads;
+
+	private final Semaphore slots;
+
+	private final BlockingQueue< PrefetchedFrame< T > > queue = new LinkedBlockingQueue<>();
+
+	private final AtomicInteger nextFrame;
+
+	private final int queueDepth;
+
+	private ExecutorService ioService;
+
+	private volatile boolean isCanceled;
+
+	private volatile String cancelReason;
+
+	/**
+	 * Creates a prefetcher for the specified frames of the source image.
+	 * 
+	 * @param source
+	 *            the source image. Must have a time axis.
+	 * @param tstart
+	 *            the first frame to read, 0-based.
+	 * @param tend
+	 *            the last frame to read, 0-based, inclusive.
+	 * @param channel
+	 *            the channel to read, 0-based, or -1 to read all the
+	 *            channels. Ignored if the source has no channel axis.
+	 * @param queueDepth
+	 *            the maximal number of frames held in memory and not yet
+	 *            taken by detection workers.
+	 * @param nIOThreads
+	 *            the number of threads used to read frames.
+	 */
+	public FramePrefetcher( final ImgPlus< T > source, final int tstart, final int tend, final int channel, final int queueDepth, final int nIOThreads )
+	{
+		this.source = source;
+		this.tend = tend;
+		this.channel = channel;
+		this.queueDepth = Math.max( 1, queueDepth );
+		this.nIOThreads = Math.max( 1, nIOThreads );
+		this.slots = new Semaphore( this.queueDepth );
+		this.nextFrame = new AtomicInteger( tstart );
+	}
+
+	/**
+	 * Returns whether the specified image would benefit from prefetching,
+	 * that is, if it is backed by a virtual stack and has several frames.
+	 * 
+	 * @param imp
+	 *            the image.
+	 * @return <code>true</code> if frames should be prefetched.
+	 */
+	public static boolean shouldPrefetch( final ImagePlus imp )
+	{
+		return imp != null
+				&& imp.getStack().isVirtual()
+				&& imp.getNFrames() > 1;
+	}
+
+	/**
+	 * Computes a queue depth so that the prefetched frames do not use more
+	 * than the specified fraction of the heap that is currently available.
+	 * 
+	 * @param source
+	 *            the source image.
+	 * @param heapFraction
+	 *            the fraction of the available heap that can be used.
+	 * @param maxDepth
+	 *            the maximal depth to return.
+	 * @return a queue depth, at least 1.
+	 */
+	public static int queueDepthFromHeap( final ImgPlus< ? extends RealType< ? > > source, final double heapFraction, final int maxDepth )
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		final long available = runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+		final int tindex = source.dimensionIndex( Axes.TIME );
+		final long nPixels = Intervals.numElements( source ) / ( ( tindex < 0 ) ? 1 : source.dimension( tindex ) );
+		final long frameBytes = Math.max( 1l, nPixels * source.firstElement().getBitsPerPixel() / 8 );
+		final long depth = ( long ) ( heapFraction * available / frameBytes );
+		return ( int ) Math.max( 1l, Math.min( maxDepth, depth ) );
+	}
+
+	/**
+	 * Starts reading frames in the background.
+	 */
+	public void start()
+	{
+		ioService = Threads.newFixedThreadPool( nIOThreads );
+		for ( int i = 0; i < nIOThreads; i++ )
+			ioService.submit( this::readFrames );
+		ioService.shutdown();
+	}
+
+	private void readFrames()
+	{
+		while ( !isCanceled )
+		{
+			try
+			{
+				slots.acquire();
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+
+			final int frame = nextFrame.getAndIncrement();
+			if ( frame > tend || isCanceled )
+			{
+				slots.release();
+				return;
+			}
+
+			try
+			{
+				queue.add( new PrefetchedFrame<>( frame, copyFrame( frame ), null, null ) );
+			}
+			catch ( final Throwable e )
+			{
+				/*
+				 * Errors too must be given to the consumer, otherwise the slot
+				 * of this frame stays empty and take() waits forever.
+				 */
+				e.printStackTrace();
+				queue.add( new PrefetchedFrame<>( frame, null, "Could not read frame " + frame + ": " + e.getMessage(), e ) );
+			}
+		}
+	}
+
+	private ImgPlus< T > copyFrame( final int frame )
+	{
+		final int tindex = source.dimensionIndex( Axes.TIME );
+		ImgPlus< T > view = ( tindex < 0 ) ? source : ImgPlusViews.hyperSlice( source, tindex, frame );
+		final int cindex = view.dimensionIndex( Axes.CHANNEL );
+		if ( channel >= 0 && cindex >= 0 )
+			view = ImgPlusViews.hyperSlice( view, cindex, channel );
+		final T type = source.firstElement().createVariable();
+		final Img< T > copy = Util.getArrayOrCellImgFactory( view, type ).create( view );
+		LoopBuilder.setImages( view, copy ).multiThreaded( false ).forEachPixel( ( i, o ) -> o.set( i ) );
+		return new ImgPlus<>( copy, view );
+	}
+
+	/**
+	 * Returns the next frame read in memory, waiting for it if needed. Each
+	 * frame is returned exactly once, but not necessarily in order. Taking a
+	 * frame frees a slot in the queue, so that another frame can be read.
+	 * 
+	 * @return the next frame, or <code>null</code> if this prefetcher was
+	 *         canceled.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public PrefetchedFrame< T > take() throws InterruptedException
+	{
+		while ( !isCanceled )
+		{
+			final PrefetchedFrame< T > prefetched = queue.poll( 100, TimeUnit.MILLISECONDS );
+			if ( prefetched != null )
+			{
+				slots.release();
+				return prefetched;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the maximal number of frames held in memory.
+	 * 
+	 * @return the queue depth.
+	 */
+	public int getQueueDepth()
+	{
+		return queueDepth;
+	}
+
+	// --- org.scijava.Cancelable methods ---
+
+	@Override
+	public boolean isCanceled()
+	{
+		return isCanceled;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason;
+		isCanceled = true;
+		if ( ioService != null )
+			ioService.shutdownNow();
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+}
@@ -0,0 +1,245 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+
+/**
+ * Plans the regions to process when detecting in several, possibly
+ * overlapping, boxes of the same image.
+ * <p>
+ * Each box is grown by a halo that accounts for the extent of the filters
+ * used by the detector. Boxes whose grown versions overlap are merged, until
+ * all the regions are disjoint. Each pixel is then filtered at most once, and
+ * regions can be processed independently, in parallel.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class IntervalPlanner
+{
+
+	/**
+	 * A region to process, made of one or several merged boxes.
+	 */
+	public static class Region
+	{
+
+		private final Interval interval;
+
+		private final List< Integer > members;
+
+		private Region( final Interval interval, final List< Integer > members )
+		{
+			this.interval = interval;
+			this.members = members;
+		}
+
+		/**
+		 * Returns the interval to process, including the halo.
+		 * 
+		 * @return the interval.
+		 */
+		public Interval getInterval()
+		{
+			return interval;
+		}
+
+		/**
+		 * Returns the indices of the boxes merged in this region, in the list
+		 * given to the planner.
+		 * 
+		 * @return the box indices.
+		 */
+		public List< Integer > getMembers()
+		{
+			return members;
+		}
+	}
+
+	private IntervalPlanner()
+	{}
+
+	/**
+	 * Merges the specified boxes in a minimal set of disjoint regions.
+	 * <p>
+	 * Overlapping regions are found by sorting them along the first dimension
+	 * and sweeping over them, so that only regions that overlap along this
+	 * dimension are compared. All the regions connected by overlaps are then
+	 * merged at once, and the sweep is repeated on the merged regions until
+	 * none overlap. Each sweep is <code>O(n log(n) + k)</code>, with
+	 * <code>k</code> the number of pairs overlapping along the first
+	 * dimension, and there are usually only a couple of sweeps.
+	 * 
+	 * @param boxes
+	 *            the boxes to process. Can be <code>null</code> elements, for
+	 *            boxes that should be skipped.
+	 * @param halo
+	 *            the halo to add around each box, in pixels, for each
+	 *            dimension.
+	 * @param bounds
+	 *            the regions are clipped to this interval.
+	 * @return a new list of regions.
+	 */
+	public static List< Region > plan( final List< ? extends Interval > boxes, final long[] halo, final Interval bounds )
+	{
+		final int n = bounds.numDimensions();
+		List< long[] > mins = new ArrayList<>();
+		List< long[] > maxs = new ArrayList<>();
+		List< List< Integer > > members = new ArrayList<>();
+		for ( int i = 0; i < boxes.size(); i++ )
+		{
+			final Interval box = boxes.get( i );
+			if ( box == null )
+				continue;
+
+			final Interval grown = Intervals.intersect( Intervals.expand( box, halo ), bounds );
+			if ( Intervals.isEmpty( grown ) )
+				continue;
+
+			final List< Integer > m = new ArrayList<>();
+			m.add( Integer.valueOf( i ) );
+			mins.add( Intervals.minAsLongArray( grown ) );
+			maxs.add( Intervals.maxAsLongArray( grown ) );
+			members.add( m );
+		}
+
+		// Merge until no two regions overlap.
+		while ( true )
+		{
+			final int nRegions = mins.size();
+			final int[] parent = new int[ nRegions ];
+			for ( int i = 0; i < nRegions; i++ )
+				parent[ i ] = i;
+
+			final boolean merged = sweep( mins, maxs, n, parent );
+			if ( !merged )
+				break;
+
+			// Replace each group of connected regions by their union.
+			final List< long[] > newMins = new ArrayList<>();
+			final List< long[] > newMaxs = new ArrayList<>();
+			final List< List< Integer > > newMembers = new ArrayList<>();
+			final int[] groupOf = new int[ nRegions ];
+			for ( int i = 0; i < nRegions; i++ )
+			{
+				final int root = find( parent, i );
+				if ( root == i )
+				{
+					groupOf[ i ] = newMins.size();
+					newMins.add( mins.get( i ).clone() );
+					newMaxs.add( maxs.get( i ).clone() );
+					newMembers.add( new ArrayList<>() );
+				}
+			}
+			for ( int i = 0; i < nRegions; i++ )
+			{
+				final int g = groupOf[ find( parent, i ) ];
+				final long[] min = newMins.get( g );
+				final long[] max = newMaxs.get( g );
+				for ( int d = 0; d < n; d++ )
+				{
+					min[ d ] = Math.min( min[ d ], mins.get( i )[ d ] );
+					max[ d ] = Math.max( max[ d ], maxs.get( i )[ d ] );
+				}
+				newMembers.get( g ).addAll( members.get( i ) );
+			}
+			mins = newMins;
+			maxs = newMaxs;
+			members = newMembers;
+		}
+
+		final List< Region > regions = new ArrayList<>( mins.size() );
+		for ( int i = 0; i < mins.size(); i++ )
+		{
+			final List< Integer > m = members.get( i );
+			m.sort( null );
+			regions.add( new Region( new FinalInterval( mins.get( i ), maxs.get( i ) ), m ) );
+		}
+		return regions;
+	}
+
+	/**
+	 * Finds all the pairs of overlapping regions by a sweep along the first
+	 * dimension, and joins them in the specified union-find forest.
+	 * 
+	 * @return <code>true</code> if at least two regions overlap.
+	 */
+	private static boolean sweep( final List< long[] > mins, final List< long[] > maxs, final int n, final int[] parent )
+	{
+		final int nRegions = mins.size();
+		final Integer[] order = new Integer[ nRegions ];
+		for ( int i = 0; i < nRegions; i++ )
+			order[ i ] = Integer.valueOf( i );
+		Arrays.sort( order, Comparator.comparingLong( i -> mins.get( i )[ 0 ] ) );
+
+		boolean merged = false;
+		final List< Integer > active = new ArrayList<>();
+		for ( final Integer i : order )
+		{
+			final long[] min = mins.get( i );
+			final long[] max = maxs.get( i );
+
+			// Drop regions that end before this one starts along X.
+			active.removeIf( j -> maxs.get( j )[ 0 ] < min[ 0 ] );
+			for ( final Integer j : active )
+			{
+				if ( !overlap( min, max, mins.get( j ), maxs.get( j ), n ) )
+					continue;
+
+				final int ri = find( parent, i );
+				final int rj = find( parent, j );
+				if ( ri != rj )
+				{
+					parent[ Math.max( ri, rj ) ] = Math.min( ri, rj );
+					merged = true;
+				}
+			}
+			active.add( i );
+		}
+		return merged;
+	}
+
+	private static boolean overlap( final long[] min1, final long[] max1, final long[] min2, final long[] max2, final int n )
+	{
+		for ( int d = 0; d < n; d++ )
+			if ( min1[ d ] > max2[ d ] || min2[ d ] > max1[ d ] )
+				return false;
+		return true;
+	}
+
+	private static int find( final int[] parent, int i )
+	{
+		while ( parent[ i ] != i )
+		{
+			parent[ i ] = parent[ parent[ i ] ];
+			i = parent[ i ];
+		}
+		return i;
+	}
+}
@@ -0,0 +1,545 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.util.Threads;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Per-label statistics of a label image, computed in a single pass.
+ * <p>
+ * The label image is split in stripes along its last dimension, and each
+ * stripe is scanned by a separate thread that accumulates, for each label,
+ * the number of pixels, the sum of pixel positions, the bounding box and the
+ * max and sum of a quality image, in primitive arrays. The per-thread
+ * accumulators are merged at the end. No {@code ImgLabeling} and no object per
+ * label are created.
+ * <p>
+ * Label values do not have to be contiguous. Sparse and large label values,
+ * as produced by many segmentation tools, are stored in a hash table so that
+ * memory is proportional to the number of labels, not to their max value.
+ * <p>
+ * Pixels with a label value of 0 or less are considered to be background.
+ * Positions are expressed in the coordinates of the label image.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LabelRegionStatistics
+{
+
+	private final int n;
+
+	private final long[] labels;
+
+	private final long[] counts;
+
+	private final long[] sums;
+
+	private final long[] mins;
+
+	private final long[] maxs;
+
+	private final double[] qualityMaxs;
+
+	private final double[] qualitySums;
+
+	private LabelRegionStatistics( final Accumulator acc )
+	{
+		this.n = acc.n;
+		this.labels = acc.labels();
+		Arrays.sort( labels );
+
+		final int nLabels = labels.length;
+		this.counts = new long[ nLabels ];
+		this.sums = new long[ nLabels * n ];
+		this.mins = new long[ nLabels * n ];
+		this.maxs = new long[ nLabels * n ];
+		this.qualityMaxs = new double[ nLabels ];
+		this.qualitySums = new double[ nLabels ];
+		for ( int i = 0; i < nLabels; i++ )
+		{
+			final int slot = acc.slotOf( labels[ i ] );
+			counts[ i ] = acc.counts[ slot ];
+			System.arraycopy( acc.sums, slot * n, sums, i * n, n );
+			System.arraycopy( acc.mins, slot * n, mins, i * n, n );
+			System.arraycopy( acc.maxs, slot * n, maxs, i * n, n );
+			qualityMaxs[ i ] = acc.qualityMaxs[ slot ];
+			qualitySums[ i ] = acc.qualitySums[ slot ];
+		}
+	}
+
+	/**
+	 * Computes the statistics of all the labels in the specified label image.
+	 * 
+	 * @param <R>
+	 *            the type of the label image.
+	 * @param <S>
+	 *            the type of the quality image.
+	 * @param labelImage
+	 *            the label image.
+	 * @param qualityImage
+	 *            the image to read quality values from, over the same interval
+	 *            as the label image. If <code>null</code>, quality statistics
+	 *            are not computed.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new statistics object.
+	 */
+	public static < R extends IntegerType< R >, S extends RealType< S > > LabelRegionStatistics compute(
+			final RandomAccessibleInterval< R > labelImage,
+			final RandomAccessibleInterval< S > qualityImage,
+			final int numThreads )
+	{
+		final int n = labelImage.numDimensions();
+		final int last = n - 1;
+		final int nStripes = ( int ) Math.max( 1, Math.min( numThreads, labelImage.dimension( last ) ) );
+
+		final List< Interval > stripes = new ArrayList<>( nStripes );
+		final long size = labelImage.dimension( last );
+		for ( int i = 0; i < nStripes; i++ )
+		{
+			final long[] min = Intervals.minAsLongArray( labelImage );
+			final long[] max = Intervals.maxAsLongArray( labelImage );
+			min[ last ] = labelImage.min( last ) + i * size / nStripes;
+			max[ last ] = labelImage.min( last ) + ( i + 1 ) * size / nStripes - 1;
+			stripes.add( new FinalInterval( min, max ) );
+		}
+
+		if ( nStripes == 1 )
+			return new LabelRegionStatistics( accumulate( labelImage, qualityImage, stripes.get( 0 ) ) );
+
+		final ExecutorService executorService = Threads.newFixedThreadPool( nStripes );
+		final List< Future< Accumulator > > futures = new ArrayList<>( nStripes );
+		for ( final Interval stripe : stripes )
+			futures.add( executorService.submit( () -> accumulate( labelImage, qualityImage, stripe ) ) );
+		executorService.shutdown();
+
+		try
+		{
+			final Accumulator merged = futures.get( 0 ).get();
+			for ( int i = 1; i < futures.size(); i++ )
+				merged.merge( futures.get( i ).get() );
+			return new LabelRegionStatistics( merged );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( "Problem computing label statistics: " + e.getMessage(), e );
+		}
+	}
+
+	private static < R extends IntegerType< R >, S extends RealType< S > > Accumulator accumulate(
+			final RandomAccessibleInterval< R > labelImage,
+			final RandomAccessibleInterval< S > qualityImage,
+			final Interval stripe )
+	{
+		final int n = labelImage.numDimensions();
+		final Accumulator acc = new Accumulator( n );
+		final long[] pos = new long[ n ];
+		final Cursor< R > cursor = Views.flatIterable( Views.interval( labelImage, stripe ) ).localizingCursor();
+		final Cursor< S > qualityCursor = ( qualityImage == null )
+				? null
+				: Views.flatIterable( Views.interval( qualityImage, stripe ) ).cursor();
+		while ( cursor.hasNext() )
+		{
+			final long label = cursor.next().getIntegerLong();
+			final double quality = ( qualityCursor == null ) ? 0. : qualityCursor.next().getRealDouble();
+			if ( label <= 0 )
+				continue;
+
+			cursor.localize( pos );
+			acc.add( label, pos, quality );
+		}
+		return acc;
+	}
+
+	/**
+	 * Returns the number of labels found in the label image.
+	 * 
+	 * @return the number of labels.
+	 */
+	public int size()
+	{
+		return labels.length;
+	}
+
+	/**
+	 * Returns the label value of the i-th label. Labels are sorted by
+	 * increasing values.
+	 * 
+	 * @param i
+	 *            the label index, from 0 to {@link #size()} - 1.
+	 * @return the label value.
+	 */
+	public long label( final int i )
+	{
+		return labels[ i ];
+	}
+
+	/**
+	 * Returns the number of pixels of the i-th label.
+	 * 
+	 * @param i
+	 *            the label index.
+	 * @return the number of pixels.
+	 */
+	public long count( final int i )
+	{
+		return counts[ i ];
+	}
+
+	/**
+	 * Returns the sum of the pixel positions of the i-th label along the
+	 * specified dimension.
+	 * 
+	 * @param i
+	 *            the label index.
+	 * @param d
+	 *            the dimension.
+	 * @return the sum of positions.
+	 */
+	public long positionSum( final int i, final int d )
+	{
+		return sums[ i * n + d ];
+	}
+
+	/**
+	 * Returns the centroid of the i-th label along the specified dimension.
+	 * 
+	 * @param i
+	 *            the label index.
+	 * @param d
+	 *            the dimension.
+	 * @return the centroid position.
+	 */
+	public double centroid( final int i, final int d )
+	{
+		return sums[ i * n + d ] / ( double ) counts[ i ];
+	}
+
+	/**
+	 * Returns the min of the bounding box of the i-th label.
+	 * 
+	 * @param i
+	 *            the label index.
+	 * @param d
+	 *            the dimension.
+	 * @return the bounding box min.
+	 */
+	public long min( final int i, final int d )
+	{
+		return mins[ i * n + d ];
+	}
+
+	/**
+	 * Returns the max of the bounding box of the i-th label.
+	 * 
+	 * @param i
+	 *            the label index.
+	 * @param d
+	 *            the dimension.
+	 * @return the bounding box max.
+	 */
+	public long max( final int i, final int d )
+	{
+		return maxs[ i * n + d ];
+	}
+
+	/**
+	 * Returns the max value of the quality image in the i-th label, or
+	 * {@link Double#NEGATIVE_INFINITY} if no quality image was given.
+	 * 
+	 * @param i
+	 *            the label index.
+	 * @return the max quality.
+	 */
+	public double maxQuality( final int i )
+	{
+		return qualityMaxs[ i ];
+	}
+
+	/**
+	 * Returns the mean value of the quality image in the i-th label, or 0 if
+	 * no quality image was given.
+	 * 
+	 * @param i
+	 *            the label index.
+	 * @return the mean quality.
+	 */
+	public double meanQuality( final int i )
+	{
+		return qualitySums[ i ] / counts[ i ];
+	}
+
+	/**
+	 * Per-thread accumulator, storing statistics in primitive arrays indexed
+	 * by slot.
+	 * <p>
+	 * In dense mode, the slot of a label is the label value itself. As soon as
+	 * a label larger than {@link #MAX_DENSE_LABEL} is met, the accumulator
+	 * switches to sparse mode, where slots are allocated in order of
+	 * appearance and found with an open-addressing hash table from label
+	 * values. Memory is then proportional to the number of labels and not to
+	 * the largest label value.
+	 */
+	private static class Accumulator
+	{
+
+		private static final int MAX_DENSE_LABEL = 1 << 16;
+
+		private static final long EMPTY = Long.MIN_VALUE;
+
+		private final int n;
+
+		private int capacity;
+
+		private long[] counts;
+
+		private long[] sums;
+
+		private long[] mins;
+
+		private long[] maxs;
+
+		private double[] qualityMaxs;
+
+		private double[] qualitySums;
+
+		/** Sparse mode only: number of slots used. */
+		private int nSlots;
+
+		/** Sparse mode only: hash table keys, or <code>null</code> in dense mode. */
+		private long[] keys;
+
+		/** Sparse mode only: hash table values. */
+		private int[] values;
+
+		/** Last label seen and its slot, labels come in runs. */
+		private long lastLabel = EMPTY;
+
+		private int lastSlot;
+
+		private Accumulator( final int n )
+		{
+			this.n = n;
+			allocate( 16 );
+		}
+
+		private void allocate( final int newCapacity )
+		{
+			final int oldCapacity = capacity;
+			capacity = newCapacity;
+			counts = ( counts == null ) ? new long[ capacity ] : Arrays.copyOf( counts, capacity );
+			sums = ( sums == null ) ? new long[ capacity * n ] : Arrays.copyOf( sums, capacity * n );
+			mins = ( mins == null ) ? new long[ capacity * n ] : Arrays.copyOf( mins, capacity * n );
+			maxs = ( maxs == null ) ? new long[ capacity * n ] : Arrays.copyOf( maxs, capacity * n );
+			qualityMaxs = ( qualityMaxs == null ) ? new double[ capacity ] : Arrays.copyOf( qualityMaxs, capacity );
+			qualitySums = ( qualitySums == null ) ? new double[ capacity ] : Arrays.copyOf( qualitySums, capacity );
+			Arrays.fill( mins, oldCapacity * n, capacity * n, Long.MAX_VALUE );
+			Arrays.fill( maxs, oldCapacity * n, capacity * n, Long.MIN_VALUE );
+			Arrays.fill( qualityMaxs, oldCapacity, capacity, Double.NEGATIVE_INFINITY );
+		}
+
+		private void ensureCapacity( final int minCapacity )
+		{
+			if ( minCapacity >= Integer.MAX_VALUE / n )
+				throw new IllegalArgumentException( "Too many labels: " + minCapacity );
+			if ( minCapacity > capacity )
+				allocate( ( int ) Math.min( Integer.MAX_VALUE / n - 1, Math.max( minCapacity, capacity * 3l / 2 ) ) );
+		}
+
+		private int slotOf( final long label )
+		{
+			if ( label == lastLabel )
+				return lastSlot;
+
+			if ( keys == null && label > MAX_DENSE_LABEL )
+				toSparse();
+
+			final int slot;
+			if ( keys == null )
+			{
+				slot = ( int ) label;
+				ensureCapacity( slot + 1 );
+			}
+			else
+			{
+				slot = sparseSlotOf( label );
+			}
+			lastLabel = label;
+			lastSlot = slot;
+			return slot;
+		}
+
+		private static int hash( final long label )
+		{
+			final long h = label * 0x9E3779B97F4A7C15l;
+			return ( int ) ( h ^ ( h >>> 32 ) );
+		}
+
+		private int sparseSlotOf( final long label )
+		{
+			final int mask = keys.length - 1;
+			int i = hash( label ) & mask;
+			while ( keys[ i ] != EMPTY )
+			{
+				if ( keys[ i ] == label )
+					return values[ i ];
+				i = ( i + 1 ) & mask;
+			}
+
+			// New label.
+			final int slot = nSlots++;
+			ensureCapacity( nSlots );
+			keys[ i ] = label;
+			values[ i ] = slot;
+			if ( nSlots * 2 > keys.length )
+				rehash( keys.length * 2 );
+			return slot;
+		}
+
+		private void rehash( final int tableSize )
+		{
+			final long[] oldKeys = keys;
+			final int[] oldValues = values;
+			keys = new long[ tableSize ];
+			values = new int[ tableSize ];
+			Arrays.fill( keys, EMPTY );
+			final int mask = tableSize - 1;
+			for ( int j = 0; j < oldKeys.length; j++ )
+			{
+				if ( oldKeys[ j ] == EMPTY )
+					continue;
+				int i = hash( oldKeys[ j ] ) & mask;
+				while ( keys[ i ] != EMPTY )
+					i = ( i + 1 ) & mask;
+				keys[ i ] = oldKeys[ j ];
+				values[ i ] = oldValues[ j ];
+			}
+		}
+
+		/**
+		 * Switches from dense to sparse mode, compacting the labels already
+		 * seen.
+		 */
+		private void toSparse()
+		{
+			final Accumulator sparse = new Accumulator( n );
+			sparse.keys = new long[ 16 ];
+			sparse.values = new int[ 16 ];
+			Arrays.fill( sparse.keys, EMPTY );
+			sparse.merge( this );
+
+			capacity = sparse.capacity;
+			counts = sparse.counts;
+			sums = sparse.sums;
+			mins = sparse.mins;
+			maxs = sparse.maxs;
+			qualityMaxs = sparse.qualityMaxs;
+			qualitySums = sparse.qualitySums;
+			nSlots = sparse.nSlots;
+			keys = sparse.keys;
+			values = sparse.values;
+			lastLabel = EMPTY;
+		}
+
+		/**
+		 * Returns the labels that have at least one pixel, in no particular
+		 * order.
+		 */
+		private long[] labels()
+		{
+			if ( keys == null )
+			{
+				int nLabels = 0;
+				for ( int slot = 0; slot < capacity; slot++ )
+					if ( counts[ slot ] > 0 )
+						nLabels++;
+				final long[] labels = new long[ nLabels ];
+				int i = 0;
+				for ( int slot = 0; slot < capacity; slot++ )
+					if ( counts[ slot ] > 0 )
+						labels[ i++ ] = slot;
+				return labels;
+			}
+
+			final long[] labels = new long[ nSlots ];
+			int i = 0;
+			for ( final long key : keys )
+				if ( key != EMPTY )
+					labels[ i++ ] = key;
+			return labels;
+		}
+
+		private void add( final long label, final long[] pos, final double quality )
+		{
+			final int slot = slotOf( label );
+			counts[ slot ]++;
+			final int o = slot * n;
+			for ( int d = 0; d < n; d++ )
+			{
+				final long p = pos[ d ];
+				sums[ o + d ] += p;
+				if ( p < mins[ o + d ] )
+					mins[ o + d ] = p;
+				if ( p > maxs[ o + d ] )
+					maxs[ o + d ] = p;
+			}
+			if ( quality > qualityMaxs[ slot ] )
+				qualityMaxs[ slot ] = quality;
+			qualitySums[ slot ] += quality;
+		}
+
+		private void merge( final Accumulator other )
+		{
+			for ( final long label : other.labels() )
+			{
+				final int otherSlot = other.slotOf( label );
+				final int slot = slotOf( label );
+				counts[ slot ] += other.counts[ otherSlot ];
+				final int o = slot * n;
+				final int oo = otherSlot * n;
+				for ( int d = 0; d < n; d++ )
+				{
+					sums[ o + d ] += other.sums[ oo + d ];
+					mins[ o + d ] = Math.min( mins[ o + d ], other.mins[ oo + d ] );
+					maxs[ o + d ] = Math.max( maxs[ o + d ], other.maxs[ oo + d ] );
+				}
+				qualityMaxs[ slot ] = Math.max( qualityMaxs[ slot ], other.qualityMaxs[ otherSlot ] );
+				qualitySums[ slot ] += other.qualitySums[ otherSlot ];
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import java.util.function.Predicate;
+
+import net.imglib2.Localizable;
+
+/**
+ * Interface for detectors that can skip the local maxima that fall outside of
+ * a mask, before creating spots for them.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface MaskClient
+{
+
+	/**
+	 * Sets the mask used to discard candidate maxima. The predicate receives
+	 * the pixel position of a maximum, in the coordinates of the source image,
+	 * and returns <code>true</code> if it must be kept. If <code>null</code>,
+	 * all maxima are kept.
+	 *
+	 * @param mask
+	 *            the mask.
+	 */
+	public void setMask( Predicate< Localizable > mask );
+
+}
@@ -0,0 +1,50 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+/**
+ * Interface for detectors that can limit the number of spots they return for
+ * a frame, keeping only the candidates with the highest quality.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface MaxSpotsClient
+{
+
+	/**
+	 * Sets the maximal number of spots to return. If 0 or less, all the
+	 * candidates are returned.
+	 *
+	 * @param maxNSpots
+	 *            the maximal number of spots.
+	 */
+	public void setMaxNSpots( int maxNSpots );
+
+	/**
+	 * Returns the number of candidates that were discarded in the last call
+	 * to <code>process()</code> because of the limit on the number of spots.
+	 *
+	 * @return the number of discarded candidates.
+	 */
+	public long getNDiscarded();
+
+}
@@ -36,6 +36,7 @@ import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -73,9 +74,29 @@ public class MedianFilter2D< T extends RealType< T > & NativeType< T > > extends
 	 *            of 1 will generate a 3x3 neighborhood.
 	 */
 	public MedianFilter2D( final RandomAccessibleInterval< T > source, final int radius )
+	{
+		this( source, radius, null );
+	}
+
+	/**
+	 * Instantiate a new median filter that will operate on the specified
+	 * source and write its results in the specified output.
+	 * 
+	 * @param source
+	 *            the source to operate on.
+	 * @param radius
+	 *            determines the size of the neighborhood. In 2D or 3D, a radius
+	 *            of 1 will generate a 3x3 neighborhood.
+	 * @param output
+	 *            the image to write results in. Must have the same dimensions
+	 *            as the source. If <code>null</code>, a new image will be
+	 *            created.
+	 */
+	public MedianFilter2D( final RandomAccessibleInterval< T > source, final int radius, final Img< T > output )
 	{
 		this.source = source;
 		this.radius = radius;
+		this.output = output;
 	}
 
 	@Override
@@ -91,6 +112,11 @@ public class MedianFilter2D< T extends RealType< T > & NativeType< T > > extends
 			errorMessage = BASE_ERROR_MSG + "Radius cannot be smaller than 1. Got " + radius + ".";
 			return false;
 		}
+		if ( output != null && !Intervals.equalDimensions( source, output ) )
+		{
+			errorMessage = BASE_ERROR_MSG + "Output image must have the same dimensions as the source.";
+			return false;
+		}
 		return true;
 	}
 
@@ -99,9 +125,12 @@ public class MedianFilter2D< T extends RealType< T > & NativeType< T > > extends
 	{
 		final long start = System.currentTimeMillis();
 
-		final T type = source.randomAccess().get().createVariable();
-		final ImgFactory< T > factory = Util.getArrayOrCellImgFactory( source, type );
-		this.output = factory.create( source );
+		if ( output == null )
+		{
+			final T type = source.randomAccess().get().createVariable();
+			final ImgFactory< T > factory = Util.getArrayOrCellImgFactory( source, type );
+			this.output = factory.create( source );
+		}
 
 		if ( source.numDimensions() > 2 )
 		{
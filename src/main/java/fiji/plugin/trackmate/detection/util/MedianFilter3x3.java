@@ -0,0 +1,424 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.util.Threads;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * A fast 3x3 median filter for float, 8-bit and 16-bit images, that gives the
+ * same results as {@link MedianFilter2D} with a radius of 1.
+ * <p>
+ * As {@link MedianFilter2D}, 3D images are filtered in 2D XY slices, and
+ * pixels out of the image are considered to be 0. The median of each 3x3
+ * window is computed from its 3 sorted columns, that are shared between
+ * neighbor windows: it is the median of the maximum of the column minima,
+ * the median of the column medians and the minimum of the column maxima.
+ * Pixel values are compared as integers, using for floats a key that orders
+ * them as {@link Double#compare(double, double)} does. Rows are processed in
+ * parallel, and images backed by arrays are read and written directly.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MedianFilter3x3
+{
+
+	private enum Kind
+	{
+		FLOAT, UINT8, UINT16;
+	}
+
+	private MedianFilter3x3()
+	{}
+
+	/**
+	 * Applies a 3x3 median filter to the specified image, in XY slices if it
+	 * is 3D.
+	 *
+	 * @param <T>
+	 *            the pixel type.
+	 * @param source
+	 *            the image to filter.
+	 * @param output
+	 *            the image to write the results in. Must have the same
+	 *            dimensions as the source. If <code>null</code>, a new image is
+	 *            created.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the output image, or <code>null</code> if this filter does not
+	 *         support the source: it must be 2D or 3D, zero-min, and of float,
+	 *         unsigned 8-bit or unsigned 16-bit type.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Img< T > filter( final RandomAccessibleInterval< T > source, final Img< T > output, final int numThreads )
+	{
+		final int n = source.numDimensions();
+		if ( n < 2 || n > 3 || !Views.isZeroMin( source ) )
+			return null;
+		if ( output != null && !Intervals.equalDimensions( source, output ) )
+			return null;
+		final T type = Util.getTypeFromInterval( source );
+		final Kind kind = kind( type );
+		if ( kind == null )
+			return null;
+
+		final Img< T > target = ( output != null )
+				? output
+				: Util.getArrayOrCellImgFactory( source, type ).create( source );
+
+		final int width = ( int ) source.dimension( 0 );
+		final int height = ( int ) source.dimension( 1 );
+		final int depth = ( n > 2 ) ? ( int ) source.dimension( 2 ) : 1;
+		final long nRows = ( long ) height * depth;
+		final int nTasks = ( int ) Math.max( 1, Math.min( numThreads, nRows ) );
+		if ( nTasks == 1 )
+		{
+			filterRows( source, target, kind, 0, nRows );
+			return target;
+		}
+
+		final ExecutorService executorService = Threads.newFixedThreadPool( nTasks );
+		final List< Future< ? > > futures = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final long from = t * nRows / nTasks;
+			final long to = ( t + 1 ) * nRows / nTasks;
+			futures.add( executorService.submit( () -> filterRows( source, target, kind, from, to ) ) );
+		}
+		executorService.shutdown();
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( "Problem during median filtering: " + e.getMessage(), e );
+		}
+		return target;
+	}
+
+	private static Kind kind( final RealType< ? > type )
+	{
+		if ( type instanceof FloatType )
+			return Kind.FLOAT;
+		if ( type instanceof UnsignedByteType )
+			return Kind.UINT8;
+		if ( type instanceof UnsignedShortType )
+			return Kind.UINT16;
+		return null;
+	}
+
+	/**
+	 * Filters the rows with global index (over all slices) in the specified
+	 * range.
+	 */
+	private static < T extends RealType< T > > void filterRows(
+			final RandomAccessibleInterval< T > source,
+			final RandomAccessibleInterval< T > target,
+			final Kind kind,
+			final long from,
+			final long to )
+	{
+		final int width = ( int ) source.dimension( 0 );
+		final int height = ( int ) source.dimension( 1 );
+		final RowReader< T > reader = new RowReader<>( source, kind );
+		final RowWriter< T > writer = new RowWriter<>( target, kind );
+
+		int[] above = new int[ width ];
+		int[] row = new int[ width ];
+		int[] below = new int[ width ];
+		final int[] out = new int[ width ];
+		// Sorted columns, with a column of zeros on each side.
+		final int[] lo = new int[ width + 2 ];
+		final int[] md = new int[ width + 2 ];
+		final int[] hi = new int[ width + 2 ];
+
+		int lastY = -2;
+		int lastZ = -1;
+		for ( long r = from; r < to; r++ )
+		{
+			final int z = ( int ) ( r / height );
+			final int y = ( int ) ( r % height );
+			if ( z == lastZ && y == lastY + 1 )
+			{
+				// Roll the window down.
+				final int[] tmp = above;
+				above = row;
+				row = below;
+				below = tmp;
+				reader.read( y + 1, z, below );
+			}
+			else
+			{
+				reader.read( y - 1, z, above );
+				reader.read( y, z, row );
+				reader.read( y + 1, z, below );
+			}
+			lastY = y;
+			lastZ = z;
+
+			for ( int x = 0; x < width; x++ )
+			{
+				int a = above[ x ];
+				int b = row[ x ];
+				int c = below[ x ];
+				if ( a > b )
+				{
+					final int t = a;
+					a = b;
+					b = t;
+				}
+				if ( b > c )
+				{
+					final int t = b;
+					b = c;
+					c = t;
+				}
+				if ( a > b )
+				{
+					final int t = a;
+					a = b;
+					b = t;
+				}
+				lo[ x + 1 ] = a;
+				md[ x + 1 ] = b;
+				hi[ x + 1 ] = c;
+			}
+
+			for ( int x = 0; x < width; x++ )
+			{
+				final int maxLo = Math.max( lo[ x ], Math.max( lo[ x + 1 ], lo[ x + 2 ] ) );
+				final int medMd = median3( md[ x ], md[ x + 1 ], md[ x + 2 ] );
+				final int minHi = Math.min( hi[ x ], Math.min( hi[ x + 1 ], hi[ x + 2 ] ) );
+				out[ x ] = median3( maxLo, medMd, minHi );
+			}
+			writer.write( y, z, out );
+		}
+	}
+
+	private static int median3( final int a, final int b, final int c )
+	{
+		return Math.max( Math.min( a, b ), Math.min( Math.max( a, b ), c ) );
+	}
+
+	/**
+	 * Returns an integer key that orders floats as
+	 * {@link Double#compare(double, double)} does.
+	 */
+	private static int floatKey( final float value )
+	{
+		final int bits = Float.floatToIntBits( value );
+		return bits ^ ( ( bits >> 31 ) & 0x7fffffff );
+	}
+
+	private static float keyFloat( final int key )
+	{
+		return Float.intBitsToFloat( key ^ ( ( key >> 31 ) & 0x7fffffff ) );
+	}
+
+	/**
+	 * Returns the storage array of the specified image if it is an
+	 * {@link ArrayImg}, <code>null</code> otherwise.
+	 */
+	private static Object storage( final RandomAccessibleInterval< ? > img )
+	{
+		if ( !( img instanceof ArrayImg ) )
+			return null;
+		final Object access = ( ( ArrayImg< ?, ? > ) img ).update( null );
+		if ( !( access instanceof ArrayDataAccess ) )
+			return null;
+		return ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray();
+	}
+
+	/**
+	 * Reads rows of an image as comparison keys.
+	 */
+	private static class RowReader< T extends RealType< T > >
+	{
+
+		private final Kind kind;
+
+		private final int width;
+
+		private final int height;
+
+		private final Object array;
+
+		private final RandomAccess< T > ra;
+
+		private RowReader( final RandomAccessibleInterval< T > img, final Kind kind )
+		{
+			this.kind = kind;
+			this.width = ( int ) img.dimension( 0 );
+			this.height = ( int ) img.dimension( 1 );
+			this.array = storage( img );
+			this.ra = ( array == null ) ? img.randomAccess() : null;
+		}
+
+		/**
+		 * Reads a row. Rows out of the image are filled with the key of 0.
+		 */
+		private void read( final int y, final int z, final int[] keys )
+		{
+			if ( y < 0 || y >= height )
+			{
+				// The key of 0 is 0 for all kinds.
+				Arrays.fill( keys, 0 );
+				return;
+			}
+
+			if ( array != null )
+			{
+				final int offset = ( z * height + y ) * width;
+				switch ( kind )
+				{
+				case FLOAT:
+				{
+					final float[] a = ( float[] ) array;
+					for ( int x = 0; x < width; x++ )
+						keys[ x ] = floatKey( a[ offset + x ] );
+					break;
+				}
+				case UINT8:
+				{
+					final byte[] a = ( byte[] ) array;
+					for ( int x = 0; x < width; x++ )
+						keys[ x ] = a[ offset + x ] & 0xff;
+					break;
+				}
+				case UINT16:
+				{
+					final short[] a = ( short[] ) array;
+					for ( int x = 0; x < width; x++ )
+						keys[ x ] = a[ offset + x ] & 0xffff;
+					break;
+				}
+				}
+				return;
+			}
+
+			ra.setPosition( 0, 0 );
+			ra.setPosition( y, 1 );
+			if ( ra.numDimensions() > 2 )
+				ra.setPosition( z, 2 );
+			for ( int x = 0; x < width; x++ )
+			{
+				final T pixel = ra.get();
+				keys[ x ] = ( kind == Kind.FLOAT )
+						? floatKey( pixel.getRealFloat() )
+						: ( int ) pixel.getRealDouble();
+				ra.fwd( 0 );
+			}
+		}
+	}
+
+	/**
+	 * Writes rows of comparison keys to an image.
+	 */
+	private static class RowWriter< T extends RealType< T > >
+	{
+
+		private final Kind kind;
+
+		private final int width;
+
+		private final int height;
+
+		private final Object array;
+
+		private final RandomAccess< T > ra;
+
+		private RowWriter( final RandomAccessibleInterval< T > img, final Kind kind )
+		{
+			this.kind = kind;
+			this.width = ( int ) img.dimension( 0 );
+			this.height = ( int ) img.dimension( 1 );
+			this.array = storage( img );
+			this.ra = ( array == null ) ? img.randomAccess() : null;
+		}
+
+		private void write( final int y, final int z, final int[] keys )
+		{
+			if ( array != null )
+			{
+				final int offset = ( z * height + y ) * width;
+				switch ( kind )
+				{
+				case FLOAT:
+				{
+					final float[] a = ( float[] ) array;
+					for ( int x = 0; x < width; x++ )
+						a[ offset + x ] = keyFloat( keys[ x ] );
+					break;
+				}
+				case UINT8:
+				{
+					final byte[] a = ( byte[] ) array;
+					for ( int x = 0; x < width; x++ )
+						a[ offset + x ] = ( byte ) keys[ x ];
+					break;
+				}
+				case UINT16:
+				{
+					final short[] a = ( short[] ) array;
+					for ( int x = 0; x < width; x++ )
+						a[ offset + x ] = ( short ) keys[ x ];
+					break;
+				}
+				}
+				return;
+			}
+
+			ra.setPosition( 0, 0 );
+			ra.setPosition( y, 1 );
+			if ( ra.numDimensions() > 2 )
+				ra.setPosition( z, 2 );
+			for ( int x = 0; x < width; x++ )
+			{
+				if ( kind == Kind.FLOAT )
+					ra.get().setReal( keyFloat( keys[ x ] ) );
+				else
+					ra.get().setReal( keys[ x ] );
+				ra.fwd( 0 );
+			}
+		}
+	}
+}
@@ -23,6 +23,7 @@ package fiji.plugin.trackmate.features;
 
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -71,6 +72,12 @@ public class FeatureUtils
 
 	public static final String USE_RANDOM_COLOR_KEY = "RANDOM_COLOR";
 
+	/**
+	 * Appended to the name of spot features that are declared but not
+	 * computed yet. They will be computed when first used.
+	 */
+	private static final String NOT_COMPUTED_SUFFIX = " (not computed yet)";
+
 	public static final Map< String, String > collectFeatureKeys( final TrackMateObject target, final Model model, final Settings settings )
 	{
 		final Map< String, String > inverseMap = new HashMap<>();
@@ -99,6 +106,16 @@ public class FeatureUtils
 					for ( final String featureKey : sf.getFeatureNames().keySet() )
 						inverseMap.put( sf.getFeatureNames().get( featureKey ), featureKey );
 			}
+			// Show which features are not computed yet.
+			if ( model != null )
+			{
+				for ( final String featureKey : model.getFeatureModel().getLazySpotFeatures() )
+				{
+					final String name = model.getFeatureModel().getSpotFeatureNames().get( featureKey );
+					if ( null != name && featureKey.equals( inverseMap.remove( name ) ) )
+						inverseMap.put( name + NOT_COMPUTED_SUFFIX, featureKey );
+				}
+			}
 			break;
 		}
 
@@ -195,6 +212,7 @@ public class FeatureUtils
 		case SPOTS:
 		{
 
+			fm.materializeSpotFeatures( Collections.singleton( featureKey ) );
 			final DoubleArray val = new DoubleArray();
 			for ( final Spot spot : model.getSpots().iterable( visibleOnly ) )
 			{
@@ -253,6 +271,7 @@ public class FeatureUtils
 			if ( displaySettings.getSpotColorByFeature().equals( ManualSpotColorAnalyzerFactory.FEATURE ) )
 				return new ManualSpotColorGenerator( displaySettings.getMissingValueColor() );
 
+			model.getFeatureModel().materializeSpotFeatures( Collections.singleton( displaySettings.getSpotColorByFeature() ) );
 			return new SpotColorGenerator(
 					displaySettings.getSpotColorByFeature(),
 					displaySettings.getMissingValueColor(),
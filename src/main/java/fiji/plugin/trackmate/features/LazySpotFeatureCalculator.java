@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import net.imglib2.algorithm.MultiThreaded;
+
+/**
+ * Computes spot features on demand.
+ * <p>
+ * In lazy mode, the features of all the spot analyzers configured in the
+ * {@link Settings} are declared up front, but an analyzer is run only when
+ * one of its features is first requested, through
+ * {@link FeatureModel#materializeSpotFeatures(Collection)}. It is then run on
+ * all the spots of the model, along with the lazy analyzers it depends on,
+ * and its features are marked as computed. If an analyzer fails, the error is
+ * logged and its features, and the ones of the analyzers depending on it,
+ * stay lazy, so that they are computed again when next requested. The values stay up to date with
+ * model edits thanks to the {@link ModelFeatureUpdater}, which only
+ * recomputes the analyzers that have been materialized.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LazySpotFeatureCalculator implements Consumer< Collection< String > >, MultiThreaded
+{
+
+	private final Model model;
+
+	private final Settings settings;
+
+	private final SpotFeatureCalculator calculator;
+
+	private String errorMessage;
+
+	public LazySpotFeatureCalculator( final Model model, final Settings settings )
+	{
+		this.model = model;
+		this.settings = settings;
+		this.calculator = new SpotFeatureCalculator( model, settings, false );
+	}
+
+	/**
+	 * Declares all the spot features and marks them as lazy, then computes
+	 * the ones specified.
+	 *
+	 * @param required
+	 *            the keys of the spot features to compute right now, for
+	 *            instance the ones used by spot filters. Can be empty.
+	 */
+	public void declare( final Collection< String > required )
+	{
+		calculator.declareSpotFeatures();
+		final List< String > lazy = new ArrayList<>();
+		for ( final SpotAnalyzerFactoryBase< ? > factory : settings.getSpotAnalyzerFactories() )
+			lazy.addAll( factory.getFeatures() );
+		model.getFeatureModel().setLazySpotFeatures( lazy, this );
+		accept( required );
+	}
+
+	/**
+	 * Computes the lazy spot features among the specified ones. The model is
+	 * locked during computation, so that it is not edited meanwhile. Failures
+	 * are logged, and can be read with {@link #getErrorMessage()}.
+	 */
+	@Override
+	public void accept( final Collection< String > features )
+	{
+		synchronized ( model )
+		{
+			errorMessage = null;
+			materialize( features );
+		}
+	}
+
+	/**
+	 * Returns a message describing the failure of the last computation, or
+	 * <code>null</code> if it succeeded.
+	 *
+	 * @return the error message, or <code>null</code>.
+	 */
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	private void materialize( final Collection< String > features )
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		final List< SpotAnalyzerFactoryBase< ? > > factories = settings.getSpotAnalyzerFactories();
+
+		// Analyzers that provide a requested feature not computed yet.
+		final Set< String > selected = new HashSet<>();
+		for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+			if ( isLazy( factory, fm ) )
+				for ( final String feature : factory.getFeatures() )
+					if ( features.contains( feature ) )
+						selected.add( factory.getKey() );
+		if ( selected.isEmpty() )
+			return;
+
+		// Plus the lazy analyzers they depend on.
+		boolean added = true;
+		while ( added )
+		{
+			added = false;
+			for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+				if ( selected.contains( factory.getKey() ) )
+					for ( final SpotAnalyzerFactoryBase< ? > other : factories )
+						if ( factory.getDependencies().contains( other.getKey() ) && isLazy( other, fm ) )
+							added |= selected.add( other.getKey() );
+		}
+
+		final List< SpotAnalyzerFactoryBase< ? > > toRun = new ArrayList<>( selected.size() );
+		for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+			if ( selected.contains( factory.getKey() ) )
+				toRun.add( factory );
+
+		final boolean ok = calculator.computeSpotFeatures( model.getSpots(), toRun, false );
+		if ( calculator.isCanceled() )
+		{
+			errorMessage = "Spot feature computation canceled: " + calculator.getCancelReason();
+			return;
+		}
+
+		// Failed analyzers, and the ones that read their features.
+		final Set< String > failed = ok ? new HashSet<>() : calculator.getFailedAnalyzers();
+		added = true;
+		while ( added )
+		{
+			added = false;
+			for ( final SpotAnalyzerFactoryBase< ? > factory : toRun )
+				for ( final String dependency : factory.getDependencies() )
+					if ( failed.contains( dependency ) )
+						added |= failed.add( factory.getKey() );
+		}
+
+		final List< String > computed = new ArrayList<>();
+		final List< String > notComputed = new ArrayList<>();
+		for ( final SpotAnalyzerFactoryBase< ? > factory : toRun )
+		{
+			if ( failed.contains( factory.getKey() ) )
+				notComputed.addAll( factory.getFeatures() );
+			else
+				computed.addAll( factory.getFeatures() );
+		}
+		fm.markSpotFeaturesMaterialized( computed );
+
+		if ( !notComputed.isEmpty() )
+		{
+			errorMessage = calculator.getErrorMessage() + "\nThese features were not computed: " + String.join( ", ", notComputed ) + '.';
+			model.getLogger().error( errorMessage + '\n' );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if none of the features of the specified
+	 * analyzer has been computed yet.
+	 */
+	static boolean isLazy( final SpotAnalyzerFactoryBase< ? > factory, final FeatureModel fm )
+	{
+		if ( factory.getFeatures().isEmpty() )
+			return false;
+		for ( final String feature : factory.getFeatures() )
+			if ( fm.isSpotFeatureMaterialized( feature ) )
+				return false;
+		return true;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		calculator.setNumThreads();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		calculator.setNumThreads( numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return calculator.getNumThreads();
+	}
+}
@@ -22,6 +22,18 @@
 package fiji.plugin.trackmate.features;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.jgrapht.graph.DefaultWeightedEdge;
 
@@ -31,18 +43,33 @@ import fiji.plugin.trackmate.ModelChangeListener;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.SpotRoi;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerInput;
+import fiji.plugin.trackmate.util.Threads;
 import net.imglib2.algorithm.MultiThreaded;
 
 /**
  * A utility class that listens to the change occurring in a model, and updates
  * its spot, edge and track features accordingly. Useful to keep the model in
  * sync with manual editing.
+ * <p>
+ * Only the spot analyzers that depend on an input that changed are run again
+ * (see {@link SpotAnalyzerFactoryBase#getInputs()}). To determine what
+ * changed, this updater keeps a copy of the position, radius, ROI and frame
+ * of the spots it has processed. Edge and track features are only recomputed
+ * for edges and tracks touched by an actual change. Successive spot
+ * modifications can be grouped and processed after a delay, see
+ * {@link #setDebounceDelay(long)}.
  * 
  * @author Jean-Yves Tinevez - 2013 - revised in 2021
  */
 public class ModelFeatureUpdater implements ModelChangeListener, MultiThreaded
 {
 
+	private static final Set< SpotAnalyzerInput > ALL_INPUTS = EnumSet.allOf( SpotAnalyzerInput.class );
+
 	private final SpotFeatureCalculator spotFeatureCalculator;
 
 	private final EdgeFeatureCalculator edgeFeatureCalculator;
@@ -51,8 +78,22 @@ public class ModelFeatureUpdater implements ModelChangeListener, MultiThreaded
 
 	private final Model model;
 
+	private final Settings settings;
+
 	private int numThreads;
 
+	/** Spot inputs as they were when their features were last computed. */
+	private final Map< Spot, SpotState > states = new WeakHashMap<>();
+
+	/** Changes not processed yet. */
+	private PendingChanges pending = new PendingChanges();
+
+	private long debounceDelay = 0;
+
+	private ScheduledExecutorService scheduler;
+
+	private ScheduledFuture< ? > scheduled;
+
 	/**
 	 * Constructs and activate a {@link ModelFeatureUpdater}. The new instance
 	 * is registered to listen to model changes, and update its feature.
@@ -66,6 +107,7 @@ public class ModelFeatureUpdater implements ModelChangeListener, MultiThreaded
 	public ModelFeatureUpdater( final Model model, final Settings settings )
 	{
 		this.model = model;
+		this.settings = settings;
 		// don't log feature computation for updates.
 		final boolean doLogIt = false;
 		this.spotFeatureCalculator = new SpotFeatureCalculator( model, settings, doLogIt );
@@ -75,41 +117,228 @@ public class ModelFeatureUpdater implements ModelChangeListener, MultiThreaded
 		setNumThreads();
 	}
 
+	/**
+	 * Sets the delay by which the processing of spot modifications is
+	 * postponed. Spot modifications happening within this delay are grouped
+	 * and processed at once, after which a
+	 * {@link ModelChangeEvent#FEATURES_COMPUTED} event is fired. This avoids
+	 * recomputing features for each step of a rapid succession of edits, such
+	 * as when resizing or moving a spot interactively. Other model changes,
+	 * such as adding or removing spots or edges, are always processed
+	 * immediately, along with any postponed modification, and so does
+	 * {@link #quit()}.
+	 * <p>
+	 * With a positive delay, the features of modified spots, and of their
+	 * edges and tracks, are stale for up to this delay after the last
+	 * modification. Postponed modifications are processed on a scheduler
+	 * thread, not on the Event Dispatch Thread. The
+	 * {@link ModelChangeEvent#FEATURES_COMPUTED} event is fired from this
+	 * thread too, while holding the lock on the model. Listeners that update
+	 * a GUI must therefore hand over to the EDT themselves, and must not wait
+	 * for another thread that needs to lock the model.
+	 *
+	 * @param debounceDelay
+	 *            the delay in milliseconds. If 0 (the default), changes are
+	 *            processed immediately.
+	 */
+	public synchronized void setDebounceDelay( final long debounceDelay )
+	{
+		this.debounceDelay = debounceDelay;
+	}
+
+	public long getDebounceDelay()
+	{
+		return debounceDelay;
+	}
+
 	/**
 	 * Updates the model features against the change notified here. If the event
 	 * is not a {@link ModelChangeEvent#MODEL_MODIFIED}, does nothing.
 	 */
 	@Override
-	public void modelChanged( final ModelChangeEvent event )
+	public synchronized void modelChanged( final ModelChangeEvent event )
 	{
 		if ( event.getEventID() != ModelChangeEvent.MODEL_MODIFIED )
 			return;
 
-		// Build spot list
-		final ArrayList< Spot > spots = new ArrayList<>( event.getSpots().size() );
+		pending.add( event, model.getTrackModel() );
 		for ( final Spot spot : event.getSpots() )
+			if ( event.getSpotFlag( spot ) == ModelChangeEvent.FLAG_SPOT_REMOVED )
+				states.remove( spot );
+
+		if ( debounceDelay > 0 && isModificationOnly( event ) )
 		{
-			if ( event.getSpotFlag( spot ) != ModelChangeEvent.FLAG_SPOT_REMOVED )
-				spots.add( spot );
+			if ( null != scheduled )
+				scheduled.cancel( false );
+			if ( null == scheduler )
+				scheduler = Threads.newSingleThreadScheduledExecutor();
+			scheduled = scheduler.schedule( this::flushDelayed, debounceDelay, TimeUnit.MILLISECONDS );
+			return;
 		}
-		final SpotCollection sc = SpotCollection.fromCollection( spots );
 
-		// Build edge list
-		final ArrayList< DefaultWeightedEdge > edges = new ArrayList<>( event.getEdges().size() );
-		for ( final DefaultWeightedEdge edge : event.getEdges() )
+		if ( null != scheduled )
 		{
-			if ( event.getEdgeFlag( edge ) != ModelChangeEvent.FLAG_EDGE_REMOVED )
-				edges.add( edge );
+			scheduled.cancel( false );
+			scheduled = null;
+		}
+		flush();
+	}
+
+	private void flushDelayed()
+	{
+		// Lock the model first, as when we are notified of changes.
+		synchronized ( model )
+		{
+			synchronized ( this )
+			{
+				scheduled = null;
+				flush();
+				// Don't keep an idle thread around.
+				if ( null != scheduler )
+					scheduler.shutdown();
+				scheduler = null;
+			}
+			model.notifyFeaturesComputed();
+		}
+	}
+
+	/**
+	 * Processes all the pending changes.
+	 */
+	private void flush()
+	{
+		final PendingChanges changes = pending;
+		pending = new PendingChanges();
+		final TrackModel trackModel = model.getTrackModel();
+
+		/*
+		 * Determine what changed for each spot.
+		 */
+		final Map< Spot, Set< SpotAnalyzerInput > > spotChanges = new HashMap<>();
+		for ( final Spot spot : changes.spots.keySet() )
+		{
+			final SpotState state = new SpotState( spot );
+			final SpotState previous = states.put( spot, state );
+			final Set< SpotAnalyzerInput > inputs = EnumSet.copyOf( changes.spots.get( spot ) );
+			if ( null == previous && changes.reported.contains( spot ) )
+				inputs.addAll( ALL_INPUTS );
+			else if ( null != previous )
+				inputs.addAll( previous.diff( state ) );
+			spotChanges.put( spot, inputs );
+		}
+
+		/*
+		 * Group spots by the analyzers to run on them. Analyzers whose
+		 * features are not computed yet are skipped: they will be run on all
+		 * spots when requested.
+		 */
+		final List< SpotAnalyzerFactoryBase< ? > > factories = new ArrayList<>();
+		for ( final SpotAnalyzerFactoryBase< ? > factory : settings.getSpotAnalyzerFactories() )
+			if ( !LazySpotFeatureCalculator.isLazy( factory, model.getFeatureModel() ) )
+				factories.add( factory );
+		final Map< List< SpotAnalyzerFactoryBase< ? > >, List< Spot > > groups = new LinkedHashMap<>();
+		for ( final Spot spot : spotChanges.keySet() )
+		{
+			final List< SpotAnalyzerFactoryBase< ? > > toRun = selectFactories( factories, spotChanges.get( spot ) );
+			if ( !toRun.isEmpty() )
+				groups.computeIfAbsent( toRun, k -> new ArrayList<>() ).add( spot );
 		}
 
 		// Update spot features
-		spotFeatureCalculator.computeSpotFeatures( sc, false );
+		for ( final List< SpotAnalyzerFactoryBase< ? > > toRun : groups.keySet() )
+			spotFeatureCalculator.computeSpotFeatures( SpotCollection.fromCollection( groups.get( toRun ) ), toRun, false );
+
+		/*
+		 * Edges: we recompute the edges that were added, and the edges
+		 * modified because one of their spot actually changed.
+		 */
+		final Set< DefaultWeightedEdge > edges = new HashSet<>( changes.edgesAdded );
+		for ( final DefaultWeightedEdge edge : changes.edgesModified )
+		{
+			if ( !trackModel.edgeSet().contains( edge ) )
+				continue;
+			final Set< SpotAnalyzerInput > sourceChanges = spotChanges.get( trackModel.getEdgeSource( edge ) );
+			final Set< SpotAnalyzerInput > targetChanges = spotChanges.get( trackModel.getEdgeTarget( edge ) );
+			// If none of its spots is in the event, the edge itself changed.
+			if ( ( null == sourceChanges && null == targetChanges )
+					|| ( null != sourceChanges && !sourceChanges.isEmpty() )
+					|| ( null != targetChanges && !targetChanges.isEmpty() ) )
+				edges.add( edge );
+		}
 
 		// Update edge features
-		edgeFeatureCalculator.computeEdgesFeatures( edges, false );
+		if ( !edges.isEmpty() )
+			edgeFeatureCalculator.computeEdgesFeatures( edges, false );
+
+		/*
+		 * Tracks: if the topology changed, we update all the tracks of the
+		 * events. Otherwise only the tracks of what actually changed.
+		 */
+		final Set< Integer > tracks;
+		if ( changes.topologyChanged )
+		{
+			tracks = changes.tracks;
+		}
+		else
+		{
+			tracks = new HashSet<>();
+			for ( final DefaultWeightedEdge edge : edges )
+				tracks.add( trackModel.trackIDOf( edge ) );
+			for ( final Spot spot : spotChanges.keySet() )
+				if ( !spotChanges.get( spot ).isEmpty() )
+					tracks.add( trackModel.trackIDOf( spot ) );
+			tracks.remove( null );
+		}
 
 		// Update track features
-		trackFeatureCalculator.computeTrackFeatures( event.getTrackUpdated(), false );
+		if ( !tracks.isEmpty() )
+			trackFeatureCalculator.computeTrackFeatures( tracks, false );
+	}
+
+	/**
+	 * Returns the factories to run for a spot whose specified inputs changed,
+	 * in the order of the specified list. Factories that depend on a factory
+	 * to run are also run.
+	 */
+	private static List< SpotAnalyzerFactoryBase< ? > > selectFactories( final List< SpotAnalyzerFactoryBase< ? > > factories, final Set< SpotAnalyzerInput > changes )
+	{
+		final Set< String > selected = new HashSet<>();
+		for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+			for ( final SpotAnalyzerInput input : factory.getInputs() )
+				if ( changes.contains( input ) )
+					selected.add( factory.getKey() );
+
+		boolean added = !selected.isEmpty();
+		while ( added )
+		{
+			added = false;
+			for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+				if ( !selected.contains( factory.getKey() ) )
+					for ( final String dependency : factory.getDependencies() )
+						if ( selected.contains( dependency ) )
+							added |= selected.add( factory.getKey() );
+		}
+
+		final List< SpotAnalyzerFactoryBase< ? > > toRun = new ArrayList<>( selected.size() );
+		for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+			if ( selected.contains( factory.getKey() ) )
+				toRun.add( factory );
+		return toRun;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified event only reports spots and
+	 * edges modified, as when a spot is moved or resized.
+	 */
+	private static boolean isModificationOnly( final ModelChangeEvent event )
+	{
+		for ( final Spot spot : event.getSpots() )
+			if ( event.getSpotFlag( spot ) != ModelChangeEvent.FLAG_SPOT_MODIFIED )
+				return false;
+		for ( final DefaultWeightedEdge edge : event.getEdges() )
+			if ( event.getEdgeFlag( edge ) != ModelChangeEvent.FLAG_EDGE_MODIFIED )
+				return false;
+		return true;
 	}
 
 	/**
@@ -119,6 +348,17 @@ public class ModelFeatureUpdater implements ModelChangeListener, MultiThreaded
 	public void quit()
 	{
 		model.removeModelChangeListener( this );
+		synchronized ( this )
+		{
+			if ( null != scheduled )
+			{
+				scheduled.cancel( false );
+				scheduled = null;
+				flush();
+			}
+			if ( null != scheduler )
+				scheduler.shutdown();
+		}
 	}
 
 	@Override
@@ -141,4 +381,139 @@ public class ModelFeatureUpdater implements ModelChangeListener, MultiThreaded
 		edgeFeatureCalculator.setNumThreads( numThreads );
 		trackFeatureCalculator.setNumThreads( numThreads );
 	}
+
+	/**
+	 * Changes accumulated from model events, not processed yet.
+	 */
+	private static final class PendingChanges
+	{
+
+		/**
+		 * Spots to process, with the inputs we know have changed from the
+		 * events alone.
+		 */
+		private final Map< Spot, Set< SpotAnalyzerInput > > spots = new LinkedHashMap<>();
+
+		/**
+		 * Spots reported in the events, as opposed to spots that are only
+		 * here because they were linked or unlinked.
+		 */
+		private final Set< Spot > reported = new HashSet<>();
+
+		private final Set< DefaultWeightedEdge > edgesAdded = new HashSet<>();
+
+		private final Set< DefaultWeightedEdge > edgesModified = new HashSet<>();
+
+		private final Set< Integer > tracks = new HashSet<>();
+
+		private boolean topologyChanged = false;
+
+		private void add( final ModelChangeEvent event, final TrackModel trackModel )
+		{
+			for ( final Spot spot : event.getSpots() )
+			{
+				final int flag = event.getSpotFlag( spot );
+				if ( flag == ModelChangeEvent.FLAG_SPOT_REMOVED )
+				{
+					spots.remove( spot );
+					reported.remove( spot );
+					topologyChanged = true;
+					continue;
+				}
+				reported.add( spot );
+				final Set< SpotAnalyzerInput > inputs = spots.computeIfAbsent( spot, s -> EnumSet.noneOf( SpotAnalyzerInput.class ) );
+				if ( flag == ModelChangeEvent.FLAG_SPOT_ADDED )
+				{
+					inputs.addAll( ALL_INPUTS );
+					topologyChanged = true;
+				}
+				else if ( flag == ModelChangeEvent.FLAG_SPOT_FRAME_CHANGED )
+				{
+					inputs.add( SpotAnalyzerInput.FRAME );
+				}
+			}
+
+			for ( final DefaultWeightedEdge edge : event.getEdges() )
+			{
+				final int flag = event.getEdgeFlag( edge );
+				if ( flag == ModelChangeEvent.FLAG_EDGE_REMOVED )
+				{
+					edgesAdded.remove( edge );
+					edgesModified.remove( edge );
+					topologyChanged = true;
+				}
+				else if ( flag == ModelChangeEvent.FLAG_EDGE_ADDED )
+				{
+					edgesAdded.add( edge );
+					topologyChanged = true;
+					// The links of its spots changed.
+					for ( final Spot spot : Arrays.asList( trackModel.getEdgeSource( edge ), trackModel.getEdgeTarget( edge ) ) )
+						spots.computeIfAbsent( spot, s -> EnumSet.noneOf( SpotAnalyzerInput.class ) ).add( SpotAnalyzerInput.TOPOLOGY );
+				}
+				else
+				{
+					edgesModified.add( edge );
+				}
+			}
+
+			tracks.addAll( event.getTrackUpdated() );
+		}
+	}
+
+	/**
+	 * The inputs of a spot at the time its features were computed.
+	 */
+	private static final class SpotState
+	{
+
+		private final double x;
+
+		private final double y;
+
+		private final double z;
+
+		private final double radius;
+
+		private final double frame;
+
+		private final double[] roiX;
+
+		private final double[] roiY;
+
+		private SpotState( final Spot spot )
+		{
+			this.x = spot.getDoublePosition( 0 );
+			this.y = spot.getDoublePosition( 1 );
+			this.z = spot.getDoublePosition( 2 );
+			this.radius = value( spot, Spot.RADIUS );
+			this.frame = value( spot, Spot.FRAME );
+			final SpotRoi roi = spot.getRoi();
+			this.roiX = ( null == roi ) ? null : roi.x.clone();
+			this.roiY = ( null == roi ) ? null : roi.y.clone();
+		}
+
+		private static double value( final Spot spot, final String feature )
+		{
+			final Double val = spot.getFeature( feature );
+			return ( null == val ) ? Double.NaN : val.doubleValue();
+		}
+
+		/**
+		 * Returns the inputs that differ between this state and the specified
+		 * one.
+		 */
+		private Set< SpotAnalyzerInput > diff( final SpotState other )
+		{
+			final Set< SpotAnalyzerInput > changes = EnumSet.noneOf( SpotAnalyzerInput.class );
+			if ( Double.compare( x, other.x ) != 0 || Double.compare( y, other.y ) != 0 || Double.compare( z, other.z ) != 0 )
+				changes.add( SpotAnalyzerInput.POSITION );
+			if ( Double.compare( radius, other.radius ) != 0 )
+				changes.add( SpotAnalyzerInput.RADIUS );
+			if ( Double.compare( frame, other.frame ) != 0 )
+				changes.add( SpotAnalyzerInput.FRAME );
+			if ( !Arrays.equals( roiX, other.roiX ) || !Arrays.equals( roiY, other.roiY ) )
+				changes.add( SpotAnalyzerInput.ROI );
+			return changes;
+		}
+	}
 }
@@ -22,14 +22,22 @@
 package fiji.plugin.trackmate.features;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 import org.scijava.Cancelable;
 
@@ -37,9 +45,16 @@ import fiji.plugin.trackmate.Dimension;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.features.spot.AbstractSpotFeatureAnalyzer;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotIntensityAndContrastAnalyzer;
+import fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory;
+import fiji.plugin.trackmate.util.HyperSliceCache;
+import fiji.plugin.trackmate.util.SpotSpatialOrder;
 import fiji.plugin.trackmate.util.Threads;
 import fiji.plugin.trackmate.util.TMUtils;
 import net.imagej.ImgPlus;
@@ -58,6 +73,12 @@ public class SpotFeatureCalculator extends MultiThreadedBenchmarkAlgorithm imple
 
 	private static final String BASE_ERROR_MSG = "[SpotFeatureCalculator] ";
 
+	/** Minimal number of spots processed by a single task. */
+	private static final int MIN_CHUNK_SIZE = 32;
+
+	/** Target number of chunks per thread, for each frame. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
 	private final Settings settings;
 
 	private final Model model;
@@ -68,6 +89,9 @@ public class SpotFeatureCalculator extends MultiThreadedBenchmarkAlgorithm imple
 
 	private final boolean doLogIt;
 
+	/** Keys of the analyzer factories that failed in the last computation. */
+	private final Set< String > failedAnalyzers = ConcurrentHashMap.newKeySet();
+
 	public SpotFeatureCalculator( final Model model, final Settings settings, final boolean doLogIt )
 	{
 		this.settings = settings;
@@ -106,8 +130,19 @@ public class SpotFeatureCalculator extends MultiThreadedBenchmarkAlgorithm imple
 	@Override
 	public boolean process()
 	{
-
 		// Declare what you do.
+		declareSpotFeatures();
+
+		// Do it.
+		return computeSpotFeaturesAgent( model.getSpots(), settings.getSpotAnalyzerFactories(), doLogIt );
+	}
+
+	/**
+	 * Declares the features of the spot analyzers configured in the
+	 * {@link Settings} in the feature model, without computing them.
+	 */
+	public void declareSpotFeatures()
+	{
 		for ( final SpotAnalyzerFactoryBase< ? > factory : settings.getSpotAnalyzerFactories() )
 		{
 			final Collection< String > features = factory.getFeatures();
@@ -117,10 +152,6 @@ public class SpotFeatureCalculator extends MultiThreadedBenchmarkAlgorithm imple
 			final Map< String, Boolean > isIntFeature = factory.getIsIntFeature();
 			model.getFeatureModel().declareSpotFeatures( features, featureNames, featureShortNames, featureDimensions, isIntFeature );
 		}
-
-		// Do it.
-		computeSpotFeaturesAgent( model.getSpots(), settings.getSpotAnalyzerFactories(), doLogIt );
-		return true;
 	}
 
 	/**
@@ -134,6 +165,38 @@ public class SpotFeatureCalculator extends MultiThreadedBenchmarkAlgorithm imple
 		computeSpotFeaturesAgent( toCompute, spotFeatureAnalyzers, doLogIt );
 	}
 
+	/**
+	 * Calculates the spot features of the specified analyzer factories, but
+	 * only for the spots in the specified collection.
+	 *
+	 * @param toCompute
+	 *            the spots to compute.
+	 * @param analyzerFactories
+	 *            the analyzer factories to use for computation. They must be
+	 *            among the factories configured in the {@link Settings}.
+	 * @param doLogIt
+	 *            whether we should report progress to the user.
+	 * @return <code>true</code> if all the analyzers completed without error.
+	 *         Otherwise {@link #getFailedAnalyzers()} returns the ones that
+	 *         failed.
+	 */
+	public boolean computeSpotFeatures( final SpotCollection toCompute, final List< SpotAnalyzerFactoryBase< ? > > analyzerFactories, final boolean doLogIt )
+	{
+		return computeSpotFeaturesAgent( toCompute, analyzerFactories, doLogIt );
+	}
+
+	/**
+	 * Returns the keys of the analyzer factories whose analyzers threw an
+	 * exception during the last computation. The features of these
+	 * analyzers might be missing or wrong for some spots.
+	 *
+	 * @return a new set of analyzer factory keys.
+	 */
+	public Set< String > getFailedAnalyzers()
+	{
+		return new HashSet<>( failedAnalyzers );
+	}
+
 	/**
 	 * The method in charge of computing spot features with the given
 	 * {@link SpotAnalyzer}s, for the given {@link SpotCollection}.
@@ -144,96 +207,173 @@ public class SpotFeatureCalculator extends MultiThreadedBenchmarkAlgorithm imple
 	 *            the analyzer factories to use for computation.
 	 * @param doLogIt
 	 *            whether we should report progress to the user.
+	 * @return <code>true</code> if all the analyzers completed without error.
+	 *         Otherwise the error is logged and stored in the error message,
+	 *         and the features of some spots might be missing.
 	 */
-	private void computeSpotFeaturesAgent( final SpotCollection toCompute, final List< SpotAnalyzerFactoryBase< ? > > analyzerFactories, final boolean doLogIt )
+	private boolean computeSpotFeaturesAgent( final SpotCollection toCompute, final List< SpotAnalyzerFactoryBase< ? > > analyzerFactories, final boolean doLogIt )
 	{
 		isCanceled = false;
 		cancelReason = null;
+		errorMessage = null;
+		failedAnalyzers.clear();
 		final long start = System.currentTimeMillis();
 		final Logger logger = doLogIt ? model.getLogger() : Logger.VOID_LOGGER;
 
 
 		// Can't compute any spot feature without an image to compute on.
 		if ( settings.imp == null )
-			return;
+			return true;
 
 		@SuppressWarnings( "rawtypes" )
 		final ImgPlus img = TMUtils.rawWraps( settings.imp );
 
-		// Do it.
 		final List< Integer > frameSet = new ArrayList<>( toCompute.keySet() );
 		final int numFrames = frameSet.size();
+		final int nChannels = settings.imp.getNChannels();
+		final List< SpotAnalyzerFactoryBase< ? > > factories = sortByDependencies( analyzerFactories );
+		final double[] calibration = TMUtils.getSpatialCalibration( settings.imp );
 
 		/*
-		 * Fine tune multi-threading: If we have 10 threads and 15 frames to
-		 * process, we process 10 frames at once, and allocate 1 thread per
-		 * frame. But if we have 10 threads and 2 frames, we process the 2
-		 * frames at once, and allocate 5 threads per frame if we can.
+		 * Analyzers that do not let us process spots one by one receive all the
+		 * spots of a frame at once. For these, we fine tune multi-threading as
+		 * before: If we have 10 threads and 15 frames to process, we allocate 1
+		 * thread per frame. But if we have 10 threads and 2 frames, we allocate
+		 * 5 threads per frame if we can.
 		 */
 		final int nSimultaneousFrames = Math.max( 1, Math.min( numThreads, numFrames ) );
 		final int threadsPerFrame = Math.max( 1, numThreads / nSimultaneousFrames );
 
 		if ( doLogIt )
 		{
-			logger.log( "Computing spot features over "
-					+ ( ( nSimultaneousFrames > 1 ) ? ( nSimultaneousFrames + " frames" ) : "1 frame" )
-					+ " simultaneously and allocating "
-					+ ( ( threadsPerFrame > 1 ) ? ( threadsPerFrame + " threads" ) : "1 thread" )
-					+ " per frame.\n" );
+			logger.log( "Computing spot features using "
+					+ ( ( numThreads > 1 ) ? ( numThreads + " threads" ) : "1 thread" ) + ".\n" );
 			logger.setStatus( "Calculating " + toCompute.getNSpots( false ) + " spots features..." );
 		}
 
-		final AtomicInteger progress = new AtomicInteger( 0 );
-		final List< Callable< Void > > tasks = new ArrayList<>( numFrames );
-		final int workToDo = numFrames * analyzerFactories.size() * settings.imp.getNChannels();
-		for ( int iFrame = 0; iFrame < numFrames; iFrame++ )
+		/*
+		 * If both the intensity and the contrast analyzers are required, we
+		 * compute their features in one pass with the fused analyzer.
+		 */
+		boolean hasIntensity = false;
+		String contrastKey = null;
+		for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+		{
+			hasIntensity |= factory instanceof SpotIntensityMultiCAnalyzerFactory;
+			if ( factory instanceof SpotContrastAndSNRAnalyzerFactory )
+				contrastKey = factory.getKey();
+		}
+		final boolean fuseIntensityAndContrast = hasIntensity && contrastKey != null;
+
+		/*
+		 * In each frame, analyzers run in the same order as they would on a
+		 * single thread: channel by channel, and in the order of the
+		 * factories, so that an analyzer can read the features computed by
+		 * the previous ones. Analyzers that process spots one by one are
+		 * grouped, and each task runs a group on a chunk of spots. The chunks
+		 * of a frame, and the frames, are processed in parallel. An analyzer
+		 * that needs all the spots of a frame waits for all the chunks before
+		 * it, and the chunks after it wait for it.
+		 */
+		final long workToDo = Math.max( 1L, ( long ) toCompute.getNSpots( false ) * nChannels * factories.size() );
+		final AtomicLong progress = new AtomicLong( 0 );
+		final AtomicInteger nErrors = new AtomicInteger( 0 );
+		final AtomicReference< Throwable > firstError = new AtomicReference<>();
+		final BiConsumer< Collection< String >, Throwable > onError = ( keys, e ) -> {
+			nErrors.incrementAndGet();
+			firstError.compareAndSet( null, e );
+			failedAnalyzers.addAll( keys );
+		};
+		final ExecutorService executorService = Threads.newWorkStealingPool( Math.max( 1, numThreads ) );
+		final List< CompletableFuture< Void > > futures = new ArrayList<>();
+		for ( final Integer frame : frameSet )
 		{
-			final int index = iFrame;
-			// Create one task per frame.
-			final Callable< Void > frameTask = new Callable< Void >()
+			final List< Spot > spots = new ArrayList<>();
+			toCompute.iterable( frame, false ).forEach( spots::add );
+			if ( spots.isEmpty() )
+				continue;
+			// Chunks of spots that are close in the image.
+			SpotSpatialOrder.sort( spots, calibration );
+
+			final int chunkSize = Math.max( MIN_CHUNK_SIZE, ( spots.size() - 1 ) / ( CHUNKS_PER_THREAD * Math.max( 1, numThreads ) ) + 1 );
+			final List< List< Spot > > chunks = new ArrayList<>();
+			for ( int i = 0; i < spots.size(); i += chunkSize )
+				chunks.add( spots.subList( i, Math.min( spots.size(), i + chunkSize ) ) );
+
+			// Tasks of the last stage, one per chunk.
+			List< CompletableFuture< Void > > previous = null;
+			final List< AbstractSpotFeatureAnalyzer< ? > > group = new ArrayList<>();
+			final List< List< String > > groupKeys = new ArrayList<>();
+			for ( int channel = 0; channel < nChannels; channel++ )
 			{
-				@Override
-				public Void call() throws Exception
+				for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
 				{
-					final int frame = frameSet.get( index );
-
-					for ( int channel = 0; channel < settings.imp.getNChannels(); channel++ )
+					// Contrast is computed with intensity.
+					if ( fuseIntensityAndContrast && factory instanceof SpotContrastAndSNRAnalyzerFactory )
+					{
+						progress.addAndGet( spots.size() );
+						continue;
+					}
+
+					final boolean fused = fuseIntensityAndContrast && factory instanceof SpotIntensityMultiCAnalyzerFactory;
+					@SuppressWarnings( "unchecked" )
+					final SpotAnalyzer< ? > analyzer = fused
+							? new SpotIntensityAndContrastAnalyzer<>( HyperSliceCache.getInstance().get( settings.imp, channel, frame ), channel )
+							: factory.getAnalyzer( img, frame, channel );
+					final List< String > keys = fused
+							? Arrays.asList( factory.getKey(), contrastKey )
+							: Collections.singletonList( factory.getKey() );
+
+					if ( analyzer instanceof AbstractSpotFeatureAnalyzer )
 					{
-						for ( final SpotAnalyzerFactoryBase< ? > factory : analyzerFactories )
+						group.add( ( AbstractSpotFeatureAnalyzer< ? > ) analyzer );
+						groupKeys.add( keys );
+						continue;
+					}
+
+					// Analyzer that needs all the spots of the frame.
+					previous = submitChunks( group, groupKeys, chunks, previous, executorService, logger, progress, workToDo, onError );
+					group.clear();
+					groupKeys.clear();
+
+					// Fine-tune multithreading if we can.
+					if ( analyzer instanceof MultiThreaded )
+						( ( MultiThreaded ) analyzer ).setNumThreads( threadsPerFrame );
+
+					final Runnable task = () -> {
+						if ( isCanceled() )
+							return;
+						try
 						{
-							if ( isCanceled() )
-								return null;
-
-
-							@SuppressWarnings( "unchecked" )
-							final SpotAnalyzer< ? > analyzer = factory.getAnalyzer( img, frame, channel );
-							// Fine-tune multithreading if we can.
-							if ( analyzer instanceof MultiThreaded )
-								( ( MultiThreaded ) analyzer ).setNumThreads( threadsPerFrame );
-
-							analyzer.process( toCompute.iterable( frame, false ) );
-
-							logger.setProgress( progress.incrementAndGet() / ( double ) workToDo );
-						} // Finished looping over analyzers
-					} // Finished looping over channels
-
-					return null;
-				}
-			};
-			tasks.add( frameTask );
-		}
+							analyzer.process( spots );
+						}
+						catch ( final Exception e )
+						{
+							onError.accept( keys, e );
+						}
+						logger.setProgress( progress.addAndGet( spots.size() ) / ( double ) workToDo );
+					};
+					final CompletableFuture< Void > future = after( previous ).thenRunAsync( task, executorService );
+					previous = Collections.nCopies( chunks.size(), future );
+				} // Finished looping over analyzers
+			} // Finished looping over channels
+
+			previous = submitChunks( group, groupKeys, chunks, previous, executorService, logger, progress, workToDo, onError );
+			if ( previous != null )
+				futures.addAll( previous );
+		} // Finished looping over frames
 
-		final ExecutorService executorService = Threads.newFixedThreadPool( nSimultaneousFrames );
-		List< Future< Void > > futures;
 		try
 		{
-			futures = executorService.invokeAll( tasks );
-			for ( final Future< Void > future : futures )
-				future.get();
+			CompletableFuture.allOf( futures.toArray( new CompletableFuture[ futures.size() ] ) ).join();
 		}
-		catch ( InterruptedException | ExecutionException e )
+		catch ( final CompletionException | CancellationException e )
 		{
-			e.printStackTrace();
+			// We do not know which analyzer failed.
+			final List< String > keys = new ArrayList<>();
+			for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+				keys.add( factory.getKey() );
+			onError.accept( keys, e.getCause() == null ? e : e.getCause() );
 		}
 
 		executorService.shutdown();
@@ -242,6 +382,124 @@ public class SpotFeatureCalculator extends MultiThreadedBenchmarkAlgorithm imple
 
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
+
+		if ( nErrors.get() > 0 )
+		{
+			final Throwable e = firstError.get();
+			errorMessage = BASE_ERROR_MSG + "Computing spot features failed " + nErrors.get() + " time(s). First error: " + e.getClass().getSimpleName() + ": " + e.getMessage();
+			model.getLogger().error( errorMessage + '\n' );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Submits one task per chunk, that runs the specified analyzers one after
+	 * the other on the spots of the chunk, after the task of the previous
+	 * stage for the same chunk. Errors are reported with the factory keys of
+	 * the analyzer that threw them.
+	 *
+	 * @return the tasks, one per chunk. If there are no analyzers, returns the
+	 *         tasks of the previous stage.
+	 */
+	private List< CompletableFuture< Void > > submitChunks(
+			final List< AbstractSpotFeatureAnalyzer< ? > > group,
+			final List< List< String > > groupKeys,
+			final List< List< Spot > > chunks,
+			final List< CompletableFuture< Void > > previous,
+			final ExecutorService executorService,
+			final Logger logger,
+			final AtomicLong progress,
+			final long workToDo,
+			final BiConsumer< Collection< String >, Throwable > onError )
+	{
+		if ( group.isEmpty() )
+			return previous;
+
+		final List< AbstractSpotFeatureAnalyzer< ? > > analyzers = new ArrayList<>( group );
+		final List< List< String > > keys = new ArrayList<>( groupKeys );
+		final List< CompletableFuture< Void > > tasks = new ArrayList<>( chunks.size() );
+		for ( int i = 0; i < chunks.size(); i++ )
+		{
+			final List< Spot > chunk = chunks.get( i );
+			final Runnable task = () -> {
+				for ( int a = 0; a < analyzers.size(); a++ )
+				{
+					final AbstractSpotFeatureAnalyzer< ? > analyzer = analyzers.get( a );
+					for ( final Spot spot : chunk )
+					{
+						if ( isCanceled() )
+							return;
+						try
+						{
+							analyzer.process( spot );
+						}
+						catch ( final Exception e )
+						{
+							onError.accept( keys.get( a ), e );
+						}
+					}
+					logger.setProgress( progress.addAndGet( chunk.size() ) / ( double ) workToDo );
+				}
+			};
+			final CompletableFuture< Void > after = ( previous == null )
+					? CompletableFuture.completedFuture( null )
+					: previous.get( i );
+			tasks.add( after.thenRunAsync( task, executorService ) );
+		}
+		return tasks;
+	}
+
+	/**
+	 * Returns a future that completes when all the specified tasks complete.
+	 */
+	private static CompletableFuture< Void > after( final List< CompletableFuture< Void > > tasks )
+	{
+		if ( tasks == null )
+			return CompletableFuture.completedFuture( null );
+		return CompletableFuture.allOf( new HashSet<>( tasks ).toArray( new CompletableFuture[ 0 ] ) );
+	}
+
+	/**
+	 * Returns the specified factories, ordered so that each factory comes
+	 * after the factories it depends on. The order is otherwise preserved.
+	 * Factories involved in a circular dependency are left in their original
+	 * order.
+	 */
+	static List< SpotAnalyzerFactoryBase< ? > > sortByDependencies( final List< SpotAnalyzerFactoryBase< ? > > factories )
+	{
+		final Set< String > keys = new HashSet<>();
+		for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+			keys.add( factory.getKey() );
+
+		final List< SpotAnalyzerFactoryBase< ? > > toSort = new ArrayList<>( factories );
+		final List< SpotAnalyzerFactoryBase< ? > > sorted = new ArrayList<>( factories.size() );
+		final Set< String > done = new HashSet<>();
+		while ( !toSort.isEmpty() )
+		{
+			SpotAnalyzerFactoryBase< ? > next = null;
+			for ( final SpotAnalyzerFactoryBase< ? > factory : toSort )
+			{
+				boolean ready = true;
+				for ( final String dependency : factory.getDependencies() )
+					ready &= !keys.contains( dependency ) || done.contains( dependency );
+				if ( ready )
+				{
+					next = factory;
+					break;
+				}
+			}
+			if ( null == next )
+			{
+				// Circular dependency.
+				sorted.addAll( toSort );
+				break;
+			}
+			toSort.remove( next );
+			sorted.add( next );
+			done.add( next.getKey() );
+		}
+		return sorted;
 	}
 
 	// --- org.scijava.Cancelable methods ---
@@ -22,9 +22,11 @@
 package fiji.plugin.trackmate.features.manual;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.swing.ImageIcon;
 
@@ -33,6 +35,7 @@ import org.scijava.plugin.Plugin;
 import fiji.plugin.trackmate.Dimension;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerInput;
 import net.imagej.ImgPlus;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
@@ -74,6 +77,12 @@ public class ManualSpotColorAnalyzerFactory< T extends RealType< T > & NativeTyp
 		return KEY;
 	}
 
+	@Override
+	public Set< SpotAnalyzerInput > getInputs()
+	{
+		return EnumSet.noneOf( SpotAnalyzerInput.class );
+	}
+
 	@Override
 	public List< String > getFeatures()
 	{
@@ -37,6 +37,9 @@ import net.imglib2.type.numeric.RealType;
 public abstract class AbstractSpotFeatureAnalyzer< T extends RealType< T > > implements SpotAnalyzer< T >, MultiThreaded, Benchmark
 {
 
+	/** Target number of chunks per thread in {@link #process(Iterable)}. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
 	protected String errorMessage;
 
 	private long processingTime;
@@ -50,26 +53,41 @@ public abstract class AbstractSpotFeatureAnalyzer< T extends RealType< T > > imp
 		setNumThreads();
 	}
 
+	/**
+	 * Processes the specified spots in parallel. The spots are split in
+	 * contiguous chunks, a few per thread, and each chunk is processed by a
+	 * single task. Analyzers that keep per-thread scratch space can therefore
+	 * reuse it over a whole chunk.
+	 */
 	@Override
 	public void process( final Iterable< Spot > spots )
 	{
 		final long start = System.currentTimeMillis();
 
+		final List< Spot > list = new ArrayList<>();
+		spots.forEach( list::add );
+		final int nThreads = Math.max( 1, numThreads );
+		final int chunkSize = Math.max( 1, ( list.size() - 1 ) / ( CHUNKS_PER_THREAD * nThreads ) + 1 );
+
 		final List< Callable< Void > > tasks = new ArrayList<>();
-		for ( final Spot spot : spots )
+		for ( int i = 0; i < list.size(); i += chunkSize )
 		{
+			final List< Spot > chunk = list.subList( i, Math.min( list.size(), i + chunkSize ) );
 			final Callable< Void > task = new Callable< Void >()
 			{
 				@Override
 				public Void call() throws Exception
 				{
-					try
-					{
-						process( spot );
-					}
-					catch ( final Exception e )
+					for ( final Spot spot : chunk )
 					{
-						e.printStackTrace();
+						try
+						{
+							process( spot );
+						}
+						catch ( final Exception e )
+						{
+							e.printStackTrace();
+						}
 					}
 					return null;
 				}
@@ -77,7 +95,7 @@ public abstract class AbstractSpotFeatureAnalyzer< T extends RealType< T > > imp
 			tasks.add( task );
 		}
 
-		final ExecutorService executorService = Threads.newFixedThreadPool( numThreads );
+		final ExecutorService executorService = Threads.newFixedThreadPool( nThreads );
 		try
 		{
 			final List< Future< Void > > futures = executorService.invokeAll( tasks );
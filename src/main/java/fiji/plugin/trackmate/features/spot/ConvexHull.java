@@ -21,118 +21,227 @@
  */
 package fiji.plugin.trackmate.features.spot;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
 import fiji.plugin.trackmate.SpotRoi;
 
 /**
+ * Convex hull of polygons, with Andrew's monotone chain algorithm.
+ * <p>
+ * The computation works on primitive arrays. The sorted vertices and the
+ * hull are stored in per-thread buffers that grow as needed and are reused
+ * from one polygon to the next, so that computing the convex hull area of
+ * many ROIs does not allocate.
+ * <p>
  * Adapted from a code by Kirill Artemov,
  * https://github.com/DoctorGester/cia-stats.
  */
 public final class ConvexHull
 {
 
-	private static List< Point > makeHull( final List< Point > points )
+	private static final ThreadLocal< Workspace > WORKSPACES = ThreadLocal.withInitial( Workspace::new );
+
+	private ConvexHull()
+	{}
+
+	/**
+	 * Returns the convex hull of the specified ROI.
+	 *
+	 * @param roi
+	 *            the ROI.
+	 * @return a new ROI, made of the vertices of the convex hull.
+	 */
+	public static SpotRoi convexHull( final SpotRoi roi )
 	{
-		final List< Point > newPoints = new ArrayList<>( points );
-		Collections.sort( newPoints );
-		return makeHullPresorted( newPoints );
+		final Workspace ws = WORKSPACES.get();
+		final int n = ws.hull( roi.x, roi.y );
+		final double[] xhull = new double[ n ];
+		final double[] yhull = new double[ n ];
+		System.arraycopy( ws.xh, 0, xhull, 0, n );
+		System.arraycopy( ws.yh, 0, yhull, 0, n );
+		return new SpotRoi( xhull, yhull );
 	}
 
-	private static List< Point > makeHullPresorted( final List< Point > points )
+	/**
+	 * Returns the area of the convex hull of the specified polygon. This does
+	 * not allocate once the per-thread buffers are large enough for the
+	 * polygon.
+	 *
+	 * @param x
+	 *            the X coordinates of the polygon vertices.
+	 * @param y
+	 *            the Y coordinates of the polygon vertices.
+	 * @return the area of the convex hull.
+	 */
+	public static double convexHullArea( final double[] x, final double[] y )
 	{
-		if ( points.size() <= 1 )
-			return new ArrayList<>( points );
+		final Workspace ws = WORKSPACES.get();
+		final int n = ws.hull( x, y );
+		// Same summation order as SpotRoi#area().
+		double a = 0.0;
+		for ( int i = 0; i < n - 1; i++ )
+			a += ws.xh[ i ] * ws.yh[ i + 1 ] - ws.xh[ i + 1 ] * ws.yh[ i ];
+		return Math.abs( ( a + ws.xh[ n - 1 ] * ws.yh[ 0 ] - ws.xh[ 0 ] * ws.yh[ n - 1 ] ) / 2.0 );
+	}
 
-		final List< Point > upperHull = new ArrayList<>();
-		for ( final Point p : points )
+	/**
+	 * Lexicographic comparison on (x, y), consistent with
+	 * {@link Double#compare(double, double)}.
+	 */
+	private static int compare( final double x1, final double y1, final double x2, final double y2 )
+	{
+		if ( x1 != x2 )
+			return Double.compare( x1, x2 );
+		return Double.compare( y1, y2 );
+	}
+
+	/**
+	 * Returns <code>true</code> if the point p does not make a strict
+	 * clockwise turn after the segment r-q.
+	 */
+	private static boolean notClockwise( final double rx, final double ry, final double qx, final double qy, final double px, final double py )
+	{
+		return ( qx - rx ) * ( py - ry ) >= ( qy - ry ) * ( px - rx );
+	}
+
+	private static final class Workspace
+	{
+
+		/** Sorted vertices. */
+		private double[] xs = new double[ 64 ];
+
+		private double[] ys = new double[ 64 ];
+
+		/** Hull vertices: upper hull followed by lower hull. */
+		private double[] xh = new double[ 128 ];
+
+		private double[] yh = new double[ 128 ];
+
+		/**
+		 * Computes the convex hull of the specified polygon in {@link #xh} and
+		 * {@link #yh}, and returns its number of vertices.
+		 */
+		private int hull( final double[] x, final double[] y )
 		{
-			while ( upperHull.size() >= 2 )
+			final int n = x.length;
+			if ( xs.length < n )
 			{
-				final Point q = upperHull.get( upperHull.size() - 1 );
-				final Point r = upperHull.get( upperHull.size() - 2 );
-				if ( ( q.x - r.x ) * ( p.y - r.y ) >= ( q.y - r.y ) * ( p.x - r.x ) )
-					upperHull.remove( upperHull.size() - 1 );
-				else
-					break;
+				xs = new double[ n ];
+				ys = new double[ n ];
+				xh = new double[ 2 * n ];
+				yh = new double[ 2 * n ];
 			}
-			upperHull.add( p );
-		}
-		upperHull.remove( upperHull.size() - 1 );
+			System.arraycopy( x, 0, xs, 0, n );
+			System.arraycopy( y, 0, ys, 0, n );
+			sort( 0, n - 1 );
 
-		final List< Point > lowerHull = new ArrayList<>();
-		for ( int i = points.size() - 1; i >= 0; i-- )
-		{
-			final Point p = points.get( i );
-			while ( lowerHull.size() >= 2 )
+			if ( n <= 1 )
 			{
-				final Point q = lowerHull.get( lowerHull.size() - 1 );
-				final Point r = lowerHull.get( lowerHull.size() - 2 );
-				if ( ( q.x - r.x ) * ( p.y - r.y ) >= ( q.y - r.y ) * ( p.x - r.x ) )
-					lowerHull.remove( lowerHull.size() - 1 );
-				else
-					break;
+				System.arraycopy( xs, 0, xh, 0, n );
+				System.arraycopy( ys, 0, yh, 0, n );
+				return n;
 			}
-			lowerHull.add( p );
-		}
-		lowerHull.remove( lowerHull.size() - 1 );
-
-		if ( !( upperHull.size() == 1 && upperHull.equals( lowerHull ) ) )
-			upperHull.addAll( lowerHull );
-		return upperHull;
-	}
-
-	private static final class Point implements Comparable< Point >
-	{
 
-		public final double x;
+			// Upper hull.
+			int top = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				final double px = xs[ i ];
+				final double py = ys[ i ];
+				while ( top >= 2 && notClockwise( xh[ top - 2 ], yh[ top - 2 ], xh[ top - 1 ], yh[ top - 1 ], px, py ) )
+					top--;
+				xh[ top ] = px;
+				yh[ top ] = py;
+				top++;
+			}
+			final int nUpper = top - 1;
 
-		public final double y;
+			// Lower hull, stored right after the upper hull.
+			top = nUpper;
+			for ( int i = n - 1; i >= 0; i-- )
+			{
+				final double px = xs[ i ];
+				final double py = ys[ i ];
+				while ( top - nUpper >= 2 && notClockwise( xh[ top - 2 ], yh[ top - 2 ], xh[ top - 1 ], yh[ top - 1 ], px, py ) )
+					top--;
+				xh[ top ] = px;
+				yh[ top ] = py;
+				top++;
+			}
+			final int nLower = top - 1 - nUpper;
 
-		public Point( final double x, final double y )
-		{
-			this.x = x;
-			this.y = y;
+			// All points identical: a single vertex.
+			if ( nUpper == 1 && nLower == 1 && xh[ 0 ] == xh[ 1 ] && yh[ 0 ] == yh[ 1 ] )
+				return 1;
+			return nUpper + nLower;
 		}
 
-		@Override
-		public boolean equals( final Object obj )
+		/**
+		 * Sorts the vertices in {@link #xs} and {@link #ys} between the two
+		 * specified indices, inclusive.
+		 */
+		private void sort( int lo, int hi )
 		{
-			if ( !( obj instanceof Point ) )
-				return false;
-			else
+			while ( hi - lo > 16 )
 			{
-				final Point other = ( Point ) obj;
-				return x == other.x && y == other.y;
+				// Median of three as pivot.
+				final int mid = ( lo + hi ) >>> 1;
+				if ( compare( xs[ mid ], ys[ mid ], xs[ lo ], ys[ lo ] ) < 0 )
+					swap( mid, lo );
+				if ( compare( xs[ hi ], ys[ hi ], xs[ lo ], ys[ lo ] ) < 0 )
+					swap( hi, lo );
+				if ( compare( xs[ hi ], ys[ hi ], xs[ mid ], ys[ mid ] ) < 0 )
+					swap( hi, mid );
+				final double pivotX = xs[ mid ];
+				final double pivotY = ys[ mid ];
+
+				int i = lo;
+				int j = hi;
+				while ( i <= j )
+				{
+					while ( compare( xs[ i ], ys[ i ], pivotX, pivotY ) < 0 )
+						i++;
+					while ( compare( xs[ j ], ys[ j ], pivotX, pivotY ) > 0 )
+						j--;
+					if ( i <= j )
+						swap( i++, j-- );
+				}
+				// Recurse on the smaller part, loop on the larger one.
+				if ( j - lo < hi - i )
+				{
+					sort( lo, j );
+					lo = i;
+				}
+				else
+				{
+					sort( i, hi );
+					hi = j;
+				}
 			}
-		}
 
-		@Override
-		public int compareTo( final Point other )
-		{
-			if ( x != other.x )
-				return Double.compare( x, other.x );
-			else
-				return Double.compare( y, other.y );
+			// Insertion sort for small ranges.
+			for ( int i = lo + 1; i <= hi; i++ )
+			{
+				final double px = xs[ i ];
+				final double py = ys[ i ];
+				int j = i - 1;
+				while ( j >= lo && compare( xs[ j ], ys[ j ], px, py ) > 0 )
+				{
+					xs[ j + 1 ] = xs[ j ];
+					ys[ j + 1 ] = ys[ j ];
+					j--;
+				}
+				xs[ j + 1 ] = px;
+				ys[ j + 1 ] = py;
+			}
 		}
-	}
 
-	public static SpotRoi convexHull( final SpotRoi roi )
-	{
-		final List< Point > points = new ArrayList<>( roi.x.length );
-		for ( int i = 0; i < roi.x.length; i++ )
-			points.add( new Point( roi.x[ i ], roi.y[ i ] ) );
-
-		final List< Point > hull = makeHull( points );
-		final double[] xhull = new double[ hull.size() ];
-		final double[] yhull = new double[ hull.size() ];
-		for ( int i = 0; i < yhull.length; i++ )
+		private void swap( final int i, final int j )
 		{
-			xhull[ i ] = hull.get( i ).x;
-			yhull[ i ] = hull.get( i ).y;
+			final double tx = xs[ i ];
+			xs[ i ] = xs[ j ];
+			xs[ j ] = tx;
+			final double ty = ys[ i ];
+			ys[ i ] = ys[ j ];
+			ys[ j ] = ty;
 		}
-		return new SpotRoi( xhull, yhull );
 	}
 }
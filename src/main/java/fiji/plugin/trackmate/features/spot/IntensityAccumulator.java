@@ -0,0 +1,238 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features.spot;
+
+import java.util.Arrays;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Accumulates the pixel values of one spot and computes their statistics in
+ * linear time.
+ * <p>
+ * Min, max and sum are updated as values are added. The median is computed
+ * by selection (quickselect) on the value buffer, or with a counting
+ * histogram for 8-bit and 16-bit unsigned images. The buffers are reused
+ * from one spot to the next, so that an instance is meant to be used by one
+ * thread at a time, for instance via a {@link ThreadLocal}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+final class IntensityAccumulator
+{
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * Histogram used for the median of integer images. <code>null</code> if
+	 * the median is computed by selection.
+	 */
+	private final int[] histogram;
+
+	private double[] values = new double[ INITIAL_CAPACITY ];
+
+	private int n;
+
+	private double sum;
+
+	private double min;
+
+	private double max;
+
+	private IntensityAccumulator( final int histogramSize )
+	{
+		this.histogram = histogramSize > 0 ? new int[ histogramSize ] : null;
+		reset();
+	}
+
+	/**
+	 * Creates a per-thread accumulator suited to the pixel type of the
+	 * specified image.
+	 *
+	 * @param type
+	 *            a pixel of the image to compute statistics on.
+	 * @return a new {@link ThreadLocal}.
+	 */
+	static final ThreadLocal< IntensityAccumulator > threadLocal( final RealType< ? > type )
+	{
+		final int histogramSize;
+		if ( type instanceof UnsignedByteType )
+			histogramSize = 1 << 8;
+		else if ( type instanceof UnsignedShortType )
+			histogramSize = 1 << 16;
+		else
+			histogramSize = 0;
+		return ThreadLocal.withInitial( () -> new IntensityAccumulator( histogramSize ) );
+	}
+
+	/**
+	 * Empties this accumulator. Must be called before accumulating the values
+	 * of a new spot.
+	 *
+	 * @return this accumulator.
+	 */
+	IntensityAccumulator reset()
+	{
+		n = 0;
+		sum = 0.;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+		return this;
+	}
+
+	void add( final double value )
+	{
+		if ( n == values.length )
+			values = Arrays.copyOf( values, 2 * n );
+		values[ n++ ] = value;
+		sum += value;
+		if ( value < min )
+			min = value;
+		if ( value > max )
+			max = value;
+	}
+
+	int size()
+	{
+		return n;
+	}
+
+	double sum()
+	{
+		return sum;
+	}
+
+	double min()
+	{
+		return min;
+	}
+
+	double max()
+	{
+		return max;
+	}
+
+	double mean()
+	{
+		return sum / n;
+	}
+
+	/**
+	 * Returns the sample standard deviation of the accumulated values.
+	 */
+	double std()
+	{
+		final double mean = mean();
+		double variance = 0.;
+		for ( int i = 0; i < n; i++ )
+		{
+			final double dx = values[ i ] - mean;
+			variance += dx * dx;
+		}
+		return Math.sqrt( variance / ( n - 1 ) );
+	}
+
+	/**
+	 * Returns the element of rank <code>n/2</code> of the accumulated values,
+	 * that is the same value as <code>sorted[ n / 2 ]</code>. This may
+	 * reorder the values, so it must be called after {@link #std()}.
+	 */
+	double median()
+	{
+		if ( n == 0 )
+			return Double.NaN;
+
+		final int k = n / 2;
+		if ( null != histogram )
+			return histogramSelect( k );
+		return quickSelect( k );
+	}
+
+	private double histogramSelect( final int k )
+	{
+		final int lo = ( int ) min;
+		final int hi = ( int ) max;
+		Arrays.fill( histogram, lo, hi + 1, 0 );
+		for ( int i = 0; i < n; i++ )
+			histogram[ ( int ) values[ i ] ]++;
+
+		int count = 0;
+		for ( int v = lo; v <= hi; v++ )
+		{
+			count += histogram[ v ];
+			if ( count > k )
+				return v;
+		}
+		return hi;
+	}
+
+	private double quickSelect( final int k )
+	{
+		final double[] a = values;
+		int left = 0;
+		int right = n - 1;
+		while ( right > left )
+		{
+			// Median of three as pivot.
+			final int mid = ( left + right ) >>> 1;
+			if ( a[ mid ] < a[ left ] )
+				swap( a, left, mid );
+			if ( a[ right ] < a[ left ] )
+				swap( a, left, right );
+			if ( a[ right ] < a[ mid ] )
+				swap( a, mid, right );
+			final double pivot = a[ mid ];
+
+			int i = left;
+			int j = right;
+			while ( i <= j )
+			{
+				while ( a[ i ] < pivot )
+					i++;
+				while ( a[ j ] > pivot )
+					j--;
+				if ( i <= j )
+				{
+					swap( a, i, j );
+					i++;
+					j--;
+				}
+			}
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				return a[ k ];
+		}
+		return a[ k ];
+	}
+
+	private static final void swap( final double[] a, final int i, final int j )
+	{
+		final double tmp = a[ i ];
+		a[ i ] = a[ j ];
+		a[ j ] = tmp;
+	}
+}
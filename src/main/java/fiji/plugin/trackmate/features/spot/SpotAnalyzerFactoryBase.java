@@ -21,6 +21,11 @@
  */
 package fiji.plugin.trackmate.features.spot;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
 import fiji.plugin.trackmate.features.FeatureAnalyzer;
 import net.imagej.ImgPlus;
 import net.imglib2.type.NativeType;
@@ -74,4 +79,35 @@ public interface SpotAnalyzerFactoryBase< T extends RealType< T > & NativeType<
 		 * Do nothing. Most analyzer factories need not to know this in advance.
 		 */
 	}
+
+	/**
+	 * Returns the keys of the analyzer factories this factory depends on.
+	 * <p>
+	 * The analyzers created by this factory will only process a spot after
+	 * the analyzers of these factories have processed it, for the same frame
+	 * and channel. This is required when an analyzer reads features computed
+	 * by another one. Dependencies that are not configured for computation
+	 * are ignored.
+	 *
+	 * @return the keys of the factories this factory depends on.
+	 */
+	public default Collection< String > getDependencies()
+	{
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Returns the inputs the analyzers created by this factory depend on.
+	 * <p>
+	 * When spots are edited, their features are only recomputed by the
+	 * analyzers that depend on an input that changed. By default, analyzers
+	 * are assumed to depend on the spot position, radius, ROI and frame, but
+	 * not on the spot links.
+	 *
+	 * @return the set of inputs.
+	 */
+	public default Set< SpotAnalyzerInput > getInputs()
+	{
+		return EnumSet.of( SpotAnalyzerInput.POSITION, SpotAnalyzerInput.RADIUS, SpotAnalyzerInput.ROI, SpotAnalyzerInput.FRAME );
+	}
 }
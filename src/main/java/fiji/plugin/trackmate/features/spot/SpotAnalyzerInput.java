@@ -0,0 +1,43 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features.spot;
+
+/**
+ * The inputs a spot analyzer can depend on. They are used to determine what
+ * analyzers need to be run again after a spot has been edited.
+ *
+ * @author Jean-Yves Tinevez
+ * @see SpotAnalyzerFactoryBase#getInputs()
+ */
+public enum SpotAnalyzerInput
+{
+	/** The spot X, Y, Z position. */
+	POSITION,
+	/** The spot radius. */
+	RADIUS,
+	/** The spot ROI, or its shape if it has one. */
+	ROI,
+	/** The frame the spot belongs to. */
+	FRAME,
+	/** The links of the spot to other spots. */
+	TOPOLOGY;
+}
@@ -25,6 +25,8 @@ import static fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFac
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -89,6 +91,12 @@ public class SpotContrastAndSNRAnalyzerFactory< T extends RealType< T > & Native
 		return KEY;
 	}
 
+	@Override
+	public Collection< String > getDependencies()
+	{
+		return Collections.singletonList( SpotIntensityMultiCAnalyzerFactory.KEY );
+	}
+
 	@Override
 	public List< String > getFeatures()
 	{
@@ -54,13 +54,14 @@ public class SpotFitEllipseAnalyzer< T extends RealType< T > > extends AbstractS
 			final SpotRoi roi = spot.getRoi();
 			if ( roi != null )
 			{
-				final double[] Q = fitEllipse( roi.x, roi.y );
-				final double[] A = quadraticToCartesian( Q );
-				x0 = A[ 0 ];
-				y0 = A[ 1 ];
-				major = A[ 2 ];
-				minor = A[ 3 ];
-				theta = A[ 4 ];
+				final Workspace ws = WORKSPACES.get();
+				fitEllipse( roi.x, roi.y, ws );
+				quadraticToCartesian( ws.q, ws.a );
+				x0 = ws.a[ 0 ];
+				y0 = ws.a[ 1 ];
+				major = ws.a[ 2 ];
+				minor = ws.a[ 3 ];
+				theta = ws.a[ 4 ];
 				aspectRatio = major / minor;
 			}
 			else
@@ -91,6 +92,311 @@ public class SpotFitEllipseAnalyzer< T extends RealType< T > > extends AbstractS
 		spot.putFeature( SpotFitEllipseAnalyzerFactory.ASPECTRATIO, aspectRatio );
 	}
 
+	/**
+	 * Fits an ellipse to the specified polygon, and stores its algebraic
+	 * parameters in the {@link Workspace#q} array of the specified workspace.
+	 * <p>
+	 * The fit is computed in closed form, with the 3x3 reduced generalized
+	 * eigen-problem of Halir &amp; Flusser solved analytically. This does not
+	 * allocate. We fall back to the SVD / eigen-decomposition implementation
+	 * for degenerate polygons, for which the scatter matrix cannot be
+	 * inverted or the eigenvectors cannot be separated.
+	 * <p>
+	 * The parameters are normed and their sign is chosen so that
+	 * <i>a</i> + <i>c</i> &gt; 0.
+	 */
+	static void fitEllipse( final double[] x, final double[] y, final Workspace ws )
+	{
+		final double[] q = ws.q;
+		if ( !fitEllipseClosedForm( x, y, ws ) )
+		{
+			final double[] a = fitEllipse( x, y );
+			System.arraycopy( a, 0, q, 0, 6 );
+		}
+		if ( q[ 0 ] + q[ 2 ] < 0. )
+			for ( int i = 0; i < 6; i++ )
+				q[ i ] = -q[ i ];
+	}
+
+	/**
+	 * Closed-form version of {@link #fitEllipse(double[], double[])}. Returns
+	 * <code>false</code> if the polygon is degenerate for this method.
+	 */
+	static boolean fitEllipseClosedForm( final double[] x, final double[] y, final Workspace ws )
+	{
+		final int nPoints = x.length;
+		if ( nPoints < 5 )
+			return false;
+
+		double xC = 0.;
+		double yC = 0.;
+		for ( int i = 0; i < nPoints; i++ )
+		{
+			xC += x[ i ];
+			yC += y[ i ];
+		}
+		xC /= nPoints;
+		yC /= nPoints;
+
+		/*
+		 * Centered moments, up to order 4. They give the scatter matrices S1 =
+		 * D1' D1, S2 = D1' D2 and S3 = D2' D2 of the design matrices D1 = [ u^2
+		 * uv v^2 ] and D2 = [ u v 1 ].
+		 */
+		double u1 = 0., v1 = 0.;
+		double u2 = 0., uv = 0., v2 = 0.;
+		double u3 = 0., u2v = 0., uv2 = 0., v3 = 0.;
+		double u4 = 0., u3v = 0., u2v2 = 0., uv3 = 0., v4 = 0.;
+		for ( int i = 0; i < nPoints; i++ )
+		{
+			final double u = x[ i ] - xC;
+			final double v = y[ i ] - yC;
+			final double uu = u * u;
+			final double uvi = u * v;
+			final double vv = v * v;
+			u1 += u;
+			v1 += v;
+			u2 += uu;
+			uv += uvi;
+			v2 += vv;
+			u3 += uu * u;
+			u2v += uu * v;
+			uv2 += u * vv;
+			v3 += vv * v;
+			u4 += uu * uu;
+			u3v += uu * uvi;
+			u2v2 += uu * vv;
+			uv3 += uvi * vv;
+			v4 += vv * vv;
+		}
+
+		final double[] s1 = ws.s1;
+		s1[ 0 ] = u4;
+		s1[ 1 ] = u3v;
+		s1[ 2 ] = u2v2;
+		s1[ 3 ] = u3v;
+		s1[ 4 ] = u2v2;
+		s1[ 5 ] = uv3;
+		s1[ 6 ] = u2v2;
+		s1[ 7 ] = uv3;
+		s1[ 8 ] = v4;
+
+		final double[] s2 = ws.s2;
+		s2[ 0 ] = u3;
+		s2[ 1 ] = u2v;
+		s2[ 2 ] = u2;
+		s2[ 3 ] = u2v;
+		s2[ 4 ] = uv2;
+		s2[ 5 ] = uv;
+		s2[ 6 ] = uv2;
+		s2[ 7 ] = v3;
+		s2[ 8 ] = v2;
+
+		// Inverse of the symmetric matrix S3, with its adjugate.
+		final double n = nPoints;
+		final double i00 = v2 * n - v1 * v1;
+		final double i01 = v1 * u1 - uv * n;
+		final double i02 = uv * v1 - v2 * u1;
+		final double i11 = u2 * n - u1 * u1;
+		final double i12 = uv * u1 - u2 * v1;
+		final double i22 = u2 * v2 - uv * uv;
+		final double det = u2 * i00 + uv * i01 + u1 * i02;
+		if ( !( det > SINGULAR_TOLERANCE * u2 * v2 * n ) )
+			return false;
+
+		final double[] inv = ws.inv;
+		inv[ 0 ] = i00 / det;
+		inv[ 1 ] = i01 / det;
+		inv[ 2 ] = i02 / det;
+		inv[ 3 ] = inv[ 1 ];
+		inv[ 4 ] = i11 / det;
+		inv[ 5 ] = i12 / det;
+		inv[ 6 ] = inv[ 2 ];
+		inv[ 7 ] = inv[ 5 ];
+		inv[ 8 ] = i22 / det;
+
+		// T = - S3^-1 S2'.
+		final double[] t = ws.t;
+		for ( int i = 0; i < 3; i++ )
+			for ( int j = 0; j < 3; j++ )
+			{
+				double sum = 0.;
+				for ( int k = 0; k < 3; k++ )
+					sum += inv[ 3 * i + k ] * s2[ 3 * j + k ];
+				t[ 3 * i + j ] = -sum;
+			}
+
+		// M = S1 + S2 T.
+		final double[] m = ws.m;
+		for ( int i = 0; i < 3; i++ )
+			for ( int j = 0; j < 3; j++ )
+			{
+				double sum = s1[ 3 * i + j ];
+				for ( int k = 0; k < 3; k++ )
+					sum += s2[ 3 * i + k ] * t[ 3 * k + j ];
+				m[ 3 * i + j ] = sum;
+			}
+
+		// N = C^-1 M, with C the ellipse constraint matrix.
+		final double[] nm = ws.n;
+		for ( int j = 0; j < 3; j++ )
+		{
+			nm[ j ] = m[ 6 + j ] / 2;
+			nm[ 3 + j ] = -m[ 3 + j ];
+			nm[ 6 + j ] = m[ j ] / 2;
+		}
+
+		// Eigenvalues of N: the real roots of its characteristic polynomial.
+		final double c2 = -( nm[ 0 ] + nm[ 4 ] + nm[ 8 ] );
+		final double c1 = nm[ 0 ] * nm[ 4 ] - nm[ 1 ] * nm[ 3 ]
+				+ nm[ 0 ] * nm[ 8 ] - nm[ 2 ] * nm[ 6 ]
+				+ nm[ 4 ] * nm[ 8 ] - nm[ 5 ] * nm[ 7 ];
+		final double c0 = -( nm[ 0 ] * ( nm[ 4 ] * nm[ 8 ] - nm[ 5 ] * nm[ 7 ] )
+				- nm[ 1 ] * ( nm[ 3 ] * nm[ 8 ] - nm[ 5 ] * nm[ 6 ] )
+				+ nm[ 2 ] * ( nm[ 3 ] * nm[ 7 ] - nm[ 4 ] * nm[ 6 ] ) );
+		final double[] lambdas = ws.lambdas;
+		if ( !solveCubic( c2, c1, c0, lambdas ) )
+			return false;
+
+		/*
+		 * The eigenvector of the ellipse is the one that satisfies the
+		 * constraint 4ac - b^2 > 0. It is computed as the cross product of two
+		 * rows of N - lambda I.
+		 */
+		final double[] a = ws.q;
+		boolean found = false;
+		for ( final double lambda : lambdas )
+		{
+			if ( !eigenvector( nm, lambda, a ) )
+				continue;
+			if ( 4. * a[ 0 ] * a[ 2 ] - a[ 1 ] * a[ 1 ] > 0. )
+			{
+				found = true;
+				break;
+			}
+		}
+		if ( !found )
+			return false;
+
+		// A = [ A1 ; T A1 ], expressed back in the original coordinates.
+		final double a0 = a[ 0 ];
+		final double a1 = a[ 1 ];
+		final double a2 = a[ 2 ];
+		final double a3 = t[ 0 ] * a0 + t[ 1 ] * a1 + t[ 2 ] * a2;
+		final double a4 = t[ 3 ] * a0 + t[ 4 ] * a1 + t[ 5 ] * a2;
+		final double a5 = t[ 6 ] * a0 + t[ 7 ] * a1 + t[ 8 ] * a2;
+		a[ 3 ] = a3 - 2 * a0 * xC - a1 * yC;
+		a[ 4 ] = a4 - 2 * a2 * yC - a1 * xC;
+		a[ 5 ] = a5 + a0 * xC * xC + a2 * yC * yC + a1 * xC * yC - a3 * xC - a4 * yC;
+
+		double norm = 0.;
+		for ( int i = 0; i < 6; i++ )
+			norm += a[ i ] * a[ i ];
+		norm = Math.sqrt( norm );
+		if ( !( norm > 0. ) || Double.isInfinite( norm ) )
+			return false;
+		for ( int i = 0; i < 6; i++ )
+			a[ i ] /= norm;
+		return true;
+	}
+
+	/**
+	 * Computes the three real roots of the monic cubic polynomial x^3 + c2 x^2
+	 * + c1 x + c0, with the trigonometric method followed by a Newton
+	 * refinement. Returns <code>false</code> if the roots are not all real.
+	 */
+	private static boolean solveCubic( final double c2, final double c1, final double c0, final double[] roots )
+	{
+		final double shift = c2 / 3.;
+		final double p = c1 - c2 * shift;
+		final double q = 2. * shift * shift * shift - shift * c1 + c0;
+		if ( !( p < 0. ) )
+			return false;
+
+		final double r = Math.sqrt( -p / 3. );
+		double arg = -q / ( 2. * r * r * r );
+		if ( Double.isNaN( arg ) || Math.abs( arg ) > 1. + 1e-9 )
+			return false;
+		arg = Math.max( -1., Math.min( 1., arg ) );
+		final double phi = Math.acos( arg ) / 3.;
+		for ( int k = 0; k < 3; k++ )
+		{
+			double x = 2. * r * Math.cos( phi - 2. * Math.PI * k / 3. ) - shift;
+			for ( int iter = 0; iter < 2; iter++ )
+			{
+				final double f = ( ( x + c2 ) * x + c1 ) * x + c0;
+				final double df = ( 3. * x + 2. * c2 ) * x + c1;
+				if ( df == 0. )
+					break;
+				x -= f / df;
+			}
+			roots[ k ] = x;
+		}
+		return true;
+	}
+
+	/**
+	 * Computes an eigenvector of the 3x3 matrix N for the specified eigenvalue,
+	 * as the largest cross product of the rows of N - lambda I, and stores it
+	 * in the first 3 elements of <code>out</code>.
+	 */
+	private static boolean eigenvector( final double[] n, final double lambda, final double[] out )
+	{
+		final double r00 = n[ 0 ] - lambda, r01 = n[ 1 ], r02 = n[ 2 ];
+		final double r10 = n[ 3 ], r11 = n[ 4 ] - lambda, r12 = n[ 5 ];
+		final double r20 = n[ 6 ], r21 = n[ 7 ], r22 = n[ 8 ] - lambda;
+
+		double best = 0.;
+		// Row 0 x row 1.
+		double cx = r01 * r12 - r02 * r11;
+		double cy = r02 * r10 - r00 * r12;
+		double cz = r00 * r11 - r01 * r10;
+		double d = cx * cx + cy * cy + cz * cz;
+		if ( d > best )
+		{
+			best = d;
+			out[ 0 ] = cx;
+			out[ 1 ] = cy;
+			out[ 2 ] = cz;
+		}
+		// Row 0 x row 2.
+		cx = r01 * r22 - r02 * r21;
+		cy = r02 * r20 - r00 * r22;
+		cz = r00 * r21 - r01 * r20;
+		d = cx * cx + cy * cy + cz * cz;
+		if ( d > best )
+		{
+			best = d;
+			out[ 0 ] = cx;
+			out[ 1 ] = cy;
+			out[ 2 ] = cz;
+		}
+		// Row 1 x row 2.
+		cx = r11 * r22 - r12 * r21;
+		cy = r12 * r20 - r10 * r22;
+		cz = r10 * r21 - r11 * r20;
+		d = cx * cx + cy * cy + cz * cz;
+		if ( d > best )
+		{
+			best = d;
+			out[ 0 ] = cx;
+			out[ 1 ] = cy;
+			out[ 2 ] = cz;
+		}
+
+		final double scale = r00 * r00 + r01 * r01 + r02 * r02
+				+ r10 * r10 + r11 * r11 + r12 * r12
+				+ r20 * r20 + r21 * r21 + r22 * r22;
+		if ( !( best > EIGENVECTOR_TOLERANCE * scale * scale ) || Double.isInfinite( best ) )
+			return false;
+
+		final double norm = Math.sqrt( best );
+		out[ 0 ] /= norm;
+		out[ 1 ] /= norm;
+		out[ 2 ] /= norm;
+		return true;
+	}
+
 	/**
 	 * Java port of Chernov's MATLAB implementation of the direct ellipse fit by
 	 * Michael Doube in BoneJ. Modified by JYT to use the van der Linde
@@ -112,7 +418,7 @@ public class SpotFitEllipseAnalyzer< T extends RealType< T > > extends AbstractS
 	 *      script</a>
 	 * @author Michael Doube
 	 */
-	private static double[] fitEllipse( final double[] x, final double[] y )
+	static double[] fitEllipse( final double[] x, final double[] y )
 	{
 		final int nPoints = x.length;
 		final double[] centroid = getCentroid( x, y );
@@ -188,15 +494,15 @@ public class SpotFitEllipseAnalyzer< T extends RealType< T > > extends AbstractS
 	}
 
 	/**
-	 * Convert to cartesian coordnates for the ellipse. Return [ x0 y0 a b theta
-	 * ]. We always have a > b. theta in radians measure the angle of the
+	 * Convert to cartesian coordnates for the ellipse. Stores [ x0 y0 a b theta
+	 * ] in the specified array. We always have a > b. theta in radians measure the angle of the
 	 * ellipse long axis with the x axis, in radians, and positive means
 	 * counter-clockwise.
 	 * 
 	 * Formulas from
 	 * https://en.wikipedia.org/wiki/Ellipse#In_Cartesian_coordinates
 	 */
-	private static final double[] quadraticToCartesian( final double[] Q )
+	static final void quadraticToCartesian( final double[] Q, final double[] out )
 	{
 		final double A = Q[ 0 ];
 		final double B = Q[ 1 ];
@@ -237,7 +543,11 @@ public class SpotFitEllipseAnalyzer< T extends RealType< T > > extends AbstractS
 				theta = theta - Math.PI;
 		}
 
-		return new double[] { x0, y0, a, b, theta };
+		out[ 0 ] = x0;
+		out[ 1 ] = y0;
+		out[ 2 ] = a;
+		out[ 3 ] = b;
+		out[ 4 ] = theta;
 	}
 
 	/**
@@ -277,4 +587,46 @@ public class SpotFitEllipseAnalyzer< T extends RealType< T > > extends AbstractS
 	}
 
 	private final static double MACHEPS = 2.2204e-16;
+
+	/**
+	 * Relative determinant below which the scatter matrix S3 is considered
+	 * singular by the closed-form fit.
+	 */
+	private static final double SINGULAR_TOLERANCE = 1e-12;
+
+	/**
+	 * Relative squared norm below which an eigenvector cannot be separated
+	 * from the others by the closed-form fit.
+	 */
+	private static final double EIGENVECTOR_TOLERANCE = 1e-20;
+
+	private static final ThreadLocal< Workspace > WORKSPACES = ThreadLocal.withInitial( Workspace::new );
+
+	/**
+	 * Per-thread scratch space for the ellipse fit, reused from one spot to
+	 * the next. 3x3 matrices are stored row-major.
+	 */
+	static final class Workspace
+	{
+
+		final double[] s1 = new double[ 9 ];
+
+		final double[] s2 = new double[ 9 ];
+
+		final double[] inv = new double[ 9 ];
+
+		final double[] t = new double[ 9 ];
+
+		final double[] m = new double[ 9 ];
+
+		final double[] n = new double[ 9 ];
+
+		final double[] lambdas = new double[ 3 ];
+
+		/** Algebraic parameters { a b c d f g } of the fit. */
+		final double[] q = new double[ 6 ];
+
+		/** Cartesian parameters { x0 y0 a b theta } of the fit. */
+		final double[] a = new double[ 5 ];
+	}
 }
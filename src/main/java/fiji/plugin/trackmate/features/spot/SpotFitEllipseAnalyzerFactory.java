@@ -22,9 +22,11 @@
 package fiji.plugin.trackmate.features.spot;
 
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.swing.ImageIcon;
 
@@ -151,6 +153,12 @@ public class SpotFitEllipseAnalyzerFactory< T extends RealType< T > & NativeType
 		return KEY;
 	}
 
+	@Override
+	public Set< SpotAnalyzerInput > getInputs()
+	{
+		return EnumSet.of( SpotAnalyzerInput.RADIUS, SpotAnalyzerInput.ROI );
+	}
+
 	@Override
 	public String getName()
 	{
@@ -0,0 +1,366 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features.spot;
+
+import static fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory.CONTRAST;
+import static fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory.SNR;
+import static fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory.makeFeatureKey;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import fiji.plugin.trackmate.detection.DetectionUtils;
+import fiji.plugin.trackmate.util.PolygonScanline;
+import fiji.plugin.trackmate.util.SpotNeighborhood;
+import fiji.plugin.trackmate.util.SpotNeighborhoodCursor;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * A {@link fiji.plugin.trackmate.features.FeatureAnalyzer} that computes the
+ * features of both the {@link SpotIntensityMultiCAnalyzer} and the
+ * {@link SpotContrastAndSNRAnalyzer} in a single traversal of the pixels of
+ * each spot.
+ * <p>
+ * Only the outer region used for the contrast computation (twice the spot
+ * radius, or the spot ROI scaled by 2) is iterated, so the intensity
+ * statistics and the contrast are computed from the same read. For spheres,
+ * each pixel is classified with a mask of the inner neighborhood. For 2D ROIs,
+ * both polygons are rasterized with {@link PolygonScanline}, like in the two
+ * separate analyzers, and pixels are classified span by span. The pixels
+ * selected in both regions are the same as in the two separate analyzers, so
+ * the feature values are the same, up to the summation order. Spots so small
+ * that the separate analyzers switch to their single-pixel fallback are
+ * processed by the two separate analyzers.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SpotIntensityAndContrastAnalyzer< T extends RealType< T > > extends AbstractSpotFeatureAnalyzer< T >
+{
+
+	private final int channel;
+
+	private final ImgPlus< T > img;
+
+	private final double[] calibration;
+
+	private final SpotIntensityMultiCAnalyzer< T > intensityAnalyzer;
+
+	private final SpotContrastAndSNRAnalyzer< T > contrastAnalyzer;
+
+	private final ThreadLocal< IntensityAccumulator > accumulators;
+
+	/**
+	 * Masks of the inner neighborhood, laid out over the bounding box of the
+	 * outer neighborhood, stored per spot radius. The shape of the
+	 * neighborhoods only depends on the radius, so they can be reused for all
+	 * the spots that share the same radius.
+	 */
+	private final Map< Double, boolean[] > innerMasks = new ConcurrentHashMap<>();
+
+	/**
+	 * Instantiates a fused analyzer for intensity, contrast and SNR.
+	 *
+	 * @param img
+	 *            the 2D or 3D image of the desired time-point and channel to
+	 *            operate on,
+	 * @param channel
+	 *            the channel to operate on.
+	 */
+	public SpotIntensityAndContrastAnalyzer( final ImgPlus< T > img, final int channel )
+	{
+		this.img = img;
+		this.channel = channel;
+		this.calibration = TMUtils.getSpatialCalibration( img );
+		this.intensityAnalyzer = new SpotIntensityMultiCAnalyzer<>( img, channel );
+		this.contrastAnalyzer = new SpotContrastAndSNRAnalyzer<>( img, channel );
+		this.accumulators = IntensityAccumulator.threadLocal( img.firstElement() );
+	}
+
+	@Override
+	public void process( final Spot spot )
+	{
+		final boolean done;
+		final SpotRoi roi = spot.getRoi();
+		if ( null != roi && DetectionUtils.is2D( img ) )
+			done = processRoi( spot, roi );
+		else
+			done = processNeighborhood( spot );
+
+		if ( !done )
+		{
+			intensityAnalyzer.process( spot );
+			contrastAnalyzer.process( spot );
+		}
+	}
+
+	private boolean processNeighborhood( final Spot spot )
+	{
+		final double radius = spot.getFeature( Spot.RADIUS );
+		final SpotNeighborhood< T > inner = new SpotNeighborhood<>( spot, img );
+		if ( inner.size() <= 1 )
+			return false;
+
+		final Spot largeSpot = new Spot( spot );
+		largeSpot.putFeature( Spot.RADIUS, 2. * radius );
+		final SpotNeighborhood< T > outer = new SpotNeighborhood<>( largeSpot, img );
+
+		// Same center and spans as in the SpotNeighborhood.
+		final int nDims = img.numDimensions();
+		final long[] center = new long[ nDims ];
+		final long[] span = new long[ nDims ];
+		final long[] strides = new long[ nDims ];
+		long size = 1;
+		for ( int d = 0; d < nDims; d++ )
+		{
+			center[ d ] = Math.round( spot.getFeature( Spot.POSITION_FEATURES[ d ] ).doubleValue() / calibration[ d ] );
+			span[ d ] = Math.round( 2. * radius / calibration[ d ] );
+			strides[ d ] = size;
+			size *= 2 * span[ d ] + 1;
+		}
+		final boolean[] innerMask = innerMasks.computeIfAbsent( Double.valueOf( radius ),
+				r -> makeInnerMask( inner, center, span, strides ) );
+
+		final double radius2 = radius * radius;
+		final long[] pos = new long[ nDims ];
+		final IntensityAccumulator intensities = accumulators.get().reset();
+		int nOut = 0;
+		double sumOut = 0.;
+		final SpotNeighborhoodCursor< T > cursor = outer.cursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final double val = cursor.get().getRealDouble();
+			cursor.localize( pos );
+			int index = 0;
+			for ( int d = 0; d < nDims; d++ )
+				index += ( pos[ d ] - center[ d ] + span[ d ] ) * strides[ d ];
+
+			if ( innerMask[ index ] )
+				intensities.add( val );
+
+			if ( cursor.getDistanceSquared() > radius2 )
+			{
+				nOut++;
+				sumOut += val;
+			}
+		}
+		final double meanOut = sumOut / nOut;
+
+		putFeatures( spot, intensities, meanOut );
+		return true;
+	}
+
+	private static final boolean[] makeInnerMask( final SpotNeighborhood< ? > inner, final long[] center, final long[] span, final long[] strides )
+	{
+		int size = 1;
+		for ( int d = 0; d < span.length; d++ )
+			size *= 2 * span[ d ] + 1;
+
+		final boolean[] mask = new boolean[ size ];
+		final long[] pos = new long[ center.length ];
+		final SpotNeighborhoodCursor< ? > cursor = inner.cursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( pos );
+			int index = 0;
+			for ( int d = 0; d < pos.length; d++ )
+				index += ( pos[ d ] - center[ d ] + span[ d ] ) * strides[ d ];
+			mask[ index ] = true;
+		}
+		return mask;
+	}
+
+	private boolean processRoi( final Spot spot, final SpotRoi roi )
+	{
+		final SpotRoi outerRoi = roi.copy();
+		outerRoi.scale( 2. );
+
+		final double cx = spot.getDoublePosition( 0 );
+		final double cy = spot.getDoublePosition( 1 );
+		final double[] xi = roi.toPolygonX( img.averageScale( 0 ), 0, cx, 1. );
+		final double[] yi = roi.toPolygonY( img.averageScale( 1 ), 0, cy, 1. );
+		final double[] xo = outerRoi.toPolygonX( img.averageScale( 0 ), 0, cx, 1. );
+		final double[] yo = outerRoi.toPolygonY( img.averageScale( 1 ), 0, cy, 1. );
+
+		final long minXi = ( long ) Math.floor( Util.min( xi ) );
+		final long maxXi = ( long ) Math.ceil( Util.max( xi ) );
+		final long minYi = ( long ) Math.floor( Util.min( yi ) );
+		final long maxYi = ( long ) Math.ceil( Util.max( yi ) );
+		final long minXo = ( long ) Math.floor( Util.min( xo ) );
+		final long maxXo = ( long ) Math.ceil( Util.max( xo ) );
+		final long minYo = ( long ) Math.floor( Util.min( yo ) );
+		final long maxYo = ( long ) Math.ceil( Util.max( yo ) );
+
+		// Fall back on the separate analyzers for degenerate ROIs.
+		if ( maxXi - minXi < 1 || maxYi - minYi < 1 )
+			return false;
+
+		/*
+		 * Rasterize both polygons as in SpotUtil#iterable(SpotRoi, ...), and
+		 * walk the two span lists row by row, so that each pixel is read once
+		 * and classified by span rather than by pixel.
+		 */
+		final Spans inner = new Spans();
+		PolygonScanline.forEachSpan( xi, yi, minXi, maxXi, minYi, maxYi, inner::add );
+		final Spans outer = new Spans();
+		PolygonScanline.forEachSpan( xo, yo, minXo, maxXo, minYo, maxYo, outer::add );
+
+		final RandomAccess< T > ra = Views.extendMirrorSingle( img ).randomAccess();
+		final IntensityAccumulator intensities = accumulators.get().reset();
+		double outerSum = 0.;
+		int i = 0;
+		int o = 0;
+		while ( i < inner.n || o < outer.n )
+		{
+			final long y;
+			if ( i >= inner.n )
+				y = outer.y( o );
+			else if ( o >= outer.n )
+				y = inner.y( i );
+			else
+				y = Math.min( inner.y( i ), outer.y( o ) );
+
+			final int iStart = i;
+			while ( i < inner.n && inner.y( i ) == y )
+				i++;
+			final int oStart = o;
+			while ( o < outer.n && outer.y( o ) == y )
+				o++;
+
+			ra.setPosition( y, 1 );
+
+			// Outer spans, split where they enter and leave inner spans.
+			int k = iStart;
+			for ( int s = oStart; s < o; s++ )
+			{
+				final long xb = outer.xmax( s );
+				long x = outer.xmin( s );
+				while ( x <= xb )
+				{
+					while ( k < i && inner.xmax( k ) < x )
+						k++;
+					final boolean inInner = k < i && inner.xmin( k ) <= x;
+					final long end = inInner
+							? Math.min( xb, inner.xmax( k ) )
+							: ( k < i ? Math.min( xb, inner.xmin( k ) - 1 ) : xb );
+					ra.setPosition( x, 0 );
+					for ( ; x <= end; x++ )
+					{
+						final double val = ra.get().getRealDouble();
+						outerSum += val;
+						if ( inInner )
+							intensities.add( val );
+						ra.fwd( 0 );
+					}
+				}
+			}
+
+			// Parts of inner spans not covered by the outer spans, if any.
+			k = oStart;
+			for ( int s = iStart; s < i; s++ )
+			{
+				final long xb = inner.xmax( s );
+				long x = inner.xmin( s );
+				while ( x <= xb )
+				{
+					while ( k < o && outer.xmax( k ) < x )
+						k++;
+					if ( k < o && outer.xmin( k ) <= x )
+					{
+						x = outer.xmax( k ) + 1;
+						continue;
+					}
+					final long end = k < o ? Math.min( xb, outer.xmin( k ) - 1 ) : xb;
+					ra.setPosition( x, 0 );
+					for ( ; x <= end; x++ )
+					{
+						intensities.add( ra.get().getRealDouble() );
+						ra.fwd( 0 );
+					}
+				}
+			}
+		}
+		if ( intensities.size() == 0 )
+			return false;
+
+		outerSum -= intensities.sum();
+		final double meanOut = outerSum / ( outerRoi.area() - roi.area() );
+
+		putFeatures( spot, intensities, meanOut );
+		return true;
+	}
+
+	private void putFeatures( final Spot spot, final IntensityAccumulator intensities, final double meanOut )
+	{
+		final double meanIn = intensities.mean();
+		final double stdIn = intensities.std();
+		SpotIntensityMultiCAnalyzer.putFeatures( spot, intensities, channel );
+		spot.putFeature( makeFeatureKey( CONTRAST, channel ), ( meanIn - meanOut ) / ( meanIn + meanOut ) );
+		spot.putFeature( makeFeatureKey( SNR, channel ), ( meanIn - meanOut ) / stdIn );
+	}
+
+	/**
+	 * Spans of pixels reported by {@link PolygonScanline}, ordered by row then
+	 * by X.
+	 */
+	private static final class Spans
+	{
+
+		private long[] data = new long[ 3 * 16 ];
+
+		private int n = 0;
+
+		private void add( final long y, final long xmin, final long xmax )
+		{
+			if ( 3 * n == data.length )
+				data = Arrays.copyOf( data, 2 * data.length );
+			data[ 3 * n ] = y;
+			data[ 3 * n + 1 ] = xmin;
+			data[ 3 * n + 2 ] = xmax;
+			n++;
+		}
+
+		private long y( final int i )
+		{
+			return data[ 3 * i ];
+		}
+
+		private long xmin( final int i )
+		{
+			return data[ 3 * i + 1 ];
+		}
+
+		private long xmax( final int i )
+		{
+			return data[ 3 * i + 2 ];
+		}
+	}
+}
@@ -28,15 +28,11 @@ import static fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFac
 import static fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory.STD_INTENSITY;
 import static fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory.TOTAL_INTENSITY;
 
-import org.scijava.util.DoubleArray;
-
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.util.SpotUtil;
-import fiji.plugin.trackmate.util.TMUtils;
 import net.imagej.ImgPlus;
 import net.imglib2.IterableInterval;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.util.Util;
 
 public class SpotIntensityMultiCAnalyzer< T extends RealType< T > > extends AbstractSpotFeatureAnalyzer< T >
 {
@@ -45,27 +41,38 @@ public class SpotIntensityMultiCAnalyzer< T extends RealType< T > > extends Abst
 
 	private final ImgPlus< T > imgCT;
 
+	private final ThreadLocal< IntensityAccumulator > accumulators;
+
 	public SpotIntensityMultiCAnalyzer( final ImgPlus< T > imgCT, final int channel )
 	{
 		this.imgCT = imgCT;
 		this.channel = channel;
+		this.accumulators = IntensityAccumulator.threadLocal( imgCT.firstElement() );
 	}
 
 	@Override
 	public void process( final Spot spot )
 	{
 		final IterableInterval< T > neighborhood = SpotUtil.iterable( spot, imgCT );
-		final DoubleArray intensities = new DoubleArray();
-
+		final IntensityAccumulator intensities = accumulators.get().reset();
 		for ( final T pixel : neighborhood )
-			intensities.addValue( pixel.getRealDouble() );
+			intensities.add( pixel.getRealDouble() );
 
-		Util.quicksort( intensities.getArray(), 0, intensities.size() - 1 );
-		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( MEAN_INTENSITY, channel ), Double.valueOf( TMUtils.average( intensities ) ) );
-		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( MEDIAN_INTENSITY, channel ), Double.valueOf( intensities.getArray()[ intensities.size() / 2 ] ) );
-		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( MIN_INTENSITY, channel ), Double.valueOf( intensities.getArray()[ 0 ] ) );
-		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( MAX_INTENSITY, channel ), Double.valueOf( intensities.getArray()[ intensities.size() - 1 ] ) );
-		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( TOTAL_INTENSITY, channel ), Double.valueOf( TMUtils.sum( intensities ) ) );
-		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( STD_INTENSITY, channel ), Double.valueOf( TMUtils.standardDeviation( intensities ) ) );
+		putFeatures( spot, intensities, channel );
+	}
+
+	/**
+	 * Stores the intensity features computed from the specified accumulator
+	 * in the specified spot.
+	 */
+	static final void putFeatures( final Spot spot, final IntensityAccumulator intensities, final int channel )
+	{
+		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( MEAN_INTENSITY, channel ), Double.valueOf( intensities.mean() ) );
+		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( MIN_INTENSITY, channel ), Double.valueOf( intensities.min() ) );
+		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( MAX_INTENSITY, channel ), Double.valueOf( intensities.max() ) );
+		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( TOTAL_INTENSITY, channel ), Double.valueOf( intensities.sum() ) );
+		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( STD_INTENSITY, channel ), Double.valueOf( intensities.std() ) );
+		// Last, because it reorders the values.
+		spot.putFeature( SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( MEDIAN_INTENSITY, channel ), Double.valueOf( intensities.median() ) );
 	}
 }
@@ -41,7 +41,7 @@ import net.imglib2.type.numeric.RealType;
 public class SpotIntensityMultiCAnalyzerFactory< T extends RealType< T > & NativeType< T > > implements SpotAnalyzerFactory< T >
 {
 
-	private static final String KEY = "Spot intensity";
+	public static final String KEY = "Spot intensity";
 	
 	static final String MEAN_INTENSITY = "MEAN_INTENSITY_CH";
 	static final String MEDIAN_INTENSITY = "MEDIAN_INTENSITY_CH";
@@ -49,8 +49,7 @@ public class SpotShapeAnalyzer< T extends RealType< T > > extends AbstractSpotFe
 			{
 				area = roi.area();
 				perimeter = getLength( roi );
-				final SpotRoi convexHull = ConvexHull.convexHull( roi );
-				convexArea = convexHull.area();
+				convexArea = ConvexHull.convexHullArea( roi.x, roi.y );
 			}
 			else
 			{
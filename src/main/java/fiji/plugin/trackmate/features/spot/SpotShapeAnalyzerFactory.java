@@ -22,9 +22,11 @@
 package fiji.plugin.trackmate.features.spot;
 
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.swing.ImageIcon;
 
@@ -145,6 +147,12 @@ public class SpotShapeAnalyzerFactory< T extends RealType< T > & NativeType< T >
 		return KEY;
 	}
 
+	@Override
+	public Set< SpotAnalyzerInput > getInputs()
+	{
+		return EnumSet.of( SpotAnalyzerInput.RADIUS, SpotAnalyzerInput.ROI );
+	}
+
 	@Override
 	public String getName()
 	{
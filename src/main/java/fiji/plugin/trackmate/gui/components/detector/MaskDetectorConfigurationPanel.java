@@ -53,6 +53,7 @@ public class MaskDetectorConfigurationPanel extends ThresholdDetectorConfigurati
 		ftfIntensityThreshold.setVisible( false );
 		btnAutoThreshold.setVisible( false );
 		lblIntensityThreshold.setVisible( false );
+		chkboxGlobalOtsu.setVisible( false );
 	}
 
 	@Override
@@ -79,6 +79,8 @@ public class ThresholdDetectorConfigurationPanel extends ConfigurationPanel
 
 	protected JCheckBox chkboxSimplify;
 
+	protected JCheckBox chkboxGlobalOtsu;
+
 	protected JSlider sliderChannel;
 
 	protected final JFormattedTextField ftfIntensityThreshold;
@@ -220,6 +222,21 @@ public class ThresholdDetectorConfigurationPanel extends ConfigurationPanel
 		chkboxSimplify.setText( "Simplify contours." );
 		chkboxSimplify.setFont( FONT );
 
+		chkboxGlobalOtsu = new JCheckBox();
+		final GridBagConstraints gbChkboxGlobalOtsu = new GridBagConstraints();
+		gbChkboxGlobalOtsu.anchor = GridBagConstraints.NORTHWEST;
+		gbChkboxGlobalOtsu.insets = new Insets( 5, 5, 5, 5 );
+		gbChkboxGlobalOtsu.gridwidth = 3;
+		gbChkboxGlobalOtsu.gridx = 0;
+		gbChkboxGlobalOtsu.gridy = 6;
+		this.add( chkboxGlobalOtsu, gbChkboxGlobalOtsu );
+		chkboxGlobalOtsu.setText( "Automatic threshold, same for all frames." );
+		chkboxGlobalOtsu.setFont( FONT );
+		chkboxGlobalOtsu.addItemListener( e -> {
+			ftfIntensityThreshold.setEnabled( !chkboxGlobalOtsu.isSelected() );
+			btnAutoThreshold.setEnabled( !chkboxGlobalOtsu.isSelected() );
+		} );
+
 		final DetectionPreview detectionPreview = DetectionPreview.create()
 				.model( model )
 				.settings( settings )
@@ -295,10 +312,12 @@ public class ThresholdDetectorConfigurationPanel extends ConfigurationPanel
 		final boolean simplify = chkboxSimplify.isSelected();
 		final double intensityThreshold = ( ( Number ) ftfIntensityThreshold.getValue() ).doubleValue();
 
-		final HashMap< String, Object > lSettings = new HashMap<>( 3 );
+		final HashMap< String, Object > lSettings = new HashMap<>( 4 );
 		lSettings.put( KEY_TARGET_CHANNEL, targetChannel );
 		lSettings.put( ThresholdDetectorFactory.KEY_INTENSITY_THRESHOLD, intensityThreshold );
 		lSettings.put( ThresholdDetectorFactory.KEY_SIMPLIFY_CONTOURS, simplify );
+		if ( chkboxGlobalOtsu.isSelected() )
+			lSettings.put( ThresholdDetectorFactory.KEY_GLOBAL_OTSU_THRESHOLD, true );
 		return lSettings;
 	}
 
@@ -307,6 +326,7 @@ public class ThresholdDetectorConfigurationPanel extends ConfigurationPanel
 	{
 		sliderChannel.setValue( ( Integer ) settings.get( KEY_TARGET_CHANNEL ) );
 		chkboxSimplify.setSelected( ( Boolean ) settings.get( ThresholdDetectorFactory.KEY_SIMPLIFY_CONTOURS ) );
+		chkboxGlobalOtsu.setSelected( Boolean.TRUE.equals( settings.get( ThresholdDetectorFactory.KEY_GLOBAL_OTSU_THRESHOLD ) ) );
 
 		final Double intensityThreshold = Double.valueOf( ( Double ) settings.get( ThresholdDetectorFactory.KEY_INTENSITY_THRESHOLD ) );
 		if ( intensityThreshold == null || intensityThreshold == 0. )
@@ -126,6 +126,8 @@ public class TrackMateWizardSequence implements WizardSequence
 		// Listen to changes in the model and update features accordingly.
 		final ModelFeatureUpdater modelFeatureUpdater = new ModelFeatureUpdater( model, settings );
 		modelFeatureUpdater.setNumThreads( trackmate.getNumThreads() );
+		// Group the rapid successive edits made with the spot edit tool.
+		modelFeatureUpdater.setDebounceDelay( 200 );
 
 		final LogPanel logPanel = new LogPanel();
 		final Logger logger = logPanel.getLogger();
@@ -0,0 +1,570 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * An on-disk cache of the spots found by a frame-by-frame detector.
+ * <p>
+ * The spots of each frame are stored with a hash of the frame pixels. The
+ * cache file as a whole is keyed by a hash of the detector key and version,
+ * the detector settings, the detection interval, the ROI and the spatial
+ * calibration. When
+ * the detection is run again on the same image with the same detector
+ * settings, frames whose pixels did not change can be read from the cache
+ * instead of being detected again. This happens for instance when only the
+ * tracking parameters are changed in a script.
+ * <p>
+ * For each spot, the cache stores its position, radius, quality, ROI and the
+ * other numerical features set by the detector. The file is written in a
+ * compact binary format, next to the image file.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class DetectionCache
+{
+
+	/** The extension of detection cache files. */
+	public static final String FILE_EXTENSION = ".tmcache";
+
+	private static final int MAGIC = 0x544D4443;
+
+	private static final int VERSION = 1;
+
+	private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+
+	private static final long FNV_PRIME = 0x100000001B3L;
+
+	/** Features stored for all spots, not in the per-frame feature list. */
+	private static final Set< String > BASE_FEATURES = new LinkedHashSet<>();
+	static
+	{
+		BASE_FEATURES.add( Spot.POSITION_X );
+		BASE_FEATURES.add( Spot.POSITION_Y );
+		BASE_FEATURES.add( Spot.POSITION_Z );
+		BASE_FEATURES.add( Spot.RADIUS );
+		BASE_FEATURES.add( Spot.QUALITY );
+		BASE_FEATURES.add( Spot.POSITION_T );
+		BASE_FEATURES.add( Spot.FRAME );
+	}
+
+	private final File file;
+
+	private final long settingsHash;
+
+	private final Map< Integer, CachedFrame > frames = new ConcurrentHashMap<>();
+
+	private final AtomicInteger nHits = new AtomicInteger( 0 );
+
+	private final AtomicInteger nMisses = new AtomicInteger( 0 );
+
+	private DetectionCache( final File file, final long settingsHash )
+	{
+		this.file = file;
+		this.settingsHash = settingsHash;
+	}
+
+	/**
+	 * Returns the cache file to use for the image of the specified settings,
+	 * or <code>null</code> if the image is not stored in a file.
+	 *
+	 * @param settings
+	 *            the settings.
+	 * @return the cache file, or <code>null</code>.
+	 */
+	public static File cacheFileFor( final Settings settings )
+	{
+		if ( settings.imageFolder == null || settings.imageFolder.isEmpty()
+				|| settings.imageFileName == null || settings.imageFileName.isEmpty() )
+			return null;
+		return new File( TMUtils.getImagePathWithoutExtension( settings ) + FILE_EXTENSION );
+	}
+
+	/**
+	 * Opens the detection cache stored in the specified file. If the file
+	 * does not exist, cannot be read, or was written for other detection
+	 * settings, the cache returned is empty.
+	 *
+	 * @param file
+	 *            the cache file.
+	 * @param detectorKey
+	 *            the key of the detector factory.
+	 * @param detectorVersion
+	 *            the version of the detector implementation, as returned by
+	 *            {@link #detectorVersion(Object)}. Spots found by another
+	 *            version are not reused.
+	 * @param detectorSettings
+	 *            the detector settings.
+	 * @param interval
+	 *            the interval in which detection is performed.
+	 * @param roi
+	 *            the ROI in which detection is performed. Can be
+	 *            <code>null</code>.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 * @return a new cache.
+	 */
+	public static DetectionCache open(
+			final File file,
+			final String detectorKey,
+			final String detectorVersion,
+			final Map< String, Object > detectorSettings,
+			final Interval interval,
+			final Roi roi,
+			final double[] calibration )
+	{
+		final DetectionCache cache = new DetectionCache( file, settingsHash( detectorKey, detectorVersion, detectorSettings, interval, roi, calibration ) );
+		if ( file.exists() )
+		{
+			try
+			{
+				cache.read();
+			}
+			catch ( final IOException e )
+			{
+				cache.frames.clear();
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the version of the implementation of the specified detector
+	 * factory: its class name and the version of the library it comes from.
+	 * Upgrading the detector thus invalidates the spots it cached.
+	 *
+	 * @param detectorFactory
+	 *            the detector factory.
+	 * @return the detector version.
+	 */
+	public static String detectorVersion( final Object detectorFactory )
+	{
+		final Class< ? > clazz = detectorFactory.getClass();
+		final Package pkg = clazz.getPackage();
+		final String version = ( pkg == null ) ? null : pkg.getImplementationVersion();
+		return clazz.getName() + ' ' + ( ( version == null ) ? "dev" : version );
+	}
+
+	/**
+	 * Returns a hash of the pixels of the specified frame. All the channels
+	 * of the frame are taken into account.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param frame
+	 *            the frame in the source image. Ignored if it has no time
+	 *            axis.
+	 * @return the frame hash.
+	 */
+	public static < T extends RealType< T > > long frameHash( final ImgPlus< T > img, final int frame )
+	{
+		return frameHash( img, frame, -1 );
+	}
+
+	/**
+	 * Returns a hash of the pixels of the specified frame and channel.
+	 * <p>
+	 * The image is read once, so this should be called on images held in
+	 * memory, such as the frames loaded by a
+	 * {@link fiji.plugin.trackmate.detection.util.FramePrefetcher}, rather
+	 * than on virtual stacks.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param frame
+	 *            the frame in the source image. Ignored if it has no time
+	 *            axis.
+	 * @param channel
+	 *            the 0-based channel to hash, or -1 to hash all the channels.
+	 *            Ignored if the image has no channel axis.
+	 * @return the frame hash.
+	 */
+	public static < T extends RealType< T > > long frameHash( final ImgPlus< T > img, final int frame, final int channel )
+	{
+		final int timeDim = img.dimensionIndex( Axes.TIME );
+		final int channelDim = img.dimensionIndex( Axes.CHANNEL );
+		RandomAccessibleInterval< T > slice = img;
+		// Slice the higher dimension first, so that the other index holds.
+		if ( channel >= 0 && channelDim > timeDim )
+			slice = Views.hyperSlice( slice, channelDim, channel );
+		if ( timeDim >= 0 )
+			slice = Views.hyperSlice( slice, timeDim, frame );
+		if ( channel >= 0 && channelDim >= 0 && channelDim < timeDim )
+			slice = Views.hyperSlice( slice, channelDim, channel );
+
+		long h = FNV_OFFSET;
+		for ( final T pixel : Views.flatIterable( slice ) )
+			h = ( h ^ mix( Double.doubleToLongBits( pixel.getRealDouble() ) ) ) * FNV_PRIME;
+		return h;
+	}
+
+	/**
+	 * Returns the spots cached for the specified frame, or <code>null</code>
+	 * if there are none, or if they were detected on different pixels. The
+	 * spots are new instances.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param frameHash
+	 *            the hash of the frame pixels, as returned by
+	 *            {@link #frameHash(ImgPlus, int, int)}.
+	 * @return a new list of spots, or <code>null</code>.
+	 */
+	public List< Spot > get( final int frame, final long frameHash )
+	{
+		final CachedFrame cached = frames.get( Integer.valueOf( frame ) );
+		if ( cached == null || cached.frameHash != frameHash )
+		{
+			nMisses.incrementAndGet();
+			return null;
+		}
+		nHits.incrementAndGet();
+		return cached.toSpots();
+	}
+
+	/**
+	 * Stores the spots detected in the specified frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param frameHash
+	 *            the hash of the frame pixels, as returned by
+	 *            {@link #frameHash(ImgPlus, int, int)}.
+	 * @param spots
+	 *            the spots detected in the frame.
+	 */
+	public void put( final int frame, final long frameHash, final List< Spot > spots )
+	{
+		frames.put( Integer.valueOf( frame ), new CachedFrame( frameHash, spots ) );
+	}
+
+	/**
+	 * Returns the number of frames read from the cache so far.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public int getNHits()
+	{
+		return nHits.get();
+	}
+
+	/**
+	 * Returns the number of frames that were not in the cache, or that were
+	 * stale.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public int getNMisses()
+	{
+		return nMisses.get();
+	}
+
+	/**
+	 * Returns the file this cache is stored in.
+	 *
+	 * @return the cache file.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Writes the cache to its file. The file is first written to a new
+	 * temporary file in the same folder, then atomically moved in place, so
+	 * that an interrupted write or concurrent saves do not leave a corrupted
+	 * cache.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void save() throws IOException
+	{
+		final Path target = file.getAbsoluteFile().toPath();
+		final Path tmp = Files.createTempFile( target.getParent(), file.getName(), ".tmp" );
+		try
+		{
+			write( tmp );
+			try
+			{
+				Files.move( tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+			}
+			catch ( final AtomicMoveNotSupportedException e )
+			{
+				Files.move( tmp, target, StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	private void write( final Path path ) throws IOException
+	{
+		try (final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( path ) ) ))
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeLong( settingsHash );
+			final List< Integer > keys = new ArrayList<>( frames.keySet() );
+			Collections.sort( keys );
+			out.writeInt( keys.size() );
+			for ( final Integer key : keys )
+			{
+				out.writeInt( key.intValue() );
+				frames.get( key ).write( out );
+			}
+		}
+	}
+
+	private void read() throws IOException
+	{
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != settingsHash )
+				return;
+
+			final int nFrames = in.readInt();
+			for ( int i = 0; i < nFrames; i++ )
+			{
+				final int frame = in.readInt();
+				frames.put( Integer.valueOf( frame ), CachedFrame.read( in ) );
+			}
+		}
+	}
+
+	private static long settingsHash(
+			final String detectorKey,
+			final String detectorVersion,
+			final Map< String, Object > detectorSettings,
+			final Interval interval,
+			final Roi roi,
+			final double[] calibration )
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( detectorKey ).append( '\n' );
+		str.append( detectorVersion ).append( '\n' );
+		for ( final Map.Entry< String, Object > entry : new TreeMap<>( detectorSettings ).entrySet() )
+		{
+			final Object value = entry.getValue();
+			str.append( entry.getKey() ).append( '=' );
+			if ( value != null )
+				str.append( value.getClass().getSimpleName() ).append( ':' ).append( value );
+			str.append( '\n' );
+		}
+		for ( int d = 0; d < interval.numDimensions(); d++ )
+			str.append( interval.min( d ) ).append( '-' ).append( interval.max( d ) ).append( ' ' );
+		str.append( '\n' );
+		for ( final double c : calibration )
+			str.append( c ).append( ' ' );
+		str.append( '\n' );
+		if ( roi != null )
+		{
+			final FloatPolygon polygon = roi.getFloatPolygon();
+			str.append( roi.getType() ).append( ':' );
+			for ( int i = 0; i < polygon.npoints; i++ )
+				str.append( polygon.xpoints[ i ] ).append( ',' ).append( polygon.ypoints[ i ] ).append( ' ' );
+		}
+
+		long h = FNV_OFFSET;
+		for ( final byte b : str.toString().getBytes( StandardCharsets.UTF_8 ) )
+			h = ( h ^ ( b & 0xff ) ) * FNV_PRIME;
+		return h;
+	}
+
+	/**
+	 * Scrambles the bits of a value before it is folded in a hash, so that
+	 * all of them affect the result.
+	 */
+	private static long mix( long z )
+	{
+		z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+		z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+		return z ^ ( z >>> 31 );
+	}
+
+	/**
+	 * The spots of a frame, stored in flat arrays.
+	 */
+	private static class CachedFrame
+	{
+
+		private final long frameHash;
+
+		/** The other features set by the detector. */
+		private final String[] features;
+
+		/** X, Y, Z, radius, quality, then other features, for each spot. */
+		private final double[] values;
+
+		/** The ROI of each spot, or <code>null</code>. */
+		private final SpotRoi[] rois;
+
+		private CachedFrame( final long frameHash, final String[] features, final double[] values, final SpotRoi[] rois )
+		{
+			this.frameHash = frameHash;
+			this.features = features;
+			this.values = values;
+			this.rois = rois;
+		}
+
+		private CachedFrame( final long frameHash, final List< Spot > spots )
+		{
+			this.frameHash = frameHash;
+			final Set< String > other = new LinkedHashSet<>();
+			for ( final Spot spot : spots )
+				for ( final String feature : spot.getFeatures().keySet() )
+					if ( !BASE_FEATURES.contains( feature ) )
+						other.add( feature );
+			this.features = other.toArray( new String[ other.size() ] );
+
+			final int stride = 5 + features.length;
+			this.values = new double[ stride * spots.size() ];
+			this.rois = new SpotRoi[ spots.size() ];
+			int i = 0;
+			for ( final Spot spot : spots )
+			{
+				final int o = i * stride;
+				values[ o ] = spot.getFeature( Spot.POSITION_X ).doubleValue();
+				values[ o + 1 ] = spot.getFeature( Spot.POSITION_Y ).doubleValue();
+				values[ o + 2 ] = spot.getFeature( Spot.POSITION_Z ).doubleValue();
+				values[ o + 3 ] = spot.getFeature( Spot.RADIUS ).doubleValue();
+				values[ o + 4 ] = spot.getFeature( Spot.QUALITY ).doubleValue();
+				for ( int f = 0; f < features.length; f++ )
+				{
+					final Double val = spot.getFeature( features[ f ] );
+					values[ o + 5 + f ] = ( val == null ) ? Double.NaN : val.doubleValue();
+				}
+				rois[ i ] = spot.getRoi();
+				i++;
+			}
+		}
+
+		private List< Spot > toSpots()
+		{
+			final int stride = 5 + features.length;
+			final List< Spot > spots = new ArrayList<>( rois.length );
+			for ( int i = 0; i < rois.length; i++ )
+			{
+				final int o = i * stride;
+				final Spot spot = new Spot( values[ o ], values[ o + 1 ], values[ o + 2 ], values[ o + 3 ], values[ o + 4 ] );
+				for ( int f = 0; f < features.length; f++ )
+					if ( !Double.isNaN( values[ o + 5 + f ] ) )
+						spot.putFeature( features[ f ], Double.valueOf( values[ o + 5 + f ] ) );
+				if ( rois[ i ] != null )
+					spot.setRoi( new SpotRoi( rois[ i ].x.clone(), rois[ i ].y.clone() ) );
+				spots.add( spot );
+			}
+			return spots;
+		}
+
+		private void write( final DataOutputStream out ) throws IOException
+		{
+			out.writeLong( frameHash );
+			out.writeInt( features.length );
+			for ( final String feature : features )
+				out.writeUTF( feature );
+			out.writeInt( rois.length );
+			for ( final double value : values )
+				out.writeDouble( value );
+			for ( final SpotRoi roi : rois )
+			{
+				if ( roi == null )
+				{
+					out.writeInt( 0 );
+					continue;
+				}
+				out.writeInt( roi.x.length );
+				for ( int j = 0; j < roi.x.length; j++ )
+				{
+					out.writeDouble( roi.x[ j ] );
+					out.writeDouble( roi.y[ j ] );
+				}
+			}
+		}
+
+		private static CachedFrame read( final DataInputStream in ) throws IOException
+		{
+			final long frameHash = in.readLong();
+			final String[] features = new String[ in.readInt() ];
+			for ( int f = 0; f < features.length; f++ )
+				features[ f ] = in.readUTF();
+			final int nSpots = in.readInt();
+			final double[] values = new double[ nSpots * ( 5 + features.length ) ];
+			for ( int i = 0; i < values.length; i++ )
+				values[ i ] = in.readDouble();
+			final SpotRoi[] rois = new SpotRoi[ nSpots ];
+			for ( int i = 0; i < nSpots; i++ )
+			{
+				final int nPoints = in.readInt();
+				if ( nPoints == 0 )
+					continue;
+				final double[] x = new double[ nPoints ];
+				final double[] y = new double[ nPoints ];
+				for ( int j = 0; j < nPoints; j++ )
+				{
+					x[ j ] = in.readDouble();
+					y[ j ] = in.readDouble();
+				}
+				rois[ i ] = new SpotRoi( x, y );
+			}
+			return new CachedFrame( frameHash, features, values, rois );
+		}
+	}
+}
@@ -219,6 +219,9 @@ public class TmXmlWriter
 	 */
 	public void appendModel( final Model model )
 	{
+		// Lazy spot features must be saved too.
+		model.getFeatureModel().materializeAllSpotFeatures();
+
 		final Element modelElement = new Element( MODEL_ELEMENT_KEY );
 		modelElement.setAttribute( SPATIAL_UNITS_ATTRIBUTE_NAME, model.getSpaceUnits() );
 		modelElement.setAttribute( TIME_UNITS_ATTRIBUTE_NAME, model.getTimeUnits() );
@@ -22,8 +22,16 @@
 package fiji.plugin.trackmate.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.DoubleConsumer;
 import java.util.function.Supplier;
 
@@ -39,15 +47,52 @@ import fiji.plugin.trackmate.detection.DetectorKeys;
 import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
 import fiji.plugin.trackmate.features.FeatureFilter;
 import fiji.plugin.trackmate.features.FeatureUtils;
+import fiji.plugin.trackmate.io.DetectionCache;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings.TrackMateObject;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 
 public class DetectionPreview
 {
 
+	/**
+	 * How many preview detections to keep in cache.
+	 */
+	private static final int CACHE_SIZE = 16;
+
 	private final DetectionPreviewPanel panel;
 
+	/**
+	 * Preview detections, without threshold, per frame and settings. Values
+	 * are futures so that a preview can wait for a speculative detection of
+	 * the same frame that is already running.
+	 */
+	private final Map< PreviewKey, Future< CachedPreview > > cache = new LinkedHashMap< PreviewKey, Future< CachedPreview > >( CACHE_SIZE, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< PreviewKey, Future< CachedPreview > > eldest )
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** The last preview shown, re-filtered when the threshold changes. */
+	private volatile ShownPreview shown;
+
+	/** The key of the last preview requested by the user. */
+	private volatile PreviewKey latestKey;
+
+	/** The speculative detection running in the background, if any. */
+	private final AtomicReference< Speculation > speculation = new AtomicReference<>();
+
+	/** The speculative detection run by the current thread, if any. */
+	private final ThreadLocal< Speculation > currentSpeculation = new ThreadLocal<>();
+
 	protected DetectionPreview(
 			final Model model,
 			final Settings settings,
@@ -58,7 +103,13 @@ public class DetectionPreview
 			final String axisLabel,
 			final String thresholdKey )
 	{
-		this.panel = new DetectionPreviewPanel( thresholdUpdater, axisLabel );
+		final DoubleConsumer updater = ( thresholdUpdater == null )
+				? null
+				: t -> {
+					thresholdUpdater.accept( t );
+					refilter( t );
+				};
+		this.panel = new DetectionPreviewPanel( updater, axisLabel );
 		panel.btnPreview.addActionListener( l -> preview(
 				model,
 				settings,
@@ -91,22 +142,7 @@ public class DetectionPreview
 		{
 			try
 			{
-				// Run preview.
-				final Pair< Model, Double > out = runPreviewDetection(
-						settings,
-						frame,
-						detectorFactory,
-						detectorSettings,
-						thresholdKey );
-				if ( out == null )
-					return;
-
-				final Model sourceModel = out.getA();
-				final Double threshold = out.getB();
-				panel.logger.log( "Found " + sourceModel.getSpots().getNSpots( true ) + " spots." );
-
-				// Update target model.
-				updateModelAndHistogram( model, sourceModel, frame, threshold );
+				runPreview( model, settings, detectorFactory, detectorSettings, frame, thresholdKey );
 			}
 			catch ( final Exception e )
 			{
@@ -120,8 +156,185 @@ public class DetectionPreview
 		} );
 	}
 
+	/**
+	 * Runs a preview in the calling thread, or gets it from the cache, and
+	 * updates the model and the histogram with it. Then starts detecting in
+	 * the neighbor frames in the background.
+	 */
+	void runPreview(
+			final Model model,
+			final Settings settings,
+			final SpotDetectorFactoryBase< ? > detectorFactory,
+			final Map< String, Object > detectorSettings,
+			final int frame,
+			final String thresholdKey ) throws InterruptedException
+	{
+		final PreviewKey key = new PreviewKey( frame, settings.imp, detectorSettings, thresholdKey, settings.imp.getRoi() );
+		latestKey = key;
+		final CachedPreview preview = getPreview( key, settings, detectorFactory, detectorSettings, thresholdKey );
+		if ( preview == null )
+			return;
+
+		final double threshold = getThreshold( detectorSettings, thresholdKey );
+		panel.logger.log( "Found " + preview.countAbove( threshold ) + " spots." );
+
+		// Update target model.
+		shown = new ShownPreview( model, frame, preview );
+		updateModelAndHistogram( model, preview, frame, threshold );
+
+		// Detect in neighbor frames while the user tunes.
+		speculate( key, settings, detectorFactory, detectorSettings, thresholdKey );
+	}
+
+	/**
+	 * Returns the preview detection for the specified key, from the cache if
+	 * possible. Otherwise the detection is run in the calling thread, or
+	 * awaited if it is already running in another thread.
+	 *
+	 * @return the preview, or <code>null</code> if the detection failed or
+	 *         was canceled.
+	 */
+	private CachedPreview getPreview(
+			final PreviewKey key,
+			final Settings settings,
+			final SpotDetectorFactoryBase< ? > detectorFactory,
+			final Map< String, Object > detectorSettings,
+			final String thresholdKey ) throws InterruptedException
+	{
+		final Future< CachedPreview > future;
+		FutureTask< CachedPreview > task = null;
+		synchronized ( cache )
+		{
+			final Future< CachedPreview > cached = cache.get( key );
+			if ( cached == null )
+			{
+				task = new FutureTask<>( () -> {
+					final Pair< Model, Double > out = runPreviewDetection( settings, key.frame, detectorFactory, detectorSettings, thresholdKey );
+					return ( out == null ) ? null : new CachedPreview( out.getA(), key.frame );
+				} );
+				cache.put( key, task );
+				future = task;
+			}
+			else
+			{
+				future = cached;
+			}
+		}
+		if ( task != null )
+			task.run();
+
+		try
+		{
+			final CachedPreview preview = future.get();
+			if ( preview == null )
+				forget( key );
+			return preview;
+		}
+		catch ( final ExecutionException e )
+		{
+			forget( key );
+			logger().error( e.getCause().getMessage() );
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void forget( final PreviewKey key )
+	{
+		synchronized ( cache )
+		{
+			cache.remove( key );
+		}
+	}
+
+	/**
+	 * Returns the logger to report to from the current thread. Speculative
+	 * detections are silent.
+	 */
+	private Logger logger()
+	{
+		return ( currentSpeculation.get() == null ) ? panel.logger : Logger.VOID_LOGGER;
+	}
+
+	/**
+	 * Starts detecting in the frames before and after the one of the specified
+	 * key, in the background and with half the processors. A speculative
+	 * detection already running with other settings is canceled. One running
+	 * with the same settings finishes the frame it is processing, so that a
+	 * preview waiting for it gets it, then stops.
+	 */
+	private void speculate(
+			final PreviewKey key,
+			final Settings settings,
+			final SpotDetectorFactoryBase< ? > detectorFactory,
+			final Map< String, Object > detectorSettings,
+			final String thresholdKey )
+	{
+		final int nFrames = settings.imp.getNFrames();
+		if ( nFrames < 2 )
+			return;
+
+		final Speculation s = new Speculation( key );
+		final Speculation previous = speculation.getAndSet( s );
+		if ( previous != null && !previous.key.sameSettings( key ) )
+			previous.cancel();
+
+		Threads.run( "TrackMate speculative preview detection thread", () -> {
+			currentSpeculation.set( s );
+			try
+			{
+				for ( final int frame : new int[] { key.frame + 1, key.frame - 1 } )
+				{
+					if ( speculation.get() != s )
+						return; // Superseded.
+					if ( frame < 0 || frame >= nFrames )
+						continue;
+
+					getPreview( key.atFrame( frame ), settings, detectorFactory, detectorSettings, thresholdKey );
+				}
+			}
+			catch ( final Exception e )
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				currentSpeculation.remove();
+				speculation.compareAndSet( s, null );
+			}
+		} );
+	}
+
+	/**
+	 * Re-filters the last preview shown with a new threshold, without running
+	 * the detection again.
+	 */
+	private void refilter( final double threshold )
+	{
+		final ShownPreview s = shown;
+		if ( s == null || s.model == null )
+			return;
+
+		updateModel( s.model, s.preview, s.frame, threshold );
+	}
+
+	private static double getThreshold( final Map< String, Object > detectorSettings, final String thresholdKey )
+	{
+		final boolean hasThreshold = ( thresholdKey != null ) && ( detectorSettings.containsKey( thresholdKey ) );
+		return hasThreshold
+				? ( ( Double ) detectorSettings.get( thresholdKey ) ).doubleValue()
+				: Double.NaN;
+	}
+
 	/**
 	 * Runs the preview with the specified parameters.
+	 * <p>
+	 * This method is called for the previews requested by the user, in which
+	 * case it should report to the {@link #getLogger()} logger, and for the
+	 * speculative detections of the frames around them, which run in the
+	 * background. The default implementation reports nothing and uses half
+	 * the processors for the latter, and can cancel them when the user
+	 * changes the settings.
 	 * 
 	 * @param settings
 	 *            the settings object to use as preview. Will be used for its
@@ -143,7 +356,8 @@ public class DetectionPreview
 	 *         The threshold value in case the <code>thresholdKey</code>
 	 *         parameter is used. This threshold value is to be used with the
 	 *         {@link #updateModelAndHistogram(Model, Model, int, double)}
-	 *         method to properly display the quality histogram.
+	 *         method to properly display the quality histogram. Returns
+	 *         <code>null</code> if the detection failed or was canceled.
 	 */
 	protected Pair< Model, Double > runPreviewDetection(
 			final Settings settings,
@@ -152,6 +366,12 @@ public class DetectionPreview
 			final Map< String, Object > detectorSettings,
 			final String thresholdKey )
 	{
+		final Speculation s = currentSpeculation.get();
+		final Logger logger = logger();
+		final int numThreads = ( s == null )
+				? Runtime.getRuntime().availableProcessors()
+				: Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+
 		// Configure local settings.
 		final Settings lSettings = new Settings( settings.imp );
 		lSettings.tstart = frame;
@@ -163,25 +383,23 @@ public class DetectionPreview
 
 		// Does this detector have a THRESHOLD parameter?
 		final boolean hasThreshold = ( thresholdKey != null ) && ( detectorSettings.containsKey( thresholdKey ) );
-		final double threshold;
+		final double threshold = getThreshold( detectorSettings, thresholdKey );
 		if ( hasThreshold )
-		{
-			threshold = ( ( Double ) detectorSettings.get( thresholdKey ) ).doubleValue();
 			lSettings.detectorSettings.put( thresholdKey, Double.valueOf( Double.NEGATIVE_INFINITY ) );
-		}
-		else
-		{
-			threshold = Double.NaN;
-		}
 
 		// Execute preview.
 		final TrackMate trackmate = new TrackMate( lSettings );
-		trackmate.getModel().setLogger( panel.logger );
+		trackmate.setNumThreads( numThreads );
+		trackmate.getModel().setLogger( logger );
 
+		if ( s != null && !s.start( trackmate ) )
+			return null;
 		final boolean detectionOk = trackmate.execDetection();
+		if ( s != null && s.isCanceled() )
+			return null; // Results may be incomplete.
 		if ( !detectionOk )
 		{
-			panel.logger.error( trackmate.getErrorMessage() );
+			logger.error( trackmate.getErrorMessage() );
 			return null;
 		}
 
@@ -224,6 +442,230 @@ public class DetectionPreview
 		}
 	}
 
+	private void updateModelAndHistogram( final Model targetModel, final CachedPreview preview, final int frame, final double threshold )
+	{
+		if ( targetModel != null )
+			updateModel( targetModel, preview, frame, threshold );
+
+		// Update histogram if any.
+		if ( panel.chart != null )
+			panel.chart.displayHistogram( preview.qualities, threshold );
+	}
+
+	private static void updateModel( final Model targetModel, final CachedPreview preview, final int frame, final double threshold )
+	{
+		// Copies, so that edits in the model do not leak into the cache.
+		final List< Spot > spotsToCopy = preview.copiesAbove( threshold );
+
+		// Pass new spot list to model.
+		targetModel.getSpots().put( frame, spotsToCopy );
+		// Make them visible
+		for ( final Spot spot : spotsToCopy )
+			spot.putFeature( SpotCollection.VISIBILITY, SpotCollection.ONE );
+
+		// Generate event for listener to reflect changes.
+		targetModel.setSpots( targetModel.getSpots(), true );
+	}
+
+	/**
+	 * All the spots found in a frame at the lowest threshold, with their
+	 * quality.
+	 */
+	private static final class CachedPreview
+	{
+
+		private final Spot[] spots;
+
+		private final double[] qualities;
+
+		private CachedPreview( final Model model, final int frame )
+		{
+			final SpotCollection sc = model.getSpots();
+			this.spots = new Spot[ sc.getNSpots( frame, false ) ];
+			this.qualities = new double[ spots.length ];
+			int i = 0;
+			for ( final Spot spot : sc.iterable( frame, false ) )
+			{
+				spots[ i ] = spot;
+				qualities[ i ] = spot.getFeature( Spot.QUALITY ).doubleValue();
+				i++;
+			}
+		}
+
+		private List< Spot > copiesAbove( final double threshold )
+		{
+			final List< Spot > list = new ArrayList<>( spots.length );
+			for ( int i = 0; i < spots.length; i++ )
+			{
+				if ( !Double.isNaN( threshold ) && qualities[ i ] < threshold )
+					continue;
+
+				final Spot spot = spots[ i ];
+				final Spot copy = new Spot( spot );
+				copy.copyFeatures( spot, spot.getFeatures() );
+				if ( spot.getRoi() != null )
+					copy.setRoi( spot.getRoi().copy() );
+				list.add( copy );
+			}
+			return list;
+		}
+
+		private int countAbove( final double threshold )
+		{
+			int n = 0;
+			for ( int i = 0; i < spots.length; i++ )
+				if ( Double.isNaN( threshold ) || qualities[ i ] >= threshold )
+					n++;
+			return n;
+		}
+	}
+
+	private static final class ShownPreview
+	{
+
+		private final Model model;
+
+		private final int frame;
+
+		private final CachedPreview preview;
+
+		private ShownPreview( final Model model, final int frame, final CachedPreview preview )
+		{
+			this.model = model;
+			this.frame = frame;
+			this.preview = preview;
+		}
+	}
+
+	/**
+	 * Identifies a preview detection: the image and the hash of the pixels of
+	 * the frame, the detector settings without the threshold, and the ROI.
+	 */
+	private static final class PreviewKey
+	{
+
+		private final int frame;
+
+		/** Compared by identity. */
+		private final ImagePlus imp;
+
+		private final long frameHash;
+
+		private final Map< String, Object > settings;
+
+		private final float[] roiX;
+
+		private final float[] roiY;
+
+		private PreviewKey( final int frame, final ImagePlus imp, final Map< String, Object > detectorSettings, final String thresholdKey, final Roi roi )
+		{
+			this.frame = frame;
+			this.imp = imp;
+			this.frameHash = frameHash( imp, frame );
+			this.settings = new HashMap<>( detectorSettings );
+			if ( thresholdKey != null )
+				settings.remove( thresholdKey );
+			if ( roi == null )
+			{
+				this.roiX = null;
+				this.roiY = null;
+			}
+			else
+			{
+				final FloatPolygon polygon = roi.getFloatPolygon();
+				this.roiX = Arrays.copyOf( polygon.xpoints, polygon.npoints );
+				this.roiY = Arrays.copyOf( polygon.ypoints, polygon.npoints );
+			}
+		}
+
+		private PreviewKey( final int frame, final PreviewKey other )
+		{
+			this.frame = frame;
+			this.imp = other.imp;
+			this.frameHash = frameHash( imp, frame );
+			this.settings = other.settings;
+			this.roiX = other.roiX;
+			this.roiY = other.roiY;
+		}
+
+		private PreviewKey atFrame( final int otherFrame )
+		{
+			return new PreviewKey( otherFrame, this );
+		}
+
+		private boolean sameSettings( final PreviewKey other )
+		{
+			return imp == other.imp
+					&& settings.equals( other.settings )
+					&& Arrays.equals( roiX, other.roiX )
+					&& Arrays.equals( roiY, other.roiY );
+		}
+
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		private static long frameHash( final ImagePlus imp, final int frame )
+		{
+			return DetectionCache.frameHash( TMUtils.rawWraps( imp ), frame );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof PreviewKey ) )
+				return false;
+			final PreviewKey other = ( PreviewKey ) obj;
+			return frame == other.frame && frameHash == other.frameHash && sameSettings( other );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash( Integer.valueOf( frame ), Long.valueOf( frameHash ), Integer.valueOf( System.identityHashCode( imp ) ),
+					settings, Integer.valueOf( Arrays.hashCode( roiX ) ), Integer.valueOf( Arrays.hashCode( roiY ) ) );
+		}
+	}
+
+	/**
+	 * A speculative detection of the frames around a preview. Can be canceled
+	 * when the user changes the settings.
+	 */
+	private static final class Speculation
+	{
+
+		private final PreviewKey key;
+
+		private boolean canceled;
+
+		private TrackMate trackmate;
+
+		private Speculation( final PreviewKey key )
+		{
+			this.key = key;
+		}
+
+		/**
+		 * Registers the detection about to run, so that it can be canceled.
+		 *
+		 * @return <code>false</code> if this speculation is already canceled.
+		 */
+		private synchronized boolean start( final TrackMate trackmate )
+		{
+			this.trackmate = trackmate;
+			return !canceled;
+		}
+
+		private synchronized void cancel()
+		{
+			canceled = true;
+			if ( trackmate != null )
+				trackmate.cancel( "Preview settings changed." );
+		}
+
+		private synchronized boolean isCanceled()
+		{
+			return canceled;
+		}
+	}
+
 	public static Builder create()
 	{
 		return new Builder();
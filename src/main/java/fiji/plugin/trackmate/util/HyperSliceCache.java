@@ -0,0 +1,672 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fiji.plugin.trackmate.io.DetectionCache;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+/**
+ * A TrackMate-wide cache of the single-channel, single-frame hyperslices of
+ * {@link ImagePlus} source images, as returned by
+ * {@link TMUtils#hyperSlice(ImgPlus, long, long)} on
+ * {@link TMUtils#rawWraps(ImagePlus)}.
+ * <p>
+ * Spot analyzers, spot fitters, icon grabbers and stack extractors all work
+ * on the hyperslice of a given channel and frame. This cache lets them share
+ * it instead of rebuilding it each time, also across runs. Hyperslices are
+ * keyed by source image (compared by identity), channel and frame, and
+ * evicted in LRU order when the cache exceeds its maximal number of entries or
+ * its memory bound.
+ * <p>
+ * Hyperslices of a regular image are views over its pixel arrays, and keep
+ * them reachable. They count in the memory bound for the size of their plane.
+ * Optionally, hyperslices of images backed by a virtual stack can be
+ * materialized: the plane is then copied in memory once, instead of being
+ * read from disk again each time it is accessed. Views over a virtual stack
+ * that are not materialized do not count in the memory bound.
+ * <p>
+ * Source images are held weakly by the keys. The hyperslices of an image are
+ * removed when it is closed, and when it is updated in a way that makes them
+ * stale, as notified to the {@link ImageListener} methods of this cache. The
+ * shared instance is
+ * registered with {@link ImagePlus#addImageListener(ImageListener)}; other
+ * instances must be registered by their creator, or updated with
+ * {@link #invalidate(ImagePlus)}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class HyperSliceCache implements ImageListener
+{
+
+	private static final HyperSliceCache INSTANCE = new HyperSliceCache();
+
+	static
+	{
+		ImagePlus.addImageListener( INSTANCE );
+	}
+
+	/**
+	 * Returns the cache shared by all TrackMate components.
+	 *
+	 * @return the shared cache.
+	 */
+	public static HyperSliceCache getInstance()
+	{
+		return INSTANCE;
+	}
+
+	/** Entries, in access order. */
+	private final LinkedHashMap< Key, Entry > entries = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/** Keys whose source image has been garbage-collected. */
+	private final ReferenceQueue< ImagePlus > collected = new ReferenceQueue<>();
+
+	private long maxBytes = Runtime.getRuntime().maxMemory() / 8;
+
+	private int maxEntries = 256;
+
+	private boolean materializeVirtualStacks = false;
+
+	/** Memory kept reachable by the entries, in bytes. */
+	private long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Returns the hyperslice of the specified {@link ImagePlus} at the
+	 * specified channel and frame. If virtual stack materialization is on and
+	 * the image is backed by a virtual stack, the hyperslice is copied in
+	 * memory.
+	 *
+	 * @param imp
+	 *            the source image.
+	 * @param channel
+	 *            the channel, 0-based.
+	 * @param frame
+	 *            the frame, 0-based.
+	 * @return the hyperslice, with the same pixel type as
+	 *         {@link TMUtils#rawWraps(ImagePlus)}.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public ImgPlus get( final ImagePlus imp, final long channel, final long frame )
+	{
+		final Key key = new Key( imp, channel, frame, null );
+		final Entry entry;
+		final boolean load;
+		synchronized ( this )
+		{
+			purge();
+			final Entry existing = entries.get( key );
+			if ( existing == null )
+			{
+				entry = new Entry();
+				entries.put( new Key( imp, channel, frame, collected ), entry );
+				load = true;
+			}
+			else
+			{
+				entry = existing;
+				load = false;
+			}
+		}
+
+		if ( !load )
+		{
+			hits.incrementAndGet();
+			try
+			{
+				return entry.future.join();
+			}
+			catch ( final CompletionException e )
+			{
+				if ( e.getCause() instanceof RuntimeException )
+					throw ( RuntimeException ) e.getCause();
+				throw e;
+			}
+		}
+
+		// Load outside of the lock. Other threads asking for it will wait.
+		misses.incrementAndGet();
+		final Loaded loaded;
+		final Signature signature;
+		final Object[] planes;
+		try
+		{
+			signature = new Signature( imp );
+			final boolean isVirtual = imp.getStack().isVirtual();
+			final ImgPlus slice = TMUtils.hyperSlice( TMUtils.rawWraps( imp ), channel, frame );
+			if ( isVirtual && isMaterializeVirtualStacks() )
+				loaded = copy( slice );
+			else
+				loaded = new Loaded( slice, isVirtual ? 0 : planeBytes( imp ) );
+			planes = isVirtual ? null : planes( imp, channel, frame );
+		}
+		catch ( final RuntimeException e )
+		{
+			synchronized ( this )
+			{
+				entries.remove( key, entry );
+			}
+			entry.future.completeExceptionally( e );
+			throw e;
+		}
+
+		synchronized ( this )
+		{
+			entry.bytes = loaded.bytes;
+			entry.signature = signature;
+			entry.planes = planes;
+			entry.copyHash = loaded.copyHash;
+			if ( entries.get( key ) == entry )
+			{
+				entry.counted = true;
+				bytes += entry.bytes;
+				evict();
+			}
+		}
+		entry.future.complete( loaded.img );
+		return loaded.img;
+	}
+
+	/**
+	 * Returns the memory used by one channel and one frame of the specified
+	 * image.
+	 */
+	private static long planeBytes( final ImagePlus imp )
+	{
+		return ( long ) imp.getWidth() * imp.getHeight() * imp.getNSlices() * imp.getBytesPerPixel();
+	}
+
+	/**
+	 * Returns the pixel arrays of the Z planes of one channel and one frame of
+	 * an image held in memory.
+	 */
+	private static Object[] planes( final ImagePlus imp, final long channel, final long frame )
+	{
+		final ImageStack stack = imp.getStack();
+		final Object[] planes = new Object[ imp.getNSlices() ];
+		for ( int z = 0; z < planes.length; z++ )
+			planes[ z ] = stack.getPixels( imp.getStackIndex( ( int ) channel + 1, z + 1, ( int ) frame + 1 ) );
+		return planes;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified entry no longer reflects the
+	 * specified updated image.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static boolean isStale( final ImagePlus imp, final Key key, final Entry entry )
+	{
+		// Loaded concurrently with the update.
+		if ( entry.signature == null )
+			return true;
+		// Stack replaced, resized or converted.
+		if ( !entry.signature.matches( imp ) )
+			return true;
+		// Views see in-place edits, but not planes replaced in the stack.
+		if ( entry.planes != null && !Arrays.equals( entry.planes, planes( imp, key.channel, key.frame ) ) )
+			return true;
+		// Materialized copies only go stale if the pixels changed. Only the
+		// displayed position of a virtual stack can be edited.
+		if ( entry.copyHash != null
+				&& key.channel == imp.getC() - 1
+				&& key.frame == imp.getT() - 1 )
+		{
+			final ImgPlus slice = TMUtils.hyperSlice( TMUtils.rawWraps( imp ), key.channel, key.frame );
+			return DetectionCache.frameHash( slice, 0 ) != entry.copyHash.longValue();
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the entries whose source image has been garbage-collected.
+	 */
+	private void purge()
+	{
+		Reference< ? extends ImagePlus > ref;
+		while ( ( ref = collected.poll() ) != null )
+			remove( ( Key ) ref );
+	}
+
+	private void remove( final Key key )
+	{
+		final Entry entry = entries.remove( key );
+		if ( null != entry && entry.counted )
+			bytes -= entry.bytes;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache fits its bounds.
+	 * The most recent entry is always kept.
+	 */
+	private void evict()
+	{
+		final Iterator< Entry > it = entries.values().iterator();
+		while ( ( bytes > maxBytes || entries.size() > maxEntries ) && entries.size() > 1 && it.hasNext() )
+		{
+			final Entry eldest = it.next();
+			it.remove();
+			if ( eldest.counted )
+				bytes -= eldest.bytes;
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes all the hyperslices of the specified source image.
+	 *
+	 * @param imp
+	 *            the image the hyperslices were taken from.
+	 */
+	public synchronized void invalidate( final ImagePlus imp )
+	{
+		purge();
+		final Iterator< Map.Entry< Key, Entry > > it = entries.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Key, Entry > e = it.next();
+			if ( e.getKey().get() == imp )
+			{
+				it.remove();
+				if ( e.getValue().counted )
+					bytes -= e.getValue().bytes;
+			}
+		}
+	}
+
+	@Override
+	public void imageOpened( final ImagePlus imp )
+	{}
+
+	/**
+	 * Removes the hyperslices of the closed image.
+	 */
+	@Override
+	public void imageClosed( final ImagePlus imp )
+	{
+		invalidate( imp );
+	}
+
+	/**
+	 * Removes the hyperslices of the updated image that became stale.
+	 * <p>
+	 * Images are updated each time they are redrawn, for instance when the
+	 * overlay changes, so the hyperslices are kept unless the stack was
+	 * replaced, its dimensions, bit depth or calibration changed, or the
+	 * pixels they hold changed. Views over an image held in memory see
+	 * in-place edits, and are only stale if their planes were replaced.
+	 * Materialized hyperslices of the displayed channel and frame are
+	 * compared to the source pixels.
+	 */
+	@Override
+	public void imageUpdated( final ImagePlus imp )
+	{
+		final List< Map.Entry< Key, Entry > > candidates = new ArrayList<>();
+		synchronized ( this )
+		{
+			purge();
+			for ( final Map.Entry< Key, Entry > e : entries.entrySet() )
+				if ( e.getKey().get() == imp )
+					candidates.add( e );
+		}
+
+		// Compare outside of the lock, pixels may have to be read.
+		for ( final Map.Entry< Key, Entry > e : candidates )
+		{
+			if ( !isStale( imp, e.getKey(), e.getValue() ) )
+				continue;
+			synchronized ( this )
+			{
+				if ( entries.get( e.getKey() ) == e.getValue() )
+					remove( e.getKey() );
+			}
+		}
+	}
+
+	/**
+	 * Removes all the entries of this cache.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Sets the maximal memory the hyperslices of this cache may keep
+	 * reachable.
+	 *
+	 * @param maxBytes
+	 *            the memory bound, in bytes.
+	 */
+	public synchronized void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Sets the maximal number of hyperslices in this cache.
+	 *
+	 * @param maxEntries
+	 *            the maximal number of entries.
+	 */
+	public synchronized void setMaxEntries( final int maxEntries )
+	{
+		this.maxEntries = maxEntries;
+		evict();
+	}
+
+	public synchronized int getMaxEntries()
+	{
+		return maxEntries;
+	}
+
+	/**
+	 * Sets whether the hyperslices of {@link ImagePlus} backed by a virtual
+	 * stack are copied in memory. Off by default. Only affects hyperslices
+	 * added after this call.
+	 *
+	 * @param materializeVirtualStacks
+	 *            whether to copy virtual planes in memory.
+	 */
+	public synchronized void setMaterializeVirtualStacks( final boolean materializeVirtualStacks )
+	{
+		this.materializeVirtualStacks = materializeVirtualStacks;
+	}
+
+	public synchronized boolean isMaterializeVirtualStacks()
+	{
+		return materializeVirtualStacks;
+	}
+
+	/**
+	 * Returns the number of requests served from the cache.
+	 *
+	 * @return the number of hits.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of requests that required building a hyperslice.
+	 *
+	 * @return the number of misses.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of entries evicted to fit the bounds.
+	 *
+	 * @return the number of evictions.
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the memory currently kept reachable by the hyperslices of this
+	 * cache.
+	 *
+	 * @return the memory use, in bytes.
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of hyperslices currently in this cache.
+	 *
+	 * @return the number of entries.
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Resets the hit, miss and eviction counters.
+	 */
+	public void resetStatistics()
+	{
+		hits.set( 0 );
+		misses.set( 0 );
+		evictions.set( 0 );
+	}
+
+	@Override
+	public String toString()
+	{
+		final long h = getHits();
+		final long m = getMisses();
+		final double hitRate = ( h + m == 0 ) ? 0. : 100. * h / ( h + m );
+		return String.format( "%s: %d entries, %.1f MB held, %d hits, %d misses (%.1f%% hit rate), %d evictions.",
+				getClass().getSimpleName(), size(), getBytes() / ( 1024. * 1024. ), h, m, hitRate, getEvictions() );
+	}
+
+	/**
+	 * Copies the specified hyperslice in memory.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static Loaded copy( final ImgPlus slice )
+	{
+		final Object type = slice.firstElement();
+		if ( !( type instanceof NativeType ) || !( type instanceof RealType ) )
+			return new Loaded( slice, 0, null );
+		final NativeType t = ( NativeType ) ( ( NativeType ) type ).createVariable();
+		final Img copy = Util.getArrayOrCellImgFactory( slice, t ).create( slice );
+		LoopBuilder.setImages( slice, copy ).multiThreaded( false ).forEachPixel( ( i, o ) -> ( ( Type ) o ).set( ( Type ) i ) );
+		final long bytes = copy.size() * Math.max( 1, ( ( RealType ) type ).getBitsPerPixel() / 8 );
+		final ImgPlus materialized = new ImgPlus<>( copy, slice );
+		return new Loaded( materialized, bytes, Long.valueOf( DetectionCache.frameHash( materialized, 0 ) ) );
+	}
+
+	/**
+	 * A hyperslice and the memory it uses.
+	 */
+	@SuppressWarnings( "rawtypes" )
+	private static final class Loaded
+	{
+
+		private final ImgPlus img;
+
+		private final long bytes;
+
+		/** Pixel hash of a materialized hyperslice, <code>null</code> otherwise. */
+		private final Long copyHash;
+
+		private Loaded( final ImgPlus img, final long bytes )
+		{
+			this( img, bytes, null );
+		}
+
+		private Loaded( final ImgPlus img, final long bytes, final Long copyHash )
+		{
+			this.img = img;
+			this.bytes = bytes;
+			this.copyHash = copyHash;
+		}
+	}
+
+	/**
+	 * The layout of an image when a hyperslice was taken from it. Virtual
+	 * stacks are compared by identity. Stacks held in memory are compared
+	 * through their pixel arrays, since single images build a new stack each
+	 * time it is requested.
+	 */
+	private static final class Signature
+	{
+
+		private final ImageStack virtualStack;
+
+		private final int width;
+
+		private final int height;
+
+		private final int bitDepth;
+
+		private final int nChannels;
+
+		private final int nSlices;
+
+		private final int nFrames;
+
+		private final double pixelWidth;
+
+		private final double pixelHeight;
+
+		private final double pixelDepth;
+
+		private Signature( final ImagePlus imp )
+		{
+			final ImageStack stack = imp.getStack();
+			this.virtualStack = stack.isVirtual() ? stack : null;
+			this.width = imp.getWidth();
+			this.height = imp.getHeight();
+			this.bitDepth = imp.getBitDepth();
+			this.nChannels = imp.getNChannels();
+			this.nSlices = imp.getNSlices();
+			this.nFrames = imp.getNFrames();
+			final Calibration cal = imp.getCalibration();
+			this.pixelWidth = cal.pixelWidth;
+			this.pixelHeight = cal.pixelHeight;
+			this.pixelDepth = cal.pixelDepth;
+		}
+
+		private boolean matches( final ImagePlus imp )
+		{
+			final ImageStack stack = imp.getStack();
+			final Calibration cal = imp.getCalibration();
+			return ( stack.isVirtual() ? stack == virtualStack : virtualStack == null )
+					&& width == imp.getWidth()
+					&& height == imp.getHeight()
+					&& bitDepth == imp.getBitDepth()
+					&& nChannels == imp.getNChannels()
+					&& nSlices == imp.getNSlices()
+					&& nFrames == imp.getNFrames()
+					&& pixelWidth == cal.pixelWidth
+					&& pixelHeight == cal.pixelHeight
+					&& pixelDepth == cal.pixelDepth;
+		}
+	}
+
+	/**
+	 * Holds the source image weakly. Keys created to look up an entry are
+	 * not registered with a queue.
+	 */
+	private static final class Key extends WeakReference< ImagePlus >
+	{
+
+		private final int hash;
+
+		private final long channel;
+
+		private final long frame;
+
+		private Key( final ImagePlus imp, final long channel, final long frame, final ReferenceQueue< ImagePlus > queue )
+		{
+			super( imp, queue );
+			this.channel = channel;
+			this.frame = frame;
+			int result = System.identityHashCode( imp );
+			result = 31 * result + Long.hashCode( channel );
+			result = 31 * result + Long.hashCode( frame );
+			this.hash = result;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( obj == this )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = ( Key ) obj;
+			final ImagePlus imp = get();
+			return imp != null && imp == other.get() && channel == other.channel && frame == other.frame;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+
+	private static final class Entry
+	{
+
+		@SuppressWarnings( "rawtypes" )
+		private final CompletableFuture< ImgPlus > future = new CompletableFuture<>();
+
+		private long bytes;
+
+		private boolean counted;
+
+		/** Set once loaded. */
+		private Signature signature;
+
+		/** Pixel arrays the view was built on, for images held in memory. */
+		private Object[] planes;
+
+		private Long copyHash;
+	}
+}
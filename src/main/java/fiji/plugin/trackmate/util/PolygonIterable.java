@@ -0,0 +1,281 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * Iterates over the pixels of an image that are inside a 2D polygon.
+ * <p>
+ * The polygon is rasterized once with {@link PolygonScanline}, following the
+ * even-odd rule, into spans of consecutive pixels along X. The cursor then
+ * moves along these spans, row by row, so no point-in-polygon test is made
+ * per pixel. Pixels are read directly from the source image if the polygon
+ * bounding box lies inside it, and from an extended view of the source
+ * otherwise.
+ *
+ * @param <T>
+ *            the type of pixels.
+ * @author Jean-Yves Tinevez
+ */
+public class PolygonIterable< T > implements IterableInterval< T >
+{
+
+	private final RandomAccessible< T > source;
+
+	private final FinalInterval interval;
+
+	/**
+	 * Spans inside the polygon, stored as <code>y, xmin, xmax</code>
+	 * triplets, ordered by Y then X.
+	 */
+	private final long[] spans;
+
+	private final int nSpans;
+
+	private final long size;
+
+	/**
+	 * Creates an iterable over the pixels inside the specified polygon.
+	 *
+	 * @param x
+	 *            the X coordinates of the polygon vertices, in pixel units.
+	 * @param y
+	 *            the Y coordinates of the polygon vertices, in pixel units.
+	 * @param img
+	 *            the image to iterate. Only its first two dimensions are
+	 *            considered.
+	 * @param extended
+	 *            an extended view of the image, used if the polygon is not
+	 *            fully inside the image.
+	 */
+	public PolygonIterable( final double[] x, final double[] y, final RandomAccessibleInterval< T > img, final RandomAccessible< T > extended )
+	{
+		final long minX = ( long ) Math.floor( Util.min( x ) );
+		final long maxX = ( long ) Math.ceil( Util.max( x ) );
+		final long minY = ( long ) Math.floor( Util.min( y ) );
+		final long maxY = ( long ) Math.ceil( Util.max( y ) );
+		this.interval = Intervals.createMinMax( minX, minY, maxX, maxY );
+
+		final boolean isInside = img.min( 0 ) <= minX && maxX <= img.max( 0 )
+				&& img.min( 1 ) <= minY && maxY <= img.max( 1 );
+		this.source = isInside ? img : extended;
+
+		final long[][] buffer = new long[][] { new long[ 3 * 16 ] };
+		final int[] n = new int[] { 0 };
+		final long[] count = new long[] { 0 };
+		PolygonScanline.forEachSpan( x, y, minX, maxX, minY, maxY, ( py, xa, xb ) -> {
+			if ( 3 * n[ 0 ] == buffer[ 0 ].length )
+				buffer[ 0 ] = Arrays.copyOf( buffer[ 0 ], 2 * buffer[ 0 ].length );
+			buffer[ 0 ][ 3 * n[ 0 ] ] = py;
+			buffer[ 0 ][ 3 * n[ 0 ] + 1 ] = xa;
+			buffer[ 0 ][ 3 * n[ 0 ] + 2 ] = xb;
+			n[ 0 ]++;
+			count[ 0 ] += xb - xa + 1;
+		} );
+		this.spans = buffer[ 0 ];
+		this.nSpans = n[ 0 ];
+		this.size = count[ 0 ];
+	}
+
+	@Override
+	public long size()
+	{
+		return size;
+	}
+
+	@Override
+	public T firstElement()
+	{
+		return cursor().next();
+	}
+
+	@Override
+	public Object iterationOrder()
+	{
+		return this;
+	}
+
+	@Override
+	public double realMin( final int d )
+	{
+		return interval.realMin( d );
+	}
+
+	@Override
+	public double realMax( final int d )
+	{
+		return interval.realMax( d );
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return 2;
+	}
+
+	@Override
+	public long min( final int d )
+	{
+		return interval.min( d );
+	}
+
+	@Override
+	public long max( final int d )
+	{
+		return interval.max( d );
+	}
+
+	@Override
+	public Cursor< T > cursor()
+	{
+		return new SpanCursor();
+	}
+
+	@Override
+	public Cursor< T > localizingCursor()
+	{
+		return cursor();
+	}
+
+	@Override
+	public Iterator< T > iterator()
+	{
+		return cursor();
+	}
+
+	private final class SpanCursor implements Cursor< T >
+	{
+
+		private final RandomAccess< T > ra;
+
+		/** Index of the current span. */
+		private int span;
+
+		private long x;
+
+		private long y;
+
+		private SpanCursor()
+		{
+			this.ra = source.randomAccess();
+			reset();
+		}
+
+		private SpanCursor( final SpanCursor cursor )
+		{
+			this.ra = cursor.ra.copy();
+			this.span = cursor.span;
+			this.x = cursor.x;
+			this.y = cursor.y;
+		}
+
+		@Override
+		public T get()
+		{
+			return ra.get();
+		}
+
+		@Override
+		public void fwd()
+		{
+			if ( span >= 0 && x < spans[ 3 * span + 2 ] )
+			{
+				x++;
+				ra.fwd( 0 );
+				return;
+			}
+			span++;
+			y = spans[ 3 * span ];
+			x = spans[ 3 * span + 1 ];
+			ra.setPosition( x, 0 );
+			ra.setPosition( y, 1 );
+		}
+
+		@Override
+		public void jumpFwd( final long steps )
+		{
+			for ( long i = 0; i < steps; i++ )
+				fwd();
+		}
+
+		@Override
+		public void reset()
+		{
+			span = -1;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return span < nSpans - 1 || ( span >= 0 && x < spans[ 3 * span + 2 ] );
+		}
+
+		@Override
+		public T next()
+		{
+			fwd();
+			return get();
+		}
+
+		@Override
+		public long getLongPosition( final int d )
+		{
+			return d == 0 ? x : y;
+		}
+
+		@Override
+		public void localize( final long[] position )
+		{
+			position[ 0 ] = x;
+			position[ 1 ] = y;
+		}
+
+		@Override
+		public double getDoublePosition( final int d )
+		{
+			return getLongPosition( d );
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return 2;
+		}
+
+		@Override
+		public Cursor< T > copy()
+		{
+			return new SpanCursor( this );
+		}
+	}
+}
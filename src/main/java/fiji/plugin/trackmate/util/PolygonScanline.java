@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import java.util.Arrays;
+
+/**
+ * Scanline rasterization of simple 2D polygons.
+ * <p>
+ * A pixel at integer position <code>(px, py)</code> is considered to be
+ * inside the polygon if the point <code>(px, py)</code> is inside the polygon,
+ * following the even-odd rule. Polygon vertices must therefore be expressed in
+ * a coordinate system where pixel centers lie on integer positions.
+ * <p>
+ * Pixels inside the polygon are reported row by row, as spans of consecutive
+ * pixels, so that no mask image needs to be created.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PolygonScanline
+{
+
+	/**
+	 * Interface for consumers of horizontal pixel spans.
+	 */
+	@FunctionalInterface
+	public static interface SpanConsumer
+	{
+
+		/**
+		 * Called for each span of pixels inside the polygon.
+		 * 
+		 * @param y
+		 *            the row of the span.
+		 * @param xmin
+		 *            the first pixel of the span, inclusive.
+		 * @param xmax
+		 *            the last pixel of the span, inclusive.
+		 */
+		public void accept( long y, long xmin, long xmax );
+	}
+
+	private PolygonScanline()
+	{}
+
+	/**
+	 * Iterates over all the pixels inside the specified polygon that are
+	 * within the specified bounds.
+	 * 
+	 * @param x
+	 *            the X coordinates of the polygon vertices.
+	 * @param y
+	 *            the Y coordinates of the polygon vertices.
+	 * @param minX
+	 *            the min X bound, inclusive.
+	 * @param maxX
+	 *            the max X bound, inclusive.
+	 * @param minY
+	 *            the min Y bound, inclusive.
+	 * @param maxY
+	 *            the max Y bound, inclusive.
+	 * @param consumer
+	 *            the consumer to call for each span of pixels.
+	 */
+	public static void forEachSpan(
+			final double[] x,
+			final double[] y,
+			final long minX,
+			final long maxX,
+			final long minY,
+			final long maxY,
+			final SpanConsumer consumer )
+	{
+		final int n = x.length;
+		if ( n < 3 )
+			return;
+
+		double polyMinY = Double.POSITIVE_INFINITY;
+		double polyMaxY = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < n; i++ )
+		{
+			polyMinY = Math.min( polyMinY, y[ i ] );
+			polyMaxY = Math.max( polyMaxY, y[ i ] );
+		}
+		final long y0 = Math.max( minY, ( long ) Math.ceil( polyMinY ) );
+		final long y1 = Math.min( maxY, ( long ) Math.floor( polyMaxY ) );
+
+		final double[] crossings = new double[ n ];
+		for ( long py = y0; py <= y1; py++ )
+		{
+			// X positions where the polygon edges cross this row.
+			int nc = 0;
+			for ( int i = 0, j = n - 1; i < n; j = i++ )
+			{
+				final double yi = y[ i ];
+				final double yj = y[ j ];
+				if ( ( yi > py ) != ( yj > py ) )
+					crossings[ nc++ ] = x[ i ] + ( py - yi ) * ( x[ j ] - x[ i ] ) / ( yj - yi );
+			}
+			Arrays.sort( crossings, 0, nc );
+
+			// Pixels between pairs of crossings are inside.
+			for ( int k = 0; k + 1 < nc; k += 2 )
+			{
+				final long xa = Math.max( minX, ( long ) Math.ceil( crossings[ k ] ) );
+				final long xb = Math.min( maxX, ( long ) Math.ceil( crossings[ k + 1 ] ) - 1 );
+				if ( xa <= xb )
+					consumer.accept( py, xa, xb );
+			}
+		}
+	}
+}
@@ -29,13 +29,23 @@ import net.imglib2.Positionable;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPositionable;
 import net.imglib2.algorithm.neighborhood.Neighborhood;
-import net.imglib2.algorithm.region.localneighborhood.AbstractNeighborhood;
 import net.imglib2.algorithm.region.localneighborhood.EllipseNeighborhood;
 import net.imglib2.algorithm.region.localneighborhood.EllipsoidNeighborhood;
 import net.imglib2.algorithm.region.localneighborhood.RectangleNeighborhoodGPL;
 import net.imglib2.outofbounds.OutOfBoundsMirrorExpWindowingFactory;
 import net.imglib2.type.numeric.RealType;
 
+/**
+ * The neighborhood of a spot: a disc, a sphere, or a line for 1D images,
+ * centered on the spot and with the spot radius.
+ * <p>
+ * The shape of the neighborhood is the one of the imglib2 neighborhoods
+ * ({@link EllipseNeighborhood}, {@link EllipsoidNeighborhood} and
+ * {@link RectangleNeighborhoodGPL}), but it is iterated as runs of
+ * consecutive pixels read from a cached run-length encoded mask. Pixels are
+ * read directly from the source image, except for spots close to the image
+ * border that are read with a mirroring out-of-bounds strategy.
+ */
 public class SpotNeighborhood< T extends RealType< T > > implements Neighborhood< T >
 {
 
@@ -45,16 +55,25 @@ public class SpotNeighborhood< T extends RealType< T > > implements Neighborhood
 
 	protected final double[] calibration;
 
-	protected final AbstractNeighborhood< T > neighborhood;
-
 	protected final long[] center;
 
+	protected final long[] span;
+
+	protected final ImgPlus< T > img;
+
+	/** Shape of this neighborhood. */
+	final SpotNeighborhoodMask mask;
+
+	/** Whether this neighborhood lies entirely in the source image. */
+	final boolean isInside;
+
 	/*
 	 * CONSTRUCTOR
 	 */
 
 	public SpotNeighborhood( final Spot spot, final ImgPlus< T > img )
 	{
+		this.img = img;
 		this.calibration = TMUtils.getSpatialCalibration( img );
 		// Center
 		this.center = new long[ img.numDimensions() ];
@@ -62,7 +81,7 @@ public class SpotNeighborhood< T extends RealType< T > > implements Neighborhood
 			center[ d ] = Math.round( spot.getFeature( Spot.POSITION_FEATURES[ d ] ).doubleValue() / calibration[ d ] );
 
 		// Span
-		final long[] span = new long[ img.numDimensions() ];
+		this.span = new long[ img.numDimensions() ];
 		for ( int d = 0; d < span.length; d++ )
 			span[ d ] = Math.round( spot.getFeature( Spot.RADIUS ) / calibration[ d ] );
 
@@ -81,26 +100,32 @@ public class SpotNeighborhood< T extends RealType< T > > implements Neighborhood
 				span[ 0 ] = 0;
 			else
 				span[ 1 ] = 0;
-			this.neighborhood = new RectangleNeighborhoodGPL<>( img, oob );
-			neighborhood.setPosition( center );
-			neighborhood.setSpan( span );
+			this.mask = SpotNeighborhoodMask.get( "Rectangle" + img.numDimensions(), span, center, () -> {
+				final RectangleNeighborhoodGPL< T > neighborhood = new RectangleNeighborhoodGPL<>( img, oob );
+				neighborhood.setPosition( center );
+				neighborhood.setSpan( span );
+				return neighborhood.cursor();
+			} );
 		}
 		else if ( img.numDimensions() == 2 )
 		{
-			this.neighborhood = new EllipseNeighborhood<>( img, center, span, oob );
+			this.mask = SpotNeighborhoodMask.get( "Ellipse", span, center,
+					() -> new EllipseNeighborhood<>( img, center, span, oob ).cursor() );
 		}
 		else if ( img.numDimensions() == 3 )
 		{
-			this.neighborhood = new EllipsoidNeighborhood<>( img, center, span, oob );
+			this.mask = SpotNeighborhoodMask.get( "Ellipsoid", span, center,
+					() -> new EllipsoidNeighborhood<>( img, center, span, oob ).cursor() );
 		}
 		else
 		{
 			throw new IllegalArgumentException( "Source input must be 1D, 2D or 3D, got nDims = " + img.numDimensions() );
 		}
+		this.isInside = SpotNeighborhoodMask.isInside( center, span, img );
 	}
 
 	/*
-	 * METHODS We delegate everything to the wrapped neighborhood
+	 * METHODS
 	 */
 
 	@Override
@@ -118,61 +143,65 @@ public class SpotNeighborhood< T extends RealType< T > > implements Neighborhood
 	@Override
 	public long size()
 	{
-		return neighborhood.size();
+		return mask.size;
 	}
 
 	@Override
 	public T firstElement()
 	{
-		return neighborhood.firstElement();
+		return cursor().next();
 	}
 
 	@Override
 	public Object iterationOrder()
 	{
-		return neighborhood.iterationOrder();
+		return this;
 	}
 
 	@Override
 	public double realMin( final int d )
 	{
-		return neighborhood.realMin( d );
+		return center[ d ] - span[ d ];
 	}
 
 	@Override
 	public void realMin( final double[] min )
 	{
-		neighborhood.realMin( min );
+		for ( int d = 0; d < center.length; d++ )
+			min[ d ] = center[ d ] - span[ d ];
 	}
 
 	@Override
 	public void realMin( final RealPositionable min )
 	{
-		neighborhood.realMin( min );
+		for ( int d = 0; d < center.length; d++ )
+			min.setPosition( center[ d ] - span[ d ], d );
 	}
 
 	@Override
 	public double realMax( final int d )
 	{
-		return neighborhood.realMax( d );
+		return center[ d ] + span[ d ];
 	}
 
 	@Override
 	public void realMax( final double[] max )
 	{
-		neighborhood.realMax( max );
+		for ( int d = 0; d < center.length; d++ )
+			max[ d ] = center[ d ] + span[ d ];
 	}
 
 	@Override
 	public void realMax( final RealPositionable max )
 	{
-		neighborhood.realMax( max );
+		for ( int d = 0; d < center.length; d++ )
+			max.setPosition( center[ d ] + span[ d ], d );
 	}
 
 	@Override
 	public int numDimensions()
 	{
-		return neighborhood.numDimensions();
+		return center.length;
 	}
 
 	@Override
@@ -184,49 +213,54 @@ public class SpotNeighborhood< T extends RealType< T > > implements Neighborhood
 	@Override
 	public long min( final int d )
 	{
-		return neighborhood.min( d );
+		return center[ d ] - span[ d ];
 	}
 
 	@Override
 	public void min( final long[] min )
 	{
-		neighborhood.min( min );
+		for ( int d = 0; d < center.length; d++ )
+			min[ d ] = center[ d ] - span[ d ];
 	}
 
 	@Override
 	public void min( final Positionable min )
 	{
-		neighborhood.min( min );
+		for ( int d = 0; d < center.length; d++ )
+			min.setPosition( center[ d ] - span[ d ], d );
 	}
 
 	@Override
 	public long max( final int d )
 	{
-		return neighborhood.max( d );
+		return center[ d ] + span[ d ];
 	}
 
 	@Override
 	public void max( final long[] max )
 	{
-		neighborhood.max( max );
+		for ( int d = 0; d < center.length; d++ )
+			max[ d ] = center[ d ] + span[ d ];
 	}
 
 	@Override
 	public void max( final Positionable max )
 	{
-		neighborhood.max( max );
+		for ( int d = 0; d < center.length; d++ )
+			max.setPosition( center[ d ] + span[ d ], d );
 	}
 
 	@Override
 	public void dimensions( final long[] dimensions )
 	{
-		neighborhood.dimensions( dimensions );
+		for ( int d = 0; d < center.length; d++ )
+			dimensions[ d ] = 2 * span[ d ] + 1;
 	}
 
 	@Override
 	public long dimension( final int d )
 	{
-		return neighborhood.dimension( d );
+		return 2 * span[ d ] + 1;
 	}
 
 	@Override
@@ -22,8 +22,16 @@
 package fiji.plugin.trackmate.util;
 
 import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.outofbounds.OutOfBoundsMirrorExpWindowingFactory;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 
+/**
+ * Cursor over a {@link SpotNeighborhood}. Iterates over the runs of its mask,
+ * moving a random access along X within each run.
+ */
 public class SpotNeighborhoodCursor< T extends RealType< T > > implements Cursor< T >
 {
 
@@ -31,28 +39,52 @@ public class SpotNeighborhoodCursor< T extends RealType< T > > implements Cursor
 	 * FIELDs
 	 */
 
-	protected final Cursor< T > cursor;
+	protected final SpotNeighborhood< T > sn;
+
+	protected final RandomAccess< T > ra;
 
 	protected final double[] calibration;
 
 	protected final long[] center;
 
-	/** A utility holder to store position everytime required. */
+	/** The current position. */
 	private final long[] pos;
 
+	private final SpotNeighborhoodMask mask;
+
+	/** Index of the current run. */
+	private int run;
+
+	/** Index of the current pixel in the current run. */
+	private int inRun;
+
 	/*
 	 * CONSTRUCTOR
 	 */
 
-	public SpotNeighborhoodCursor( SpotNeighborhood< T > sn )
+	public SpotNeighborhoodCursor( final SpotNeighborhood< T > sn )
 	{
-		this.cursor = sn.neighborhood.cursor();
+		this.sn = sn;
+		this.mask = sn.mask;
 		this.calibration = sn.calibration;
 		this.center = sn.center;
-		this.pos = new long[ cursor.numDimensions() ];
+		this.pos = new long[ center.length ];
+		if ( sn.isInside )
+			this.ra = sn.img.randomAccess();
+		else
+			this.ra = Views.extend( sn.img, new OutOfBoundsMirrorExpWindowingFactory< T, RandomAccessibleInterval< T > >() ).randomAccess();
 		reset();
 	}
 
+	private SpotNeighborhoodCursor( final SpotNeighborhoodCursor< T > cursor )
+	{
+		this( cursor.sn );
+		this.run = cursor.run;
+		this.inRun = cursor.inRun;
+		System.arraycopy( cursor.pos, 0, pos, 0, pos.length );
+		ra.setPosition( pos );
+	}
+
 	/*
 	 * METHODS These methods are specific and are mainly focused on the use of
 	 * calibrated units.
@@ -64,7 +96,6 @@ public class SpotNeighborhoodCursor< T extends RealType< T > > implements Cursor
 	 */
 	public void getRelativePosition( double[] position )
 	{
-		cursor.localize( pos );
 		for ( int d = 0; d < center.length; d++ )
 		{
 			position[ d ] = calibration[ d ] * ( pos[ d ] - center[ d ] );
@@ -77,7 +108,6 @@ public class SpotNeighborhoodCursor< T extends RealType< T > > implements Cursor
 	 */
 	public double getDistanceSquared()
 	{
-		cursor.localize( pos );
 		double sum = 0;
 		double dx = 0;
 		for ( int d = 0; d < pos.length; d++ )
@@ -99,7 +129,7 @@ public class SpotNeighborhoodCursor< T extends RealType< T > > implements Cursor
 	{
 		if ( numDimensions() < 2 )
 			return 0;
-		double dx = calibration[ 2 ] * ( cursor.getDoublePosition( 2 ) - center[ 2 ] );
+		double dx = calibration[ 2 ] * ( pos[ 2 ] - center[ 2 ] );
 		return Math.acos( dx / Math.sqrt( getDistanceSquared() ) );
 	}
 
@@ -113,114 +143,129 @@ public class SpotNeighborhoodCursor< T extends RealType< T > > implements Cursor
 	 */
 	public double getPhi()
 	{
-		double dx = calibration[ 0 ] * ( cursor.getDoublePosition( 0 ) - center[ 0 ] );
-		double dy = calibration[ 1 ] * ( cursor.getDoublePosition( 1 ) - center[ 1 ] );
+		double dx = calibration[ 0 ] * ( pos[ 0 ] - center[ 0 ] );
+		double dy = calibration[ 1 ] * ( pos[ 1 ] - center[ 1 ] );
 		return Math.atan2( dy, dx );
 	}
 
 	/*
-	 * CURSOR METHODS We delegate to the wrapped cursor
+	 * CURSOR METHODS
 	 */
 
 	@Override
-	public void localize( float[] position )
+	public void localize( final float[] position )
 	{
-		cursor.localize( position );
+		for ( int d = 0; d < pos.length; d++ )
+			position[ d ] = pos[ d ];
 	}
 
 	@Override
-	public void localize( double[] position )
+	public void localize( final double[] position )
 	{
-		cursor.localize( position );
+		for ( int d = 0; d < pos.length; d++ )
+			position[ d ] = pos[ d ];
 	}
 
 	@Override
-	public float getFloatPosition( int d )
+	public float getFloatPosition( final int d )
 	{
-		return cursor.getFloatPosition( d );
+		return pos[ d ];
 	}
 
 	@Override
-	public double getDoublePosition( int d )
+	public double getDoublePosition( final int d )
 	{
-		return cursor.getDoublePosition( d );
+		return pos[ d ];
 	}
 
 	@Override
 	public int numDimensions()
 	{
-		return cursor.numDimensions();
+		return pos.length;
 	}
 
 	@Override
 	public T get()
 	{
-		return cursor.get();
+		return ra.get();
 	}
 
 	@Override
-	public Cursor< T > copy()
+	public SpotNeighborhoodCursor< T > copy()
 	{
-		return cursor.copy();
+		return new SpotNeighborhoodCursor<>( this );
 	}
 
 	@Override
-	public void jumpFwd( long steps )
+	public void jumpFwd( final long steps )
 	{
-		cursor.jumpFwd( steps );
+		for ( long i = 0; i < steps; i++ )
+			fwd();
 	}
 
 	@Override
 	public void fwd()
 	{
-		cursor.fwd();
+		if ( run >= 0 && inRun < mask.lengths[ run ] - 1 )
+		{
+			// Next pixel in the run.
+			inRun++;
+			pos[ 0 ]++;
+			ra.fwd( 0 );
+			return;
+		}
+
+		// Start of the next run.
+		run++;
+		inRun = 0;
+		final int offset = run * mask.n;
+		for ( int d = 0; d < pos.length; d++ )
+			pos[ d ] = center[ d ] + mask.starts[ offset + d ];
+		ra.setPosition( pos );
 	}
 
 	@Override
 	public void reset()
 	{
-		cursor.reset();
+		run = -1;
+		inRun = 0;
 	}
 
 	@Override
 	public boolean hasNext()
 	{
-		return cursor.hasNext();
+		return run < mask.nRuns() - 1 || ( run >= 0 && inRun < mask.lengths[ run ] - 1 );
 	}
 
 	@Override
 	public T next()
 	{
-		return cursor.next();
+		fwd();
+		return get();
 	}
 
 	@Override
-	public void remove()
+	public void localize( final int[] position )
 	{
-		cursor.remove();
-	}
-
-	@Override
-	public void localize( int[] position )
-	{
-		cursor.localize( position );
+		for ( int d = 0; d < pos.length; d++ )
+			position[ d ] = ( int ) pos[ d ];
 	}
 
 	@Override
-	public void localize( long[] position )
+	public void localize( final long[] position )
 	{
-		cursor.localize( position );
+		System.arraycopy( pos, 0, position, 0, pos.length );
 	}
 
 	@Override
-	public int getIntPosition( int d )
+	public int getIntPosition( final int d )
 	{
-		return cursor.getIntPosition( d );
+		return ( int ) pos[ d ];
 	}
 
 	@Override
-	public long getLongPosition( int d )
+	public long getLongPosition( final int d )
 	{
-		return cursor.getLongPosition( d );
+		return pos[ d ];
 	}
 }
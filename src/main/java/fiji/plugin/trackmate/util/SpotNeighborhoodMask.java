@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+
+/**
+ * Run-length encoded shape of a {@link SpotNeighborhood}, relative to its
+ * center.
+ * <p>
+ * The shape is stored as runs of consecutive pixels along X. Runs are
+ * recorded in the order in which the imglib2 neighborhood they are built from
+ * iterates over its pixels, so iterating over the runs visits the same pixels
+ * in the same order.
+ * <p>
+ * The shape of a neighborhood only depends on its type and on its span, that
+ * is on the spot radius and the image calibration. Masks are therefore cached
+ * and shared by all the spots with the same discretized radius.
+ *
+ * @author Jean-Yves Tinevez
+ */
+final class SpotNeighborhoodMask
+{
+
+	/**
+	 * Maximal number of masks in the cache. The cache is simply emptied when
+	 * this number is reached.
+	 */
+	private static final int MAX_CACHE_SIZE = 1024;
+
+	private static final Map< String, SpotNeighborhoodMask > CACHE = new ConcurrentHashMap<>();
+
+	/** Number of dimensions. */
+	final int n;
+
+	/**
+	 * Start of each run relative to the center, stored as <code>n</code>
+	 * consecutive values per run.
+	 */
+	final long[] starts;
+
+	/** Number of pixels in each run. */
+	final int[] lengths;
+
+	/** Total number of pixels. */
+	final long size;
+
+	private SpotNeighborhoodMask( final int n, final long[] starts, final int[] lengths, final long size )
+	{
+		this.n = n;
+		this.starts = starts;
+		this.lengths = lengths;
+		this.size = size;
+	}
+
+	int nRuns()
+	{
+		return lengths.length;
+	}
+
+	/**
+	 * Returns the mask for the specified neighborhood type and span, building
+	 * it if needed.
+	 *
+	 * @param type
+	 *            a name for the type of neighborhood.
+	 * @param span
+	 *            the neighborhood span.
+	 * @param center
+	 *            the position of the neighborhood iterated by the cursor.
+	 * @param cursorSupplier
+	 *            supplies a cursor over a neighborhood of the specified type
+	 *            and span, used to build the mask on the first request.
+	 * @return the mask.
+	 */
+	static SpotNeighborhoodMask get( final String type, final long[] span, final long[] center, final Supplier< Cursor< ? > > cursorSupplier )
+	{
+		final String key = type + Arrays.toString( span );
+		final SpotNeighborhoodMask mask = CACHE.get( key );
+		if ( null != mask )
+			return mask;
+
+		final SpotNeighborhoodMask newMask = build( center, cursorSupplier.get() );
+		if ( CACHE.size() >= MAX_CACHE_SIZE )
+			CACHE.clear();
+		CACHE.put( key, newMask );
+		return newMask;
+	}
+
+	private static SpotNeighborhoodMask build( final long[] center, final Cursor< ? > cursor )
+	{
+		final int n = center.length;
+		final long[] pos = new long[ n ];
+		final long[] previous = new long[ n ];
+		long[] starts = new long[ 16 * n ];
+		int[] lengths = new int[ 16 ];
+		int nRuns = 0;
+		long size = 0;
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( pos );
+			for ( int d = 0; d < n; d++ )
+				pos[ d ] -= center[ d ];
+			size++;
+
+			// Does this pixel continue the current run?
+			boolean continues = nRuns > 0 && pos[ 0 ] == previous[ 0 ] + 1;
+			for ( int d = 1; d < n && continues; d++ )
+				continues = pos[ d ] == previous[ d ];
+			System.arraycopy( pos, 0, previous, 0, n );
+			if ( continues )
+			{
+				lengths[ nRuns - 1 ]++;
+				continue;
+			}
+
+			if ( nRuns == lengths.length )
+			{
+				lengths = Arrays.copyOf( lengths, 2 * nRuns );
+				starts = Arrays.copyOf( starts, 2 * nRuns * n );
+			}
+			System.arraycopy( pos, 0, starts, nRuns * n, n );
+			lengths[ nRuns ] = 1;
+			nRuns++;
+		}
+		return new SpotNeighborhoodMask( n, Arrays.copyOf( starts, nRuns * n ), Arrays.copyOf( lengths, nRuns ), size );
+	}
+
+	/**
+	 * Returns <code>true</code> if a neighborhood with the specified center
+	 * and span lies entirely in the specified interval.
+	 */
+	static boolean isInside( final long[] center, final long[] span, final Interval interval )
+	{
+		final long[] min = new long[ center.length ];
+		final long[] max = new long[ center.length ];
+		for ( int d = 0; d < center.length; d++ )
+		{
+			min[ d ] = center[ d ] - span[ d ];
+			max[ d ] = center[ d ] + span[ d ];
+		}
+		return Intervals.contains( interval, new FinalInterval( min, max ) );
+	}
+}
@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+
+/**
+ * Orders spots so that spots processed one after the other access nearby
+ * pixels.
+ * <p>
+ * Spots are sorted by frame first, then along a Z-order (Morton) curve over
+ * the top-left corner of their bounding box, in pixel coordinates. The
+ * Z-order curve visits the image by nested power-of-two blocks, so spots
+ * that fall in the same cell of a cell image, or in the same plane of a
+ * virtual stack, are processed together instead of in hash order.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SpotSpatialOrder
+{
+
+	/** Number of bits per dimension in the Z-order key. */
+	private static final int BITS = 21;
+
+	private static final long MAX_COORDINATE = ( 1L << BITS ) - 1;
+
+	private SpotSpatialOrder()
+	{}
+
+	/**
+	 * Sorts the specified spots in place, by frame, then along a Z-order
+	 * curve.
+	 *
+	 * @param spots
+	 *            the spots to sort.
+	 * @param calibration
+	 *            the pixel sizes, used to convert spot coordinates to pixel
+	 *            coordinates. Must have at least 2 elements. If it has 3, the
+	 *            Z coordinate is used.
+	 */
+	public static void sort( final List< Spot > spots, final double[] calibration )
+	{
+		final List< Keyed > keyed = new ArrayList<>( spots.size() );
+		for ( final Spot spot : spots )
+		{
+			final Double frame = spot.getFeature( Spot.FRAME );
+			keyed.add( new Keyed( spot, null == frame ? 0 : frame.intValue(), zOrderKey( spot, calibration ) ) );
+		}
+		keyed.sort( Comparator.< Keyed >comparingInt( k -> k.frame ).thenComparingLong( k -> k.key ) );
+		for ( int i = 0; i < keyed.size(); i++ )
+			spots.set( i, keyed.get( i ).spot );
+	}
+
+	/**
+	 * Returns the position of the specified spot along the Z-order curve.
+	 *
+	 * @param spot
+	 *            the spot.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @return the Z-order key.
+	 */
+	public static long zOrderKey( final Spot spot, final double[] calibration )
+	{
+		final double x = spot.getDoublePosition( 0 );
+		final double y = spot.getDoublePosition( 1 );
+		final double z = spot.getDoublePosition( 2 );
+		final SpotRoi roi = spot.getRoi();
+		final double xmin;
+		final double ymin;
+		final double zmin;
+		if ( null != roi )
+		{
+			xmin = x + min( roi.x );
+			ymin = y + min( roi.y );
+			zmin = z;
+		}
+		else
+		{
+			final Double r = spot.getFeature( Spot.RADIUS );
+			final double radius = ( null == r ) ? 0. : r.doubleValue();
+			xmin = x - radius;
+			ymin = y - radius;
+			zmin = z - radius;
+		}
+		final long px = toPixel( xmin, calibration[ 0 ] );
+		final long py = toPixel( ymin, calibration[ 1 ] );
+		final long pz = ( calibration.length > 2 ) ? toPixel( zmin, calibration[ 2 ] ) : 0;
+		return spread( px ) | ( spread( py ) << 1 ) | ( spread( pz ) << 2 );
+	}
+
+	private static long toPixel( final double position, final double calibration )
+	{
+		final long p = ( long ) Math.floor( position / calibration );
+		return Math.max( 0, Math.min( MAX_COORDINATE, p ) );
+	}
+
+	/**
+	 * Spreads the lower 21 bits of the specified value so that there are two
+	 * zero bits between each of them.
+	 */
+	private static long spread( final long v )
+	{
+		long x = v & MAX_COORDINATE;
+		x = ( x | x << 32 ) & 0x1f00000000ffffL;
+		x = ( x | x << 16 ) & 0x1f0000ff0000ffL;
+		x = ( x | x << 8 ) & 0x100f00f00f00f00fL;
+		x = ( x | x << 4 ) & 0x10c30c30c30c30c3L;
+		x = ( x | x << 2 ) & 0x1249249249249249L;
+		return x;
+	}
+
+	private static double min( final double[] arr )
+	{
+		double min = Double.POSITIVE_INFINITY;
+		for ( final double v : arr )
+			min = Math.min( min, v );
+		return min;
+	}
+
+	private static final class Keyed
+	{
+
+		private final Spot spot;
+
+		private final int frame;
+
+		private final long key;
+
+		private Keyed( final Spot spot, final int frame, final long key )
+		{
+			this.spot = spot;
+			this.frame = frame;
+			this.key = key;
+		}
+	}
+}
@@ -47,6 +47,11 @@ public final class Threads {
 		return Executors.newCachedThreadPool();
 	}
 
+	public static ExecutorService newWorkStealingPool( final int parallelism )
+	{
+		return Executors.newWorkStealingPool( parallelism );
+	}
+
 	public static ExecutorService newSingleThreadExecutor()
 	{
 		return Executors.newSingleThreadExecutor();
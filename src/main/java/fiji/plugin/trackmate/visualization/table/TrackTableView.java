@@ -332,6 +332,7 @@ public class TrackTableView extends JFrame implements TrackMateModelView, ModelC
 
 	public static final TablePanel< Spot > createSpotTable( final Model model, final DisplaySettings ds )
 	{
+		model.getFeatureModel().materializeAllSpotFeatures();
 		final List< Spot > objects = new ArrayList<>();
 		for ( final Integer trackID : model.getTrackModel().unsortedTrackIDs( true ) )
 			objects.addAll( model.getTrackModel().trackSpots( trackID ) );
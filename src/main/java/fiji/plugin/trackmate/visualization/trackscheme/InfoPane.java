@@ -113,6 +113,7 @@ public class InfoPane extends JPanel implements SelectionChangeListener
 	{
 		this.model = model;
 		this.selectionModel = selectionModel;
+		model.getFeatureModel().materializeAllSpotFeatures();
 		final List< String > features = new ArrayList<>( model.getFeatureModel().getSpotFeatures() );
 		final Map< String, String > featureNames = model.getFeatureModel().getSpotFeatureShortNames();
 		final List< String > headerList = TMUtils.getArrayFromMaping( features, featureNames );
@@ -23,7 +23,7 @@ package fiji.plugin.trackmate.visualization.trackscheme;
 
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
-import fiji.plugin.trackmate.util.TMUtils;
+import fiji.plugin.trackmate.util.HyperSliceCache;
 import net.imagej.ImgPlus;
 
 public class SpotImageUpdater
@@ -74,8 +74,7 @@ public class SpotImageUpdater
 		}
 		else
 		{
-			final ImgPlus img = TMUtils.rawWraps( settings.imp );
-			final ImgPlus< ? > imgCT = TMUtils.hyperSlice( img, targetChannel, frame );
+			final ImgPlus< ? > imgCT = HyperSliceCache.getInstance().get( settings.imp, targetChannel, frame );
 
 			grabber = new SpotIconGrabber( imgCT );
 			previousFrame = frame;
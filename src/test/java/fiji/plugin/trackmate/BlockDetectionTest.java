@@ -0,0 +1,204 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.detection.DetectorKeys;
+import fiji.plugin.trackmate.detection.LogDetectorFactory;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/**
+ * Checks that splitting the frames in blocks processed by several workers
+ * gives the same spots as detecting in the whole frames.
+ */
+public class BlockDetectionTest
+{
+
+	private static final int WIDTH = 160;
+
+	private static final int HEIGHT = 256;
+
+	private static final double RADIUS = 2.5;
+
+	@Test
+	public void testSameSpotsAsWholeFrame()
+	{
+		final ImagePlus imp = blobs( 1, 1L );
+		compare( imp );
+	}
+
+	@Test
+	public void testSameSpotsAsWholeFrameSeveralFrames()
+	{
+		final ImagePlus imp = blobs( 3, 2L );
+		compare( imp );
+	}
+
+	/**
+	 * With a limit on the number of spots per frame, frames must return at
+	 * most this number of spots, the best ones of the whole frame, whatever
+	 * the number of threads.
+	 */
+	@Test
+	public void testMaxSpotsPerFrame()
+	{
+		final ImagePlus imp = blobs( 2, 3L );
+		final int maxSpots = 25;
+		final SpotCollection all = detect( imp, 1 );
+		for ( final int nThreads : new int[] { 1, 8 } )
+		{
+			final SpotCollection capped = detect( imp, nThreads, maxSpots );
+			for ( int t = 0; t < imp.getNFrames(); t++ )
+			{
+				final List< Spot > expected = sorted( all, t );
+				expected.sort( Comparator.comparingDouble( ( Spot s ) -> -s.getFeature( Spot.QUALITY ) ) );
+				assertTrue( expected.size() > maxSpots );
+				final List< Spot > actual = sorted( capped, t );
+				actual.sort( Comparator.comparingDouble( ( Spot s ) -> -s.getFeature( Spot.QUALITY ) ) );
+				assertEquals( maxSpots, actual.size() );
+				for ( int i = 0; i < maxSpots; i++ )
+				{
+					assertEquals( expected.get( i ).getFeature( Spot.QUALITY ), actual.get( i ).getFeature( Spot.QUALITY ), 1e-6 );
+					assertEquals( expected.get( i ).getDoublePosition( 0 ), actual.get( i ).getDoublePosition( 0 ), 1e-6 );
+					assertEquals( expected.get( i ).getDoublePosition( 1 ), actual.get( i ).getDoublePosition( 1 ), 1e-6 );
+				}
+			}
+		}
+	}
+
+	private static void compare( final ImagePlus imp )
+	{
+		final SpotCollection expected = detect( imp, 1 );
+		final SpotCollection actual = detect( imp, 8 );
+
+		for ( int t = 0; t < imp.getNFrames(); t++ )
+		{
+			final List< Spot > e = sorted( expected, t );
+			final List< Spot > a = sorted( actual, t );
+			assertTrue( "No spot found in frame " + t, e.size() > 0 );
+			assertEquals( "Unexpected number of spots in frame " + t, e.size(), a.size() );
+			for ( int i = 0; i < e.size(); i++ )
+			{
+				final Spot se = e.get( i );
+				final Spot sa = a.get( i );
+				assertEquals( se.getDoublePosition( 0 ), sa.getDoublePosition( 0 ), 1e-6 );
+				assertEquals( se.getDoublePosition( 1 ), sa.getDoublePosition( 1 ), 1e-6 );
+				assertEquals( se.getFeature( Spot.QUALITY ), sa.getFeature( Spot.QUALITY ), 1e-6 );
+			}
+		}
+	}
+
+	static SpotCollection detect( final ImagePlus imp, final int nThreads )
+	{
+		return detect( imp, nThreads, 0 );
+	}
+
+	static SpotCollection detect( final ImagePlus imp, final int nThreads, final int maxSpots )
+	{
+		final Settings settings = new Settings( imp );
+		settings.detectorFactory = new LogDetectorFactory<>();
+		final Map< String, Object > ds = settings.detectorFactory.getDefaultSettings();
+		ds.put( DetectorKeys.KEY_RADIUS, RADIUS );
+		ds.put( DetectorKeys.KEY_THRESHOLD, 1. );
+		ds.put( DetectorKeys.KEY_DO_MEDIAN_FILTERING, false );
+		ds.put( DetectorKeys.KEY_DO_SUBPIXEL_LOCALIZATION, true );
+		if ( maxSpots > 0 )
+			ds.put( DetectorKeys.KEY_MAX_SPOTS_PER_FRAME, maxSpots );
+		settings.detectorSettings = ds;
+
+		final Model model = new Model();
+		model.setLogger( Logger.VOID_LOGGER );
+		final TrackMate trackmate = new TrackMate( model, settings );
+		trackmate.setNumThreads( nThreads );
+		assertTrue( trackmate.getErrorMessage(), trackmate.execDetection() );
+		return model.getSpots();
+	}
+
+	static List< Spot > sorted( final SpotCollection spots, final int frame )
+	{
+		final List< Spot > list = new ArrayList<>();
+		for ( final Spot spot : spots.iterable( frame, false ) )
+			list.add( spot );
+		list.sort( Comparator.comparingDouble( ( Spot s ) -> s.getDoublePosition( 1 ) )
+				.thenComparingDouble( s -> s.getDoublePosition( 0 ) ) );
+		return list;
+	}
+
+	/**
+	 * Gaussian blobs over a noisy background. Many blobs are put right on
+	 * the boundaries between blocks, and in the halo around them, for
+	 * 2, 3, 4 and 8 blocks.
+	 */
+	static ImagePlus blobs( final int nFrames, final long seed )
+	{
+		final Random ran = new Random( seed );
+		final double sigma = RADIUS / Math.sqrt( 2. );
+		final ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final List< double[] > centers = new ArrayList<>();
+			for ( final int nBlocks : new int[] { 2, 3, 4, 8 } )
+			{
+				for ( int b = 1; b < nBlocks; b++ )
+				{
+					final int boundary = b * HEIGHT / nBlocks;
+					for ( int dy = -12; dy <= 12; dy += 3 )
+						centers.add( new double[] { 5. + ran.nextDouble() * ( WIDTH - 10 ), boundary + dy + ran.nextDouble() - 0.5 } );
+				}
+			}
+			for ( int i = 0; i < 40; i++ )
+				centers.add( new double[] { ran.nextDouble() * WIDTH, ran.nextDouble() * HEIGHT } );
+
+			final FloatProcessor fp = new FloatProcessor( WIDTH, HEIGHT );
+			for ( int y = 0; y < HEIGHT; y++ )
+			{
+				for ( int x = 0; x < WIDTH; x++ )
+				{
+					double val = 5. * ran.nextDouble();
+					for ( final double[] c : centers )
+					{
+						final double dx = x - c[ 0 ];
+						final double dy = y - c[ 1 ];
+						val += 100. * Math.exp( -( dx * dx + dy * dy ) / ( 2. * sigma * sigma ) );
+					}
+					fp.setf( x, y, ( float ) val );
+				}
+			}
+			stack.addSlice( fp );
+		}
+		final ImagePlus imp = new ImagePlus( "blobs", stack );
+		imp.setDimensions( 1, 1, nFrames );
+		return imp;
+	}
+}
@@ -24,17 +24,71 @@ package fiji.plugin.trackmate;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.jgrapht.graph.DefaultWeightedEdge;
 import org.junit.Test;
 
+import fiji.plugin.trackmate.features.FeatureFilter;
+
 public class ModelTest {
 
 
+	/**
+	 * Test that lazy spot features are computed once, when first requested.
+	 */
+	@Test
+	public void testLazySpotFeatures()
+	{
+		final Model model = new Model();
+		model.beginUpdate();
+		try
+		{
+			for ( int i = 0; i < 10; i++ )
+				model.addSpotTo( new Spot( i, 0d, 0d, 1d, -1d, "S" + i ), 0 );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		final FeatureModel fm = model.getFeatureModel();
+		final List< Collection< String > > requests = new ArrayList<>();
+		fm.setLazySpotFeatures( Arrays.asList( "A", "B" ), features -> {
+			requests.add( features );
+			for ( final Spot spot : model.getSpots().iterable( false ) )
+				for ( final String feature : features )
+					spot.putFeature( feature, spot.getDoublePosition( 0 ) );
+			fm.markSpotFeaturesMaterialized( features );
+		} );
+		assertTrue( !fm.isSpotFeatureMaterialized( "A" ) );
+		assertTrue( fm.isSpotFeatureMaterialized( Spot.QUALITY ) );
+
+		// Filtering on A computes A, and only A.
+		model.filterSpots( Collections.singleton( new FeatureFilter( "A", 4.5, true ) ), false );
+		assertEquals( 1, requests.size() );
+		assertEquals( Collections.singletonList( "A" ), requests.get( 0 ) );
+		assertEquals( 5, model.getSpots().getNSpots( true ) );
+		assertTrue( fm.isSpotFeatureMaterialized( "A" ) );
+		assertEquals( Collections.singletonList( "B" ), fm.getLazySpotFeatures() );
+
+		// Memoized.
+		fm.materializeSpotFeatures( Arrays.asList( "A", Spot.QUALITY ) );
+		assertEquals( 1, requests.size() );
+
+		fm.materializeAllSpotFeatures();
+		assertEquals( 2, requests.size() );
+		assertEquals( Collections.singletonList( "B" ), requests.get( 1 ) );
+		assertTrue( fm.getLazySpotFeatures().isEmpty() );
+	}
+
 	/**
 	 * Test if the track visibility is followed correctly.
 	 */
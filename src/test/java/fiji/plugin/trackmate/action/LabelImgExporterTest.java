@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.MaskUtils;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+public class LabelImgExporterTest
+{
+
+	@Test
+	public void testOriginalLabelsAreKept()
+	{
+		final Model model = new Model();
+		final Spot labeled = new Spot( 2., 2., 0., 1., 1. );
+		labeled.putFeature( MaskUtils.LABEL_ID, 1000. );
+		final Spot manual = new Spot( 6., 6., 0., 1., 1. );
+		addSpots( model, labeled, manual );
+
+		final Img< ? extends IntegerType< ? > > img = export( model );
+		assertTrue( img.firstElement() instanceof UnsignedShortType );
+		assertEquals( 1000, labelAt( img, labeled ) );
+		assertEquals( manual.ID() + 1, labelAt( img, manual ) );
+	}
+
+	@Test
+	public void testCollidingLabelsAreRemapped()
+	{
+		final Model model = new Model();
+		final Spot manual = new Spot( 6., 6., 0., 1., 1. );
+		final Spot labeled = new Spot( 2., 2., 0., 1., 1. );
+		// Same label as the one the manual spot gets from its ID.
+		labeled.putFeature( MaskUtils.LABEL_ID, manual.ID() + 1. );
+		addSpots( model, labeled, manual );
+
+		final Img< ? extends IntegerType< ? > > img = export( model );
+		assertEquals( labeled.ID() + 1, labelAt( img, labeled ) );
+		assertEquals( manual.ID() + 1, labelAt( img, manual ) );
+	}
+
+	@Test
+	public void testLargeLabelsAreKept()
+	{
+		final Model model = new Model();
+		final Spot labeled = new Spot( 2., 2., 0., 1., 1. );
+		labeled.putFeature( MaskUtils.LABEL_ID, 70000. );
+		addSpots( model, labeled );
+
+		final Img< ? extends IntegerType< ? > > img = export( model );
+		assertTrue( "Labels above 65535 need a 32-bit image.", img.firstElement() instanceof UnsignedIntType );
+		assertEquals( 70000, labelAt( img, labeled ) );
+	}
+
+	/**
+	 * A label image with labels that do not fit in 16 bits is converted to
+	 * spots, then exported back to the same label image.
+	 */
+	@Test
+	public void testLargeLabelsRoundTrip()
+	{
+		final long[][] boxes = new long[][] {
+				{ 1, 1, 5, 4 },
+				{ 8, 2, 14, 9 },
+				{ 3, 11, 9, 17 },
+				{ 12, 12, 18, 18 } };
+		final int[] labels = new int[] { 5, 65536, 70000, 1_000_000 };
+		final Img< IntType > source = ArrayImgs.ints( 20, 20 );
+		for ( int i = 0; i < boxes.length; i++ )
+		{
+			final FinalInterval box = new FinalInterval( new long[] { boxes[ i ][ 0 ], boxes[ i ][ 1 ] }, new long[] { boxes[ i ][ 2 ], boxes[ i ][ 3 ] } );
+			for ( final IntType p : Views.interval( source, box ) )
+				p.set( labels[ i ] );
+		}
+
+		final List< Spot > spots = MaskUtils.fromLabelImageWithROI( source, source, new double[] { 1., 1. }, false, 1, null );
+		assertEquals( labels.length, spots.size() );
+		final Model model = new Model();
+		addSpots( model, spots.toArray( new Spot[ 0 ] ) );
+
+		final Img< ? extends IntegerType< ? > > img = LabelImgExporter.createLabelImg( model, new long[] { 20, 20, 1, 1 }, new double[] { 1., 1., 1., 1. }, false, false, true );
+		assertTrue( img.firstElement() instanceof UnsignedIntType );
+		final Cursor< IntType > cursor = source.localizingCursor();
+		final RandomAccess< ? extends IntegerType< ? > > ra = img.randomAccess();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			ra.setPosition( new long[] { cursor.getLongPosition( 0 ), cursor.getLongPosition( 1 ), 0, 0 } );
+			assertEquals( "Unexpected label at " + cursor.getLongPosition( 0 ) + ", " + cursor.getLongPosition( 1 ),
+					cursor.get().get(), ra.get().getIntegerLong() );
+		}
+	}
+
+	private static void addSpots( final Model model, final Spot... spots )
+	{
+		model.beginUpdate();
+		try
+		{
+			for ( final Spot spot : spots )
+				model.addSpotTo( spot, 0 );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+	}
+
+	private static Img< ? extends IntegerType< ? > > export( final Model model )
+	{
+		return LabelImgExporter.createLabelImg( model, new long[] { 10, 10, 1, 1 }, new double[] { 1., 1., 1., 1. }, true, false, true );
+	}
+
+	private static long labelAt( final Img< ? extends IntegerType< ? > > img, final Spot spot )
+	{
+		final RandomAccess< ? extends IntegerType< ? > > ra = img.randomAccess();
+		ra.setPosition( new long[] { Math.round( spot.getDoublePosition( 0 ) ), Math.round( spot.getDoublePosition( 1 ) ), 0, 0 } );
+		return ra.get().getIntegerLong();
+	}
+}
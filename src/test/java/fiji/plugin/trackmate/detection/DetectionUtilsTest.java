@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import net.imglib2.Localizable;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class DetectionUtilsTest
+{
+
+	@Test
+	public void testMaxNSpotsKeepsBest2D()
+	{
+		checkMaxNSpots( randomImg( 1L, 120, 90 ), null );
+	}
+
+	@Test
+	public void testMaxNSpotsKeepsBest3D()
+	{
+		checkMaxNSpots( randomImg( 2L, 40, 30, 12 ), null );
+	}
+
+	@Test
+	public void testMaxNSpotsWithMask()
+	{
+		final Predicate< Localizable > mask = p -> p.getLongPosition( 0 ) < 60;
+		checkMaxNSpots( randomImg( 3L, 120, 90 ), mask );
+	}
+
+	@Test
+	public void testMaxNSpotsLargerThanCandidates()
+	{
+		final Img< FloatType > img = randomImg( 4L, 50, 50 );
+		final double[] calibration = new double[] { 1., 1. };
+		final List< Spot > all = DetectionUtils.findLocalMaxima( img, 0.5, calibration, 1., false, 1, null, 0, null );
+		final AtomicLong nDiscarded = new AtomicLong();
+		final List< Spot > capped = DetectionUtils.findLocalMaxima( img, 0.5, calibration, 1., false, 3, null, all.size() + 10, nDiscarded );
+		assertEquals( all.size(), capped.size() );
+		assertEquals( 0l, nDiscarded.get() );
+	}
+
+	private static void checkMaxNSpots( final Img< FloatType > img, final Predicate< Localizable > mask )
+	{
+		final double[] calibration = new double[ img.numDimensions() ];
+		for ( int d = 0; d < calibration.length; d++ )
+			calibration[ d ] = 0.5;
+
+		final List< Spot > all = DetectionUtils.findLocalMaxima( img, 0.2, calibration, 1., false, 1, mask, 0, null );
+		final List< Spot > expected = sortedByQuality( all );
+		assertTrue( "Not enough maxima to test the selection.", expected.size() > 100 );
+
+		for ( final int nTasks : new int[] { 1, 3, 8 } )
+		{
+			for ( final int k : new int[] { 1, 17, 100 } )
+			{
+				final AtomicLong nDiscarded = new AtomicLong();
+				final List< Spot > best = sortedByQuality( DetectionUtils.findLocalMaxima( img, 0.2, calibration, 1., false, nTasks, mask, k, nDiscarded ) );
+				assertEquals( k, best.size() );
+				assertEquals( expected.size() - k, nDiscarded.get() );
+				for ( int i = 0; i < k; i++ )
+				{
+					final Spot e = expected.get( i );
+					final Spot a = best.get( i );
+					assertEquals( e.getFeature( Spot.QUALITY ), a.getFeature( Spot.QUALITY ), 0. );
+					for ( int d = 0; d < 3; d++ )
+						assertEquals( e.getDoublePosition( d ), a.getDoublePosition( d ), 0. );
+				}
+			}
+		}
+	}
+
+	private static List< Spot > sortedByQuality( final List< Spot > spots )
+	{
+		final List< Spot > sorted = new ArrayList<>( spots );
+		sorted.sort( Comparator.comparingDouble( ( Spot s ) -> -s.getFeature( Spot.QUALITY ) ) );
+		return sorted;
+	}
+
+	private static Img< FloatType > randomImg( final long seed, final long... dims )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		final Random ran = new Random( seed );
+		for ( final FloatType t : img )
+			t.set( ran.nextFloat() );
+		return img;
+	}
+}
@@ -0,0 +1,48 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class DogDetectorFactoryTest
+{
+
+	@Test
+	public void testRejectsDownsamplingFactor()
+	{
+		final DogDetectorFactory< ? > factory = new DogDetectorFactory<>();
+		final Map< String, Object > settings = factory.getDefaultSettings();
+		assertTrue( factory.getErrorMessage(), factory.checkSettings( settings ) );
+
+		settings.put( DetectorKeys.KEY_DOWNSAMPLE_FACTOR, Integer.valueOf( DetectorKeys.DEFAULT_DOWNSAMPLE_FACTOR ) );
+		assertFalse( factory.checkSettings( settings ) );
+		assertTrue( factory.getErrorMessage().contains( DetectorKeys.KEY_DOWNSAMPLE_FACTOR ) );
+
+		// Still accepted by the LoG detector.
+		assertTrue( new LogDetectorFactory<>().checkSettings( settings ) );
+	}
+}
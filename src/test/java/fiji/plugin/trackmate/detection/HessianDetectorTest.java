@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gradient.HessianMatrix;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.outofbounds.OutOfBoundsBorderFactory;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Checks that the streaming computation of the Hessian determinant gives the
+ * same values as the computation over full gradient and Hessian images with
+ * {@link HessianMatrix}.
+ */
+public class HessianDetectorTest
+{
+
+	private static final double RADIUS_XY = 3.;
+
+	/**
+	 * Gives a Z half kernel of 4 pixels, so that slabs are 8 slices deep.
+	 */
+	private static final double RADIUS_Z = 1.8;
+
+	@Test
+	public void test2D() throws Exception
+	{
+		final Img< FloatType > img = randomImage( 1l, 37, 29 );
+		check( img, img );
+	}
+
+	@Test
+	public void test2DWithCrop() throws Exception
+	{
+		final Img< FloatType > img = randomImage( 2l, 37, 29 );
+		check( img, new FinalInterval( new long[] { 5, 3 }, new long[] { 30, 20 } ) );
+	}
+
+	@Test
+	public void test3DSmallerThanSlab() throws Exception
+	{
+		final Img< FloatType > img = randomImage( 3l, 23, 19, 5 );
+		check( img, img );
+	}
+
+	@Test
+	public void test3DOneSlab() throws Exception
+	{
+		final Img< FloatType > img = randomImage( 4l, 23, 19, 8 );
+		check( img, img );
+	}
+
+	@Test
+	public void test3DSeveralSlabs() throws Exception
+	{
+		final Img< FloatType > img = randomImage( 5l, 23, 19, 27 );
+		check( img, img );
+	}
+
+	@Test
+	public void test3DWithCrop() throws Exception
+	{
+		final Img< FloatType > img = randomImage( 6l, 31, 25, 27 );
+		check( img, new FinalInterval( new long[] { 4, 6, 3 }, new long[] { 25, 20, 22 } ) );
+	}
+
+	private static void check( final Img< FloatType > img, final Interval crop ) throws Exception
+	{
+		final int n = img.numDimensions();
+		final double[] calibration = new double[] { 1., 1., 1. };
+		final RandomAccessible< FloatType > source = Views.extendMirrorDouble( img );
+		final Img< FloatType > expected = reference( source, crop, calibration );
+		double maxAbs = 0.;
+		for ( final FloatType p : expected )
+			maxAbs = Math.max( maxAbs, Math.abs( p.getRealDouble() ) );
+		final double tolerance = 1e-6 * maxAbs;
+
+		for ( final int numThreads : new int[] { 1, 3 } )
+		{
+			final HessianDetector< FloatType > detector = new HessianDetector<>( source, crop, calibration, RADIUS_XY, RADIUS_Z, 0., false, false );
+			final Img< FloatType > actual = detector.computeHessianDeterminant( crop, numThreads );
+			assertArrayEquals( Intervals.dimensionsAsLongArray( crop ), Intervals.dimensionsAsLongArray( actual ) );
+
+			final Cursor< FloatType > ce = expected.localizingCursor();
+			final RandomAccess< FloatType > ra = actual.randomAccess();
+			while ( ce.hasNext() )
+			{
+				ce.fwd();
+				ra.setPosition( ce );
+				assertEquals( "At " + Util.printCoordinates( ce ) + " in " + n + "D with " + numThreads + " threads.",
+						ce.get().getRealDouble(), ra.get().getRealDouble(), tolerance );
+			}
+		}
+	}
+
+	/**
+	 * The determinant computed as before the streaming implementation, from
+	 * the full Hessian matrix image.
+	 */
+	private static Img< FloatType > reference( final RandomAccessible< FloatType > source, final Interval crop, final double[] calibration ) throws Exception
+	{
+		final int n = crop.numDimensions();
+		final double[] radius = new double[] { RADIUS_XY, RADIUS_XY, RADIUS_Z };
+		final double[] sigmas = new double[ n ];
+		for ( int d = 0; d < n; d++ )
+			sigmas[ d ] = radius[ d ] / calibration[ d ] / Math.sqrt( n );
+
+		final long[] dims = Intervals.dimensionsAsLongArray( crop );
+		final long[] gradientDims = new long[ n + 1 ];
+		final long[] hessianDims = new long[ n + 1 ];
+		System.arraycopy( dims, 0, gradientDims, 0, n );
+		System.arraycopy( dims, 0, hessianDims, 0, n );
+		gradientDims[ n ] = n;
+		hessianDims[ n ] = n * ( n + 1 ) / 2;
+		final Img< FloatType > gaussian = ArrayImgs.floats( dims );
+		final Img< FloatType > gradient = ArrayImgs.floats( gradientDims );
+		final Img< FloatType > hessian = ArrayImgs.floats( hessianDims );
+
+		final ExecutorService es = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			HessianMatrix.calculateMatrix( Views.zeroMin( Views.interval( source, crop ) ), gaussian,
+					gradient, hessian, new OutOfBoundsBorderFactory<>(), 2, es, sigmas );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+		final RandomAccessibleInterval< FloatType > H = HessianMatrix.scaleHessianMatrix( hessian, sigmas );
+
+		final Img< FloatType > det = ArrayImgs.floats( dims );
+		final Cursor< FloatType > cursor = det.localizingCursor();
+		final RandomAccess< FloatType > ra = H.randomAccess();
+		final double[] a = new double[ n * ( n + 1 ) / 2 ];
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			for ( int d = 0; d < n; d++ )
+				ra.setPosition( cursor.getLongPosition( d ), d );
+			for ( int i = 0; i < a.length; i++ )
+			{
+				ra.setPosition( i, n );
+				a[ i ] = ra.get().getRealDouble();
+			}
+
+			if ( n == 2 )
+			{
+				cursor.get().setReal( a[ 0 ] * a[ 2 ] - a[ 1 ] * a[ 1 ] );
+			}
+			else
+			{
+				final double x = a[ 3 ] * a[ 5 ] - a[ 4 ] * a[ 4 ];
+				final double y = a[ 1 ] * a[ 5 ] - a[ 2 ] * a[ 4 ];
+				final double z = a[ 1 ] * a[ 4 ] - a[ 2 ] * a[ 3 ];
+				cursor.get().setReal( -( a[ 0 ] * x - a[ 1 ] * y + a[ 2 ] * z ) );
+			}
+		}
+		return det;
+	}
+
+	private static Img< FloatType > randomImage( final long seed, final long... dims )
+	{
+		final Random ran = new Random( seed );
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		for ( final FloatType p : img )
+			p.set( 100f * ran.nextFloat() );
+		return img;
+	}
+}
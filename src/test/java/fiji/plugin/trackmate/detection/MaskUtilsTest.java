@@ -0,0 +1,309 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.histogram.Histogram1d;
+import net.imglib2.histogram.Real1dBinMapper;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class MaskUtilsTest
+{
+
+	@Test
+	public void testFromLabelingWithOverlappingLabels()
+	{
+		final ImgLabeling< Integer, IntType > labeling = new ImgLabeling<>( ArrayImgs.ints( 40, 30 ) );
+		// Label 42 first, so that indices do not match label values.
+		paint( labeling, 42, new FinalInterval( new long[] { 10, 5 }, new long[] { 29, 14 } ) );
+		paint( labeling, 7, new FinalInterval( new long[] { 20, 10 }, new long[] { 34, 24 } ) );
+
+		final double[] calibration = new double[] { 1., 1., 1. };
+		final List< Spot > spots = MaskUtils.fromLabeling( labeling, labeling, calibration );
+		spots.sort( Comparator.comparing( s -> s.getFeature( Spot.QUALITY ) ) );
+
+		assertEquals( 2, spots.size() );
+		// Overlapping pixels count for both labels.
+		checkSpot( spots.get( 0 ), 20 * 10, 19.5, 9.5 );
+		checkSpot( spots.get( 1 ), 15 * 15, 27., 17. );
+	}
+
+	@Test
+	public void testFromLabelingWithDisjointLabels()
+	{
+		final ImgLabeling< Integer, IntType > labeling = new ImgLabeling<>( ArrayImgs.ints( 40, 30 ) );
+		paint( labeling, 42, new FinalInterval( new long[] { 0, 0 }, new long[] { 9, 9 } ) );
+		paint( labeling, 7, new FinalInterval( new long[] { 20, 10 }, new long[] { 24, 25 } ) );
+
+		final double[] calibration = new double[] { 0.5, 0.5, 1. };
+		final Interval interval = Views.translate( labeling, 100, 200 );
+		final List< Spot > spots = MaskUtils.fromLabeling( labeling, interval, calibration );
+		spots.sort( Comparator.comparing( s -> s.getFeature( Spot.QUALITY ) ) );
+
+		assertEquals( 2, spots.size() );
+		checkSpot( spots.get( 0 ), 5 * 16, 0.5 * 122., 0.5 * 217.5 );
+		checkSpot( spots.get( 1 ), 10 * 10, 0.5 * 104.5, 0.5 * 204.5 );
+	}
+
+	/**
+	 * Labels above 65536 switch the label statistics from dense to sparse
+	 * storage. The stripes scanned by different threads see different labels,
+	 * so dense and sparse accumulators are merged.
+	 */
+	@Test
+	public void testFromLabelImageWithROISparseLabels()
+	{
+		final long[][] boxes = new long[][] {
+				{ 2, 2, 9, 8 },
+				{ 3, 14, 12, 20 },
+				{ 20, 30, 35, 40 },
+				{ 40, 41, 44, 45 },
+				{ 50, 3, 60, 44 } };
+		final long[] labels = new long[] { 5, 70000, Integer.MAX_VALUE, 65536, 65537 };
+
+		final Img< IntType > labelImg = ArrayImgs.ints( 64, 48 );
+		final Img< FloatType > qualityImg = ArrayImgs.floats( 64, 48 );
+		paint( labelImg, qualityImg, boxes, labels );
+
+		final double[] calibration = new double[] { 0.5, 0.5, 1. };
+		for ( final int numThreads : new int[] { 1, 4 } )
+		{
+			final List< Spot > spots = MaskUtils.fromLabelImageWithROI( labelImg, labelImg, calibration, false, numThreads, qualityImg );
+			assertEquals( labels.length, spots.size() );
+			spots.sort( Comparator.comparing( s -> s.getFeature( MaskUtils.LABEL_ID ) ) );
+
+			final long[] sorted = labels.clone();
+			Arrays.sort( sorted );
+			for ( int i = 0; i < sorted.length; i++ )
+			{
+				final long[] box = boxes[ indexOf( labels, sorted[ i ] ) ];
+				final Spot spot = spots.get( i );
+				final double area = ( box[ 2 ] - box[ 0 ] + 1 ) * ( box[ 3 ] - box[ 1 ] + 1 );
+				assertEquals( ( double ) sorted[ i ], spot.getFeature( MaskUtils.LABEL_ID ), 0. );
+				assertEquals( area * 0.25, spot.getRoi().area(), 1e-9 );
+				assertEquals( quality( box[ 2 ], box[ 3 ], 0 ), spot.getFeature( Spot.QUALITY ), 1e-9 );
+			}
+		}
+	}
+
+	/**
+	 * Non-real quality images are measured by ImageJ, on one wrapper image
+	 * per thread.
+	 */
+	@Test
+	public void testFromLabelingWithROINonRealQuality()
+	{
+		final ImgLabeling< Integer, IntType > labeling = new ImgLabeling<>( ArrayImgs.ints( 64, 48 ) );
+		final Img< ARGBType > qualityImg = ArrayImgs.argbs( 64, 48 );
+		final Cursor< ARGBType > qc = qualityImg.localizingCursor();
+		while ( qc.hasNext() )
+		{
+			qc.fwd();
+			final int v = ( int ) ( qc.getLongPosition( 0 ) + 3 * qc.getLongPosition( 1 ) );
+			qc.get().set( ARGBType.rgba( v, v, v, 255 ) );
+		}
+		int label = 1;
+		for ( int x = 2; x < 60; x += 8 )
+			for ( int y = 2; y < 44; y += 7 )
+				paint( labeling, label++, new FinalInterval( new long[] { x, y }, new long[] { x + 4, y + 3 } ) );
+
+		final double[] calibration = new double[] { 1., 1., 1. };
+		final List< Spot > expected = MaskUtils.fromLabelingWithROI( labeling, labeling, calibration, false, 1, qualityImg );
+		assertEquals( label - 1, expected.size() );
+		final List< Spot > actual = MaskUtils.fromLabelingWithROI( labeling, labeling, calibration, false, 4, qualityImg );
+		assertEquals( expected.size(), actual.size() );
+		for ( int i = 0; i < expected.size(); i++ )
+		{
+			final Spot spot = expected.get( i );
+			// Max at the bottom right pixel of each box.
+			final double xmax = Math.floor( spot.getDoublePosition( 0 ) ) + 2.;
+			final double ymax = Math.floor( spot.getDoublePosition( 1 ) ) + 2.;
+			assertEquals( xmax + 3. * ymax, spot.getFeature( Spot.QUALITY ), 1e-9 );
+			assertEquals( spot.getFeature( Spot.QUALITY ), actual.get( i ).getFeature( Spot.QUALITY ), 0. );
+			assertEquals( spot.getDoublePosition( 0 ), actual.get( i ).getDoublePosition( 0 ), 0. );
+			assertEquals( spot.getDoublePosition( 1 ), actual.get( i ).getDoublePosition( 1 ), 0. );
+		}
+	}
+
+	@Test
+	public void testFromLabelImageSparseLabels3D()
+	{
+		final long[][] boxes = new long[][] {
+				{ 2, 2, 1, 9, 8, 3 },
+				{ 3, 14, 2, 12, 20, 6 },
+				{ 20, 5, 4, 35, 25, 11 },
+				{ 40, 2, 9, 44, 20, 10 },
+				{ 25, 20, 0, 30, 29, 2 } };
+		final long[] labels = new long[] { 5, 70000, Integer.MAX_VALUE, 65536, 65537 };
+
+		final Img< IntType > labelImg = ArrayImgs.ints( 48, 32, 12 );
+		final Img< FloatType > qualityImg = ArrayImgs.floats( 48, 32, 12 );
+		paint( labelImg, qualityImg, boxes, labels );
+
+		final double[] calibration = new double[] { 0.5, 0.5, 2. };
+		for ( final int numThreads : new int[] { 1, 4 } )
+		{
+			final List< Spot > spots = MaskUtils.fromLabelImage( labelImg, labelImg, calibration, numThreads, qualityImg );
+			assertEquals( labels.length, spots.size() );
+			spots.sort( Comparator.comparing( s -> s.getFeature( MaskUtils.LABEL_ID ) ) );
+
+			final long[] sorted = labels.clone();
+			Arrays.sort( sorted );
+			for ( int i = 0; i < sorted.length; i++ )
+			{
+				final long[] box = boxes[ indexOf( labels, sorted[ i ] ) ];
+				final Spot spot = spots.get( i );
+				double volume = 0.5 * 0.5 * 2.;
+				for ( int d = 0; d < 3; d++ )
+				{
+					volume *= box[ d + 3 ] - box[ d ] + 1;
+					final double center = calibration[ d ] * ( box[ d ] + box[ d + 3 ] ) / 2.;
+					assertEquals( center, spot.getDoublePosition( d ), 1e-9 );
+				}
+				final double radius = Math.pow( 3. * volume / ( 4. * Math.PI ), 1. / 3. );
+				assertEquals( ( double ) sorted[ i ], spot.getFeature( MaskUtils.LABEL_ID ), 0. );
+				assertEquals( radius, spot.getFeature( Spot.RADIUS ), 1e-9 );
+				assertEquals( quality( box[ 3 ], box[ 4 ], box[ 5 ] ), spot.getFeature( Spot.QUALITY ), 1e-9 );
+			}
+		}
+	}
+
+	/**
+	 * Paints boxes, given as { min..., max... }, with the specified labels.
+	 * The quality image is increasing along each dimension, so that its max
+	 * in a box is at the box max corner.
+	 */
+	private static void paint( final Img< IntType > labelImg, final Img< FloatType > qualityImg, final long[][] boxes, final long[] labels )
+	{
+		final int n = labelImg.numDimensions();
+		final Cursor< FloatType > qc = qualityImg.localizingCursor();
+		while ( qc.hasNext() )
+		{
+			qc.fwd();
+			qc.get().setReal( quality( qc.getLongPosition( 0 ), qc.getLongPosition( 1 ), n > 2 ? qc.getLongPosition( 2 ) : 0 ) );
+		}
+		for ( int i = 0; i < boxes.length; i++ )
+		{
+			final Interval box = new FinalInterval(
+					Arrays.copyOfRange( boxes[ i ], 0, n ),
+					Arrays.copyOfRange( boxes[ i ], n, 2 * n ) );
+			for ( final IntType p : Views.interval( labelImg, box ) )
+				p.setInteger( labels[ i ] );
+		}
+	}
+
+	/**
+	 * The Otsu threshold must be the one computed with a {@link Histogram1d}
+	 * over the image range, whatever the number of threads.
+	 */
+	@Test
+	public void testOtsuThresholdSameAsHistogram1d()
+	{
+		final Random ran = new Random( 6L );
+		final Img< UnsignedByteType > bytes = ArrayImgs.unsignedBytes( 50, 40, 7 );
+		for ( final UnsignedByteType t : bytes )
+			t.set( ran.nextBoolean() ? 20 + ran.nextInt( 40 ) : 120 + ran.nextInt( 100 ) );
+		final Img< UnsignedShortType > shorts = ArrayImgs.unsignedShorts( 50, 40, 7 );
+		for ( final UnsignedShortType t : shorts )
+			t.set( ran.nextBoolean() ? 1000 + ran.nextInt( 800 ) : 3000 + ran.nextInt( 2000 ) );
+		final Img< FloatType > floats = ArrayImgs.floats( 50, 40, 7 );
+		for ( final FloatType t : floats )
+			t.set( ( float ) ( ran.nextBoolean() ? ran.nextGaussian() : 5. + 2. * ran.nextGaussian() ) );
+
+		for ( final int numThreads : new int[] { 1, 3, 8 } )
+		{
+			assertEquals( referenceOtsu( bytes ), MaskUtils.otsuThreshold( bytes, numThreads ), 0. );
+			assertEquals( referenceOtsu( shorts ), MaskUtils.otsuThreshold( shorts, numThreads ), 0. );
+			assertEquals( referenceOtsu( floats ), MaskUtils.otsuThreshold( floats, numThreads ), 1e-6 );
+		}
+	}
+
+	private static < T extends RealType< T > > double referenceOtsu( final Img< T > img )
+	{
+		final T min = img.firstElement().createVariable();
+		min.setReal( Double.POSITIVE_INFINITY );
+		final T max = img.firstElement().createVariable();
+		max.setReal( Double.NEGATIVE_INFINITY );
+		for ( final T pixel : img )
+		{
+			if ( pixel.compareTo( min ) < 0 )
+				min.set( pixel );
+			if ( pixel.compareTo( max ) > 0 )
+				max.set( pixel );
+		}
+		final Real1dBinMapper< T > mapper = new Real1dBinMapper<>( min.getRealDouble(), max.getRealDouble(), 256, false );
+		final Histogram1d< T > histogram = new Histogram1d<>( img, mapper );
+		final long k = MaskUtils.getThreshold( histogram );
+		final T val = img.firstElement().createVariable();
+		mapper.getCenterValue( k, val );
+		return val.getRealDouble();
+	}
+
+	private static double quality( final long x, final long y, final long z )
+	{
+		return x + 100. * y + 10000. * z;
+	}
+
+	private static int indexOf( final long[] array, final long value )
+	{
+		for ( int i = 0; i < array.length; i++ )
+			if ( array[ i ] == value )
+				return i;
+		return -1;
+	}
+
+	private static void paint( final ImgLabeling< Integer, IntType > labeling, final int label, final Interval interval )
+	{
+		final Cursor< LabelingType< Integer > > cursor = Views.interval( labeling, interval ).cursor();
+		while ( cursor.hasNext() )
+			cursor.next().add( label );
+	}
+
+	private static void checkSpot( final Spot spot, final double area, final double x, final double y )
+	{
+		assertEquals( area, spot.getFeature( Spot.QUALITY ), 1e-9 );
+		assertEquals( x, spot.getDoublePosition( 0 ), 1e-9 );
+		assertEquals( y, spot.getDoublePosition( 1 ), 1e-9 );
+	}
+}
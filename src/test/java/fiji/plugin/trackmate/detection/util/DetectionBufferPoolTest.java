@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.detection.DogDetector;
+import fiji.plugin.trackmate.detection.HessianDetector;
+import fiji.plugin.trackmate.detection.LogDetector;
+import net.imglib2.FinalDimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class DetectionBufferPoolTest
+{
+
+	private static final Interval INTERVAL = Intervals.createMinSize( 0, 0, 48, 32 );
+
+	private static final double[] CALIBRATION = new double[] { 1., 1. };
+
+	@Test
+	public void testReuse()
+	{
+		final DetectionBufferPool pool = new DetectionBufferPool();
+		final Img< FloatType > a = pool.borrow( new FinalDimensions( 10, 20 ), new FloatType() );
+		assertEquals( 10 * 20 * 4, pool.getBorrowedBytes() );
+		pool.release( a );
+		assertEquals( 0, pool.getBorrowedBytes() );
+
+		// Same dimensions and type: reused.
+		assertSame( a, pool.borrow( new FinalDimensions( 10, 20 ), new FloatType() ) );
+		// Other dimensions, or already lent: new buffers.
+		final Img< FloatType > b = pool.borrow( new FinalDimensions( 20, 10 ), new FloatType() );
+		final Img< FloatType > c = pool.borrow( new FinalDimensions( 10, 20 ), new FloatType() );
+		assertNotSame( a, c );
+		assertEquals( 3, pool.getNAllocations() );
+		assertEquals( 1, pool.getNReuses() );
+
+		// Releasing twice, or releasing a foreign image, does nothing.
+		pool.release( c );
+		pool.release( c );
+		pool.release( ArrayImgs.floats( 10, 20 ) );
+		pool.release( null );
+		assertSame( c, pool.borrow( new FinalDimensions( 10, 20 ), new FloatType() ) );
+		assertEquals( 10 * 20 * 4 * 2 + 20 * 10 * 4, pool.getBorrowedBytes() );
+		pool.release( b );
+	}
+
+	/**
+	 * Concurrent borrowers never get the same buffer at the same time.
+	 */
+	@Test
+	public void testNoCrossTalk() throws Exception
+	{
+		final DetectionBufferPool pool = new DetectionBufferPool();
+		final int nThreads = 8;
+		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+		try
+		{
+			final List< Future< Boolean > > futures = new ArrayList<>();
+			for ( int t = 0; t < nThreads; t++ )
+			{
+				final float id = t;
+				futures.add( es.submit( () -> {
+					for ( int i = 0; i < 200; i++ )
+					{
+						final Img< FloatType > buffer = pool.borrow( new FinalDimensions( 16, 16 ), new FloatType() );
+						for ( final FloatType p : buffer )
+							p.set( id );
+						Thread.yield();
+						for ( final FloatType p : buffer )
+							if ( p.get() != id )
+								return Boolean.FALSE;
+						pool.release( buffer );
+					}
+					return Boolean.TRUE;
+				} ) );
+			}
+			for ( final Future< Boolean > future : futures )
+				assertTrue( "A buffer was lent to two borrowers at once.", future.get() );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+		assertTrue( pool.getNAllocations() <= nThreads );
+		assertEquals( 0, pool.getBorrowedBytes() );
+	}
+
+	@Test
+	public void testDetectorsReuseBuffers()
+	{
+		final DetectionBufferPool pool = new DetectionBufferPool();
+		final RandomAccessible< FloatType > source = Views.extendZero( ArrayImgs.floats( 48, 32 ) );
+		for ( int i = 0; i < 3; i++ )
+		{
+			final LogDetector< FloatType > detector = new LogDetector<>( source, INTERVAL, CALIBRATION, 2., 0., false, true );
+			detector.setBufferPool( pool );
+			assertTrue( detector.process() );
+			assertEquals( 0, pool.getBorrowedBytes() );
+		}
+		// The copy and the median-filtered image, allocated once.
+		assertEquals( 2, pool.getNAllocations() );
+		assertEquals( 4, pool.getNReuses() );
+	}
+
+	/**
+	 * Buffers are given back to the pool when the source cannot be read.
+	 */
+	@Test
+	public void testBuffersReleasedOnFailure()
+	{
+		final RandomAccessible< FloatType > broken = Converters.convert(
+				( RandomAccessible< FloatType > ) Views.extendZero( ArrayImgs.floats( 48, 32 ) ),
+				( in, out ) -> {
+					throw new IllegalStateException( "Cannot read the source." );
+				},
+				new FloatType() );
+
+		final DetectionBufferPool logPool = new DetectionBufferPool();
+		final LogDetector< FloatType > log = new LogDetector<>( broken, INTERVAL, CALIBRATION, 2., 0., false, false );
+		log.setNumThreads( 1 );
+		log.setBufferPool( logPool );
+		assertFails( log::process );
+		assertEquals( 0, logPool.getBorrowedBytes() );
+
+		final DetectionBufferPool dogPool = new DetectionBufferPool();
+		final DogDetector< FloatType > dog = new DogDetector<>( broken, INTERVAL, CALIBRATION, 2., 0., false, false );
+		dog.setNumThreads( 1 );
+		dog.setBufferPool( dogPool );
+		assertFails( dog::process );
+		assertEquals( 0, dogPool.getBorrowedBytes() );
+
+		final DetectionBufferPool hessianPool = new DetectionBufferPool();
+		final HessianDetector< FloatType > hessian = new HessianDetector<>( broken, INTERVAL, CALIBRATION, 2., 2., 0., false, false );
+		hessian.setNumThreads( 1 );
+		hessian.setBufferPool( hessianPool );
+		assertFails( hessian::process );
+		assertEquals( 0, hessianPool.getBorrowedBytes() );
+	}
+
+	/**
+	 * Checks that the specified detection fails, either by returning
+	 * <code>false</code> or by throwing an exception.
+	 */
+	private static void assertFails( final Process process )
+	{
+		final boolean ok;
+		try
+		{
+			ok = process.run();
+		}
+		catch ( final RuntimeException e )
+		{
+			return;
+		}
+		assertFalse( ok );
+	}
+
+	@FunctionalInterface
+	private static interface Process
+	{
+		boolean run();
+	}
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.detection.util.FramePrefetcher.PrefetchedFrame;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class FramePrefetcherTest
+{
+
+	private static final AxisType[] XYCT = new AxisType[] { Axes.X, Axes.Y, Axes.CHANNEL, Axes.TIME };
+
+	@Test( timeout = 10000 )
+	public void testReadsAllFrames() throws InterruptedException
+	{
+		final ImgPlus< FloatType > source = new ImgPlus<>( encoded( 8, 6, 3, 5 ), "source", XYCT );
+		final FramePrefetcher< FloatType > prefetcher = new FramePrefetcher<>( source, 1, 4, -1, 2, 2 );
+		prefetcher.start();
+
+		final Set< Integer > frames = new HashSet<>();
+		for ( int i = 0; i < 4; i++ )
+		{
+			final PrefetchedFrame< FloatType > prefetched = prefetcher.take();
+			assertNull( prefetched.errorMessage );
+			assertEquals( "Time axis should be removed.", -1, prefetched.img.dimensionIndex( Axes.TIME ) );
+			assertEquals( "All channels should be read.", 3, prefetched.img.dimension( prefetched.img.dimensionIndex( Axes.CHANNEL ) ) );
+			final Cursor< FloatType > cursor = prefetched.img.localizingCursor();
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				assertEquals( value( cursor.getIntPosition( 0 ), cursor.getIntPosition( 1 ), cursor.getIntPosition( 2 ), prefetched.frame ),
+						cursor.get().get(), 0f );
+			}
+			frames.add( prefetched.frame );
+		}
+		assertEquals( 4, frames.size() );
+		for ( int t = 1; t <= 4; t++ )
+			assertTrue( frames.contains( t ) );
+		prefetcher.cancel( "Done." );
+	}
+
+	@Test( timeout = 10000 )
+	public void testReadsOnlyTargetChannel() throws InterruptedException
+	{
+		final ImgPlus< FloatType > source = new ImgPlus<>( encoded( 8, 6, 3, 2 ), "source", XYCT );
+		final FramePrefetcher< FloatType > prefetcher = new FramePrefetcher<>( source, 0, 1, 2, 2, 1 );
+		prefetcher.start();
+
+		for ( int i = 0; i < 2; i++ )
+		{
+			final PrefetchedFrame< FloatType > prefetched = prefetcher.take();
+			assertNull( prefetched.errorMessage );
+			assertEquals( "Channel axis should be removed.", -1, prefetched.img.dimensionIndex( Axes.CHANNEL ) );
+			assertEquals( 2, prefetched.img.numDimensions() );
+			final Cursor< FloatType > cursor = prefetched.img.localizingCursor();
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				assertEquals( value( cursor.getIntPosition( 0 ), cursor.getIntPosition( 1 ), 2, prefetched.frame ),
+						cursor.get().get(), 0f );
+			}
+		}
+		prefetcher.cancel( "Done." );
+	}
+
+	/**
+	 * An {@link Error} thrown while reading a frame must be handed to the
+	 * consumer, instead of leaving it waiting for the frame forever.
+	 */
+	@Test( timeout = 10000 )
+	public void testErrorIsGivenToConsumer() throws InterruptedException
+	{
+		final RandomAccessibleInterval< FloatType > broken = Converters.convert(
+				( RandomAccessibleInterval< FloatType > ) encoded( 8, 6, 1, 3 ),
+				( i, o ) -> {
+					throw new StackOverflowError( "Broken reader." );
+				},
+				new FloatType() );
+		final Img< FloatType > img = ImgView.wrap( broken, new ArrayImgFactory<>( new FloatType() ) );
+		final ImgPlus< FloatType > source = new ImgPlus<>( img, "broken", XYCT );
+		final FramePrefetcher< FloatType > prefetcher = new FramePrefetcher<>( source, 0, 2, -1, 1, 1 );
+		prefetcher.start();
+
+		final PrefetchedFrame< FloatType > prefetched = prefetcher.take();
+		assertNull( prefetched.img );
+		assertNotNull( prefetched.errorMessage );
+		assertTrue( prefetched.error instanceof StackOverflowError );
+		prefetcher.cancel( "Done." );
+	}
+
+	private static Img< FloatType > encoded( final int width, final int height, final int nChannels, final int nFrames )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( width, height, nChannels, nFrames );
+		final Cursor< FloatType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.get().set( value( cursor.getIntPosition( 0 ), cursor.getIntPosition( 1 ), cursor.getIntPosition( 2 ), cursor.getIntPosition( 3 ) ) );
+		}
+		return img;
+	}
+
+	private static float value( final int x, final int y, final int c, final int t )
+	{
+		return x + 10 * y + 100 * c + 1000 * t;
+	}
+}
@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.detection.util.IntervalPlanner.Region;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+
+public class IntervalPlannerTest
+{
+
+	@Test
+	public void testMergeCreatedByUnion()
+	{
+		final Interval bounds = new FinalInterval( 100, 100 );
+		// Boxes 0 and 1 overlap. Their union overlaps box 2, which
+		// overlaps neither of them. Box 3 is alone.
+		final List< Interval > boxes = Arrays.asList(
+				interval( 0, 0, 10, 10 ),
+				interval( 5, 5, 12, 30 ),
+				interval( 0, 20, 3, 25 ),
+				null,
+				interval( 60, 60, 70, 70 ) );
+		final List< Region > regions = IntervalPlanner.plan( boxes, new long[] { 0, 0 }, bounds );
+
+		assertEquals( 2, regions.size() );
+		assertEquals( Arrays.asList( 0, 1, 2 ), regions.get( 0 ).getMembers() );
+		assertTrue( Intervals.equals( interval( 0, 0, 12, 30 ), regions.get( 0 ).getInterval() ) );
+		assertEquals( Arrays.asList( 4 ), regions.get( 1 ).getMembers() );
+	}
+
+	@Test
+	public void testRegionsAreDisjointAndCoverBoxes()
+	{
+		final Random ran = new Random( 1l );
+		final Interval bounds = new FinalInterval( 500, 400 );
+		final long[] halo = new long[] { 5, 3 };
+		for ( int t = 0; t < 100; t++ )
+		{
+			final List< Interval > boxes = new ArrayList<>();
+			for ( int i = 0; i < 300; i++ )
+			{
+				final long x = ran.nextInt( 500 );
+				final long y = ran.nextInt( 400 );
+				boxes.add( interval( x, y, x + ran.nextInt( 10 ), y + ran.nextInt( 10 ) ) );
+			}
+			final List< Region > regions = IntervalPlanner.plan( boxes, halo, bounds );
+
+			final int[] count = new int[ boxes.size() ];
+			for ( int i = 0; i < regions.size(); i++ )
+			{
+				final Interval ri = regions.get( i ).getInterval();
+				for ( int j = i + 1; j < regions.size(); j++ )
+					assertTrue( Intervals.isEmpty( Intervals.intersect( ri, regions.get( j ).getInterval() ) ) );
+
+				for ( final Integer member : regions.get( i ).getMembers() )
+				{
+					count[ member ]++;
+					final Interval grown = Intervals.intersect( Intervals.expand( boxes.get( member ), halo ), bounds );
+					assertTrue( Intervals.contains( ri, grown ) );
+				}
+			}
+			for ( final int c : count )
+				assertEquals( 1, c );
+		}
+	}
+
+	private static Interval interval( final long x0, final long y0, final long x1, final long y1 )
+	{
+		return new FinalInterval( new long[] { x0, y0 }, new long[] { x1, y1 } );
+	}
+}
@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.detection.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class MedianFilter3x3Test
+{
+
+	@Test
+	public void testFloat()
+	{
+		final Random ran = new Random( 1l );
+		final Img< FloatType > img = ArrayImgs.floats( 37, 23, 5 );
+		for ( final FloatType p : img )
+			p.set( ( float ) ( 100. * ran.nextGaussian() ) );
+		// Ties, signed zeros and a NaN.
+		img.firstElement().set( -0f );
+		final Cursor< FloatType > c = img.cursor();
+		c.jumpFwd( 50 );
+		c.get().set( 0f );
+		c.jumpFwd( 100 );
+		c.get().set( Float.NaN );
+		check( img );
+	}
+
+	@Test
+	public void testUnsignedByte()
+	{
+		final Random ran = new Random( 2l );
+		final Img< UnsignedByteType > img = ArrayImgs.unsignedBytes( 31, 17 );
+		for ( final UnsignedByteType p : img )
+			p.set( ran.nextInt( 256 ) );
+		check( img );
+	}
+
+	@Test
+	public void testUnsignedShort()
+	{
+		final Random ran = new Random( 3l );
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( 19, 29, 3 );
+		for ( final UnsignedShortType p : img )
+			p.set( ran.nextInt( 65536 ) );
+		check( img );
+	}
+
+	@Test
+	public void testNonArrayImg()
+	{
+		final Random ran = new Random( 4l );
+		final Img< UnsignedShortType > img = PlanarImgs.unsignedShorts( 21, 13, 4 );
+		for ( final UnsignedShortType p : img )
+			p.set( ran.nextInt( 20 ) );
+		check( img );
+	}
+
+	private static < T extends RealType< T > & NativeType< T > > void check( final Img< T > img )
+	{
+		final MedianFilter2D< T > reference = new MedianFilter2D<>( img, 1 );
+		reference.checkInput();
+		reference.process();
+		final Img< T > expected = reference.getResult();
+
+		for ( final int numThreads : new int[] { 1, 4 } )
+		{
+			final Img< T > actual = MedianFilter3x3.filter( img, null, numThreads );
+			assertNotNull( actual );
+			final Cursor< T > ce = expected.localizingCursor();
+			final Cursor< T > ca = actual.cursor();
+			while ( ce.hasNext() )
+			{
+				ce.fwd();
+				ca.fwd();
+				assertEquals( "At " + ce + " with " + numThreads + " threads.",
+						Double.doubleToLongBits( ce.get().getRealDouble() ),
+						Double.doubleToLongBits( ca.get().getRealDouble() ) );
+			}
+		}
+	}
+}
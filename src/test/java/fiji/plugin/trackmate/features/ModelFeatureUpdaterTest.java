@@ -0,0 +1,508 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.ImageIcon;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.edges.EdgeAnalyzer;
+import fiji.plugin.trackmate.features.spot.AbstractSpotFeatureAnalyzer;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerInput;
+import fiji.plugin.trackmate.features.spot.SpotFitEllipseAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotShapeAnalyzerFactory;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+import ij.IJ;
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Checks that the {@link ModelFeatureUpdater} only runs the analyzers that
+ * depend on what actually changed.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ModelFeatureUpdaterTest
+{
+
+	private static final String POSITION = "POSITION";
+
+	private static final String SHAPE = "SHAPE";
+
+	private static final String ELLIPSE = "ELLIPSE";
+
+	private static final String TOPOLOGY = "TOPOLOGY";
+
+	/** Spots processed by each spot analyzer, in order. */
+	private final Map< String, List< Spot > > spotRuns = new HashMap<>();
+
+	private final List< DefaultWeightedEdge > edgeRuns = Collections.synchronizedList( new ArrayList<>() );
+
+	private final List< Integer > trackRuns = Collections.synchronizedList( new ArrayList<>() );
+
+	private Model model;
+
+	private ModelFeatureUpdater updater;
+
+	private Spot s0;
+
+	private Spot s1;
+
+	private Spot s2;
+
+	/**
+	 * Two linked spots and a lonely one. They are added after the updater is
+	 * created, so that it knows their state.
+	 */
+	@Before
+	public void setUp()
+	{
+		final Settings settings = new Settings( IJ.createImage( "Test", "8-bit black", 64, 64, 1, 1, 3 ) );
+		settings.clearSpotAnalyzerFactories();
+		settings.addSpotAnalyzerFactory( new CountingSpotFactory<>( POSITION, EnumSet.of( SpotAnalyzerInput.POSITION ) ) );
+		settings.addSpotAnalyzerFactory( new CountingSpotFactory<>( SHAPE, new SpotShapeAnalyzerFactory<>().getInputs() ) );
+		settings.addSpotAnalyzerFactory( new CountingSpotFactory<>( ELLIPSE, new SpotFitEllipseAnalyzerFactory<>().getInputs() ) );
+		settings.addSpotAnalyzerFactory( new CountingSpotFactory<>( TOPOLOGY, EnumSet.of( SpotAnalyzerInput.TOPOLOGY ) ) );
+		settings.clearEdgeAnalyzers();
+		settings.addEdgeAnalyzer( new CountingEdgeAnalyzer() );
+		settings.clearTrackAnalyzers();
+		settings.addTrackAnalyzer( new CountingTrackAnalyzer() );
+
+		model = new Model();
+		updater = new ModelFeatureUpdater( model, settings );
+		s0 = new Spot( 10., 10., 0., 2., 1. );
+		s1 = new Spot( 12., 10., 0., 2., 1. );
+		s2 = new Spot( 40., 40., 0., 2., 1. );
+		model.beginUpdate();
+		try
+		{
+			model.addSpotTo( s0, 0 );
+			model.addSpotTo( s1, 1 );
+			model.addSpotTo( s2, 2 );
+			model.addEdge( s0, s1, 1. );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		assertEquals( Arrays.asList( s0, s1, s2 ), sorted( runs( TOPOLOGY ) ) );
+		clearRuns();
+	}
+
+	@After
+	public void tearDown()
+	{
+		updater.quit();
+	}
+
+	@Test
+	public void testRenameTriggersNothing()
+	{
+		model.beginUpdate();
+		try
+		{
+			s0.setName( "Renamed" );
+			model.updateFeatures( s0 );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		for ( final String key : new String[] { POSITION, SHAPE, ELLIPSE, TOPOLOGY } )
+			assertTrue( "Analyzer " + key + " should not have run.", runs( key ).isEmpty() );
+		assertTrue( edgeRuns.isEmpty() );
+		assertTrue( trackRuns.isEmpty() );
+	}
+
+	@Test
+	public void testAddEdgeRunsTopologyAnalyzers()
+	{
+		final DefaultWeightedEdge edge;
+		model.beginUpdate();
+		try
+		{
+			edge = model.addEdge( s1, s2, 1. );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		assertTrue( runs( POSITION ).isEmpty() );
+		assertTrue( runs( SHAPE ).isEmpty() );
+		assertTrue( runs( ELLIPSE ).isEmpty() );
+		assertEquals( Arrays.asList( s1, s2 ), sorted( runs( TOPOLOGY ) ) );
+		assertEquals( Collections.singletonList( edge ), edgeRuns );
+		assertEquals( Collections.singletonList( model.getTrackModel().trackIDOf( edge ) ), trackRuns );
+	}
+
+	@Test
+	public void testRadiusChangeRunsShapeAnalyzers()
+	{
+		model.beginUpdate();
+		try
+		{
+			s2.putFeature( Spot.RADIUS, 3. );
+			model.updateFeatures( s2 );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		assertTrue( runs( POSITION ).isEmpty() );
+		assertEquals( Collections.singletonList( s2 ), runs( SHAPE ) );
+		assertEquals( Collections.singletonList( s2 ), runs( ELLIPSE ) );
+		assertTrue( runs( TOPOLOGY ).isEmpty() );
+		// s2 has no edge and is not in a track.
+		assertTrue( edgeRuns.isEmpty() );
+		assertTrue( trackRuns.isEmpty() );
+	}
+
+	@Test
+	public void testDebouncedEditsFlushedByOtherEvent()
+	{
+		updater.setDebounceDelay( 60_000l );
+		resize( s0, 3 );
+		assertTrue( runs( SHAPE ).isEmpty() );
+		assertTrue( edgeRuns.isEmpty() );
+
+		// Adding a spot is not a modification: processed now, with s0.
+		final Spot s3 = new Spot( 50., 10., 0., 2., 1. );
+		model.beginUpdate();
+		try
+		{
+			model.addSpotTo( s3, 1 );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		assertEquals( Arrays.asList( s0, s3 ), sorted( runs( SHAPE ) ) );
+		assertEquals( Arrays.asList( s0, s3 ), sorted( runs( ELLIPSE ) ) );
+		assertEquals( Collections.singletonList( s3 ), runs( POSITION ) );
+		assertEquals( Collections.singletonList( model.getTrackModel().getEdge( s0, s1 ) ), edgeRuns );
+	}
+
+	@Test
+	public void testDebouncedEditsFlushedByQuit()
+	{
+		updater.setDebounceDelay( 60_000l );
+		resize( s0, 3 );
+		assertTrue( runs( SHAPE ).isEmpty() );
+
+		updater.quit();
+		assertEquals( Collections.singletonList( s0 ), runs( SHAPE ) );
+		assertEquals( Collections.singletonList( s0 ), runs( ELLIPSE ) );
+		assertEquals( Collections.singletonList( model.getTrackModel().getEdge( s0, s1 ) ), edgeRuns );
+	}
+
+	@Test
+	public void testDebouncedEditsFlushedAfterDelay() throws InterruptedException
+	{
+		final CountDownLatch latch = new CountDownLatch( 1 );
+		model.addModelChangeListener( event -> {
+			if ( event.getEventID() == ModelChangeEvent.FEATURES_COMPUTED )
+				latch.countDown();
+		} );
+		updater.setDebounceDelay( 500l );
+		resize( s0, 3 );
+		assertTrue( "Features were not computed after the delay.", latch.await( 10, TimeUnit.SECONDS ) );
+		assertEquals( Collections.singletonList( s0 ), runs( SHAPE ) );
+		assertEquals( Collections.singletonList( s0 ), runs( ELLIPSE ) );
+		assertEquals( Collections.singletonList( model.getTrackModel().getEdge( s0, s1 ) ), edgeRuns );
+	}
+
+	/**
+	 * Changes the radius of a spot several times, in separate transactions.
+	 */
+	private void resize( final Spot spot, final int nTimes )
+	{
+		for ( int i = 0; i < nTimes; i++ )
+		{
+			model.beginUpdate();
+			try
+			{
+				spot.putFeature( Spot.RADIUS, spot.getFeature( Spot.RADIUS ) + 1. );
+				model.updateFeatures( spot );
+			}
+			finally
+			{
+				model.endUpdate();
+			}
+		}
+	}
+
+	private synchronized List< Spot > runs( final String key )
+	{
+		return spotRuns.computeIfAbsent( key, k -> Collections.synchronizedList( new ArrayList<>() ) );
+	}
+
+	private synchronized void clearRuns()
+	{
+		spotRuns.clear();
+		edgeRuns.clear();
+		trackRuns.clear();
+	}
+
+	private static List< Spot > sorted( final Collection< Spot > spots )
+	{
+		final List< Spot > list = new ArrayList<>( spots );
+		list.sort( Spot.frameComparator );
+		return list;
+	}
+
+	private static Map< String, String > names( final String key )
+	{
+		return Collections.singletonMap( key, key );
+	}
+
+	private class CountingSpotFactory< T extends RealType< T > & NativeType< T > > implements SpotAnalyzerFactory< T >
+	{
+
+		private final String key;
+
+		private final Set< SpotAnalyzerInput > inputs;
+
+		public CountingSpotFactory( final String key, final Set< SpotAnalyzerInput > inputs )
+		{
+			this.key = key;
+			this.inputs = inputs;
+		}
+
+		@Override
+		public SpotAnalyzer< T > getAnalyzer( final ImgPlus< T > img, final int frame, final int channel )
+		{
+			return new AbstractSpotFeatureAnalyzer< T >()
+			{
+				@Override
+				public void process( final Spot spot )
+				{
+					runs( key ).add( spot );
+					spot.putFeature( key, 1. );
+				}
+			};
+		}
+
+		@Override
+		public Set< SpotAnalyzerInput > getInputs()
+		{
+			return inputs;
+		}
+
+		@Override
+		public String getKey()
+		{
+			return key;
+		}
+
+		@Override
+		public List< String > getFeatures()
+		{
+			return Collections.singletonList( key );
+		}
+
+		@Override
+		public Map< String, String > getFeatureShortNames()
+		{
+			return names( key );
+		}
+
+		@Override
+		public Map< String, String > getFeatureNames()
+		{
+			return names( key );
+		}
+
+		@Override
+		public Map< String, Dimension > getFeatureDimensions()
+		{
+			return Collections.singletonMap( key, Dimension.NONE );
+		}
+
+		@Override
+		public Map< String, Boolean > getIsIntFeature()
+		{
+			return Collections.singletonMap( key, Boolean.FALSE );
+		}
+
+		@Override
+		public boolean isManualFeature()
+		{
+			return false;
+		}
+
+		@Override
+		public String getInfoText()
+		{
+			return null;
+		}
+
+		@Override
+		public ImageIcon getIcon()
+		{
+			return null;
+		}
+
+		@Override
+		public String getName()
+		{
+			return key;
+		}
+	}
+
+	private abstract static class CountingAnalyzer
+	{
+
+		protected final String key;
+
+		protected CountingAnalyzer( final String key )
+		{
+			this.key = key;
+		}
+
+		public List< String > getFeatures()
+		{
+			return Collections.singletonList( key );
+		}
+
+		public Map< String, String > getFeatureShortNames()
+		{
+			return names( key );
+		}
+
+		public Map< String, String > getFeatureNames()
+		{
+			return names( key );
+		}
+
+		public Map< String, Dimension > getFeatureDimensions()
+		{
+			return Collections.singletonMap( key, Dimension.NONE );
+		}
+
+		public Map< String, Boolean > getIsIntFeature()
+		{
+			return Collections.singletonMap( key, Boolean.FALSE );
+		}
+
+		public boolean isManualFeature()
+		{
+			return false;
+		}
+
+		public boolean isLocal()
+		{
+			return true;
+		}
+
+		public long getProcessingTime()
+		{
+			return 0;
+		}
+
+		public void setNumThreads()
+		{}
+
+		public void setNumThreads( final int numThreads )
+		{}
+
+		public int getNumThreads()
+		{
+			return 1;
+		}
+
+		public String getInfoText()
+		{
+			return null;
+		}
+
+		public ImageIcon getIcon()
+		{
+			return null;
+		}
+
+		public String getKey()
+		{
+			return key;
+		}
+
+		public String getName()
+		{
+			return key;
+		}
+	}
+
+	private class CountingEdgeAnalyzer extends CountingAnalyzer implements EdgeAnalyzer
+	{
+
+		public CountingEdgeAnalyzer()
+		{
+			super( "EDGE_COUNT" );
+		}
+
+		@Override
+		public void process( final Collection< DefaultWeightedEdge > edges, final Model m )
+		{
+			edgeRuns.addAll( edges );
+		}
+	}
+
+	private class CountingTrackAnalyzer extends CountingAnalyzer implements TrackAnalyzer
+	{
+
+		public CountingTrackAnalyzer()
+		{
+			super( "TRACK_COUNT" );
+		}
+
+		@Override
+		public void process( final Collection< Integer > trackIDs, final Model m )
+		{
+			trackRuns.addAll( trackIDs );
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.swing.ImageIcon;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.spot.AbstractSpotFeatureAnalyzer;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotShapeAnalyzerFactory;
+import ij.IJ;
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+public class SpotFeatureCalculatorTest
+{
+
+	@Test
+	public void testSortByDependencies()
+	{
+		final SpotAnalyzerFactoryBase< ? > contrast = new SpotContrastAndSNRAnalyzerFactory<>();
+		final SpotAnalyzerFactoryBase< ? > shape = new SpotShapeAnalyzerFactory<>();
+		final SpotAnalyzerFactoryBase< ? > intensity = new SpotIntensityMultiCAnalyzerFactory<>();
+
+		final List< SpotAnalyzerFactoryBase< ? > > sorted = SpotFeatureCalculator.sortByDependencies( Arrays.asList( contrast, shape, intensity ) );
+		assertEquals( Arrays.asList( shape, intensity, contrast ), sorted );
+
+		// Missing dependencies are ignored.
+		final List< SpotAnalyzerFactoryBase< ? > > alone = SpotFeatureCalculator.sortByDependencies( Arrays.asList( contrast, shape ) );
+		assertEquals( Arrays.asList( contrast, shape ), alone );
+	}
+
+	/**
+	 * Analyzers that declare no dependency run in the settings order, and
+	 * see the features of the previous analyzers for every chunk of spots.
+	 * Results must not depend on the number of threads.
+	 */
+	@Test
+	public void testAnalyzersSeePreviousFeatures()
+	{
+		final List< SpotAnalyzerFactoryBase< ? > > factories = Arrays.asList(
+				new ChainFactory<>( "A", null, false, Collections.emptyList() ),
+				new ChainFactory<>( "B", "A", false, Collections.emptyList() ),
+				new ChainFactory<>( "W", "B", true, Collections.emptyList() ),
+				new ChainFactory<>( "C", "W", false, Collections.emptyList() ),
+				// Declared dependency on a factory that comes later.
+				new ChainFactory<>( "D", "E", false, Collections.singletonList( "E" ) ),
+				new ChainFactory<>( "E", "C", false, Collections.emptyList() ) );
+
+		final Map< Spot, Double > reference = new HashMap<>();
+		for ( final int numThreads : new int[] { 1, 8 } )
+		{
+			final Model model = createModel();
+			final Settings settings = new Settings( IJ.createImage( "Test", "8-bit black", 64, 64, 1, 1, 3 ) );
+			settings.clearSpotAnalyzerFactories();
+			for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+				settings.addSpotAnalyzerFactory( factory );
+
+			final SpotFeatureCalculator calculator = new SpotFeatureCalculator( model, settings, false );
+			calculator.setNumThreads( numThreads );
+			assertTrue( calculator.getErrorMessage(), calculator.checkInput() && calculator.process() );
+
+			for ( final Spot spot : model.getSpots().iterable( false ) )
+			{
+				for ( final String key : new String[] { "A", "B", "W", "C", "E", "D" } )
+				{
+					final Double val = spot.getFeature( key );
+					assertNotNull( "Feature " + key + " missing with " + numThreads + " threads.", val );
+					assertFalse( "Feature " + key + " computed before its input with " + numThreads + " threads.", val.isNaN() );
+				}
+				final Double d = spot.getFeature( "D" );
+				if ( numThreads == 1 )
+					reference.put( spot, d );
+				else
+					assertEquals( reference.get( spot ), d );
+			}
+		}
+	}
+
+	@Test
+	public void testErrorsAreReported()
+	{
+		final Model model = createModel();
+		final Settings settings = new Settings( IJ.createImage( "Test", "8-bit black", 64, 64, 1, 1, 3 ) );
+		settings.clearSpotAnalyzerFactories();
+		settings.addSpotAnalyzerFactory( new ChainFactory<>( "F", "Missing", false, Collections.emptyList() ) );
+
+		final SpotFeatureCalculator calculator = new SpotFeatureCalculator( model, settings, false );
+		calculator.setNumThreads( 4 );
+		assertFalse( calculator.process() );
+		assertNotNull( calculator.getErrorMessage() );
+		assertEquals( Collections.singleton( "F" ), calculator.getFailedAnalyzers() );
+	}
+
+	/**
+	 * Lazy features of failed analyzers, and of the analyzers that depend on
+	 * them, must stay lazy. The others are marked as computed.
+	 */
+	@Test
+	public void testLazyFailuresStayLazy()
+	{
+		final Model model = createModel();
+		model.setLogger( Logger.VOID_LOGGER );
+		final Settings settings = new Settings( IJ.createImage( "Test", "8-bit black", 64, 64, 1, 1, 3 ) );
+		settings.clearSpotAnalyzerFactories();
+		settings.addSpotAnalyzerFactory( new ChainFactory<>( "A", null, false, Collections.emptyList() ) );
+		settings.addSpotAnalyzerFactory( new ChainFactory<>( "F", "Missing", false, Collections.emptyList() ) );
+		settings.addSpotAnalyzerFactory( new ChainFactory<>( "G", "F", true, Collections.singletonList( "F" ) ) );
+
+		final LazySpotFeatureCalculator calculator = new LazySpotFeatureCalculator( model, settings );
+		calculator.setNumThreads( 4 );
+		calculator.declare( Collections.emptyList() );
+		assertNull( calculator.getErrorMessage() );
+
+		final FeatureModel fm = model.getFeatureModel();
+		fm.materializeSpotFeatures( Arrays.asList( "A", "G" ) );
+		assertTrue( fm.isSpotFeatureMaterialized( "A" ) );
+		assertFalse( fm.isSpotFeatureMaterialized( "F" ) );
+		assertFalse( fm.isSpotFeatureMaterialized( "G" ) );
+		assertNotNull( calculator.getErrorMessage() );
+		assertTrue( calculator.getErrorMessage(), calculator.getErrorMessage().contains( "F, G" ) );
+
+		// Requested again, failed analyzers are run again.
+		fm.materializeSpotFeatures( Collections.singletonList( "F" ) );
+		assertFalse( fm.isSpotFeatureMaterialized( "F" ) );
+		assertNotNull( calculator.getErrorMessage() );
+	}
+
+	/**
+	 * A model with many spots in 3 frames, so that frames are split in
+	 * several chunks. Spots are created with the same positions every time.
+	 */
+	private static Model createModel()
+	{
+		final Random ran = new Random( 1l );
+		final Model model = new Model();
+		model.beginUpdate();
+		try
+		{
+			for ( int frame = 0; frame < 3; frame++ )
+				for ( int i = 0; i < 600; i++ )
+					model.addSpotTo( new Spot( 64. * ran.nextDouble(), 64. * ran.nextDouble(), 0., 1., 1. ), frame );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		return model;
+	}
+
+	/**
+	 * Computes a feature from another one. The feature is NaN if the input
+	 * feature has not been computed yet, and the analyzer throws an
+	 * exception if the input feature does not exist.
+	 */
+	private static class ChainFactory< T extends RealType< T > & NativeType< T > > implements SpotAnalyzerFactory< T >
+	{
+
+		private final String key;
+
+		private final String input;
+
+		private final boolean wholeFrame;
+
+		private final Collection< String > dependencies;
+
+		public ChainFactory( final String key, final String input, final boolean wholeFrame, final Collection< String > dependencies )
+		{
+			this.key = key;
+			this.input = input;
+			this.wholeFrame = wholeFrame;
+			this.dependencies = dependencies;
+		}
+
+		private void compute( final Spot spot )
+		{
+			final double val;
+			if ( input == null )
+			{
+				val = spot.getFeature( Spot.POSITION_X ) + 100. * spot.getFeature( Spot.FRAME );
+			}
+			else
+			{
+				if ( input.equals( "Missing" ) )
+					throw new IllegalStateException( "No input." );
+				final Double in = spot.getFeature( input );
+				val = ( in == null ) ? Double.NaN : 2. * in + 1.;
+			}
+			spot.putFeature( key, Double.valueOf( val ) );
+		}
+
+		@Override
+		public SpotAnalyzer< T > getAnalyzer( final ImgPlus< T > img, final int frame, final int channel )
+		{
+			if ( wholeFrame )
+				return spots -> spots.forEach( this::compute );
+
+			return new AbstractSpotFeatureAnalyzer< T >()
+			{
+				@Override
+				public void process( final Spot spot )
+				{
+					compute( spot );
+				}
+			};
+		}
+
+		@Override
+		public Collection< String > getDependencies()
+		{
+			return dependencies;
+		}
+
+		@Override
+		public String getKey()
+		{
+			return key;
+		}
+
+		@Override
+		public List< String > getFeatures()
+		{
+			return Collections.singletonList( key );
+		}
+
+		@Override
+		public Map< String, String > getFeatureShortNames()
+		{
+			return Collections.singletonMap( key, key );
+		}
+
+		@Override
+		public Map< String, String > getFeatureNames()
+		{
+			return Collections.singletonMap( key, key );
+		}
+
+		@Override
+		public Map< String, Dimension > getFeatureDimensions()
+		{
+			return Collections.singletonMap( key, Dimension.NONE );
+		}
+
+		@Override
+		public Map< String, Boolean > getIsIntFeature()
+		{
+			return Collections.singletonMap( key, Boolean.FALSE );
+		}
+
+		@Override
+		public boolean isManualFeature()
+		{
+			return false;
+		}
+
+		@Override
+		public String getInfoText()
+		{
+			return null;
+		}
+
+		@Override
+		public ImageIcon getIcon()
+		{
+			return null;
+		}
+
+		@Override
+		public String getName()
+		{
+			return key;
+		}
+	}
+}
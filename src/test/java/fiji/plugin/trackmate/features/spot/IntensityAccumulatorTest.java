@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features.spot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class IntensityAccumulatorTest
+{
+
+	@Test
+	public void testSelection()
+	{
+		final IntensityAccumulator accumulator = IntensityAccumulator.threadLocal( new FloatType() ).get();
+		final Random ran = new Random( 1L );
+		for ( int t = 0; t < 1000; t++ )
+		{
+			final double[] values = new double[ 1 + ran.nextInt( 500 ) ];
+			for ( int i = 0; i < values.length; i++ )
+				values[ i ] = ( ran.nextInt( 4 ) == 0 ) ? 10. : ran.nextGaussian();
+			check( accumulator, values );
+		}
+	}
+
+	@Test
+	public void testHistogram()
+	{
+		final IntensityAccumulator accumulator = IntensityAccumulator.threadLocal( new UnsignedShortType() ).get();
+		final Random ran = new Random( 2L );
+		for ( int t = 0; t < 1000; t++ )
+		{
+			final double[] values = new double[ 1 + ran.nextInt( 500 ) ];
+			final int range = 1 + ran.nextInt( 65535 );
+			for ( int i = 0; i < values.length; i++ )
+				values[ i ] = ran.nextInt( range );
+			check( accumulator, values );
+		}
+	}
+
+	private static void check( final IntensityAccumulator accumulator, final double[] values )
+	{
+		accumulator.reset();
+		for ( final double v : values )
+			accumulator.add( v );
+
+		final double[] sorted = values.clone();
+		Arrays.sort( sorted );
+		assertEquals( sorted[ 0 ], accumulator.min(), 0. );
+		assertEquals( sorted[ sorted.length - 1 ], accumulator.max(), 0. );
+		assertEquals( Arrays.stream( values ).sum(), accumulator.sum(), 1e-9 );
+		assertEquals( sorted[ sorted.length / 2 ], accumulator.median(), 0. );
+	}
+}
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features.spot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.SpotRoi;
+
+public class SpotFitEllipseAnalyzerTest
+{
+
+	@Test
+	public void testClosedFormFit()
+	{
+		final Random ran = new Random( 1L );
+		final SpotFitEllipseAnalyzer.Workspace ws = new SpotFitEllipseAnalyzer.Workspace();
+		for ( int t = 0; t < 1000; t++ )
+		{
+			final double x0 = 200. * ran.nextDouble() - 100.;
+			final double y0 = 200. * ran.nextDouble() - 100.;
+			final double a = 1. + 30. * ran.nextDouble();
+			final double b = a * ( 0.1 + 0.8 * ran.nextDouble() );
+			final double theta = ( ran.nextDouble() - 0.5 ) * Math.PI;
+			final int n = 5 + ran.nextInt( 60 );
+			final double[] x = new double[ n ];
+			final double[] y = new double[ n ];
+			for ( int i = 0; i < n; i++ )
+			{
+				final double alpha = 2. * Math.PI * i / n;
+				final double ex = a * Math.cos( alpha );
+				final double ey = b * Math.sin( alpha );
+				x[ i ] = x0 + ex * Math.cos( theta ) - ey * Math.sin( theta );
+				y[ i ] = y0 + ex * Math.sin( theta ) + ey * Math.cos( theta );
+			}
+
+			assertTrue( "Closed-form fit should succeed on an ellipse.", SpotFitEllipseAnalyzer.fitEllipseClosedForm( x, y, ws ) );
+			SpotFitEllipseAnalyzer.fitEllipse( x, y, ws );
+			SpotFitEllipseAnalyzer.quadraticToCartesian( ws.q, ws.a );
+			assertEquals( x0, ws.a[ 0 ], 1e-6 );
+			assertEquals( y0, ws.a[ 1 ], 1e-6 );
+			assertEquals( a, ws.a[ 2 ], 1e-6 * a );
+			assertEquals( b, ws.a[ 3 ], 1e-6 * a );
+			assertEquals( theta, ws.a[ 4 ], 1e-6 );
+		}
+	}
+
+	@Test
+	public void testClosedFormMatchesPseudoInverse()
+	{
+		final Random ran = new Random( 2L );
+		final SpotFitEllipseAnalyzer.Workspace ws = new SpotFitEllipseAnalyzer.Workspace();
+		final double[] expected = new double[ 5 ];
+		for ( int t = 0; t < 1000; t++ )
+		{
+			// Noisy polygons, such as the ones we get from segmentation.
+			final double a = 3. + 20. * ran.nextDouble();
+			final double b = a * ( 0.3 + 0.7 * ran.nextDouble() );
+			final int n = 8 + ran.nextInt( 60 );
+			final double[] x = new double[ n ];
+			final double[] y = new double[ n ];
+			for ( int i = 0; i < n; i++ )
+			{
+				final double alpha = 2. * Math.PI * i / n;
+				x[ i ] = a * Math.cos( alpha ) + 0.2 * ran.nextGaussian();
+				y[ i ] = b * Math.sin( alpha ) + 0.2 * ran.nextGaussian();
+			}
+			if ( !SpotFitEllipseAnalyzer.fitEllipseClosedForm( x, y, ws ) )
+				continue;
+
+			final double[] q = SpotFitEllipseAnalyzer.fitEllipse( x, y );
+			SpotFitEllipseAnalyzer.quadraticToCartesian( q, expected );
+			SpotFitEllipseAnalyzer.fitEllipse( x, y, ws );
+			SpotFitEllipseAnalyzer.quadraticToCartesian( ws.q, ws.a );
+			for ( int d = 0; d < 4; d++ )
+				assertEquals( expected[ d ], ws.a[ d ], 1e-6 * a );
+			// The orientation is defined modulo pi.
+			final double dtheta = Math.abs( expected[ 4 ] - ws.a[ 4 ] ) % Math.PI;
+			assertEquals( 0., Math.min( dtheta, Math.PI - dtheta ), 1e-6 );
+		}
+	}
+
+	@Test
+	public void testConvexHullArea()
+	{
+		// A 5-branch star. Its convex hull is the pentagon of its tips.
+		final int n = 10;
+		final double[] x = new double[ n ];
+		final double[] y = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final double r = ( i % 2 == 0 ) ? 10. : 4.;
+			final double alpha = 2. * Math.PI * i / n;
+			x[ i ] = r * Math.cos( alpha );
+			y[ i ] = r * Math.sin( alpha );
+		}
+		final double pentagon = 5. / 2. * 10. * 10. * Math.sin( 2. * Math.PI / 5. );
+		assertEquals( pentagon, ConvexHull.convexHullArea( x, y ), 1e-9 );
+		assertEquals( ConvexHull.convexHull( new SpotRoi( x, y ) ).area(), ConvexHull.convexHullArea( x, y ), 0. );
+	}
+}
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features.spot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class SpotIntensityAndContrastAnalyzerTest
+{
+
+	private static final String[] FEATURES = new String[] {
+			SpotIntensityMultiCAnalyzerFactory.MEAN_INTENSITY,
+			SpotIntensityMultiCAnalyzerFactory.MEDIAN_INTENSITY,
+			SpotIntensityMultiCAnalyzerFactory.MIN_INTENSITY,
+			SpotIntensityMultiCAnalyzerFactory.MAX_INTENSITY,
+			SpotIntensityMultiCAnalyzerFactory.TOTAL_INTENSITY,
+			SpotIntensityMultiCAnalyzerFactory.STD_INTENSITY,
+			SpotContrastAndSNRAnalyzerFactory.CONTRAST,
+			SpotContrastAndSNRAnalyzerFactory.SNR };
+
+	@Test
+	public void testSameAsSeparateAnalyzers2D()
+	{
+		final ImgPlus< FloatType > img = randomImg( new long[] { 64, 48 }, new double[] { 0.3, 0.3 } );
+		final Random ran = new Random( 2L );
+		for ( int i = 0; i < 50; i++ )
+		{
+			final Spot spot = new Spot( ran.nextDouble() * 19., ran.nextDouble() * 14., 0., 0.2 + ran.nextDouble() * 3., 1. );
+			check( img, spot );
+		}
+	}
+
+	@Test
+	public void testSameAsSeparateAnalyzers3D()
+	{
+		final ImgPlus< FloatType > img = randomImg( new long[] { 32, 32, 16 }, new double[] { 0.5, 0.5, 1. } );
+		final Random ran = new Random( 3L );
+		for ( int i = 0; i < 20; i++ )
+		{
+			final Spot spot = new Spot( ran.nextDouble() * 16., ran.nextDouble() * 16., ran.nextDouble() * 16., 0.4 + ran.nextDouble() * 3., 1. );
+			check( img, spot );
+		}
+	}
+
+	@Test
+	public void testSameAsSeparateAnalyzersRoi()
+	{
+		final ImgPlus< FloatType > img = randomImg( new long[] { 64, 48 }, new double[] { 0.3, 0.3 } );
+		final Random ran = new Random( 4L );
+		for ( int i = 0; i < 50; i++ )
+		{
+			final int nPoints = 3 + ran.nextInt( 8 );
+			final double[] x = new double[ nPoints ];
+			final double[] y = new double[ nPoints ];
+			final double r0 = 0.5 + ran.nextDouble() * 3.;
+			for ( int j = 0; j < nPoints; j++ )
+			{
+				final double theta = 2. * Math.PI * j / nPoints;
+				final double r = r0 * ( 0.5 + ran.nextDouble() );
+				x[ j ] = r * Math.cos( theta );
+				y[ j ] = r * Math.sin( theta );
+			}
+			final Spot spot = new Spot( 2. + ran.nextDouble() * 15., 2. + ran.nextDouble() * 10., 0., r0, 1. );
+			spot.setRoi( new SpotRoi( x, y ) );
+			check( img, spot );
+		}
+	}
+
+	/**
+	 * ROIs away from the spot center, so that the inner ROI is only partly
+	 * covered by the outer ROI, or not at all.
+	 */
+	@Test
+	public void testSameAsSeparateAnalyzersOffsetRoi()
+	{
+		final ImgPlus< FloatType > img = randomImg( new long[] { 64, 48 }, new double[] { 0.3, 0.3 } );
+		final Random ran = new Random( 5L );
+		for ( int i = 0; i < 50; i++ )
+		{
+			final double x0 = ran.nextDouble() * 2.;
+			final double y0 = -1. + ran.nextDouble() * 2.;
+			final double w = 1. + ran.nextDouble() * 2.;
+			final double h = 1. + ran.nextDouble() * 2.;
+			final double[] x = new double[] { x0, x0 + w, x0 + w, x0 + w / 2., x0 };
+			final double[] y = new double[] { y0, y0, y0 + h, y0 + h / 3., y0 + h };
+			final Spot spot = new Spot( 2. + ran.nextDouble() * 15., 2. + ran.nextDouble() * 10., 0., 1., 1. );
+			spot.setRoi( new SpotRoi( x, y ) );
+			check( img, spot );
+		}
+	}
+
+	private static void check( final ImgPlus< FloatType > img, final Spot spot )
+	{
+		final Spot expected = new Spot( spot );
+		expected.setRoi( spot.getRoi() );
+		new SpotIntensityMultiCAnalyzer<>( img, 0 ).process( expected );
+		new SpotContrastAndSNRAnalyzer<>( img, 0 ).process( expected );
+
+		new SpotIntensityAndContrastAnalyzer<>( img, 0 ).process( spot );
+
+		for ( final String feature : FEATURES )
+		{
+			final String key = SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( feature, 0 );
+			final double val = expected.getFeature( key ).doubleValue();
+			// Pixels are summed in a different order.
+			assertEquals( "Unexpected value for " + key, val, spot.getFeature( key ).doubleValue(), 1e-9 * Math.abs( val ) );
+		}
+	}
+
+	private static ImgPlus< FloatType > randomImg( final long[] dims, final double[] calibration )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		final Random ran = new Random( 1L );
+		for ( final FloatType t : img )
+			t.set( ran.nextFloat() * 100f );
+
+		final AxisType[] axes = dims.length == 2
+				? new AxisType[] { Axes.X, Axes.Y }
+				: new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		return new ImgPlus<>( img, "random", axes, calibration );
+	}
+}
@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.features.spot;
+
+import java.util.Random;
+
+import org.scijava.util.DoubleArray;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+
+/**
+ * Compares the sort-based median used formerly by the
+ * {@link SpotIntensityMultiCAnalyzer} with the linear-time selection and
+ * histogram medians of the {@link IntensityAccumulator}, for spot sizes
+ * typical of large 3D spots. The full analyzers are benchmarked by
+ * {@link fiji.plugin.trackmate.features.SpotFeatureComputationBenchmark}.
+ */
+public class SpotIntensityMedianBenchmark
+{
+
+	private static final int N_TESTS = 200;
+
+	public static void main( final String[] args )
+	{
+		for ( final int size : new int[] { 1_000, 10_000, 100_000 } )
+		{
+			System.out.println( "\nSpot size: " + size + " pixels." );
+			run( "32-bit", new FloatType(), size );
+			run( "16-bit", new UnsignedShortType(), size );
+		}
+	}
+
+	private static void run( final String name, final RealType< ? > type, final int size )
+	{
+		final Random ran = new Random( 1L );
+		final double[] pixels = new double[ size ];
+		for ( int i = 0; i < size; i++ )
+			pixels[ i ] = type instanceof FloatType ? 1000. * ran.nextDouble() : ran.nextInt( 4096 );
+
+		final IntensityAccumulator accumulator = IntensityAccumulator.threadLocal( type ).get();
+		double check = 0.;
+
+		long start = System.nanoTime();
+		for ( int t = 0; t < N_TESTS; t++ )
+		{
+			final DoubleArray intensities = new DoubleArray();
+			for ( final double v : pixels )
+				intensities.addValue( v );
+			Util.quicksort( intensities.getArray(), 0, intensities.size() - 1 );
+			check += intensities.getArray()[ intensities.size() / 2 ];
+		}
+		final double sortTime = ( System.nanoTime() - start ) / 1e6 / N_TESTS;
+
+		start = System.nanoTime();
+		for ( int t = 0; t < N_TESTS; t++ )
+		{
+			accumulator.reset();
+			for ( final double v : pixels )
+				accumulator.add( v );
+			check -= accumulator.median();
+		}
+		final double selectTime = ( System.nanoTime() - start ) / 1e6 / N_TESTS;
+
+		System.out.println( String.format( " - %s: sort %.3f ms, selection %.3f ms, speedup x%.1f (check: %.1f)",
+				name, sortTime, selectTime, sortTime / selectTime, check ) );
+	}
+}
@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.interactivetests;
+
+import java.util.List;
+import java.util.Random;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.LogDetector;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessible;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.array.ArrayRandomAccess;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the coarse-to-fine mode of the LoG detector with the full
+ * resolution detection, in speed and accuracy, on an image with large, well
+ * separated spots.
+ */
+public class LogDetectorCoarseToFinePerformance
+{
+
+	public static void main( final String[] args )
+	{
+		final int nwarmups = 3;
+		final int ntests = 10;
+		final int size = 2048;
+		final int spacing = 64;
+		final double rad = 10.;
+		final double threshold = 50.;
+		final int[] factors = new int[] { 2, 4, 8 };
+
+		/*
+		 * Spots on a jittered grid, on a noisy background.
+		 */
+
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( size, size );
+		final ArrayRandomAccess< UnsignedShortType > ra = img.randomAccess();
+		final Random ran = new Random( 1l );
+		for ( int x = spacing / 2; x < size; x += spacing )
+		{
+			for ( int y = spacing / 2; y < size; y += spacing )
+			{
+				ra.setPosition( x + ran.nextInt( spacing / 4 ) - spacing / 8, 0 );
+				ra.setPosition( y + ran.nextInt( spacing / 4 ) - spacing / 8, 1 );
+				ra.get().set( 60000 );
+			}
+		}
+		final RandomAccessible< UnsignedShortType > source = Views.extendMirrorSingle( img );
+		Gauss3.gauss( rad / Math.sqrt( img.numDimensions() ), source, img );
+		for ( final UnsignedShortType p : img )
+			p.set( p.get() + 100 + ( int ) ( 10. * ran.nextGaussian() ) );
+		final ImgPlus< UnsignedShortType > imgplus = new ImgPlus<>( img );
+
+		/*
+		 * Reference.
+		 */
+
+		for ( int i = 0; i < nwarmups; i++ )
+			execTest( imgplus, rad, threshold, 1 );
+		long start = System.currentTimeMillis();
+		List< Spot > reference = null;
+		for ( int i = 0; i < ntests; i++ )
+			reference = execTest( imgplus, rad, threshold, 1 );
+		long end = System.currentTimeMillis();
+		final double refTime = ( double ) ( end - start ) / ntests;
+
+		System.out.println( "Coarse-to-fine LoG detection of " + reference.size() + " spots of radius " + rad + " in a " + size + "x" + size + " uint16 image." );
+		System.out.println( "Factor\tTime(ms)\tSpeedup\tRecall\tPrecision\tMean dist.(px)\tMax dist.(px)\tMax quality error(%)" );
+		System.out.println( "1\t" + refTime + "\t1\t1\t1\t0\t0\t0" );
+
+		/*
+		 * Coarse-to-fine.
+		 */
+
+		final double tolerance = rad / 2.;
+		for ( final int factor : factors )
+		{
+			for ( int i = 0; i < nwarmups; i++ )
+				execTest( imgplus, rad, threshold, factor );
+			start = System.currentTimeMillis();
+			List< Spot > spots = null;
+			for ( int i = 0; i < ntests; i++ )
+				spots = execTest( imgplus, rad, threshold, factor );
+			end = System.currentTimeMillis();
+			final double time = ( double ) ( end - start ) / ntests;
+
+			int nMatches = 0;
+			double sumDist = 0.;
+			double maxDist = 0.;
+			double maxQualityError = 0.;
+			for ( final Spot spot : reference )
+			{
+				Spot closest = null;
+				double minD2 = Double.POSITIVE_INFINITY;
+				for ( final Spot candidate : spots )
+				{
+					final double d2 = spot.squareDistanceTo( candidate );
+					if ( d2 < minD2 )
+					{
+						minD2 = d2;
+						closest = candidate;
+					}
+				}
+				if ( closest == null || minD2 > tolerance * tolerance )
+					continue;
+
+				nMatches++;
+				final double dist = Math.sqrt( minD2 );
+				sumDist += dist;
+				maxDist = Math.max( maxDist, dist );
+				final double q = spot.getFeature( Spot.QUALITY );
+				final double qualityError = 100. * Math.abs( closest.getFeature( Spot.QUALITY ) - q ) / q;
+				maxQualityError = Math.max( maxQualityError, qualityError );
+			}
+
+			System.out.println( factor
+					+ "\t" + time
+					+ "\t" + ( refTime / time )
+					+ "\t" + ( ( double ) nMatches / reference.size() )
+					+ "\t" + ( ( double ) nMatches / spots.size() )
+					+ "\t" + ( sumDist / nMatches )
+					+ "\t" + maxDist
+					+ "\t" + maxQualityError );
+		}
+	}
+
+	private static final List< Spot > execTest( final ImgPlus< UnsignedShortType > imgplus, final double rad, final double threshold, final int factor )
+	{
+		final LogDetector< UnsignedShortType > detector = new LogDetector<>( imgplus, imgplus, TMUtils.getSpatialCalibration( imgplus ), rad, threshold, true, false );
+		detector.setNumThreads( 1 );
+		detector.setDownsamplingFactor( factor );
+		if ( !detector.checkInput() || !detector.process() )
+		{
+			System.out.println( detector.getErrorMessage() );
+			return null;
+		}
+		return detector.getResult();
+	}
+}
@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.SpotRoi;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.detection.DetectorKeys;
+import fiji.plugin.trackmate.detection.LogDetectorFactory;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+public class DetectionCacheTest
+{
+
+	private static final double[] CALIBRATION = new double[] { 0.5, 0.5, 1. };
+
+	private static final String VERSION = "fiji.plugin.trackmate.detection.LogDetectorFactory 1.0";
+
+	private static final Interval INTERVAL = new FinalInterval( new long[] { 0, 0 }, new long[] { 99, 99 } );
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final File file = File.createTempFile( "detections", DetectionCache.FILE_EXTENSION );
+		file.deleteOnExit();
+		final Map< String, Object > settings = new HashMap<>();
+		settings.put( DetectorKeys.KEY_RADIUS, 2.5 );
+		settings.put( DetectorKeys.KEY_THRESHOLD, 10. );
+
+		final List< Spot > spots = new ArrayList<>();
+		spots.add( new Spot( 1., 2., 0., 2.5, 17. ) );
+		final Spot withRoi = SpotRoi.createSpot( new double[] { 10., 12., 11. }, new double[] { 5., 5., 8. }, 42. );
+		withRoi.putFeature( "LABEL_ID", 7. );
+		spots.add( withRoi );
+
+		final DetectionCache cache = DetectionCache.open( file, "LOG_DETECTOR", VERSION, settings, INTERVAL, null, CALIBRATION );
+		cache.put( 3, 1234l, spots );
+		cache.save();
+
+		final DetectionCache reopened = DetectionCache.open( file, "LOG_DETECTOR", VERSION, settings, INTERVAL, null, CALIBRATION );
+		assertNull( "Frame with different pixels should be stale.", reopened.get( 3, 4321l ) );
+		assertNull( "Frame never detected should not be in the cache.", reopened.get( 2, 1234l ) );
+		final List< Spot > cached = reopened.get( 3, 1234l );
+		assertNotNull( cached );
+		assertEquals( spots.size(), cached.size() );
+		for ( int i = 0; i < spots.size(); i++ )
+		{
+			final Spot expected = spots.get( i );
+			final Spot actual = cached.get( i );
+			for ( final String feature : new String[] { Spot.POSITION_X, Spot.POSITION_Y, Spot.POSITION_Z, Spot.RADIUS, Spot.QUALITY } )
+				assertEquals( expected.getFeature( feature ), actual.getFeature( feature ), 0. );
+		}
+		assertNull( cached.get( 0 ).getRoi() );
+		assertNull( cached.get( 0 ).getFeature( "LABEL_ID" ) );
+		assertEquals( 7., cached.get( 1 ).getFeature( "LABEL_ID" ), 0. );
+		assertArrayEquals( withRoi.getRoi().x, cached.get( 1 ).getRoi().x, 0. );
+		assertArrayEquals( withRoi.getRoi().y, cached.get( 1 ).getRoi().y, 0. );
+		assertEquals( 1, reopened.getNHits() );
+		assertEquals( 2, reopened.getNMisses() );
+
+		// Other settings: the whole cache is stale.
+		settings.put( DetectorKeys.KEY_THRESHOLD, 20. );
+		final DetectionCache other = DetectionCache.open( file, "LOG_DETECTOR", VERSION, settings, INTERVAL, null, CALIBRATION );
+		assertNull( other.get( 3, 1234l ) );
+	}
+
+	@Test
+	public void testOtherDetectorVersionIsStale() throws IOException
+	{
+		final File file = File.createTempFile( "detections", DetectionCache.FILE_EXTENSION );
+		file.deleteOnExit();
+		final Map< String, Object > settings = new HashMap<>();
+		settings.put( DetectorKeys.KEY_RADIUS, 2.5 );
+
+		final DetectionCache cache = DetectionCache.open( file, "LOG_DETECTOR", VERSION, settings, INTERVAL, null, CALIBRATION );
+		cache.put( 0, 1l, Collections.singletonList( new Spot( 1., 2., 0., 2.5, 17. ) ) );
+		cache.save();
+
+		assertNotNull( DetectionCache.open( file, "LOG_DETECTOR", VERSION, settings, INTERVAL, null, CALIBRATION ).get( 0, 1l ) );
+		assertNull( DetectionCache.open( file, "LOG_DETECTOR", VERSION + ".1", settings, INTERVAL, null, CALIBRATION ).get( 0, 1l ) );
+	}
+
+	/**
+	 * Runs the detection through TrackMate several times, and checks which
+	 * frames are read from the cache.
+	 */
+	@Test
+	public void testTrackMateHitsAndMisses() throws IOException
+	{
+		final File folder = Files.createTempDirectory( "detectioncache" ).toFile();
+		folder.deleteOnExit();
+		final ImagePlus imp = blobs( 3 );
+		final Settings settings = new Settings( imp );
+		settings.imageFolder = folder.getAbsolutePath() + File.separator;
+		settings.imageFileName = "blobs.tif";
+		settings.detectorFactory = new LogDetectorFactory<>();
+		settings.detectorSettings = settings.detectorFactory.getDefaultSettings();
+		settings.detectorSettings.put( DetectorKeys.KEY_RADIUS, 2.5 );
+		settings.detectorSettings.put( DetectorKeys.KEY_THRESHOLD, 1. );
+		final File file = DetectionCache.cacheFileFor( settings );
+		file.deleteOnExit();
+
+		final SpotCollection first = detect( settings, "0 frames read, 3 frames detected" );
+		assertTrue( file.exists() );
+		final SpotCollection second = detect( settings, "3 frames read, 0 frames detected" );
+		for ( int t = 0; t < 3; t++ )
+			assertEquals( first.getNSpots( t, false ), second.getNSpots( t, false ) );
+
+		// Changed pixels in one frame.
+		imp.getStack().getProcessor( 2 ).multiply( 0.5 );
+		detect( settings, "2 frames read, 1 frames detected" );
+
+		// Changed settings.
+		settings.detectorSettings.put( DetectorKeys.KEY_THRESHOLD, 2. );
+		detect( settings, "0 frames read, 3 frames detected" );
+		detect( settings, "3 frames read, 0 frames detected" );
+
+		// Only the cache file is left in the folder.
+		assertArrayEquals( new String[] { file.getName() }, folder.list() );
+		file.delete();
+	}
+
+	private static SpotCollection detect( final Settings settings, final String expected )
+	{
+		final Model model = new Model();
+		final StringBuilder log = new StringBuilder();
+		model.setLogger( new Logger.StringBuilderLogger( log ) );
+		final TrackMate trackmate = new TrackMate( model, settings );
+		trackmate.setUseDetectionCache( true );
+		assertTrue( trackmate.getErrorMessage(), trackmate.execDetection() );
+		assertTrue( log.toString(), log.toString().contains( "Detection cache: " + expected + "." ) );
+		return model.getSpots();
+	}
+
+	private static ImagePlus blobs( final int nFrames )
+	{
+		final Random ran = new Random( 1L );
+		final ImageStack stack = new ImageStack( 64, 64 );
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final FloatProcessor fp = new FloatProcessor( 64, 64 );
+			for ( int i = 0; i < 10; i++ )
+			{
+				final double cx = 4. + ran.nextDouble() * 56.;
+				final double cy = 4. + ran.nextDouble() * 56.;
+				for ( int y = 0; y < 64; y++ )
+					for ( int x = 0; x < 64; x++ )
+						fp.setf( x, y, fp.getf( x, y ) + ( float ) ( 100. * Math.exp( -( ( x - cx ) * ( x - cx ) + ( y - cy ) * ( y - cy ) ) / 6.25 ) ) );
+			}
+			stack.addSlice( fp );
+		}
+		final ImagePlus imp = new ImagePlus( "blobs", stack );
+		imp.setDimensions( 1, 1, nFrames );
+		return imp;
+	}
+}
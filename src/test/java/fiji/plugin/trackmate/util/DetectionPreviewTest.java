@@ -0,0 +1,233 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.DetectorKeys;
+import fiji.plugin.trackmate.detection.LogDetectorFactory;
+import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import net.imglib2.util.Pair;
+
+public class DetectionPreviewTest
+{
+
+	private static final int WIDTH = 64;
+
+	private static final int HEIGHT = 64;
+
+	@Test
+	public void testThresholdChangeUsesCache() throws InterruptedException
+	{
+		final ImagePlus imp = blobs( 1 );
+		final CountingPreview preview = new CountingPreview( imp );
+
+		preview.run( 0, Double.NEGATIVE_INFINITY );
+		final double[] q = qualities( preview.model );
+		preview.run( 0, q[ q.length / 2 ] );
+
+		assertEquals( "Changing the threshold should not run the detection again.", 1, preview.nDetections.get() );
+		assertEquals( q.length - q.length / 2, preview.model.getSpots().getNSpots( 0, true ) );
+	}
+
+	@Test
+	public void testModelEditsDoNotChangeCache() throws InterruptedException
+	{
+		final ImagePlus imp = blobs( 1 );
+		final CountingPreview preview = new CountingPreview( imp );
+
+		preview.run( 0, Double.NEGATIVE_INFINITY );
+		final double[] q = qualities( preview.model );
+		final List< Spot > edited = new ArrayList<>();
+		for ( final Spot spot : preview.model.getSpots().iterable( 0, true ) )
+		{
+			// Edit the spots shown in the model.
+			spot.putFeature( Spot.QUALITY, -1. );
+			spot.putFeature( Spot.POSITION_X, -100. );
+			edited.add( spot );
+		}
+
+		preview.run( 0, Double.NEGATIVE_INFINITY );
+		assertEquals( 1, preview.nDetections.get() );
+		assertArrayEquals( q, qualities( preview.model ), 0. );
+		for ( final Spot spot : preview.model.getSpots().iterable( 0, true ) )
+		{
+			assertFalse( edited.contains( spot ) );
+			assertTrue( spot.getDoublePosition( 0 ) >= 0. );
+		}
+	}
+
+	@Test
+	public void testImageChangeMissesCache() throws InterruptedException
+	{
+		final ImagePlus imp = blobs( 1 );
+		final CountingPreview preview = new CountingPreview( imp );
+
+		preview.run( 0, Double.NEGATIVE_INFINITY );
+		final int n = preview.model.getSpots().getNSpots( 0, true );
+
+		// Another image with the same pixels.
+		preview.run( new Settings( imp.duplicate() ), 0, Double.NEGATIVE_INFINITY );
+		assertEquals( "Changing the image should run the detection again.", 2, preview.nDetections.get() );
+
+		// Erase half of the blobs in place.
+		final float[] pixels = ( float[] ) imp.getProcessor().getPixels();
+		Arrays.fill( pixels, 0, pixels.length / 2, 0f );
+		preview.run( 0, Double.NEGATIVE_INFINITY );
+		assertEquals( "Changing the pixels should run the detection again.", 3, preview.nDetections.get() );
+		assertTrue( preview.model.getSpots().getNSpots( 0, true ) < n );
+	}
+
+	@Test
+	public void testSpeculationUsesOverride() throws InterruptedException
+	{
+		final ImagePlus imp = blobs( 3 );
+		final CountingPreview preview = new CountingPreview( imp );
+
+		preview.run( 1, Double.NEGATIVE_INFINITY );
+		// Frames 0 and 2 are detected in the background.
+		final long timeout = System.currentTimeMillis() + 60_000;
+		while ( preview.nDetections.get() < 3 && System.currentTimeMillis() < timeout )
+			Thread.sleep( 20 );
+		assertEquals( 3, preview.nDetections.get() );
+
+		// The neighbor frames are now in cache.
+		preview.run( 0, Double.NEGATIVE_INFINITY );
+		preview.run( 2, Double.NEGATIVE_INFINITY );
+		assertEquals( 3, preview.nDetections.get() );
+	}
+
+	private static double[] qualities( final Model model )
+	{
+		final double[] q = new double[ model.getSpots().getNSpots( 0, true ) ];
+		int i = 0;
+		for ( final Spot spot : model.getSpots().iterable( 0, true ) )
+			q[ i++ ] = spot.getFeature( Spot.QUALITY ).doubleValue();
+		Arrays.sort( q );
+		return q;
+	}
+
+	private static final class CountingPreview extends DetectionPreview
+	{
+
+		private final AtomicInteger nDetections = new AtomicInteger();
+
+		private final Model model;
+
+		private final Settings settings;
+
+		private CountingPreview( final ImagePlus imp )
+		{
+			this( new Model(), new Settings( imp ) );
+		}
+
+		private CountingPreview( final Model model, final Settings settings )
+		{
+			super( model, settings, new LogDetectorFactory<>(), null, () -> 0, null, "Quality", DetectorKeys.KEY_THRESHOLD );
+			this.model = model;
+			this.settings = settings;
+			model.setLogger( Logger.VOID_LOGGER );
+		}
+
+		private void run( final int frame, final double threshold ) throws InterruptedException
+		{
+			run( settings, frame, threshold );
+		}
+
+		private void run( final Settings settings, final int frame, final double threshold ) throws InterruptedException
+		{
+			final LogDetectorFactory< ? > factory = new LogDetectorFactory<>();
+			final Map< String, Object > ds = factory.getDefaultSettings();
+			ds.put( DetectorKeys.KEY_RADIUS, 2.5 );
+			ds.put( DetectorKeys.KEY_THRESHOLD, threshold );
+			ds.put( DetectorKeys.KEY_DO_MEDIAN_FILTERING, false );
+			runPreview( model, settings, factory, ds, frame, DetectorKeys.KEY_THRESHOLD );
+		}
+
+		@Override
+		protected Pair< Model, Double > runPreviewDetection(
+				final Settings settings,
+				final int frame,
+				final SpotDetectorFactoryBase< ? > detectorFactory,
+				final Map< String, Object > detectorSettings,
+				final String thresholdKey )
+		{
+			nDetections.incrementAndGet();
+			return super.runPreviewDetection( settings, frame, detectorFactory, detectorSettings, thresholdKey );
+		}
+	}
+
+	/**
+	 * Gaussian blobs of various intensities over a noisy background.
+	 */
+	private static ImagePlus blobs( final int nFrames )
+	{
+		final Random ran = new Random( 1L );
+		final double sigma = 2.5 / Math.sqrt( 2. );
+		final ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final double[][] centers = new double[ 20 ][];
+			for ( int i = 0; i < centers.length; i++ )
+				centers[ i ] = new double[] { 4. + ran.nextDouble() * ( WIDTH - 8 ), 4. + ran.nextDouble() * ( HEIGHT - 8 ), 10. + 10. * i };
+
+			final FloatProcessor fp = new FloatProcessor( WIDTH, HEIGHT );
+			for ( int y = 0; y < HEIGHT; y++ )
+			{
+				for ( int x = 0; x < WIDTH; x++ )
+				{
+					double val = 2. * ran.nextDouble();
+					for ( final double[] c : centers )
+					{
+						final double dx = x - c[ 0 ];
+						final double dy = y - c[ 1 ];
+						val += c[ 2 ] * Math.exp( -( dx * dx + dy * dy ) / ( 2. * sigma * sigma ) );
+					}
+					fp.setf( x, y, ( float ) val );
+				}
+			}
+			stack.addSlice( fp );
+		}
+		final ImagePlus imp = new ImagePlus( "blobs", stack );
+		imp.setDimensions( 1, 1, nFrames );
+		return imp;
+	}
+}
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.SpotFeatureCalculator;
+import fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.StackConverter;
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class HyperSliceCacheTest
+{
+
+	/** Memory used by one channel and one frame of the test image. */
+	private static final long PLANE_BYTES = 16 * 16 * 4;
+
+	private static ImagePlus createImp()
+	{
+		// 2 channels, 1 Z slice, 5 frames.
+		return IJ.createImage( "Test", "32-bit black", 16, 16, 2, 1, 5 );
+	}
+
+	@Test
+	public void testHitsAndMisses()
+	{
+		final HyperSliceCache cache = new HyperSliceCache();
+		final ImagePlus imp = createImp();
+
+		final ImgPlus< ? > slice = cache.get( imp, 1, 3 );
+		assertEquals( 2, slice.numDimensions() );
+		assertEquals( 0, cache.getHits() );
+		assertEquals( 1, cache.getMisses() );
+
+		assertSame( slice, cache.get( imp, 1, 3 ) );
+		assertNotSame( slice, cache.get( imp, 0, 3 ) );
+		assertNotSame( slice, cache.get( createImp(), 1, 3 ) );
+		assertEquals( 1, cache.getHits() );
+		assertEquals( 3, cache.getMisses() );
+		// Views keep the pixels of their plane reachable.
+		assertEquals( 3 * PLANE_BYTES, cache.getBytes() );
+	}
+
+	@Test
+	public void testLRUEviction()
+	{
+		final HyperSliceCache cache = new HyperSliceCache();
+		cache.setMaxEntries( 3 );
+		final ImagePlus imp = createImp();
+
+		final ImgPlus< ? > slice0 = cache.get( imp, 0, 0 );
+		cache.get( imp, 0, 1 );
+		cache.get( imp, 0, 2 );
+		// Frame 0 becomes the most recently used.
+		assertSame( slice0, cache.get( imp, 0, 0 ) );
+		// Evicts frame 1.
+		cache.get( imp, 0, 3 );
+		assertEquals( 3, cache.size() );
+		assertEquals( 1, cache.getEvictions() );
+		assertSame( slice0, cache.get( imp, 0, 0 ) );
+
+		cache.resetStatistics();
+		cache.get( imp, 0, 1 );
+		assertEquals( 1, cache.getMisses() );
+
+		cache.invalidate( imp );
+		assertEquals( 0, cache.size() );
+		assertEquals( 0, cache.getBytes() );
+	}
+
+	@Test
+	public void testMemoryBound()
+	{
+		final HyperSliceCache cache = new HyperSliceCache();
+		cache.setMaxBytes( 2 * PLANE_BYTES );
+		final ImagePlus imp = createImp();
+
+		cache.get( imp, 0, 0 );
+		cache.get( imp, 0, 1 );
+		cache.get( imp, 0, 2 );
+		assertEquals( 2, cache.size() );
+		assertEquals( 1, cache.getEvictions() );
+		assertEquals( 2 * PLANE_BYTES, cache.getBytes() );
+	}
+
+	/**
+	 * Redrawing an image notifies an update. The hyperslices are kept, and
+	 * see the pixels edited in place.
+	 */
+	@Test
+	public void testRedrawnImageIsKept()
+	{
+		final HyperSliceCache cache = new HyperSliceCache();
+		final ImagePlus imp = createImp();
+
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< FloatType > slice = ( ImgPlus< FloatType > ) cache.get( imp, 0, 0 );
+		cache.get( imp, 1, 2 );
+		cache.imageUpdated( imp );
+		assertEquals( 2, cache.size() );
+		assertSame( slice, cache.get( imp, 0, 0 ) );
+
+		imp.setPositionWithoutUpdate( 1, 1, 1 );
+		imp.getProcessor().putPixelValue( 3, 4, 12. );
+		imp.updateAndDraw();
+		cache.imageUpdated( imp );
+		assertSame( slice, cache.get( imp, 0, 0 ) );
+		final RandomAccess< FloatType > ra = slice.randomAccess();
+		ra.setPosition( new long[] { 3, 4 } );
+		assertEquals( 12f, ra.get().get(), 0f );
+		assertEquals( 2, cache.getMisses() );
+	}
+
+	@Test
+	public void testUpdatedImageIsReloaded()
+	{
+		final HyperSliceCache cache = new HyperSliceCache();
+		final ImagePlus imp = createImp();
+
+		// Stack replaced.
+		ImgPlus< ? > slice = cache.get( imp, 0, 0 );
+		imp.setStack( createImp().getStack(), 2, 1, 5 );
+		cache.imageUpdated( imp );
+		assertEquals( 0, cache.size() );
+		assertNotSame( slice, cache.get( imp, 0, 0 ) );
+
+		// Plane replaced.
+		slice = cache.get( imp, 0, 0 );
+		final ImgPlus< ? > other = cache.get( imp, 1, 0 );
+		imp.getStack().setPixels( new float[ 16 * 16 ], imp.getStackIndex( 1, 1, 1 ) );
+		cache.imageUpdated( imp );
+		assertEquals( 1, cache.size() );
+		assertNotSame( slice, cache.get( imp, 0, 0 ) );
+		assertSame( other, cache.get( imp, 1, 0 ) );
+
+		// Calibration changed.
+		imp.getCalibration().pixelWidth = 0.5;
+		cache.imageUpdated( imp );
+		assertEquals( 0, cache.size() );
+
+		// Converted.
+		cache.get( imp, 0, 0 );
+		new StackConverter( imp ).convertToGray16();
+		cache.imageUpdated( imp );
+		assertEquals( 0, cache.size() );
+
+		cache.get( imp, 0, 0 );
+		cache.imageClosed( imp );
+		assertEquals( 0, cache.size() );
+	}
+
+	@Test
+	public void testNoRetentionAfterInvalidation() throws InterruptedException
+	{
+		final HyperSliceCache cache = new HyperSliceCache();
+		ImagePlus imp = createImp();
+		final WeakReference< ImagePlus > ref = new WeakReference<>( imp );
+		cache.get( imp, 0, 0 );
+		cache.get( imp, 1, 4 );
+
+		cache.invalidate( imp );
+		assertEquals( 0, cache.size() );
+		assertEquals( 0, cache.getBytes() );
+
+		imp = null;
+		for ( int i = 0; i < 50 && null != ref.get(); i++ )
+		{
+			System.gc();
+			Thread.sleep( 20 );
+		}
+		assertNull( "The cache still holds the invalidated image.", ref.get() );
+	}
+
+	/**
+	 * The intensity and contrast analyzers read their hyperslices from the
+	 * shared cache, so a second feature computation on the same image only
+	 * gets hits.
+	 */
+	@Test
+	public void testHitsAcrossFeatureComputations()
+	{
+		final ImagePlus imp = IJ.createImage( "Test", "8-bit black", 32, 32, 1, 1, 3 );
+		final Settings settings = new Settings( imp );
+		settings.clearSpotAnalyzerFactories();
+		settings.addSpotAnalyzerFactory( new SpotIntensityMultiCAnalyzerFactory<>() );
+		settings.addSpotAnalyzerFactory( new SpotContrastAndSNRAnalyzerFactory<>() );
+
+		final Model model = new Model();
+		model.beginUpdate();
+		try
+		{
+			for ( int frame = 0; frame < 3; frame++ )
+				model.addSpotTo( new Spot( 16., 16., 0., 3., 1. ), frame );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		final HyperSliceCache cache = HyperSliceCache.getInstance();
+		cache.clear();
+		cache.resetStatistics();
+		try
+		{
+			assertTrue( new SpotFeatureCalculator( model, settings, false ).process() );
+			assertEquals( 0, cache.getHits() );
+			assertEquals( 3, cache.getMisses() );
+
+			assertTrue( new SpotFeatureCalculator( model, settings, false ).process() );
+			assertEquals( 3, cache.getHits() );
+			assertEquals( 3, cache.getMisses() );
+
+			cache.invalidate( imp );
+			assertEquals( 0, cache.size() );
+			assertEquals( 0, cache.getBytes() );
+		}
+		finally
+		{
+			cache.clear();
+			cache.resetStatistics();
+		}
+	}
+}
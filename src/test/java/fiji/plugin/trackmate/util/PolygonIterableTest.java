@@ -0,0 +1,249 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+
+/**
+ * Checks that {@link PolygonIterable} iterates over the pixels whose center
+ * is inside the polygon, in row-major order, and reads them from the right
+ * source.
+ */
+public class PolygonIterableTest
+{
+
+	private static final int WIDTH = 40;
+
+	private static final int HEIGHT = 30;
+
+	@Test
+	public void testAsymmetricPolygons()
+	{
+		final Img< IntType > img = indexImg();
+		final Random ran = new Random( 1L );
+		for ( int i = 0; i < 200; i++ )
+		{
+			final double[][] polygon = randomPolygon( ran, 8. + ran.nextDouble() * ( WIDTH - 16 ), 8. + ran.nextDouble() * ( HEIGHT - 16 ), 0.5 + ran.nextDouble() * 6. );
+			check( polygon[ 0 ], polygon[ 1 ], img );
+		}
+
+		// L-shape and thin sliver, not symmetric along X nor Y.
+		check( new double[] { 3.3, 12.7, 12.7, 6.2, 6.2, 3.3 }, new double[] { 2.4, 2.4, 5.6, 5.6, 15.1, 15.1 }, img );
+		check( new double[] { 20.1, 31.8, 20.6 }, new double[] { 10.2, 11.3, 12.9 }, img );
+	}
+
+	@Test
+	public void testSpansClippedByBordersAreMirrored()
+	{
+		final Img< IntType > img = indexImg();
+		final Random ran = new Random( 2L );
+		for ( int i = 0; i < 200; i++ )
+		{
+			final double x0 = ran.nextBoolean() ? ran.nextDouble() * 3. - 1.5 : WIDTH - 1 + ran.nextDouble() * 3. - 1.5;
+			final double y0 = ran.nextBoolean() ? ran.nextDouble() * 3. - 1.5 : HEIGHT - 1 + ran.nextDouble() * 3. - 1.5;
+			final double[][] polygon = randomPolygon( ran, x0, y0, 1. + ran.nextDouble() * 5. );
+			check( polygon[ 0 ], polygon[ 1 ], img );
+		}
+	}
+
+	/**
+	 * Polygons inside the image are read from the image itself, the others
+	 * from the extended view.
+	 */
+	@Test
+	public void testDirectReadWhenInside()
+	{
+		final Img< IntType > img = indexImg();
+		final Img< IntType > other = ArrayImgs.ints( WIDTH, HEIGHT );
+		for ( final IntType p : other )
+			p.set( -1 );
+
+		final double[] x = new double[] { 2.2, 9.7, 5.1 };
+		final double[] yInside = new double[] { 3.4, 4.1, 11.8 };
+		final PolygonIterable< IntType > inside = new PolygonIterable<>( x, yInside, img, Views.extendValue( other, new IntType( -1 ) ) );
+		assertEquals( expected( x, yInside ).size(), inside.size() );
+		for ( final IntType p : inside )
+			assertTrue( p.get() >= 0 );
+
+		final double[] yAcross = new double[] { -2.4, -1.1, 6.8 };
+		final PolygonIterable< IntType > across = new PolygonIterable<>( x, yAcross, img, Views.extendValue( other, new IntType( -1 ) ) );
+		assertEquals( expected( x, yAcross ).size(), across.size() );
+		for ( final IntType p : across )
+			assertEquals( -1, p.get() );
+	}
+
+	/**
+	 * Spots with a ROI are sampled in pixel coordinates, and the ROI
+	 * can cross the image border.
+	 */
+	@Test
+	public void testSpotUtilIterable()
+	{
+		final Img< IntType > img = indexImg();
+		final double[] calibration = new double[] { 0.5, 0.25 };
+		final ImgPlus< IntType > imgPlus = new ImgPlus<>( img, "index", new AxisType[] { Axes.X, Axes.Y }, calibration );
+		final Random ran = new Random( 3L );
+		for ( int i = 0; i < 100; i++ )
+		{
+			final double[][] polygon = randomPolygon( ran, 0., 0., 0.5 + ran.nextDouble() * 2. );
+			final SpotRoi roi = new SpotRoi( polygon[ 0 ], polygon[ 1 ] );
+			final Spot spot = new Spot( ran.nextDouble() * WIDTH * calibration[ 0 ], ran.nextDouble() * HEIGHT * calibration[ 1 ], 0., 1., 1. );
+			spot.setRoi( roi );
+
+			final double[] x = roi.toPolygonX( calibration[ 0 ], 0, spot.getDoublePosition( 0 ), 1. );
+			final double[] y = roi.toPolygonY( calibration[ 1 ], 0, spot.getDoublePosition( 1 ), 1. );
+			final List< long[] > expected = expected( x, y );
+			if ( expected.isEmpty() )
+				continue; // Single pixel fallback.
+
+			checkIteration( expected, SpotUtil.iterable( spot, imgPlus ) );
+		}
+	}
+
+	private static void check( final double[] x, final double[] y, final Img< IntType > img )
+	{
+		final PolygonIterable< IntType > iterable = new PolygonIterable<>( x, y, img, Views.extendMirrorSingle( img ) );
+		checkIteration( expected( x, y ), iterable );
+	}
+
+	private static void checkIteration( final List< long[] > expected, final IterableInterval< IntType > iterable )
+	{
+		assertEquals( expected.size(), iterable.size() );
+		final Cursor< IntType > cursor = iterable.localizingCursor();
+		for ( final long[] pos : expected )
+		{
+			cursor.fwd();
+			assertEquals( "Unexpected X position.", pos[ 0 ], cursor.getLongPosition( 0 ) );
+			assertEquals( "Unexpected Y position.", pos[ 1 ], cursor.getLongPosition( 1 ) );
+			final long mx = mirror( pos[ 0 ], WIDTH );
+			final long my = mirror( pos[ 1 ], HEIGHT );
+			assertEquals( "Unexpected value at " + pos[ 0 ] + ", " + pos[ 1 ], my * WIDTH + mx, cursor.get().get() );
+		}
+		assertFalse( cursor.hasNext() );
+	}
+
+	/**
+	 * Pixels whose center is inside the polygon with the even-odd rule, in
+	 * row-major order.
+	 */
+	private static List< long[] > expected( final double[] x, final double[] y )
+	{
+		final long minX = ( long ) Math.floor( min( x ) );
+		final long maxX = ( long ) Math.ceil( max( x ) );
+		final long minY = ( long ) Math.floor( min( y ) );
+		final long maxY = ( long ) Math.ceil( max( y ) );
+		final List< long[] > list = new ArrayList<>();
+		for ( long py = minY; py <= maxY; py++ )
+			for ( long px = minX; px <= maxX; px++ )
+				if ( contains( x, y, px, py ) )
+					list.add( new long[] { px, py } );
+		return list;
+	}
+
+	private static boolean contains( final double[] x, final double[] y, final double px, final double py )
+	{
+		boolean inside = false;
+		for ( int i = 0, j = x.length - 1; i < x.length; j = i++ )
+		{
+			if ( ( y[ i ] > py ) != ( y[ j ] > py )
+					&& px < ( x[ j ] - x[ i ] ) * ( py - y[ i ] ) / ( y[ j ] - y[ i ] ) + x[ i ] )
+				inside = !inside;
+		}
+		return inside;
+	}
+
+	/**
+	 * Position read by a mirror-single extended view.
+	 */
+	private static long mirror( final long pos, final long size )
+	{
+		final long period = 2 * size - 2;
+		long p = Math.floorMod( pos, period );
+		if ( p >= size )
+			p = period - p;
+		return p;
+	}
+
+	private static double min( final double[] arr )
+	{
+		double m = Double.POSITIVE_INFINITY;
+		for ( final double v : arr )
+			m = Math.min( m, v );
+		return m;
+	}
+
+	private static double max( final double[] arr )
+	{
+		double m = Double.NEGATIVE_INFINITY;
+		for ( final double v : arr )
+			m = Math.max( m, v );
+		return m;
+	}
+
+	private static double[][] randomPolygon( final Random ran, final double x0, final double y0, final double r0 )
+	{
+		final int nPoints = 3 + ran.nextInt( 10 );
+		final double[] x = new double[ nPoints ];
+		final double[] y = new double[ nPoints ];
+		final double phase = ran.nextDouble() * 2. * Math.PI;
+		for ( int j = 0; j < nPoints; j++ )
+		{
+			final double theta = phase + 2. * Math.PI * j / nPoints;
+			final double r = r0 * ( 0.3 + ran.nextDouble() );
+			x[ j ] = x0 + r * Math.cos( theta );
+			y[ j ] = y0 + r * Math.sin( theta );
+		}
+		return new double[][] { x, y };
+	}
+
+	/**
+	 * An image in which each pixel value is its index.
+	 */
+	private static Img< IntType > indexImg()
+	{
+		final Img< IntType > img = ArrayImgs.ints( WIDTH, HEIGHT );
+		int i = 0;
+		for ( final IntType p : img )
+			p.set( i++ );
+		return img;
+	}
+}
@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Measurements;
+import ij.process.FloatPolygon;
+import ij.process.FloatProcessor;
+import ij.process.ImageStatistics;
+
+/**
+ * Checks that the pixels rasterized by {@link PolygonScanline} are the ones
+ * ImageJ measures in the same polygon, so that the area and quality of the
+ * spots created from label images are unchanged.
+ */
+public class PolygonScanlineTest
+{
+
+	private static final int WIDTH = 64;
+
+	private static final int HEIGHT = 48;
+
+	@Test
+	public void testSameAsImageJInside()
+	{
+		final ImagePlus imp = randomImp( 1L );
+		final Random ran = new Random( 2L );
+		for ( int i = 0; i < 500; i++ )
+		{
+			final double r0 = 0.3 + ran.nextDouble() * 8.;
+			final double x0 = 10. + ran.nextDouble() * ( WIDTH - 20 );
+			final double y0 = 10. + ran.nextDouble() * ( HEIGHT - 20 );
+			final FloatPolygon polygon = randomPolygon( ran, x0, y0, r0 );
+			final PolygonRoi roi = new PolygonRoi( polygon, Roi.POLYGON );
+
+			final long[] count = count( polygon, imp );
+			// The criterion used to discard degenerate ROIs.
+			assertEquals( "Unexpected area for polygon #" + i, roi.getStatistics().area, count[ 0 ], 0. );
+			check( i, imp, roi, polygon );
+		}
+	}
+
+	@Test
+	public void testSameAsImageJOnBorders()
+	{
+		final ImagePlus imp = randomImp( 3L );
+		final Random ran = new Random( 4L );
+		for ( int i = 0; i < 500; i++ )
+		{
+			final double r0 = 1. + ran.nextDouble() * 8.;
+			final double x0 = ( ran.nextBoolean() ) ? ran.nextDouble() * 4. - 2. : WIDTH + ran.nextDouble() * 4. - 2.;
+			final double y0 = ran.nextDouble() * HEIGHT;
+			final FloatPolygon polygon = randomPolygon( ran, x0, y0, r0 );
+			check( i, imp, new PolygonRoi( polygon, Roi.POLYGON ), polygon );
+		}
+	}
+
+	/**
+	 * Polygons traced along pixel edges, as before simplification.
+	 */
+	@Test
+	public void testSameAsImageJIntegerPolygons()
+	{
+		final ImagePlus imp = randomImp( 5L );
+		final Random ran = new Random( 6L );
+		for ( int i = 0; i < 200; i++ )
+		{
+			final int x0 = 2 + ran.nextInt( WIDTH - 20 );
+			final int y0 = 2 + ran.nextInt( HEIGHT - 20 );
+			final int w = 1 + ran.nextInt( 12 );
+			final int h = 1 + ran.nextInt( 12 );
+			final int notch = ran.nextInt( Math.max( 1, w ) );
+			// An L shape.
+			final FloatPolygon polygon = new FloatPolygon(
+					new float[] { x0, x0 + w, x0 + w, x0 + notch, x0 + notch, x0 },
+					new float[] { y0, y0, y0 + 1, y0 + 1, y0 + h + 1, y0 + h + 1 } );
+			final PolygonRoi roi = new PolygonRoi( polygon, Roi.POLYGON );
+			assertEquals( roi.getStatistics().area, count( polygon, imp )[ 0 ], 0. );
+			check( i, imp, roi, polygon );
+		}
+	}
+
+	private static void check( final int i, final ImagePlus imp, final PolygonRoi roi, final FloatPolygon polygon )
+	{
+		imp.setRoi( roi );
+		final ImageStatistics stats = imp.getStatistics( Measurements.AREA | Measurements.MIN_MAX );
+		imp.deleteRoi();
+		final long[] count = count( polygon, imp );
+		assertEquals( "Unexpected pixel count for polygon #" + i, stats.pixelCount, count[ 0 ] );
+		if ( count[ 0 ] > 0 )
+			assertEquals( "Unexpected max for polygon #" + i, stats.max, Float.intBitsToFloat( ( int ) count[ 1 ] ), 0. );
+	}
+
+	/**
+	 * Returns the number of pixels in the polygon and in the image, and the
+	 * bits of the max value over these pixels.
+	 */
+	private static long[] count( final FloatPolygon polygon, final ImagePlus imp )
+	{
+		// ImageJ pixel centers are at half-integer positions.
+		final double[] xc = new double[ polygon.npoints ];
+		final double[] yc = new double[ polygon.npoints ];
+		for ( int i = 0; i < polygon.npoints; i++ )
+		{
+			xc[ i ] = polygon.xpoints[ i ] - 0.5;
+			yc[ i ] = polygon.ypoints[ i ] - 0.5;
+		}
+		final FloatProcessor fp = ( FloatProcessor ) imp.getProcessor();
+		final long[] count = new long[ 1 ];
+		final float[] max = new float[] { Float.NEGATIVE_INFINITY };
+		PolygonScanline.forEachSpan( xc, yc, 0, imp.getWidth() - 1, 0, imp.getHeight() - 1, ( y, xmin, xmax ) -> {
+			count[ 0 ] += xmax - xmin + 1;
+			for ( long x = xmin; x <= xmax; x++ )
+				max[ 0 ] = Math.max( max[ 0 ], fp.getf( ( int ) x, ( int ) y ) );
+		} );
+		return new long[] { count[ 0 ], Float.floatToIntBits( max[ 0 ] ) };
+	}
+
+	private static FloatPolygon randomPolygon( final Random ran, final double x0, final double y0, final double r0 )
+	{
+		final int n = 3 + ran.nextInt( 10 );
+		final float[] x = new float[ n ];
+		final float[] y = new float[ n ];
+		for ( int j = 0; j < n; j++ )
+		{
+			final double theta = 2. * Math.PI * j / n;
+			final double r = r0 * ( 0.3 + ran.nextDouble() );
+			x[ j ] = ( float ) ( x0 + r * Math.cos( theta ) );
+			y[ j ] = ( float ) ( y0 + r * Math.sin( theta ) );
+		}
+		return new FloatPolygon( x, y );
+	}
+
+	private static ImagePlus randomImp( final long seed )
+	{
+		final Random ran = new Random( seed );
+		final FloatProcessor fp = new FloatProcessor( WIDTH, HEIGHT );
+		for ( int y = 0; y < HEIGHT; y++ )
+			for ( int x = 0; x < WIDTH; x++ )
+				fp.setf( x, y, ran.nextFloat() * 100f );
+		return new ImagePlus( "random", fp );
+	}
+}
@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.region.localneighborhood.AbstractNeighborhood;
+import net.imglib2.algorithm.region.localneighborhood.EllipseNeighborhood;
+import net.imglib2.algorithm.region.localneighborhood.EllipsoidNeighborhood;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.outofbounds.OutOfBoundsMirrorExpWindowingFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Checks that the run-length iteration of {@link SpotNeighborhood} visits the
+ * same pixels, in the same order and with the same values, as the imglib2
+ * neighborhoods it replaces, including close to the image borders.
+ */
+public class SpotNeighborhoodTest
+{
+
+	@Test
+	public void test2D()
+	{
+		final ImgPlus< FloatType > img = randomImg( new long[] { 40, 30 }, new double[] { 0.5, 0.5 } );
+		final Random ran = new Random( 2L );
+		for ( int i = 0; i < 100; i++ )
+		{
+			final Spot spot = new Spot( ran.nextDouble() * 20., ran.nextDouble() * 15., 0., 0.2 + ran.nextDouble() * 6., 1. );
+			check( spot, img );
+		}
+	}
+
+	@Test
+	public void test3D()
+	{
+		final ImgPlus< FloatType > img = randomImg( new long[] { 20, 20, 10 }, new double[] { 0.5, 0.5, 1. } );
+		final Random ran = new Random( 3L );
+		for ( int i = 0; i < 50; i++ )
+		{
+			final Spot spot = new Spot( ran.nextDouble() * 10., ran.nextDouble() * 10., ran.nextDouble() * 10., 0.2 + ran.nextDouble() * 4., 1. );
+			check( spot, img );
+		}
+	}
+
+	private static void check( final Spot spot, final ImgPlus< FloatType > img )
+	{
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		final long[] center = new long[ img.numDimensions() ];
+		final long[] span = new long[ img.numDimensions() ];
+		for ( int d = 0; d < center.length; d++ )
+		{
+			center[ d ] = Math.round( spot.getFeature( Spot.POSITION_FEATURES[ d ] ).doubleValue() / calibration[ d ] );
+			span[ d ] = Math.round( spot.getFeature( Spot.RADIUS ) / calibration[ d ] );
+		}
+		final OutOfBoundsMirrorExpWindowingFactory< FloatType, RandomAccessibleInterval< FloatType > > oob = new OutOfBoundsMirrorExpWindowingFactory<>();
+		final AbstractNeighborhood< FloatType > expected = img.numDimensions() == 2
+				? new EllipseNeighborhood<>( img, center, span, oob )
+				: new EllipsoidNeighborhood<>( img, center, span, oob );
+
+		final SpotNeighborhood< FloatType > neighborhood = new SpotNeighborhood<>( spot, img );
+		assertEquals( expected.size(), neighborhood.size() );
+
+		final Cursor< FloatType > ec = expected.cursor();
+		final SpotNeighborhoodCursor< FloatType > cursor = neighborhood.cursor();
+		while ( ec.hasNext() )
+		{
+			ec.fwd();
+			cursor.fwd();
+			for ( int d = 0; d < center.length; d++ )
+				assertEquals( ec.getLongPosition( d ), cursor.getLongPosition( d ) );
+			assertEquals( ec.get().get(), cursor.get().get(), 0f );
+		}
+		assertFalse( cursor.hasNext() );
+	}
+
+	private static ImgPlus< FloatType > randomImg( final long[] dims, final double[] calibration )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		final Random ran = new Random( 1L );
+		for ( final FloatType t : img )
+			t.set( ran.nextFloat() );
+
+		final AxisType[] axes = dims.length == 2
+				? new AxisType[] { Axes.X, Axes.Y }
+				: new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		return new ImgPlus<>( img, "random", axes, calibration );
+	}
+}
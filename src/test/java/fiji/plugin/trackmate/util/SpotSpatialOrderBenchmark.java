@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2010 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import fiji.plugin.trackmate.Spot;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Measures the block locality of the spot processing order on a
+ * {@link net.imglib2.img.cell.CellImg}: spots in hash-set order, as they come
+ * out of a {@link fiji.plugin.trackmate.SpotCollection}, versus spots sorted
+ * by {@link SpotSpatialOrder}. For each order we report the number of cell
+ * loads of an LRU cache of cells, as a disk-cached cell image would do, and
+ * the time taken to iterate over the spot pixels.
+ */
+public class SpotSpatialOrderBenchmark
+{
+
+	private static final int SIZE = 4096;
+
+	private static final int CELL_SIZE = 64;
+
+	private static final int N_SPOTS = 200_000;
+
+	private static final double RADIUS = 3.;
+
+	private static final int[] CACHED_CELLS = new int[] { 16, 64, 256 };
+
+	public static void main( final String[] args )
+	{
+		final Img< FloatType > cells = new CellImgFactory<>( new FloatType(), CELL_SIZE ).create( SIZE, SIZE );
+		final Random ran = new Random( 1L );
+		cells.forEach( p -> p.set( ran.nextFloat() ) );
+		final ImgPlus< FloatType > img = new ImgPlus<>( cells, "cells", new AxisType[] { Axes.X, Axes.Y } );
+
+		final Set< Spot > set = new HashSet<>();
+		for ( int i = 0; i < N_SPOTS; i++ )
+			set.add( new Spot( SIZE * ran.nextDouble(), SIZE * ran.nextDouble(), 0., RADIUS, 1. ) );
+
+		final List< Spot > hashOrder = new ArrayList<>( set );
+		final List< Spot > spatialOrder = new ArrayList<>( set );
+		final double[] calibration = new double[] { 1., 1., 1. };
+		long start = System.nanoTime();
+		SpotSpatialOrder.sort( spatialOrder, calibration );
+		final double sortTime = ( System.nanoTime() - start ) / 1e6;
+		System.out.println( String.format( "%d spots of radius %.0f in a %dx%d image with %dx%d cells. Sorting took %.1f ms.",
+				N_SPOTS, RADIUS, SIZE, SIZE, CELL_SIZE, CELL_SIZE, sortTime ) );
+
+		for ( final int capacity : CACHED_CELLS )
+			System.out.println( String.format( " - LRU of %3d cells: %8d cell loads in hash order, %6d in spatial order.",
+					capacity, cellLoads( hashOrder, capacity ), cellLoads( spatialOrder, capacity ) ) );
+
+		// Warm up, then time.
+		iterate( hashOrder, img );
+		iterate( spatialOrder, img );
+		start = System.nanoTime();
+		double check = iterate( hashOrder, img );
+		final double hashTime = ( System.nanoTime() - start ) / 1e6;
+		start = System.nanoTime();
+		check -= iterate( spatialOrder, img );
+		final double spatialTime = ( System.nanoTime() - start ) / 1e6;
+		System.out.println( String.format( " - Iteration over spot pixels: %.1f ms in hash order, %.1f ms in spatial order (check: %.3f).",
+				hashTime, spatialTime, check ) );
+	}
+
+	/**
+	 * Counts the cells loaded by an LRU cache of the specified capacity when
+	 * the spots are processed in the specified order.
+	 */
+	private static long cellLoads( final List< Spot > spots, final int capacity )
+	{
+		final Map< Long, Boolean > lru = new LinkedHashMap< Long, Boolean >( 2 * capacity, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Long, Boolean > eldest )
+			{
+				return size() > capacity;
+			}
+		};
+
+		long loads = 0;
+		final long nCellsX = ( SIZE - 1 ) / CELL_SIZE + 1;
+		for ( final Spot spot : spots )
+		{
+			final long cx0 = cell( spot.getDoublePosition( 0 ) - RADIUS );
+			final long cx1 = cell( spot.getDoublePosition( 0 ) + RADIUS );
+			final long cy0 = cell( spot.getDoublePosition( 1 ) - RADIUS );
+			final long cy1 = cell( spot.getDoublePosition( 1 ) + RADIUS );
+			for ( long cy = cy0; cy <= cy1; cy++ )
+				for ( long cx = cx0; cx <= cx1; cx++ )
+					if ( null == lru.put( cy * nCellsX + cx, Boolean.TRUE ) )
+						loads++;
+		}
+		return loads;
+	}
+
+	private static long cell( final double position )
+	{
+		return Math.max( 0, Math.min( SIZE - 1, ( long ) Math.floor( position ) ) ) / CELL_SIZE;
+	}
+
+	private static double iterate( final List< Spot > spots, final ImgPlus< FloatType > img )
+	{
+		double sum = 0.;
+		for ( final Spot spot : spots )
+			for ( final FloatType p : SpotUtil.iterable( spot, img ) )
+				sum += p.getRealDouble();
+		return sum;
+	}
+}